@@ -47,7 +47,8 @@ public class AuthorityConfig {
         net.m4e.app.event.EventEntityFacadeREST.class,
         net.m4e.app.event.EventLocationVoteEntityFacadeREST.class,
         net.m4e.app.resources.DocumentEntityFacadeREST.class,
-        net.m4e.app.mailbox.MailEntityFacadeREST.class
+        net.m4e.app.mailbox.MailEntityFacadeREST.class,
+        net.m4e.app.chat.ChatHistoryFacadeREST.class
     };
 
     /**
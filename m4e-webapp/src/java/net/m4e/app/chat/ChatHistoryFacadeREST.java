@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+package net.m4e.app.chat;
+
+import java.util.List;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import net.m4e.app.auth.AuthRole;
+import net.m4e.app.auth.AuthorityConfig;
+import net.m4e.app.event.Events;
+import net.m4e.app.user.UserEntity;
+import net.m4e.common.ResponseResults;
+import net.m4e.system.core.Log;
+
+/**
+ * REST services for the chat history of events.
+ *
+ * @author boto
+ * Date of creation Dec 23, 2017
+ */
+@Stateless
+@Path("/rest/chathistory")
+public class ChatHistoryFacadeREST {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "ChatHistoryFacadeREST";
+
+    /**
+     * Maximal count of messages returned at once
+     */
+    private final static int MAX_PAGE_SIZE = 100;
+
+    /**
+     * Entity manager needed for entity retrieval and modifications.
+     */
+    @PersistenceContext(unitName = net.m4e.system.core.AppConfiguration.PERSITENCE_UNIT_NAME)
+    private EntityManager entityManager;
+
+    /**
+     * The chat system holding the history
+     */
+    @Inject
+    ChatSystem chatSystem;
+
+    /**
+     * Create the REST facade.
+     */
+    public ChatHistoryFacadeREST() {
+    }
+
+    /**
+     * Get a page of the chat history of an event. The messages are returned in
+     * chronological order, pass the lowest 'seq' of a page as 'beforeSeq' in order
+     * to get the previous page.
+     *
+     * @param eventId       The event ID
+     * @param beforeSeq     Only messages older than this sequence number are returned, 0 for the latest messages
+     * @param count         Maximal count of messages
+     * @param request       HTTP request
+     * @return              JSON response
+     */
+    @GET
+    @Path("event/{eventId}/{beforeSeq}/{count}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @net.m4e.app.auth.AuthRole(grantRoles={AuthRole.VIRT_ROLE_USER})
+    public String getEventHistory(@PathParam("eventId") Long eventId, @PathParam("beforeSeq") Long beforeSeq, @PathParam("count") Integer count, @Context HttpServletRequest request) {
+        UserEntity sessionuser = AuthorityConfig.getInstance().getSessionUser(request);
+        if (sessionuser == null) {
+            Log.error(TAG, "*** Internal error, cannot get chat history, no user in session found!");
+            return ResponseResults.toJSON(ResponseResults.STATUS_NOT_OK, "Failed to get chat history, no authentication.", ResponseResults.CODE_UNAUTHORIZED, null);
+        }
+
+        Events events = new Events(entityManager);
+        if (!events.getUserIsEventOwnerOrMember(sessionuser.getId(), eventId)) {
+            Log.warning(TAG, "*** Cannot get chat history, user is no member of event or the event is invalid!");
+            return ResponseResults.toJSON(ResponseResults.STATUS_NOT_OK, "Failed to get chat history, you are not a member of event.", ResponseResults.CODE_UNAUTHORIZED, null);
+        }
+
+        int pagesize = Math.min(MAX_PAGE_SIZE, Math.max(0, count));
+        List<EventChatLog.Record> records = chatSystem.getEventHistory(eventId, beforeSeq, pagesize);
+        if (records == null) {
+            return ResponseResults.toJSON(ResponseResults.STATUS_NOT_OK, "Failed to get chat history, it is not available.", ResponseResults.CODE_INTERNAL_SRV_ERROR, null);
+        }
+
+        // the messages are stored as JSON already, so they are put into the response as they are
+        StringBuilder json = new StringBuilder("[");
+        for (EventChatLog.Record record: records) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"seq\":").append(record.getSeq())
+                .append(",\"time\":").append(record.getTime())
+                .append(",\"packet\":").append(record.getMessage())
+                .append('}');
+        }
+        json.append(']');
+
+        return ResponseResults.toJSON(ResponseResults.STATUS_OK, "Chat history was successfully exported.", ResponseResults.CODE_OK, json.toString());
+    }
+}
@@ -7,34 +7,72 @@
  */
 package net.m4e.app.chat;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
 import javax.ejb.Singleton;
 import net.m4e.app.communication.ChannelChatEvent;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
 import javax.enterprise.event.ObservesAsync;
+import javax.enterprise.event.TransactionPhase;
 import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
 import javax.json.JsonObject;
+import javax.json.JsonReader;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import net.m4e.app.communication.CommunicationMetrics;
 import net.m4e.app.communication.ConnectedClients;
 import net.m4e.app.communication.Packet;
-import net.m4e.app.event.EventEntity;
+import net.m4e.app.communication.PacketFrame;
+import net.m4e.app.communication.UserConnectedEvent;
+import net.m4e.app.event.EventDeletedEvent;
 import net.m4e.app.event.Events;
 import net.m4e.app.user.UserEntity;
+import net.m4e.system.core.AppConfiguration;
 import net.m4e.system.core.Log;
 
 
 /**
  * Central chat functionality providing real-time messaging.
  * 
+ * The messages are dispatched concurrently. The only mutable state is held by the
+ * offline chat store and the event chat history, both are safe for concurrent use.
+ * The messages of one sender arrive in order, see MessageDistribution.
+ * 
+ * Messages to users who are offline are kept in an offline chat store, they are
+ * delivered in one packet when the user connects again. Every node has its own
+ * store, if the user connects to another node then the messages are delivered
+ * through the packet broker (see ConnectedClients). Such messages do not go
+ * through the replay buffer of the user (see ConnectedClients), the store keeps
+ * them also across restarts. Event chat messages are kept in the
+ * event chat history, members can page through it, see getEventHistory. The
+ * history is written by its own thread, it is removed when the event is deleted.
+ * 
  * @author boto
  * Date of creation Oct 07, 2017
  */
 @Singleton
+@Lock(LockType.READ)
 @ApplicationScoped
 public class ChatSystem {
 
@@ -43,24 +81,218 @@ public class ChatSystem {
      */
     private final static String TAG = "ChatSystem";
 
+    /**
+     * Communication config key for the directory of the offline chat store
+     */
+    public final static String CFG_OFFLINE_DIR = "chat.offline.dir";
+
+    /**
+     * Communication config key for the maximal size of a store segment file in bytes
+     */
+    public final static String CFG_OFFLINE_SEGMENT_SIZE = "chat.offline.segmentSize";
+
+    /**
+     * Communication config key for the days an undelivered message is kept
+     */
+    public final static String CFG_OFFLINE_RETENTION = "chat.offline.retention";
+
+    /**
+     * Communication config key for the interval of store compaction in minutes
+     */
+    public final static String CFG_OFFLINE_COMPACT_INTERVAL = "chat.offline.compactInterval";
+
+    /**
+     * Communication config key for the percentage of undelivered messages in a segment below which it gets compacted
+     */
+    public final static String CFG_OFFLINE_COMPACT_RATIO = "chat.offline.compactRatio";
+
+    /**
+     * Communication config key for the directory of the event chat history
+     */
+    public final static String CFG_HISTORY_DIR = "chat.history.dir";
+
+    /**
+     * Communication config key for the size of a history segment file in bytes
+     */
+    public final static String CFG_HISTORY_SEGMENT_SIZE = "chat.history.segmentSize";
+
+    /**
+     * Communication config key for the maximal count of history segments per event
+     */
+    public final static String CFG_HISTORY_MAX_SEGMENTS = "chat.history.maxSegments";
+
+    /**
+     * Communication config key for the count of latest messages per event kept in memory
+     */
+    public final static String CFG_HISTORY_TAIL_SIZE = "chat.history.tailSize";
+
+    /**
+     * Communication config key for the minutes after the history of an inactive event is closed
+     */
+    public final static String CFG_HISTORY_IDLE_TIME = "chat.history.idleTime";
+
+    /**
+     * Communication config key for the maximal count of event chat messages waiting for being written
+     */
+    public final static String CFG_HISTORY_QUEUE_SIZE = "chat.history.queueSize";
+
+    /**
+     * Maximal time in milliseconds for writing the queued history messages on shutdown
+     */
+    private final static long HISTORY_SHUTDOWN_TIMEOUT = 10000L;
+
     /**
      * Central place to hold all client connections
      */
     @Inject
     ConnectedClients connections;
 
+    /**
+     * Used for publishing the dropped history updates
+     */
+    @Inject
+    CommunicationMetrics metrics;
+
     /**
      * Entity manager needed for entity retrieval and modifications.
      */
     @PersistenceContext(unitName = net.m4e.system.core.AppConfiguration.PERSITENCE_UNIT_NAME)
     private EntityManager entityManager;
 
+    /**
+     * Used for compacting the offline chat store
+     */
+    @Resource(lookup = "java:comp/DefaultManagedScheduledExecutorService")
+    ManagedScheduledExecutorService scheduler;
+
+    /**
+     * Used for the thread writing the event chat history
+     */
+    @Resource(lookup = "java:comp/DefaultManagedThreadFactory")
+    ManagedThreadFactory threadFactory;
+
+    /**
+     * Messages to users which are offline, null if the store could not be opened
+     */
+    private OfflineChatStore offlineStore;
+
+    private ScheduledFuture<?> compactor;
+
+    /**
+     * Striped locks held while delivering the stored messages of a user
+     */
+    private final Object[] offlineDeliveryLocks = createLocks(64);
+
+    /**
+     * Chat history of events, null if it could not be opened
+     */
+    private EventChatLog historyLog;
+
+    private ScheduledFuture<?> historyCloser;
+
+    /**
+     * History updates are written by one thread in order of arrival, so the
+     * dispatching threads do not wait for the segment files
+     */
+    private BlockingQueue<Runnable> historyQueue;
+
+    private Thread historyWriter;
+
+    private volatile boolean historyRunning = false;
+
+    /**
+     * Set while history updates are dropped, so an overload is logged only once
+     */
+    private volatile boolean historyOverloaded = false;
+
+    private final LongAdder countHistoryDropped = new LongAdder();
+
     /**
      * Called on post-construction of the instance.
      */
     @PostConstruct
     public void chatSystemInit() {
         Log.info(TAG, "Starting the chat system");
+
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        String dir = cfg.getCommunicationConfigValue(CFG_OFFLINE_DIR, getDefaultDirectory("offlinechat"));
+        long segmentsize = cfg.getCommunicationConfigValue(CFG_OFFLINE_SEGMENT_SIZE, 4L * 1024L * 1024L);
+        long retention = cfg.getCommunicationConfigValue(CFG_OFFLINE_RETENTION, 30L) * 24L * 60L * 60L * 1000L;
+        long interval = Math.max(1L, cfg.getCommunicationConfigValue(CFG_OFFLINE_COMPACT_INTERVAL, 60L));
+        double ratio = cfg.getCommunicationConfigValue(CFG_OFFLINE_COMPACT_RATIO, 25L) / 100.0;
+
+        OfflineChatStore store = new OfflineChatStore(Paths.get(dir), segmentsize, retention, ratio);
+        try {
+            store.open();
+            offlineStore = store;
+            compactor = scheduler.scheduleWithFixedDelay(this::compactOfflineStore, interval, interval, TimeUnit.MINUTES);
+        }
+        catch(IOException ex) {
+            Log.error(TAG, "could not open the offline chat store in " + dir + ", messages to offline users get lost! Reason: " + ex.getLocalizedMessage());
+        }
+
+        setupEventHistory();
+    }
+
+    /**
+     * Called when the instance is destroyed.
+     */
+    @PreDestroy
+    public void chatSystemShutdown() {
+        if (compactor != null) {
+            compactor.cancel(false);
+        }
+        if (offlineStore != null) {
+            offlineStore.close();
+        }
+        if (historyCloser != null) {
+            historyCloser.cancel(false);
+        }
+        // the queued messages are still written
+        historyRunning = false;
+        if (historyWriter != null) {
+            try {
+                historyWriter.join(HISTORY_SHUTDOWN_TIMEOUT);
+            }
+            catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            historyWriter.interrupt();
+            if (!historyQueue.isEmpty()) {
+                Log.warning(TAG, "*** dropping " + historyQueue.size() + " event chat messages on shutdown");
+            }
+        }
+        if (historyLog != null) {
+            historyLog.close();
+        }
+    }
+
+    /**
+     * An event was deleted, remove its chat history. This is done by the history
+     * writer, so messages which are still queued for the event do not bring it back.
+     * 
+     * @param event Deletion event
+     */
+    public void onEventDeleted(@Observes(during = TransactionPhase.AFTER_SUCCESS) EventDeletedEvent event) {
+        Long eventid = event.getEventId();
+        queueHistoryUpdate(() -> {
+            try {
+                historyLog.delete(eventid);
+            }
+            catch(IOException ex) {
+                Log.warning(TAG, "could not remove chat history of event " + eventid + ", reason: " + ex.getLocalizedMessage());
+            }
+        });
+    }
+
+    /**
+     * A user connected to this or another node, deliver the messages which were sent
+     * while it was offline.
+     * 
+     * @param event Connect event
+     */
+    public void onUserConnected(@ObservesAsync UserConnectedEvent event) {
+        deliverOfflineMessages(event.getUserId());
     }
 
     /**
@@ -78,6 +310,10 @@ public class ChatSystem {
 
         Packet packet = event.getPacket();
         JsonObject data = packet.getData();
+        if (data == null) {
+            Log.warning(TAG, "got invalid chat message from user " + senderid);
+            return;
+        }
         String receiveuser = data.getString("receiverUser", "");
         String receiveevent = data.getString("receiverEvent", "");
         if (receiveuser.isEmpty() && receiveevent.isEmpty()) {
@@ -108,17 +344,88 @@ public class ChatSystem {
      */
     private void sendMessageEvent(UserEntity sender, Long receiverId, Packet packet) {
         Events events = new Events(entityManager);
-        Set<Long> receiverids = events.getMembers(receiverId);
-        EventEntity event = events.findEvent(receiverId);
-        if ((event == null) || !events.getUserIsEventOwnerOrMember(sender, event)) {
+        if (!events.getUserIsEventOwnerOrMember(sender.getId(), receiverId)) {
             Log.warning(TAG, "user " + sender.getId() + " tries to send to an event chat without being a member of the event, or the event is invalid!");
             return;
         }
+        Set<Long> receiverids = events.getMembers(receiverId);
         receiverids.add(sender.getId());
         packet.setSourceId(sender.getId().toString());
         packet.setSource(sender.getName());
         packet.setTime((new Date()).getTime());
-        connections.sendPacket(packet, new ArrayList(receiverids));
+        // the packet is encoded once for the history and all recipients
+        PacketFrame frame = new PacketFrame(packet);
+        String message = frame.getText();
+        queueHistoryUpdate(() -> {
+            try {
+                historyLog.append(receiverId, message);
+            }
+            catch(IOException ex) {
+                Log.warning(TAG, "could not store chat message in history of event " + receiverId + ", reason: " + ex.getLocalizedMessage());
+            }
+        });
+        connections.sendPacket(frame, new ArrayList<>(receiverids));
+    }
+
+    /**
+     * Queue an update of the event chat history for the history writer.
+     * 
+     * @param update    History update
+     */
+    private void queueHistoryUpdate(Runnable update) {
+        if (!historyRunning) {
+            return;
+        }
+        // this runs on the dispatching thread, so it must not wait for the writer
+        if (historyQueue.offer(update)) {
+            historyOverloaded = false;
+            return;
+        }
+        countHistoryDropped.increment();
+        if (!historyOverloaded) {
+            historyOverloaded = true;
+            Log.warning(TAG, "*** event chat history is overloaded, dropping updates");
+        }
+    }
+
+    /**
+     * History writer loop, it runs on its own thread. On shutdown the queue is drained before leaving.
+     */
+    private void writeHistory() {
+        try {
+            while (historyRunning || !historyQueue.isEmpty()) {
+                // wait in short steps, so a shutdown is noticed early
+                Runnable update = historyQueue.poll(historyRunning ? 1L : 0L, TimeUnit.SECONDS);
+                if (update != null) {
+                    update.run();
+                }
+            }
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get a page of chat history of an event. The caller is responsible for
+     * checking the membership of requesting user.
+     * 
+     * @param eventId       Event ID
+     * @param beforeSeq     Only messages older than this sequence number are returned, 0 for the latest messages
+     * @param count         Maximal count of messages
+     * @return              Messages in chronological order, null if the history is not available.
+     */
+    public List<EventChatLog.Record> getEventHistory(Long eventId, long beforeSeq, int count) {
+        if (historyLog == null) {
+            return null;
+        }
+        try {
+            return historyLog.getHistory(eventId, beforeSeq, count);
+        }
+        catch(IOException ex) {
+            Log.warning(TAG, "could not read chat history of event " + eventId + ", reason: " + ex.getLocalizedMessage());
+            return null;
+        }
     }
 
     /**
@@ -129,16 +436,147 @@ public class ChatSystem {
      * @param packet        Chat packet to send
      */
     private void sendMessageUser(UserEntity sender, Long receiverId, Packet packet) {
-        UserEntity recipient = connections.getConnectedUser(receiverId);
-        if (recipient == null) {
-            return;
-        }
         List<Long> receiverids = new ArrayList();
         receiverids.add(sender.getId());
-        receiverids.add(recipient.getId());
         packet.setSourceId(sender.getId().toString());
         packet.setSource(sender.getName());
         packet.setTime((new Date()).getTime());
+
+        // the recipient may be connected to another node
+        if (connections.isUserOnline(receiverId) || (offlineStore == null)) {
+            receiverids.add(receiverId);
+        }
+        else {
+            try {
+                offlineStore.append(receiverId, packet.toJSON());
+            }
+            catch(IOException ex) {
+                Log.warning(TAG, "could not store chat message for offline user " + receiverId + ", reason: " + ex.getLocalizedMessage());
+            }
+            // the recipient may have connected meanwhile and missed the delivery
+            if (connections.isUserOnline(receiverId)) {
+                deliverOfflineMessages(receiverId);
+            }
+        }
         connections.sendPacket(packet, receiverids);
     }
+
+    /**
+     * Send all stored messages of given user in one packet. The messages are removed
+     * from store only after the packet was queued for a session of the user or for a
+     * node the user is connected to, otherwise they stay in store until the user
+     * connects again.
+     * 
+     * @param userId    User ID
+     */
+    private void deliverOfflineMessages(Long userId) {
+        if ((offlineStore == null) || !offlineStore.hasPending(userId)) {
+            return;
+        }
+        // concurrent deliveries to the same user must not send the messages twice
+        synchronized(offlineDeliveryLocks[(int)Math.floorMod(userId, (long)offlineDeliveryLocks.length)]) {
+            OfflineChatStore.Pending pending;
+            try {
+                pending = offlineStore.read(userId);
+            }
+            catch(IOException ex) {
+                Log.warning(TAG, "could not read stored chat messages of user " + userId + ", reason: " + ex.getLocalizedMessage());
+                return;
+            }
+            if (pending.getLastId() == 0L) {
+                return;
+            }
+            // only expired messages are left, they are just removed
+            if (!pending.getMessages().isEmpty()) {
+                JsonArrayBuilder messages = Json.createArrayBuilder();
+                pending.getMessages().forEach((message) -> {
+                    try (JsonReader reader = Json.createReader(new StringReader(message))) {
+                        messages.add(reader.readObject());
+                    }
+                    catch(JsonException ex) {
+                        Log.warning(TAG, "dropping invalid stored chat message of user " + userId + ", reason: " + ex.getLocalizedMessage());
+                    }
+                });
+                Packet packet = new Packet(Packet.CHANNEL_CHAT, "", "", Json.createObjectBuilder().add("offlineMessages", messages).build());
+                packet.setTime((new Date()).getTime());
+                // the user may be connected to this and to other nodes
+                boolean sentlocal = connections.sendPacketLocal(packet, userId);
+                boolean sentremote = connections.sendPacketRemote(packet, userId);
+                if (!sentlocal && !sentremote) {
+                    Log.debug(TAG, "stored chat messages of user " + userId + " could not be delivered, keeping them");
+                    return;
+                }
+            }
+            try {
+                offlineStore.acknowledge(userId, pending.getLastId());
+            }
+            catch(IOException ex) {
+                Log.warning(TAG, "could not acknowledge the stored chat messages of user " + userId + ", reason: " + ex.getLocalizedMessage());
+            }
+            Log.verbose(TAG, "delivered " + pending.getMessages().size() + " stored chat messages to user " + userId);
+        }
+    }
+
+    /**
+     * Get the default directory of a store, it is located in the data directory of the application.
+     * 
+     * @param name  Directory name
+     * @return      Directory path
+     */
+    private static String getDefaultDirectory(String name) {
+        String datadir = AppConfiguration.getInstance().getConfigValue(AppConfiguration.TOKEN_DATA_DIRECTORY);
+        if (datadir == null) {
+            datadir = System.getProperty("java.io.tmpdir");
+        }
+        return Paths.get(datadir, name).toString();
+    }
+
+    /**
+     * Setup the event chat history.
+     */
+    private void setupEventHistory() {
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        String dir = cfg.getCommunicationConfigValue(CFG_HISTORY_DIR, getDefaultDirectory("chathistory"));
+        long segmentsize = cfg.getCommunicationConfigValue(CFG_HISTORY_SEGMENT_SIZE, 1024L * 1024L);
+        long maxsegments = cfg.getCommunicationConfigValue(CFG_HISTORY_MAX_SEGMENTS, 16L);
+        long tailsize = cfg.getCommunicationConfigValue(CFG_HISTORY_TAIL_SIZE, 50L);
+        long idletime = Math.max(1L, cfg.getCommunicationConfigValue(CFG_HISTORY_IDLE_TIME, 10L));
+        long queuesize = Math.max(1L, cfg.getCommunicationConfigValue(CFG_HISTORY_QUEUE_SIZE, 10000L));
+
+        EventChatLog log = new EventChatLog(Paths.get(dir), (int)Math.min(segmentsize, Integer.MAX_VALUE), (int)maxsegments, (int)tailsize);
+        try {
+            log.open();
+            historyLog = log;
+            historyCloser = scheduler.scheduleWithFixedDelay(() -> historyLog.closeIdle(idletime * 60L * 1000L), idletime, idletime, TimeUnit.MINUTES);
+            historyQueue = new LinkedBlockingQueue<>((int)Math.min(queuesize, Integer.MAX_VALUE));
+            metrics.registerCounter("chat_history_dropped_total", "Event chat history updates dropped because the history writer could not keep up", countHistoryDropped::sum);
+            historyRunning = true;
+            historyWriter = threadFactory.newThread(this::writeHistory);
+            historyWriter.start();
+        }
+        catch(IOException ex) {
+            Log.error(TAG, "could not open the event chat history in " + dir + ", reason: " + ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Drop expired messages and reclaim the space of delivered messages.
+     */
+    private void compactOfflineStore() {
+        try {
+            int count = offlineStore.compact();
+            Log.verbose(TAG, "offline chat store compacted, deleted segments: " + count + ", pending messages: " + offlineStore.getPendingCount());
+        }
+        catch(IOException ex) {
+            Log.warning(TAG, "could not compact the offline chat store, reason: " + ex.getLocalizedMessage());
+        }
+    }
+
+    private static Object[] createLocks(int count) {
+        Object[] locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
 }
@@ -0,0 +1,541 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Append-only chat history of events. Every event has its own directory with
+ * segment files, the segments are memory-mapped. A new segment is started when
+ * the current one is full, the oldest segments are deleted when an event has
+ * more than the maximal count of segments.
+ *
+ * Every message gets a sequence number which is unique within its event. The
+ * history can be paged backwards by passing the lowest sequence number of the
+ * previous page. The last messages of an event are also kept in memory (hot tail),
+ * so the usual request for the latest messages needs no access to the segments.
+ * Older messages are decoded right out of the mapped segments.
+ *
+ * The logs of events which were not accessed for a while are closed, see closeIdle.
+ * The log of a deleted event is removed along with its files, see delete.
+ * The files of closed segments are closed right away and the segments are dropped,
+ * their mappings are released by the garbage collector. Until then the disk space
+ * of deleted segment files stays occupied.
+ *
+ * Record layout:
+ *   int     length of the message, 0 marks the end of records in a segment
+ *   long    sequence number
+ *   long    time stamp
+ *   byte[]  message (UTF-8)
+ *
+ * @author boto
+ * Date of creation Dec 23, 2017
+ */
+public class EventChatLog {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "EventChatLog";
+
+    private final static int HEADER_SIZE = 4 + 8 + 8;
+
+    private final static String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * A message of the history
+     */
+    public static class Record {
+
+        private final long seq;
+
+        private final long time;
+
+        private final String message;
+
+        private Record(long seq, long time, String message) {
+            this.seq = seq;
+            this.time = time;
+            this.message = message;
+        }
+
+        /**
+         * Get the sequence number of message.
+         *
+         * @return Sequence number
+         */
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * Get the time stamp of message.
+         *
+         * @return Time stamp
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Get the message.
+         *
+         * @return Message, e.g. a packet in JSON format
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * A mapped segment file
+     */
+    private static class Segment {
+
+        private final long firstSeq;
+
+        private final Path path;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Record offsets, the index is the sequence number relative to firstSeq
+         */
+        private int[] offsets = new int[64];
+
+        private int count = 0;
+
+        private Segment(long firstSeq, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.firstSeq = firstSeq;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private void addOffset(int offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+
+        private int getEnd() {
+            if (count == 0) {
+                return 0;
+            }
+            int last = offsets[count - 1];
+            return last + HEADER_SIZE + buffer.getInt(last);
+        }
+    }
+
+    /**
+     * The log of one event
+     */
+    private static class EventLog {
+
+        private final List<Segment> segments = new ArrayList<>();
+
+        private final ArrayDeque<Record> tail = new ArrayDeque<>();
+
+        private long nextSeq = 1L;
+
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private boolean closed = false;
+    }
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final int tailSize;
+
+    private final ConcurrentMap<Long, EventLog> logs = new ConcurrentHashMap<>();
+
+    /**
+     * Create the chat history.
+     *
+     * @param directory     Directory for the event logs, it is created if it does not exist
+     * @param segmentSize   Size of a segment file in bytes, it is also the maximal size of a message
+     * @param maxSegments   Maximal count of segments per event
+     * @param tailSize      Count of latest messages per event kept in memory
+     */
+    public EventChatLog(Path directory, int segmentSize, int maxSegments, int tailSize) {
+        this.directory = directory;
+        this.segmentSize = Math.max(64 * 1024, segmentSize);
+        this.maxSegments = Math.max(1, maxSegments);
+        this.tailSize = Math.max(0, tailSize);
+    }
+
+    /**
+     * Create the history directory.
+     *
+     * @throws IOException  Throws an exception if the directory cannot be created.
+     */
+    public void open() throws IOException {
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Close all event logs.
+     */
+    public void close() {
+        logs.keySet().forEach((id) -> logs.computeIfPresent(id, (k, log) -> {
+            closeLog(log);
+            return null;
+        }));
+    }
+
+    /**
+     * Close the logs of events which were not accessed for given time. They are
+     * opened again on next access.
+     *
+     * @param idleTime  Idle time in milliseconds
+     * @return          Count of closed logs
+     */
+    public int closeIdle(long idleTime) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Long id: logs.keySet()) {
+            EventLog log = logs.get(id);
+            if ((log != null) && ((now - log.lastAccess) > idleTime) && logs.remove(id, log)) {
+                closeLog(log);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Remove the history of an event, its segment files are deleted.
+     *
+     * @param eventId       Event ID
+     * @throws IOException  Throws an exception if the files could not be deleted.
+     */
+    public void delete(Long eventId) throws IOException {
+        try {
+            // the map entry is held, so the log cannot be loaded again while deleting its files
+            logs.compute(eventId, (id, log) -> {
+                if (log != null) {
+                    closeLog(log);
+                }
+                try {
+                    deleteFiles(directory.resolve(id.toString()));
+                }
+                catch(IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return null;
+            });
+        }
+        catch(UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Get the count of open event logs.
+     *
+     * @return Count of open logs
+     */
+    public int getOpenCount() {
+        return logs.size();
+    }
+
+    /**
+     * Append a message to the history of an event.
+     *
+     * @param eventId       Event ID
+     * @param message       Message, e.g. a packet in JSON format
+     * @return              Sequence number of the message
+     * @throws IOException  Throws an exception if the message could not be written.
+     */
+    public long append(Long eventId, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length + HEADER_SIZE + 4 > segmentSize) {
+            throw new IOException("Message is too large for chat history");
+        }
+        while (true) {
+            EventLog log = getLog(eventId);
+            synchronized (log) {
+                if (log.closed) {
+                    continue;
+                }
+                long time = System.currentTimeMillis();
+                Segment segment = log.segments.isEmpty() ? null : log.segments.get(log.segments.size() - 1);
+                // keep room for the end marker
+                if ((segment == null) || (segment.getEnd() + HEADER_SIZE + bytes.length + 4 > segment.buffer.capacity())) {
+                    segment = createSegment(eventId, log);
+                }
+                int offset = segment.getEnd();
+                long seq = log.nextSeq++;
+                ByteBuffer buffer = segment.buffer.duplicate();
+                buffer.position(offset);
+                buffer.putInt(bytes.length).putLong(seq).putLong(time).put(bytes);
+                segment.addOffset(offset);
+
+                if (tailSize > 0) {
+                    if (log.tail.size() == tailSize) {
+                        log.tail.pollFirst();
+                    }
+                    log.tail.addLast(new Record(seq, time, message));
+                }
+                return seq;
+            }
+        }
+    }
+
+    /**
+     * Get a page of history of an event.
+     *
+     * @param eventId       Event ID
+     * @param beforeSeq     Only messages with a lower sequence number are returned, 0 for the latest messages
+     * @param count         Maximal count of messages
+     * @return              Messages in ascending order of sequence number
+     * @throws IOException  Throws an exception if the history could not be read.
+     */
+    public List<Record> getHistory(Long eventId, long beforeSeq, int count) throws IOException {
+        if (count <= 0) {
+            return new ArrayList<>();
+        }
+        while (true) {
+            EventLog log = getLog(eventId);
+            synchronized (log) {
+                if (log.closed) {
+                    continue;
+                }
+                long end = ((beforeSeq <= 0L) || (beforeSeq > log.nextSeq)) ? log.nextSeq : beforeSeq;
+                long first = log.segments.isEmpty() ? log.nextSeq : log.segments.get(0).firstSeq;
+                long begin = Math.max(first, end - count);
+                List<Record> records = new ArrayList<>();
+                if (begin >= end) {
+                    return records;
+                }
+                // take the messages out of hot tail if it covers the page
+                if (!log.tail.isEmpty() && (log.tail.peekFirst().seq <= begin)) {
+                    Iterator<Record> it = log.tail.descendingIterator();
+                    while (it.hasNext()) {
+                        Record record = it.next();
+                        if (record.seq < begin) {
+                            break;
+                        }
+                        if (record.seq < end) {
+                            records.add(record);
+                        }
+                    }
+                    Collections.reverse(records);
+                    return records;
+                }
+                for (long seq = begin; seq < end; seq++) {
+                    Record record = read(log, seq);
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+                return records;
+            }
+        }
+    }
+
+    private EventLog getLog(Long eventId) throws IOException {
+        try {
+            EventLog log = logs.computeIfAbsent(eventId, (id) -> {
+                try {
+                    return loadLog(id);
+                }
+                catch(IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            log.lastAccess = System.currentTimeMillis();
+            return log;
+        }
+        catch(UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private EventLog loadLog(Long eventId) throws IOException {
+        EventLog log = new EventLog();
+        Path dir = directory.resolve(eventId.toString());
+        if (!Files.isDirectory(dir)) {
+            return log;
+        }
+        List<Long> firstseqs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file: files) {
+                String name = file.getFileName().toString();
+                try {
+                    firstseqs.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                }
+                catch(NumberFormatException ex) {
+                    Log.warning(TAG, "ignoring unexpected file in chat history: " + file);
+                }
+            }
+        }
+        Collections.sort(firstseqs);
+        for (Long firstseq: firstseqs) {
+            Segment segment = mapSegment(eventId, firstseq);
+            scanSegment(segment);
+            log.segments.add(segment);
+            log.nextSeq = segment.firstSeq + segment.count;
+        }
+        // the maximal count of segments may have been lowered meanwhile
+        evictSegments(log);
+        // warm up the hot tail
+        long begin = Math.max(log.segments.isEmpty() ? log.nextSeq : log.segments.get(0).firstSeq, log.nextSeq - tailSize);
+        for (long seq = begin; seq < log.nextSeq; seq++) {
+            Record record = read(log, seq);
+            if (record != null) {
+                log.tail.addLast(record);
+            }
+        }
+        return log;
+    }
+
+    private void scanSegment(Segment segment) {
+        int offset = 0;
+        ByteBuffer buffer = segment.buffer;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if ((length <= 0) || (offset + HEADER_SIZE + length > buffer.capacity())) {
+                break;
+            }
+            long seq = buffer.getLong(offset + 4);
+            if (seq != segment.firstSeq + segment.count) {
+                Log.warning(TAG, "unexpected sequence number in chat history segment " + segment.path + " at " + offset);
+                break;
+            }
+            segment.addOffset(offset);
+            offset += HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * Decode a message right out of its mapped segment.
+     */
+    private Record read(EventLog log, long seq) {
+        Segment segment = null;
+        for (int i = log.segments.size() - 1; i >= 0; i--) {
+            if (log.segments.get(i).firstSeq <= seq) {
+                segment = log.segments.get(i);
+                break;
+            }
+        }
+        if ((segment == null) || (seq - segment.firstSeq >= segment.count)) {
+            return null;
+        }
+        int offset = segment.offsets[(int)(seq - segment.firstSeq)];
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int length = buffer.getInt(offset);
+        long time = buffer.getLong(offset + 12);
+        buffer.limit(offset + HEADER_SIZE + length);
+        buffer.position(offset + HEADER_SIZE);
+        return new Record(seq, time, StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+
+    private Segment createSegment(Long eventId, EventLog log) throws IOException {
+        Files.createDirectories(directory.resolve(eventId.toString()));
+        Segment segment = mapSegment(eventId, log.nextSeq);
+        log.segments.add(segment);
+        evictSegments(log);
+        return segment;
+    }
+
+    /**
+     * Delete the oldest segments of a log if it has more than the maximal count of segments.
+     */
+    private void evictSegments(EventLog log) {
+        while (log.segments.size() > maxSegments) {
+            Segment oldest = log.segments.remove(0);
+            try {
+                releaseSegment(oldest);
+                Files.deleteIfExists(oldest.path);
+            }
+            catch(IOException ex) {
+                Log.warning(TAG, "could not delete chat history segment " + oldest.path + ", reason: " + ex.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Close the file of a segment. The segment must not be accessed afterwards, the
+     * caller holds the log of the segment and drops its reference. The mapping itself
+     * is released when its buffer is garbage collected.
+     */
+    private static void releaseSegment(Segment segment) throws IOException {
+        segment.channel.close();
+    }
+
+    private static void deleteFiles(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file: files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    private Segment mapSegment(Long eventId, long firstSeq) throws IOException {
+        Path path = directory.resolve(eventId.toString()).resolve(String.format("%016d", firstSeq) + SEGMENT_SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // a new file is extended to segment size, its content is zero which marks the end of records
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (channel.size() > 0) ? channel.size() : segmentSize);
+            return new Segment(firstSeq, path, channel, buffer);
+        }
+        catch(IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private void closeLog(EventLog log) {
+        synchronized (log) {
+            log.closed = true;
+            for (Segment segment: log.segments) {
+                try {
+                    segment.buffer.force();
+                    releaseSegment(segment);
+                }
+                catch(IOException ex) {
+                    Log.warning(TAG, "could not close chat history segment " + segment.path + ", reason: " + ex.getLocalizedMessage());
+                }
+            }
+            log.segments.clear();
+            log.tail.clear();
+        }
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Append-only store for chat messages sent to offline users. The messages are
+ * written to segment files in a directory, a segment is closed and a new one
+ * is started when it reaches its maximal size. An in-memory index holds the
+ * pending messages of every recipient.
+ *
+ * When the messages of a recipient are delivered, an acknowledge record is
+ * appended, so delivered messages are not delivered again after a restart.
+ * Compaction drops expired messages, deletes segments without pending messages
+ * and copies the pending messages of sparse segments into the current segment.
+ *
+ * A message is forced to disk before append returns, so a stored message survives
+ * a crash. Acknowledge records are not forced, a crash can lose the acknowledges
+ * written since the last forced message; those messages are delivered again.
+ *
+ * Record layout:
+ *   byte    type (MSG or ACK)
+ *   long    message ID, for ACK the ID of the last delivered message
+ *   long    recipient ID
+ *   long    time stamp
+ *   int     length of the message
+ *   byte[]  message (UTF-8), ACK has no message
+ *
+ * @author boto
+ * Date of creation Dec 22, 2017
+ */
+public class OfflineChatStore {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "OfflineChatStore";
+
+    private final static byte RECORD_MSG = 1;
+
+    private final static byte RECORD_ACK = 2;
+
+    private final static int HEADER_SIZE = 1 + 8 + 8 + 8 + 4;
+
+    private final static String SEGMENT_PREFIX = "chat-";
+
+    private final static String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * A pending message
+     */
+    private static class Entry {
+
+        private final long id;
+
+        private final long time;
+
+        private final Segment segment;
+
+        private final long offset;
+
+        private final int length;
+
+        private Entry(long id, long time, Segment segment, long offset, int length) {
+            this.id = id;
+            this.time = time;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Pending messages of a recipient, they stay pending until they are acknowledged.
+     */
+    public static class Pending {
+
+        private final List<String> messages;
+
+        private final long lastId;
+
+        private Pending(List<String> messages, long lastId) {
+            this.messages = messages;
+            this.lastId = lastId;
+        }
+
+        /**
+         * Get the messages in order of arrival, expired messages are left out.
+         *
+         * @return Messages
+         */
+        public List<String> getMessages() {
+            return messages;
+        }
+
+        /**
+         * Get the ID of the last message, use it for acknowledging the messages.
+         *
+         * @return Last message ID, 0 if there are no messages
+         */
+        public long getLastId() {
+            return lastId;
+        }
+    }
+
+    /**
+     * A segment file
+     */
+    private static class Segment {
+
+        private final long id;
+
+        private final Path path;
+
+        private final FileChannel channel;
+
+        private long size;
+
+        private int pendingCount = 0;
+
+        private long pendingBytes = 0L;
+
+        private Segment(long id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private final Path directory;
+
+    private final long segmentSize;
+
+    private final long retention;
+
+    private final double compactRatio;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    private final Map<Long, ArrayDeque<Entry>> pending = new HashMap<>();
+
+    /**
+     * Last delivered message ID per recipient and the segment holding the acknowledge record
+     */
+    private final Map<Long, Long> acknowledged = new HashMap<>();
+    private final Map<Long, Segment> ackSegments = new HashMap<>();
+
+    private Segment current;
+
+    private long lastId = 0L;
+
+    /**
+     * Create the store.
+     *
+     * @param directory     Directory of the segment files, it is created if it does not exist
+     * @param segmentSize   Maximal size of a segment file in bytes
+     * @param retention     Time in milliseconds a message is kept, 0 means forever
+     * @param compactRatio  Segments with a lower ratio of pending bytes are compacted
+     */
+    public OfflineChatStore(Path directory, long segmentSize, long retention, double compactRatio) {
+        this.directory = directory;
+        this.segmentSize = Math.max(1024L, segmentSize);
+        this.retention = Math.max(0L, retention);
+        this.compactRatio = compactRatio;
+    }
+
+    /**
+     * Open the store and load the index out of existing segment files.
+     *
+     * @throws IOException  Throws an exception if the store directory cannot be accessed.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file: files) {
+                String name = file.getFileName().toString();
+                try {
+                    long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    segments.put(id, new Segment(id, file, channel, channel.size()));
+                }
+                catch(NumberFormatException ex) {
+                    Log.warning(TAG, "ignoring unexpected file in chat store: " + file);
+                }
+            }
+        }
+        for (Segment segment: segments.values()) {
+            load(segment);
+        }
+        // compaction copies messages into newer segments, restore the order of arrival
+        pending.replaceAll((recipient, entries) -> {
+            List<Entry> sorted = new ArrayList<>(entries);
+            sorted.sort((a, b) -> Long.compare(a.id, b.id));
+            return new ArrayDeque<>(sorted);
+        });
+        // drop messages which were delivered before
+        acknowledged.forEach((recipient, ackid) -> removeDelivered(recipient, ackid));
+        dropExpired(System.currentTimeMillis());
+
+        current = segments.isEmpty() ? createSegment(1L) : segments.lastEntry().getValue();
+        Log.info(TAG, "offline chat store opened, segments: " + segments.size() + ", recipients with pending messages: " + pending.size());
+    }
+
+    /**
+     * Close all segment files.
+     */
+    public synchronized void close() {
+        for (Segment segment: segments.values()) {
+            try {
+                segment.channel.close();
+            }
+            catch(IOException ex) {
+                Log.warning(TAG, "could not close chat store segment " + segment.path + ", reason: " + ex.getLocalizedMessage());
+            }
+        }
+        segments.clear();
+        pending.clear();
+        current = null;
+    }
+
+    /**
+     * Store a message for a recipient. The message is on disk when this returns.
+     *
+     * @param recipientId   Recipient (user) ID
+     * @param message       Message, e.g. a packet in JSON format
+     * @throws IOException  Throws an exception if the message could not be written.
+     */
+    public synchronized void append(Long recipientId, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        long id = ++lastId;
+        long time = System.currentTimeMillis();
+        long offset = write(RECORD_MSG, id, recipientId, time, bytes);
+        current.channel.force(false);
+        addPending(recipientId, new Entry(id, time, current, offset, bytes.length));
+    }
+
+    /**
+     * Check if there are pending messages for given recipient.
+     *
+     * @param recipientId   Recipient ID
+     * @return              Return true if messages are pending.
+     */
+    public synchronized boolean hasPending(Long recipientId) {
+        return pending.containsKey(recipientId);
+    }
+
+    /**
+     * Read all pending messages of a recipient. The messages stay pending until they
+     * are acknowledged, so they are not lost if they could not be delivered. The files
+     * are read without holding the store, so reads for different recipients do not
+     * wait for each other.
+     *
+     * @param recipientId   Recipient ID
+     * @return              Pending messages, the message list is empty if there are none.
+     * @throws IOException  Throws an exception if the messages could not be read.
+     */
+    public Pending read(Long recipientId) throws IOException {
+        try {
+            return readEntries(getPendingEntries(recipientId));
+        }
+        catch(ClosedChannelException ex) {
+            // a segment was compacted meanwhile, read again while holding the store
+            synchronized(this) {
+                return readEntries(getPendingEntries(recipientId));
+            }
+        }
+    }
+
+    /**
+     * Mark the messages of a recipient up to given message ID as delivered, they are
+     * not returned again. Messages stored after reading them stay pending.
+     *
+     * @param recipientId   Recipient ID
+     * @param lastId        ID of the last delivered message, see Pending.getLastId
+     * @throws IOException  Throws an exception if the acknowledge record could not be written.
+     */
+    public synchronized void acknowledge(Long recipientId, long lastId) throws IOException {
+        Long prev = acknowledged.get(recipientId);
+        if ((lastId <= 0L) || ((prev != null) && (prev >= lastId))) {
+            return;
+        }
+        write(RECORD_ACK, lastId, recipientId, System.currentTimeMillis(), new byte[0]);
+        acknowledged.put(recipientId, lastId);
+        ackSegments.put(recipientId, current);
+        removeDelivered(recipientId, lastId);
+    }
+
+    /**
+     * Drop expired messages and reclaim the space of segments which have no or
+     * only a few pending messages.
+     *
+     * @return Count of deleted segment files
+     * @throws IOException  Throws an exception if a segment could not be compacted.
+     */
+    public synchronized int compact() throws IOException {
+        dropExpired(System.currentTimeMillis());
+        int countdeleted = 0;
+        List<Segment> candidates = new ArrayList<>(segments.values());
+        for (Segment segment: candidates) {
+            if (segment == current) {
+                continue;
+            }
+            if ((segment.pendingCount == 0) || (((double)segment.pendingBytes / segment.size) < compactRatio)) {
+                moveToCurrent(segment);
+                // the copies must be on disk before their originals are deleted
+                current.channel.force(false);
+                deleteSegment(segment);
+                countdeleted++;
+            }
+        }
+        return countdeleted;
+    }
+
+    /**
+     * Get the count of pending messages.
+     *
+     * @return Count of pending messages
+     */
+    public synchronized int getPendingCount() {
+        return pending.values().stream().mapToInt(ArrayDeque::size).sum();
+    }
+
+    private synchronized List<Entry> getPendingEntries(Long recipientId) {
+        ArrayDeque<Entry> entries = pending.get(recipientId);
+        return (entries == null) ? new ArrayList<>() : new ArrayList<>(entries);
+    }
+
+    private Pending readEntries(List<Entry> entries) throws IOException {
+        List<String> messages = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        long lastid = 0L;
+        for (Entry entry: entries) {
+            lastid = entry.id;
+            if (!isExpired(entry, now)) {
+                ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+                readFully(entry.segment.channel, buffer, entry.offset + HEADER_SIZE);
+                messages.add(new String(buffer.array(), StandardCharsets.UTF_8));
+            }
+        }
+        return new Pending(messages, lastid);
+    }
+
+    private void load(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long offset = 0L;
+        while (offset + HEADER_SIZE <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            header.flip();
+            byte type = header.get();
+            long id = header.getLong();
+            long recipient = header.getLong();
+            long time = header.getLong();
+            int length = header.getInt();
+            if ((length < 0) || (offset + HEADER_SIZE + length > segment.size)) {
+                // a partially written record, e.g. after a crash
+                Log.warning(TAG, "truncating damaged chat store segment " + segment.path + " at " + offset);
+                segment.channel.truncate(offset);
+                segment.size = offset;
+                break;
+            }
+            if (type == RECORD_MSG) {
+                addPending(recipient, new Entry(id, time, segment, offset, length));
+            }
+            else if (type == RECORD_ACK) {
+                Long prev = acknowledged.get(recipient);
+                if ((prev == null) || (prev < id)) {
+                    acknowledged.put(recipient, id);
+                    ackSegments.put(recipient, segment);
+                }
+            }
+            lastId = Math.max(lastId, id);
+            offset += HEADER_SIZE + length;
+        }
+        if (offset < segment.size) {
+            // a partially written header, new records must not be appended behind it
+            Log.warning(TAG, "truncating damaged chat store segment " + segment.path + " at " + offset);
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+    }
+
+    private void addPending(Long recipientId, Entry entry) {
+        pending.computeIfAbsent(recipientId, (r) -> new ArrayDeque<>()).add(entry);
+        entry.segment.pendingCount++;
+        entry.segment.pendingBytes += HEADER_SIZE + entry.length;
+    }
+
+    private void removeDelivered(Long recipientId, long lastDelivered) {
+        ArrayDeque<Entry> entries = pending.get(recipientId);
+        if (entries == null) {
+            return;
+        }
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.id <= lastDelivered) {
+                it.remove();
+                releaseEntry(entry);
+            }
+        }
+        if (entries.isEmpty()) {
+            pending.remove(recipientId);
+        }
+    }
+
+    private void dropExpired(long now) {
+        if (retention == 0L) {
+            return;
+        }
+        Iterator<Map.Entry<Long, ArrayDeque<Entry>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<Entry> entries = it.next().getValue();
+            while (!entries.isEmpty() && isExpired(entries.peekFirst(), now)) {
+                releaseEntry(entries.pollFirst());
+            }
+            if (entries.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return (retention > 0L) && ((now - entry.time) > retention);
+    }
+
+    private void releaseEntry(Entry entry) {
+        entry.segment.pendingCount--;
+        entry.segment.pendingBytes -= HEADER_SIZE + entry.length;
+    }
+
+    /**
+     * Copy the pending messages and acknowledge records of a segment into the current segment.
+     */
+    private void moveToCurrent(Segment segment) throws IOException {
+        for (Map.Entry<Long, ArrayDeque<Entry>> recipiententries: pending.entrySet()) {
+            List<Entry> moved = new ArrayList<>();
+            Iterator<Entry> it = recipiententries.getValue().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.segment == segment) {
+                    ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+                    readFully(segment.channel, buffer, entry.offset + HEADER_SIZE);
+                    long offset = write(RECORD_MSG, entry.id, recipiententries.getKey(), entry.time, buffer.array());
+                    releaseEntry(entry);
+                    Entry copy = new Entry(entry.id, entry.time, current, offset, entry.length);
+                    copy.segment.pendingCount++;
+                    copy.segment.pendingBytes += HEADER_SIZE + copy.length;
+                    moved.add(copy);
+                }
+                else {
+                    moved.add(entry);
+                }
+            }
+            recipiententries.getValue().clear();
+            recipiententries.getValue().addAll(moved);
+        }
+        // the acknowledge records must survive, otherwise delivered messages in other segments would come back
+        for (Map.Entry<Long, Segment> ack: new ArrayList<>(ackSegments.entrySet())) {
+            if (ack.getValue() == segment) {
+                write(RECORD_ACK, acknowledged.get(ack.getKey()), ack.getKey(), System.currentTimeMillis(), new byte[0]);
+                ackSegments.put(ack.getKey(), current);
+            }
+        }
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        segments.remove(segment.id);
+        segment.channel.close();
+        Files.deleteIfExists(segment.path);
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        Path path = directory.resolve(SEGMENT_PREFIX + String.format("%016d", id) + SEGMENT_SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel, channel.size());
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Write a record to the current segment.
+     *
+     * @return Offset of the record in segment
+     */
+    private long write(byte type, long id, long recipientId, long time, byte[] message) throws IOException {
+        if (current.size >= segmentSize) {
+            current.channel.force(false);
+            current = createSegment(current.id + 1L);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + message.length);
+        buffer.put(type).putLong(id).putLong(recipientId).putLong(time).putInt(message.length).put(message);
+        buffer.flip();
+        long offset = current.size;
+        while (buffer.hasRemaining()) {
+            current.channel.write(buffer, offset + buffer.position());
+        }
+        current.size += HEADER_SIZE + message.length;
+        return offset;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of chat store segment");
+            }
+        }
+    }
+}
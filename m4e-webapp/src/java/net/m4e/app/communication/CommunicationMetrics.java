@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.enterprise.context.ApplicationScoped;
+
+
+/**
+ * Metrics of the WebSocket layer: frames and bytes per channel and direction,
+ * parse failures, the time incoming packets wait for their dispatch lane and
+ * the latency of asynchronous sends. All counters are striped (LongAdder), so
+ * recording is cheap also under contention.
+ *
+ * Other components can register gauges and counters which are read on export,
+ * e.g. the count of connected sessions. The metrics are exported in Prometheus
+ * text format.
+ *
+ * NOTE: text frames are measured in characters, binary frames in bytes.
+ *
+ * @author boto
+ * Date of creation Dec 26, 2017
+ */
+@ApplicationScoped
+public class CommunicationMetrics {
+
+    /**
+     * Channels having their own counters, all other channels share the last one
+     */
+    private final static String[] CHANNELS = {Packet.CHANNEL_SYSTEM, Packet.CHANNEL_CHAT, Packet.CHANNEL_EVENT, Packet.CHANNEL_NOTIFY, "other"};
+
+    private final static int CHANNEL_OTHER = CHANNELS.length - 1;
+
+    private final static String PREFIX = "m4e_ws_";
+
+    /**
+     * A value read on export
+     */
+    private static class Probe {
+
+        private final String name;
+
+        private final String help;
+
+        private final String type;
+
+        private final LongSupplier supplier;
+
+        private Probe(String name, String help, String type, LongSupplier supplier) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.supplier = supplier;
+        }
+    }
+
+    private final LongAdder[] framesIn = createCounters();
+
+    private final LongAdder[] framesOut = createCounters();
+
+    private final LongAdder[] bytesIn = createCounters();
+
+    private final LongAdder[] bytesOut = createCounters();
+
+    private final LongAdder parseFailures = new LongAdder();
+
+    private final LatencyHistogram[] dispatchWait = createHistograms();
+
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+
+    private final List<Probe> probes = new CopyOnWriteArrayList<>();
+
+    public CommunicationMetrics() {}
+
+    /**
+     * Count an incoming frame.
+     *
+     * @param channel   Channel of the frame, may be null if unknown
+     * @param size      Frame size
+     */
+    public void frameIn(String channel, int size) {
+        int index = getChannelIndex(channel);
+        framesIn[index].increment();
+        bytesIn[index].add(size);
+    }
+
+    /**
+     * Count an outgoing frame.
+     *
+     * @param channel   Channel of the frame, may be null if unknown
+     * @param size      Frame size
+     */
+    public void frameOut(String channel, int size) {
+        int index = getChannelIndex(channel);
+        framesOut[index].increment();
+        bytesOut[index].add(size);
+    }
+
+    /**
+     * Count an incoming frame which could not be parsed.
+     */
+    public void parseFailure() {
+        parseFailures.increment();
+    }
+
+    /**
+     * Record the time a packet waited for its dispatch lane.
+     *
+     * @param channel   Channel of the packet
+     * @param nanos     Wait time in nanoseconds
+     */
+    public void dispatchWait(String channel, long nanos) {
+        dispatchWait[getChannelIndex(channel)].record(nanos);
+    }
+
+    /**
+     * Record the time an asynchronous send took until its completion.
+     *
+     * @param nanos     Send latency in nanoseconds
+     */
+    public void sendLatency(long nanos) {
+        sendLatency.record(nanos);
+    }
+
+    /**
+     * Register a gauge, it is read on every export.
+     *
+     * @param name      Metric name without prefix
+     * @param help      Description
+     * @param supplier  Supplier of the current value
+     */
+    public void registerGauge(String name, String help, LongSupplier supplier) {
+        probes.add(new Probe(name, help, "gauge", supplier));
+    }
+
+    /**
+     * Register a counter maintained by another component, it is read on every export.
+     *
+     * @param name      Metric name without prefix
+     * @param help      Description
+     * @param supplier  Supplier of the current count
+     */
+    public void registerCounter(String name, String help, LongSupplier supplier) {
+        probes.add(new Probe(name, help, "counter", supplier));
+    }
+
+    /**
+     * Export all metrics in Prometheus text format.
+     *
+     * @return Metrics text
+     */
+    public String exportPrometheus() {
+        StringBuilder out = new StringBuilder(8192);
+        exportCounters(out, "frames_in_total", "Incoming frames per channel", framesIn);
+        exportCounters(out, "frames_out_total", "Outgoing frames per channel", framesOut);
+        exportCounters(out, "bytes_in_total", "Size of incoming frames per channel", bytesIn);
+        exportCounters(out, "bytes_out_total", "Size of outgoing frames per channel", bytesOut);
+        writeHeader(out, "parse_failures_total", "Incoming frames which could not be parsed", "counter");
+        out.append(PREFIX).append("parse_failures_total ").append(parseFailures.sum()).append('\n');
+
+        writeHeader(out, "dispatch_wait_seconds", "Time incoming packets wait for their dispatch lane", "histogram");
+        for (int i = 0; i < CHANNELS.length; i++) {
+            if (dispatchWait[i].getCount() > 0L) {
+                dispatchWait[i].exportPrometheus(out, PREFIX + "dispatch_wait_seconds", "channel=\"" + CHANNELS[i] + "\"");
+            }
+        }
+        writeHeader(out, "send_latency_seconds", "Time from starting an asynchronous send to its completion", "histogram");
+        sendLatency.exportPrometheus(out, PREFIX + "send_latency_seconds", "");
+
+        for (Probe probe: probes) {
+            writeHeader(out, probe.name, probe.help, probe.type);
+            out.append(PREFIX).append(probe.name).append(' ').append(probe.supplier.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void exportCounters(StringBuilder out, String name, String help, LongAdder[] counters) {
+        writeHeader(out, name, help, "counter");
+        for (int i = 0; i < CHANNELS.length; i++) {
+            out.append(PREFIX).append(name).append("{channel=\"").append(CHANNELS[i]).append("\"} ")
+               .append(counters[i].sum()).append('\n');
+        }
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static int getChannelIndex(String channel) {
+        for (int i = 0; i < CHANNEL_OTHER; i++) {
+            if (CHANNELS[i].equals(channel)) {
+                return i;
+            }
+        }
+        return CHANNEL_OTHER;
+    }
+
+    private static LongAdder[] createCounters() {
+        LongAdder[] counters = new LongAdder[CHANNELS.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    private static LatencyHistogram[] createHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[CHANNELS.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+}
@@ -8,18 +8,43 @@
 
 package net.m4e.app.communication;
 
-import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.concurrent.ManagedThreadFactory;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
 import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
 import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
 import javax.websocket.Session;
-import net.m4e.app.event.EventNotifications;
-import net.m4e.app.notification.NotifyUserRelativesEvent;
 import net.m4e.app.user.UserEntity;
+import net.m4e.system.core.AppConfiguration;
 import net.m4e.system.core.Log;
 
 
@@ -29,6 +54,29 @@ import net.m4e.system.core.Log;
  * 
  * See 'Connection' class for WebSocket handling.
  * 
+ * NOTE: This resource is used concurrently by all WebSocket threads and asynchronous
+ *       event observers. Lookups and packet sending are lock-free, connection updates
+ *       are atomic per user (see addConnection and removeConnection). Only packets to
+ *       users having a replay buffer are sent while holding the buffer, see sendToUser.
+ *       Packets are not sent inline, they are put into the bounded outbound queue
+ *       of every recipient session, see OutboundQueue.
+ * 
+ * Sessions can subscribe to topics (e.g. events), packets sent to a topic reach
+ * only its subscribers. Sessions which never subscribed to any topic get all
+ * packets sent to their user.
+ * 
+ * Sessions which asked for sequenced packets on connecting get every packet sent
+ * to their user with a per-user sequence number ("seq" field). The last packets
+ * of such users are kept in a replay buffer, so a client reconnecting with its
+ * last seen sequence number gets only the missed packets.
+ * 
+ * Sessions which asked for batching on connecting get their notify packets
+ * collected for one tick and sent as one frame, see NotifyBatch.
+ * 
+ * If the application runs on several nodes then a packet broker (see PacketBroker)
+ * is used for delivering packets to users connected to other nodes. The broker is
+ * selected in communication configuration, by default there is only one node.
+ * 
  * @author boto
  * Date of creation Oct 4, 2017
  */
@@ -41,23 +89,292 @@ public class ConnectedClients {
     private final static String TAG = "ConnectedClients";
 
     /**
-     * Event used for notifying other users
+     * Communication config key for the maximal count of queued frames per session
+     */
+    public final static String CFG_OUTBOUND_HIGH_WATER_MARK = "outbound.queue.highWaterMark";
+
+    /**
+     * Communication config key for the slow consumer policy, one of dropnewest, dropoldest, disconnect
+     */
+    public final static String CFG_OUTBOUND_POLICY = "outbound.queue.policy";
+
+    /**
+     * Default maximal count of queued frames per session
+     */
+    private final static int DEFAULT_OUTBOUND_HIGH_WATER_MARK = 256;
+
+    /**
+     * Communication config key for the packet broker, one of local, tcp
+     */
+    public final static String CFG_CLUSTER_BROKER = "cluster.broker";
+
+    /**
+     * Communication config key for the ID of this node, it must be unique in the cluster
+     */
+    public final static String CFG_CLUSTER_NODE_ID = "cluster.node.id";
+
+    /**
+     * Communication config key for the address the TCP broker listens on (host:port)
+     */
+    public final static String CFG_CLUSTER_TCP_LISTEN = "cluster.tcp.listen";
+
+    /**
+     * Communication config key for the comma separated addresses (host:port) of all other nodes
+     */
+    public final static String CFG_CLUSTER_TCP_PEERS = "cluster.tcp.peers";
+
+    /**
+     * Communication config key for the secret shared by all nodes
+     */
+    public final static String CFG_CLUSTER_TCP_SECRET = "cluster.tcp.secret";
+
+    /**
+     * Communication config key for the maximal count of messages queued for one node
+     */
+    public final static String CFG_CLUSTER_TCP_QUEUE_SIZE = "cluster.tcp.queueSize";
+
+    /**
+     * Session user property key used for storing the topics a session subscribed to.
+     * A session having this property is in topic mode.
+     */
+    public final static String KEY_TOPICS = "topics";
+
+    /**
+     * Session user property key used for marking sessions which get sequenced packets
+     */
+    public final static String KEY_SEQUENCED = "sequenced";
+
+    /**
+     * Communication config key for the count of packets kept per user for replay
+     */
+    public final static String CFG_REPLAY_BUFFER_SIZE = "replay.bufferSize";
+
+    /**
+     * Communication config key for the time in seconds a replay buffer is kept after the user disconnected
+     */
+    public final static String CFG_REPLAY_RETENTION = "replay.retention";
+
+    /**
+     * Session user property key used for marking sessions which asked for batched notify packets
+     */
+    public final static String KEY_BATCHED = "batched";
+
+    /**
+     * Communication config key for the tick in milliseconds notify packets are collected, 0 disables batching
+     */
+    public final static String CFG_NOTIFY_BATCH_TICK = "notify.batch.tick";
+
+    /**
+     * Communication config key for the maximal count of notify packets in one frame
+     */
+    public final static String CFG_NOTIFY_BATCH_MAX_SIZE = "notify.batch.maxSize";
+
+    /**
+     * Topic name prefix of events
+     */
+    private final static String TOPIC_EVENT = "event.";
+
+    /**
+     * Used for creating the packet broker threads
+     */
+    @Resource(lookup = "java:comp/DefaultManagedThreadFactory")
+    ManagedThreadFactory threadFactory;
+
+    /**
+     * Used for purging expired replay buffers
+     */
+    @Resource(lookup = "java:comp/DefaultManagedScheduledExecutorService")
+    ManagedScheduledExecutorService scheduler;
+
+    /**
+     * Used for announcing the online status of users to their relatives
+     */
+    @Inject
+    PresenceEngine presenceEngine;
+
+    /**
+     * Fired when the first session of a user was added, e.g. for delivering
+     * messages which were sent while the user was offline
+     */
+    @Inject
+    Event<UserConnectedEvent> userConnectedEvent;
+
+    /**
+     * Metrics of the WebSocket layer
      */
     @Inject
-    Event<NotifyUserRelativesEvent> notifyUserRelativesEvent;
+    CommunicationMetrics metrics;
 
     /**
-     * Class used for a user entry
+     * Class used for a user entry. The session list is modified only while holding
+     * the map entry (see addConnection/removeConnection), it can be iterated without locking.
      */
-    private class UserEntry {
-        public UserEntity user;
-        public List<Session /*WebSocket session*/> sessions = new ArrayList();
+    private static class UserEntry {
+        public final UserEntity user;
+        public final List<Session /*WebSocket session*/> sessions = new CopyOnWriteArrayList<>();
+
+        public UserEntry(UserEntity user) {
+            this.user = user;
+        }
     }
 
     /**
      * Map containing user IDs and associated WebSocket sessions
      */
-    private final Map<Long /*user ID*/, UserEntry >  connections = new HashMap();
+    private final ConcurrentMap<Long /*user ID*/, UserEntry >  connections = new ConcurrentHashMap<>();
+
+    /**
+     * Counters of the outbound send pipeline
+     */
+    private final OutboundStats outboundStats = new OutboundStats();
+
+    private int outboundHighWaterMark = DEFAULT_OUTBOUND_HIGH_WATER_MARK;
+
+    private OutboundQueue.SlowConsumerPolicy outboundPolicy = OutboundQueue.SlowConsumerPolicy.Disconnect;
+
+    /**
+     * Broker used for exchanging packets with other nodes
+     */
+    private PacketBroker broker = new LocalPacketBroker();
+
+    /**
+     * Users connected to other nodes
+     */
+    private final PresenceDirectory remotePresence = new PresenceDirectory();
+
+    /**
+     * Inverted index: topic -> subscribed sessions
+     */
+    private final ConcurrentMap<String, Set<Session>> topics = new ConcurrentHashMap<>();
+
+    /**
+     * Count of sessions which are not in topic mode
+     */
+    private final AtomicInteger legacySessionCount = new AtomicInteger();
+
+    /**
+     * Replay buffers of users having sessions with sequenced packets
+     */
+    private final ConcurrentMap<Long, ReplayBuffer> replayBuffers = new ConcurrentHashMap<>();
+
+    private int replayBufferSize = 128;
+
+    private long replayRetention = 300000L;
+
+    private ScheduledFuture<?> replayPurger;
+
+    /**
+     * Sessions having pending notify packets, they are flushed on next tick
+     */
+    private final Queue<Session> pendingBatches = new ConcurrentLinkedQueue<>();
+
+    private long notifyBatchTick = 0L;
+
+    private int notifyBatchMaxSize = 32;
+
+    private ScheduledFuture<?> batchFlusher;
+
+    private final LongAdder countBatchedPackets = new LongAdder();
+
+    /**
+     * Counters for packets exchanged with other nodes
+     */
+    private final LongAdder countRemoteSent = new LongAdder();
+    private final LongAdder countRemoteReceived = new LongAdder();
+    private final LongAdder remoteLatencyTotal = new LongAdder();
+    private final AtomicLong remoteLatencyMax = new AtomicLong();
+
+    /**
+     * Setup the outbound pipeline and the packet broker.
+     */
+    @PostConstruct
+    public void connectedClientsInit() {
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        outboundHighWaterMark = (int)cfg.getCommunicationConfigValue(CFG_OUTBOUND_HIGH_WATER_MARK, DEFAULT_OUTBOUND_HIGH_WATER_MARK);
+        outboundPolicy = OutboundQueue.SlowConsumerPolicy.fromValue(cfg.getCommunicationConfigValue(CFG_OUTBOUND_POLICY, ""),
+                                                                    OutboundQueue.SlowConsumerPolicy.Disconnect);
+        Log.info(TAG, "Outbound queue high-water mark: " + outboundHighWaterMark + ", slow consumer policy: " + outboundPolicy.value());
+
+        String brokertype = cfg.getCommunicationConfigValue(CFG_CLUSTER_BROKER, "local");
+        if ("tcp".equalsIgnoreCase(brokertype)) {
+            List<InetSocketAddress> listen = TcpPacketBroker.parseAddresses(cfg.getCommunicationConfigValue(CFG_CLUSTER_TCP_LISTEN, "127.0.0.1:7710"));
+            String secret = cfg.getCommunicationConfigValue(CFG_CLUSTER_TCP_SECRET, "").trim();
+            if (listen.isEmpty()) {
+                Log.error(TAG, "Invalid cluster listen address, running as single node!");
+            }
+            else if (secret.isEmpty()) {
+                Log.error(TAG, "Missing cluster secret, running as single node!");
+            }
+            else {
+                broker = new TcpPacketBroker(listen.get(0),
+                                             TcpPacketBroker.parseAddresses(cfg.getCommunicationConfigValue(CFG_CLUSTER_TCP_PEERS, "")),
+                                             secret,
+                                             (int)cfg.getCommunicationConfigValue(CFG_CLUSTER_TCP_QUEUE_SIZE, 10000),
+                                             threadFactory);
+            }
+        }
+        else if (!"local".equalsIgnoreCase(brokertype)) {
+            Log.error(TAG, "Unknown packet broker type '" + brokertype + "', running as single node!");
+        }
+        String nodeid = cfg.getCommunicationConfigValue(CFG_CLUSTER_NODE_ID, UUID.randomUUID().toString());
+        broker.start(nodeid, new BrokerListener());
+
+        replayBufferSize = (int)Math.max(1L, cfg.getCommunicationConfigValue(CFG_REPLAY_BUFFER_SIZE, 128L));
+        replayRetention = Math.max(0L, cfg.getCommunicationConfigValue(CFG_REPLAY_RETENTION, 300L)) * 1000L;
+        replayPurger = scheduler.scheduleWithFixedDelay(this::purgeReplayBuffers, 60L, 60L, TimeUnit.SECONDS);
+
+        notifyBatchTick = Math.max(0L, cfg.getCommunicationConfigValue(CFG_NOTIFY_BATCH_TICK, 20L));
+        notifyBatchMaxSize = (int)Math.max(1L, cfg.getCommunicationConfigValue(CFG_NOTIFY_BATCH_MAX_SIZE, 32L));
+        if (notifyBatchTick > 0L) {
+            batchFlusher = scheduler.scheduleAtFixedRate(this::flushNotifyBatches, notifyBatchTick, notifyBatchTick, TimeUnit.MILLISECONDS);
+        }
+
+        registerMetrics();
+    }
+
+    /**
+     * Register the gauges and counters of connected clients.
+     */
+    private void registerMetrics() {
+        metrics.registerGauge("connected_users", "Users connected to this node", () -> connections.size());
+        metrics.registerGauge("connected_sessions", "Sessions connected to this node", this::getSessionCount);
+        metrics.registerGauge("outbound_queue_depth", "Frames waiting in outbound queues", this::getOutboundQueueDepth);
+        metrics.registerGauge("topics", "Topics having subscribers", this::getTopicCount);
+        metrics.registerGauge("replay_buffers", "Replay buffers of users", () -> replayBuffers.size());
+        metrics.registerCounter("outbound_queued_total", "Frames queued for sending", outboundStats::getCountQueued);
+        metrics.registerCounter("outbound_sent_total", "Frames sent successfully", outboundStats::getCountSent);
+        metrics.registerCounter("outbound_failed_total", "Frames which could not be sent", outboundStats::getCountFailed);
+        metrics.registerCounter("outbound_dropped_total", "Frames dropped because of slow consumers", outboundStats::getCountDropped);
+        metrics.registerCounter("outbound_discarded_total", "Pending frames discarded on closing sessions", outboundStats::getCountDiscarded);
+        metrics.registerCounter("slow_consumer_disconnects_total", "Sessions disconnected because of being too slow", outboundStats::getCountDisconnects);
+        metrics.registerCounter("notify_batched_total", "Notify packets which went through a batch", this::getCountBatchedPackets);
+        metrics.registerCounter("remote_sent_total", "Packets sent to other nodes", this::getCountRemoteSent);
+        metrics.registerCounter("remote_received_total", "Packets received from other nodes", this::getCountRemoteReceived);
+    }
+
+    /**
+     * Shutdown the packet broker.
+     */
+    @PreDestroy
+    public void connectedClientsShutdown() {
+        if (replayPurger != null) {
+            replayPurger.cancel(false);
+        }
+        if (batchFlusher != null) {
+            batchFlusher.cancel(false);
+        }
+        broker.stop();
+    }
+
+    /**
+     * Make sure that the resource is created on application start, so other nodes
+     * can reach this node before any user connects.
+     * 
+     * @param init  Application context initialization
+     */
+    public void onApplicationStart(@Observes @Initialized(ApplicationScoped.class) Object init) {
+        Log.info(TAG, "Connected clients registry is ready");
+    }
 
     /**
      * Given an user ID return its user entity if it is currently connected.
@@ -73,27 +390,351 @@ public class ConnectedClients {
         return null;
     }
 
+    /**
+     * Check if a user is online, i.e. connected to this or any other node.
+     * 
+     * @param userId        User ID
+     * @return              Return true if the user is online.
+     */
+    public boolean isUserOnline(Long userId) {
+        return connections.containsKey(userId) || remotePresence.isOnline(userId);
+    }
+
     /**
      * Send a packet to given recipients. The packet is sent to all connections of
-     * recipients.
+     * recipients, also to those connected to other nodes.
      * 
      * @param packet        Packet to send
      * @param recipientIds  List of recipients containing user IDs
      */
     public void sendPacket(Packet packet, List<Long> recipientIds) {
-        recipientIds.forEach(id -> {
-            UserEntry recentry = connections.get(id);
-            if (recentry != null) {
-                recentry.sessions.forEach(session -> {
-                    try {
-                        String msg = packet.toJSON();
-                        session.getBasicRemote().sendText(msg);
+        // the packet is encoded only once and the frame is shared by all recipient sessions
+        sendPacket(new PacketFrame(packet), recipientIds);
+    }
+
+    /**
+     * Send a packet frame to given recipients. Use this for sending one frame to
+     * several groups of recipients, the packet is encoded only once.
+     * 
+     * @param frame         Frame to send
+     * @param recipientIds  List of recipients containing user IDs
+     */
+    public void sendPacket(PacketFrame frame, List<Long> recipientIds) {
+        sendLocal(frame, recipientIds);
+        sendRemote(frame, recipientIds);
+    }
+
+    /**
+     * Send a packet to the sessions of a user connected to this node. Use this if the
+     * packet must not get lost, e.g. the caller can keep it for a later try if the user
+     * has no session here.
+     * 
+     * @param packet        Packet to send
+     * @param userId        User ID
+     * @return              Return true if the packet was queued for at least one session of the user.
+     */
+    public boolean sendPacketLocal(Packet packet, Long userId) {
+        return sendToUser(userId, new PacketFrame(packet), null);
+    }
+
+    /**
+     * Send a packet to the sessions of a user connected to other nodes. Use this if the
+     * packet must not get lost, e.g. the caller can keep it for a later try if the packet
+     * could not be handed to any node.
+     * 
+     * @param packet        Packet to send
+     * @param userId        User ID
+     * @return              Return true if the packet was queued for at least one node of the user.
+     */
+    public boolean sendPacketRemote(Packet packet, Long userId) {
+        boolean queued = false;
+        String text = null;
+        for (String node: remotePresence.getNodes(userId)) {
+            if (text == null) {
+                text = new PacketFrame(packet).getText();
+            }
+            countRemoteSent.increment();
+            queued |= broker.deliver(node, Collections.singletonList(userId), text);
+        }
+        return queued;
+    }
+
+    /**
+     * Send a packet to all sessions subscribed to a topic. Only subscribers being one of
+     * given recipients get the packet, so a subscription gets ineffective as soon as its
+     * user is not a recipient anymore. Sessions which are not in topic mode get the packet
+     * if their user is a recipient. Users connected to other nodes get the packet on all
+     * their sessions.
+     * 
+     * Only users with a sequenced session getting the packet take a sequence number for
+     * it, the packet is not kept in the replay buffers of other users.
+     * 
+     * @param packet        Packet to send
+     * @param topic         Topic, e.g. see getEventTopic
+     * @param recipientIds  User IDs of all recipients
+     */
+    public void sendPacketToTopic(Packet packet, String topic, Set<Long> recipientIds) {
+        PacketFrame frame = new PacketFrame(packet);
+        Set<Session> subscribers = topics.get(topic);
+        // users with sequenced sessions getting the packet, they take the next sequence number of their user
+        Set<Long> sequencedusers = new HashSet<>();
+        if (subscribers != null) {
+            subscribers.forEach((session) -> {
+                UserEntity user = getUser(session);
+                if ((user != null) && recipientIds.contains(user.getId())) {
+                    if (isSequenced(session)) {
+                        sequencedusers.add(user.getId());
+                    }
+                    else {
+                        sendFrame(session, frame);
                     }
-                    catch(IOException ex) {
-                        Log.warning(TAG, "problem occurred while sending notification to user (" + id + "), reason: " + ex.getLocalizedMessage());
+                }
+            });
+        }
+        // the recipients are walked only if there are sessions not using topics
+        if (legacySessionCount.get() > 0) {
+            recipientIds.forEach(id -> {
+                UserEntry recentry = connections.get(id);
+                if (recentry != null) {
+                    recentry.sessions.stream()
+                        .filter((session) -> !isTopicMode(session))
+                        .forEach((session) -> {
+                            if (isSequenced(session)) {
+                                sequencedusers.add(id);
+                            }
+                            else {
+                                sendFrame(session, frame);
+                            }
+                        });
+                }
+            });
+        }
+        sequencedusers.forEach(id -> sendToUser(id, frame,
+            (session) -> isSequenced(session) && (!isTopicMode(session) || ((subscribers != null) && subscribers.contains(session)))));
+        sendRemote(frame, recipientIds);
+    }
+
+    /**
+     * Get the topic of an event.
+     * 
+     * @param eventId   Event ID
+     * @return          Topic name
+     */
+    public static String getEventTopic(Long eventId) {
+        return TOPIC_EVENT + eventId;
+    }
+
+    /**
+     * Subscribe a session to a topic. The session is put into topic mode, i.e. from
+     * now on it gets packets sent to topics only if it subscribed to them.
+     * 
+     * @param userId    User ID
+     * @param sessionId Session ID
+     * @param topic     Topic
+     * @return          Return false if the session does not exist.
+     */
+    public boolean subscribeTopic(Long userId, String sessionId, String topic) {
+        // the subscription is done atomically with respect to removing the session
+        final boolean[] subscribed = {false};
+        connections.computeIfPresent(userId, (id, entry) -> {
+            for (Session session: entry.sessions) {
+                if (session.getId().equals(sessionId)) {
+                    Set<String> sessiontopics = getTopics(session);
+                    if (sessiontopics == null) {
+                        sessiontopics = ConcurrentHashMap.newKeySet();
+                        session.getUserProperties().put(KEY_TOPICS, sessiontopics);
+                        legacySessionCount.decrementAndGet();
+                    }
+                    sessiontopics.add(topic);
+                    topics.compute(topic, (t, sessions) -> {
+                        Set<Session> subscribers = (sessions != null) ? sessions : ConcurrentHashMap.newKeySet();
+                        subscribers.add(session);
+                        return subscribers;
+                    });
+                    subscribed[0] = true;
+                    break;
+                }
+            }
+            return entry;
+        });
+        return subscribed[0];
+    }
+
+    /**
+     * Unsubscribe a session from a topic. The session stays in topic mode.
+     * 
+     * @param userId    User ID
+     * @param sessionId Session ID
+     * @param topic     Topic
+     * @return          Return false if the session does not exist.
+     */
+    public boolean unsubscribeTopic(Long userId, String sessionId, String topic) {
+        Session session = findSession(userId, sessionId);
+        if (session == null) {
+            return false;
+        }
+        Set<String> sessiontopics = getTopics(session);
+        if (sessiontopics != null) {
+            sessiontopics.remove(topic);
+        }
+        removeTopic(session, topic);
+        return true;
+    }
+
+    /**
+     * Get the count of topics having subscribers.
+     * 
+     * @return Count of topics
+     */
+    public int getTopicCount() {
+        return topics.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> getTopics(Session session) {
+        return (Set<String>)session.getUserProperties().get(KEY_TOPICS);
+    }
+
+    private boolean isTopicMode(Session session) {
+        return session.getUserProperties().containsKey(KEY_TOPICS);
+    }
+
+    private void removeTopic(Session session, String topic) {
+        topics.computeIfPresent(topic, (t, sessions) -> {
+            sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
+    private Session findSession(Long userId, String sessionId) {
+        UserEntry entry = connections.get(userId);
+        if (entry == null) {
+            return null;
+        }
+        for (Session session: entry.sessions) {
+            if (session.getId().equals(sessionId)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Send a frame to all given users connected to other nodes.
+     * 
+     * @param frame         Frame to send
+     * @param recipientIds  List of recipients containing user IDs
+     */
+    private void sendRemote(PacketFrame frame, Collection<Long> recipientIds) {
+        // collect the recipients connected to other nodes
+        Map<String, List<Long>> remoterecipients = null;
+        for (Long id: recipientIds) {
+            for (String node: remotePresence.getNodes(id)) {
+                if (remoterecipients == null) {
+                    remoterecipients = new HashMap<>();
+                }
+                remoterecipients.computeIfAbsent(node, (n) -> new ArrayList<>()).add(id);
+            }
+        }
+        if (remoterecipients != null) {
+            remoterecipients.forEach((node, ids) -> {
+                countRemoteSent.increment();
+                broker.deliver(node, ids, frame.getText());
+            });
+        }
+    }
+
+    /**
+     * Send a frame to all sessions of given users connected to this node.
+     * 
+     * @param frame         Frame to send
+     * @param recipientIds  List of recipients containing user IDs
+     */
+    private void sendLocal(PacketFrame frame, Collection<Long> recipientIds) {
+        recipientIds.forEach(id -> sendToUser(id, frame, null));
+    }
+
+    /**
+     * Send a frame to the sessions of a user connected to this node. If the user has
+     * a replay buffer then the frame gets the next sequence number of the user, also
+     * users being offline for a short while get the frame into their replay buffer.
+     * 
+     * The sequence number is taken and the frame is queued while holding the replay
+     * buffer, so the sequenced sessions of a user get the frames in sequence order and
+     * a session being added meanwhile (see addConnection) gets either the replayed or
+     * the live frame, never both.
+     * 
+     * @param userId    User ID
+     * @param frame     Frame to send
+     * @param filter    Filter for user's sessions, pass null for sending to all sessions.
+     * @return          Return true if the frame was queued for at least one session.
+     */
+    private boolean sendToUser(Long userId, PacketFrame frame, Predicate<Session> filter) {
+        boolean queued = false;
+        ReplayBuffer buffer = replayBuffers.get(userId);
+        if (buffer == null) {
+            UserEntry recentry = connections.get(userId);
+            if (recentry != null) {
+                for (Session session: recentry.sessions) {
+                    if ((filter == null) || filter.test(session)) {
+                        queued |= sendFrame(session, frame);
                     }
-                });
+                }
+            }
+            return queued;
+        }
+        synchronized(buffer) {
+            UserEntry recentry = connections.get(userId);
+            List<Session> usersessions = (recentry != null) ? recentry.sessions : Collections.emptyList();
+            List<Session> sessions = usersessions;
+            if (filter != null) {
+                sessions = usersessions.stream().filter(filter).collect(Collectors.toList());
+            }
+            // sequenced sessions not getting the frame must not see a gap, without any
+            // sequenced session the frame is kept for the user's reconnect
+            PacketFrame userframe = frame;
+            if (sessions.stream().anyMatch(this::isSequenced) || usersessions.stream().noneMatch(this::isSequenced)) {
+                userframe = new SequencedFrame(frame, buffer.append(frame));
             }
+            for (Session session: sessions) {
+                queued |= sendFrame(session, isSequenced(session) ? userframe : frame);
+            }
+        }
+        return queued;
+    }
+
+    private boolean isSequenced(Session session) {
+        return Boolean.TRUE.equals(session.getUserProperties().get(KEY_SEQUENCED));
+    }
+
+    /**
+     * Check if a user has a replay buffer, i.e. packets sent to the user are kept
+     * for a while even if the user is offline.
+     * 
+     * @param userId    User ID
+     * @return          Return true if the user has a replay buffer.
+     */
+    public boolean hasReplayBuffer(Long userId) {
+        return replayBuffers.containsKey(userId);
+    }
+
+    /**
+     * Get the replay buffer of a user.
+     * 
+     * @param userId    User ID
+     * @return          Replay buffer, or null if the user has none.
+     */
+    public ReplayBuffer getReplayBuffer(Long userId) {
+        return replayBuffers.get(userId);
+    }
+
+    /**
+     * Drop the replay buffers of users who are offline for longer than the retention time.
+     */
+    private void purgeReplayBuffers() {
+        long now = System.currentTimeMillis();
+        replayBuffers.keySet().forEach((id) -> {
+            replayBuffers.computeIfPresent(id, (k, buffer) -> buffer.isExpired(now, replayRetention) ? null : buffer);
         });
     }
 
@@ -108,20 +749,150 @@ public class ConnectedClients {
     public void sendPacket(Packet packet, Long userId, String sessionId) {
         UserEntry recentry = connections.get(userId);
         if (recentry != null) {
+            PacketFrame frame = new PacketFrame(packet);
             recentry.sessions.stream().
                     filter((session) -> (session.getId().equals(sessionId))).
                     forEach((session) -> {
-                        try {
-                            String msg = packet.toJSON();
-                            session.getBasicRemote().sendText(msg);
-                        }
-                        catch(IOException ex) {
-                            Log.warning(TAG, "problem occurred while sending notification to user (" + userId + " / " + sessionId + "), reason: " + ex.getLocalizedMessage());
-                        }
+                        sendFrame(session, frame);
                     });
         }
     }
 
+    /**
+     * Queue a frame for sending to given session. The frame is sent asynchronously.
+     * 
+     * @param session   WebSocket session
+     * @param frame     Frame to send
+     * @return          Return false if the frame could not be queued.
+     */
+    protected boolean sendFrame(Session session, PacketFrame frame) {
+        NotifyBatch batch = NotifyBatch.getBatch(session);
+        if (batch != null) {
+            if (!NotifyBatch.isNotify(frame)) {
+                return batch.enqueue(frame);
+            }
+            countBatchedPackets.increment();
+            if (batch.add(frame)) {
+                pendingBatches.offer(session);
+            }
+            return true;
+        }
+        OutboundQueue queue = OutboundQueue.getQueue(session);
+        if (queue == null) {
+            Log.warning(TAG, "no outbound queue exists for session " + session.getId());
+            return false;
+        }
+        return queue.enqueue(frame);
+    }
+
+    /**
+     * Check if the notify packets of a session are batched.
+     * 
+     * @param session   WebSocket session
+     * @return          Return true if notify packets are batched.
+     */
+    public boolean isNotifyBatched(Session session) {
+        return NotifyBatch.getBatch(session) != null;
+    }
+
+    /**
+     * Get the count of notify packets which went through a batch.
+     * 
+     * @return Count of batched notify packets
+     */
+    public long getCountBatchedPackets() {
+        return countBatchedPackets.sum();
+    }
+
+    /**
+     * Flush the notify batches of all sessions with pending packets, this runs once per tick.
+     */
+    private void flushNotifyBatches() {
+        Session session;
+        while ((session = pendingBatches.poll()) != null) {
+            NotifyBatch batch = NotifyBatch.getBatch(session);
+            if (batch != null) {
+                batch.flush();
+            }
+        }
+    }
+
+    /**
+     * Get the counters of the outbound send pipeline.
+     * 
+     * @return Outbound statistics
+     */
+    public OutboundStats getOutboundStats() {
+        return outboundStats;
+    }
+
+    /**
+     * Get the count of sessions connected to this node.
+     * 
+     * @return Count of sessions
+     */
+    public long getSessionCount() {
+        long count = 0;
+        for (UserEntry entry: connections.values()) {
+            count += entry.sessions.size();
+        }
+        return count;
+    }
+
+    /**
+     * Get the count of all frames currently waiting in the outbound queues.
+     * 
+     * @return Total queue depth
+     */
+    public long getOutboundQueueDepth() {
+        long depth = 0;
+        for (UserEntry entry: connections.values()) {
+            for (Session session: entry.sessions) {
+                OutboundQueue queue = OutboundQueue.getQueue(session);
+                depth += (queue != null) ? queue.getDepth() : 0;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Get the count of packets sent to other nodes.
+     * 
+     * @return Count of remote deliveries
+     */
+    public long getCountRemoteSent() {
+        return countRemoteSent.sum();
+    }
+
+    /**
+     * Get the count of packets received from other nodes.
+     * 
+     * @return Count of received remote deliveries
+     */
+    public long getCountRemoteReceived() {
+        return countRemoteReceived.sum();
+    }
+
+    /**
+     * Get the average latency of packets received from other nodes. It is accurate only
+     * if the clocks of the nodes are synchronized, e.g. if all nodes run on the same machine.
+     * 
+     * @return Average latency in milliseconds
+     */
+    public double getRemoteLatencyAverage() {
+        long count = countRemoteReceived.sum();
+        return (count > 0) ? ((double)remoteLatencyTotal.sum() / count) : 0.0;
+    }
+
+    /**
+     * Get the maximal latency of packets received from other nodes.
+     * 
+     * @return Maximal latency in milliseconds
+     */
+    public long getRemoteLatencyMax() {
+        return remoteLatencyMax.get();
+    }
+
     /**
      * Given a WebSocket session return its user.
      * 
@@ -137,36 +908,113 @@ public class ConnectedClients {
      * Add a new WebSocket connection coming from a user.
      * This method is used by 'Connection' when a WebSocket connection was established.
      * 
+     * The handshake response is queued before the session gets any other packet. For
+     * sequenced sessions the response gets the last sequence number of the user and
+     * the result of resuming, the missed packets are queued right after the response.
+     * Packets sent to the user meanwhile are held until the session is added.
+     * 
      * NOTE: a user can be connected multiple times.
      * 
      * @param user      User
      * @param session   WebSocket session
+     * @param response  Handshake response, its data is completed here
+     * @param resumeSeq Last sequence number seen by the client, or null if it does not resume
      * @return          Return false if the session was already added before, otherwise return true.
      */
-    protected boolean addConnection(UserEntity user, Session session) {
-        UserEntry entry = connections.get(user.getId());
-        if (entry == null) {
-            entry = new UserEntry();
-            entry.user = user;
-            connections.put(user.getId(), entry);
-        }
-        if (entry.sessions.contains(session)) {
+    protected boolean addConnection(UserEntity user, Session session, Packet response, Long resumeSeq) {
+        if (session.getUserProperties().containsKey(OutboundQueue.KEY_OUTBOUND_QUEUE)) {
             Log.warning(TAG, "session for user " + user.getId() + " already exists!");
             return false;
         }
         // store the user in session, we need it later while handling incoming messages
         session.getUserProperties().put("user", user);
-        entry.sessions.add(session);
+        session.getUserProperties().put(OutboundQueue.KEY_OUTBOUND_QUEUE,
+                                        new OutboundQueue(session, Connection.isBinaryProtocol(session),
+                                                          outboundHighWaterMark, outboundPolicy, outboundStats, metrics, scheduler));
+        boolean batchrequested = Boolean.TRUE.equals(session.getUserProperties().get(KEY_BATCHED));
+        if ((notifyBatchTick > 0L) && batchrequested) {
+            session.getUserProperties().put(NotifyBatch.KEY_NOTIFY_BATCH,
+                                            new NotifyBatch(OutboundQueue.getQueue(session), notifyBatchMaxSize));
+        }
+
+        JsonObjectBuilder data = null;
+        if (batchrequested || isSequenced(session)) {
+            data = Json.createObjectBuilder(response.getData());
+        }
+        if (batchrequested) {
+            data.add("batch", isNotifyBatched(session) ? "ok" : "nok");
+        }
+
+        final boolean firstsession;
+        if (!isSequenced(session)) {
+            if (data != null) {
+                response.setData(data.build());
+            }
+            sendFrame(session, new PacketFrame(response));
+            firstsession = addSession(user, session);
+        }
+        else {
+            ReplayBuffer buffer = replayBuffers.compute(user.getId(), (k, buf) -> {
+                if (buf == null) {
+                    buf = new ReplayBuffer(replayBufferSize);
+                }
+                buf.acquire();
+                return buf;
+            });
+            // senders hold the buffer while taking a sequence number and queuing the frame,
+            // so no packet can get between the replayed packets and the live ones
+            synchronized(buffer) {
+                List<PacketFrame> missed = null;
+                if (resumeSeq != null) {
+                    missed = buffer.getSince(resumeSeq);
+                    data.add("resume", (missed != null) ? "ok" : "nok");
+                }
+                data.add("seq", buffer.getLastSeq());
+                response.setData(data.build());
+                sendFrame(session, new PacketFrame(response));
+                if (missed != null) {
+                    missed.forEach((frame) -> sendFrame(session, frame));
+                }
+                firstsession = addSession(user, session);
+            }
+        }
 
         // send a notification to user's relatives about going online
         // note that a user can be logged in multiple times, we send this notification only for the first login
-        if (entry.sessions.size() == 1) {
-            sendNotificationToRelatives(user, true);
+        if (firstsession) {
+            broker.publishPresence(user.getId(), true);
+            if (!remotePresence.isOnline(user.getId())) {
+                sendNotificationToRelatives(user, true);
+            }
+            userConnectedEvent.fireAsync(new UserConnectedEvent(user.getId(), session.getId()));
         }
 
         return true;
     }
 
+    /**
+     * Add a session to the entry of its user.
+     * 
+     * @param user      User
+     * @param session   WebSocket session
+     * @return          Return true if it is the first session of the user.
+     */
+    private boolean addSession(UserEntity user, Session session) {
+        // the entry is updated atomically, so concurrent logins of the same user cannot
+        // both be taken as the first one
+        final boolean[] firstsession = {false};
+        connections.compute(user.getId(), (id, entry) -> {
+            if (entry == null) {
+                entry = new UserEntry(user);
+            }
+            entry.sessions.add(session);
+            legacySessionCount.incrementAndGet();
+            firstsession[0] = (entry.sessions.size() == 1);
+            return entry;
+        });
+        return firstsession[0];
+    }
+
     /**
      * Remove a session from given user.
      * This method is used by 'Connection' when a WebSocket connection was closed.
@@ -176,35 +1024,122 @@ public class ConnectedClients {
      * @return          Return true if successful.
      */
     protected boolean removeConnection(UserEntity user, Session session) {
-        UserEntry entry = connections.get(user.getId());
-        if (entry == null) {
+        if (user == null) {
             return false;
         }
-        if (!entry.sessions.remove(session)) {
+        final boolean[] removed = {false};
+        final boolean[] lastsession = {false};
+        connections.computeIfPresent(user.getId(), (id, entry) -> {
+            if (!entry.sessions.remove(session)) {
+                return entry;
+            }
+            removed[0] = true;
+            // if there are no futher connections then remove the user entry
+            if (entry.sessions.isEmpty()) {
+                lastsession[0] = true;
+                ReplayBuffer buffer = replayBuffers.get(id);
+                if (buffer != null) {
+                    buffer.release(System.currentTimeMillis());
+                }
+                return null;
+            }
+            return entry;
+        });
+
+        if (!removed[0]) {
             return false;
         }
-        // if there are no futher connections then remove the user entry
-        if (entry.sessions.size() < 1) {
-            connections.remove(user.getId());
+
+        session.getUserProperties().remove(NotifyBatch.KEY_NOTIFY_BATCH);
+        OutboundQueue queue = OutboundQueue.getQueue(session);
+        if (queue != null) {
+            queue.close();
+        }
+
+        Set<String> sessiontopics = getTopics(session);
+        if (sessiontopics != null) {
+            sessiontopics.forEach((topic) -> removeTopic(session, topic));
+        }
+        else {
+            legacySessionCount.decrementAndGet();
         }
 
         // send a notification to user's relatives about going offline
-         // note that a user can be logged in multiple times, we send this notification only if the user is completely logged out
-        if (entry.sessions.isEmpty()) {
-            sendNotificationToRelatives(user, false);
+        // note that a user can be logged in multiple times, we send this notification only if the user is completely logged out
+        if (lastsession[0]) {
+            broker.publishPresence(user.getId(), false);
+            if (!remotePresence.isOnline(user.getId())) {
+                sendNotificationToRelatives(user, false);
+            }
         }
 
         return true;
     }
 
     /**
-     * Send a notification to user's relatives and let them know about user going on/off.
+     * Let user's relatives know about user going on/off. The status change is
+     * debounced and batched by the presence engine.
      * 
      * @param user      The user
      * @param online    Pass true for notifying about going online, otherwise offline
      */
     private void sendNotificationToRelatives(UserEntity user, boolean online) {
-        EventNotifications notifications = new EventNotifications(null, notifyUserRelativesEvent);
-        notifications.sendNotifyOnlineStatusChanged(user, online);
+        if (online) {
+            presenceEngine.setOnline(user);
+        }
+        else {
+            presenceEngine.setOffline(user);
+        }
+    }
+
+    /**
+     * Listener for messages coming from other nodes
+     */
+    private class BrokerListener implements PacketBrokerListener {
+
+        @Override
+        public Collection<Long> getLocalUserIds() {
+            return new ArrayList<>(connections.keySet());
+        }
+
+        @Override
+        public void onNodeUp(String nodeId, Collection<Long> userIds) {
+            Log.info(TAG, "node " + nodeId + " joined with " + userIds.size() + " connected users");
+            remotePresence.removeNode(nodeId);
+            userIds.forEach((id) -> {
+                remotePresence.setPresence(nodeId, id, true);
+                userConnectedEvent.fireAsync(new UserConnectedEvent(id, null, nodeId));
+            });
+        }
+
+        @Override
+        public void onNodeDown(String nodeId) {
+            Log.info(TAG, "node " + nodeId + " left");
+            remotePresence.removeNode(nodeId);
+        }
+
+        @Override
+        public void onPresence(String nodeId, Long userId, boolean online) {
+            remotePresence.setPresence(nodeId, userId, online);
+            // e.g. the messages stored on this node for the user are delivered to the other node
+            if (online) {
+                userConnectedEvent.fireAsync(new UserConnectedEvent(userId, null, nodeId));
+            }
+        }
+
+        @Override
+        public void onDeliver(String nodeId, List<Long> userIds, String frame, long sendTime) {
+            long latency = Math.max(0L, System.currentTimeMillis() - sendTime);
+            countRemoteReceived.increment();
+            remoteLatencyTotal.add(latency);
+            remoteLatencyMax.accumulateAndGet(latency, Math::max);
+
+            Packet packet = Packet.fromJSON(frame);
+            if (packet == null) {
+                Log.warning(TAG, "invalid packet received from node " + nodeId);
+                return;
+            }
+            sendLocal(new PacketFrame(packet), userIds);
+        }
     }
-}
\ No newline at end of file
+}
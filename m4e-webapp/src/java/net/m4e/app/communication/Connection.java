@@ -8,7 +8,11 @@
 
 package net.m4e.app.communication;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import javax.inject.Inject;
 import javax.json.Json;
 import javax.servlet.http.HttpSession;
@@ -18,6 +22,7 @@ import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
+import javax.websocket.PongMessage;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 import net.m4e.app.auth.AuthorityConfig;
@@ -27,10 +32,25 @@ import net.m4e.system.core.Log;
 /**
  * This is an WebSocket endpoint for client communication.
  * 
+ * Packets are exchanged in JSON text frames by default. Clients can request
+ * the compact binary format (see PacketBinaryCodec) by offering the sub-protocol
+ * SUBPROTOCOL_BINARY during the WebSocket handshake.
+ * 
+ * JSON clients can ask for sequenced packets by passing the handshake query
+ * parameter "seq=1", every packet sent to the user then has a "seq" field. A client
+ * reconnecting with "resume=<last seen seq>" gets the missed packets right after the
+ * handshake response, if they are still available (see field "resume" of response).
+ * Clients must ignore packets with an already seen sequence number.
+ * 
+ * JSON clients passing the handshake query parameter "batch=1" may get several
+ * notify packets in one frame, a JSON array of packets (see NotifyBatch). The field
+ * "batch" of handshake response tells if batching is active.
+ * 
  * @author boto
  * Date of creation Oct 03, 2017
  */    
-@ServerEndpoint(value="/ws", configurator = ConnectionConfigurator.class)
+@ServerEndpoint(value="/ws", configurator = ConnectionConfigurator.class,
+                subprotocols = {Connection.SUBPROTOCOL_BINARY, Connection.SUBPROTOCOL_JSON})
 public class Connection {
 
     /**
@@ -42,7 +62,33 @@ public class Connection {
      * WebSocket protocol version. The packet header may differ from version 
      * to version.
      */
-    public final static String PROTOCOL_VERSION = "1.0.0";
+    public final static String PROTOCOL_VERSION = "1.3.0";
+
+    /**
+     * WebSocket sub-protocol for packets in JSON format. This is also the
+     * default if the client requests no sub-protocol.
+     */
+    public final static String SUBPROTOCOL_JSON = "m4e.json";
+
+    /**
+     * Handshake query parameter for requesting sequenced packets
+     */
+    public final static String PARAM_SEQ = "seq";
+
+    /**
+     * Handshake query parameter for resuming after the given sequence number
+     */
+    public final static String PARAM_RESUME = "resume";
+
+    /**
+     * Handshake query parameter for accepting batched notify packets
+     */
+    public final static String PARAM_BATCH = "batch";
+
+    /**
+     * WebSocket sub-protocol for packets in binary format.
+     */
+    public final static String SUBPROTOCOL_BINARY = "m4e.binary";
 
     /**
      * Underlying HTTP session which allows access to authenticated user.
@@ -66,6 +112,30 @@ public class Connection {
     @Inject
     MessageDistribution msgHandler;
 
+    /**
+     * Used for sending the online status of user's relatives
+     */
+    @Inject
+    PresenceEngine presenceEngine;
+
+    /**
+     * Used for detecting dead connections
+     */
+    @Inject
+    HeartbeatMonitor heartbeatMonitor;
+
+    /**
+     * Used for limiting the rate of incoming frames
+     */
+    @Inject
+    FrameRateLimiter rateLimiter;
+
+    /**
+     * Metrics of the WebSocket layer
+     */
+    @Inject
+    CommunicationMetrics metrics;
+
     @OnOpen
     public void open(Session session, EndpointConfig config) throws IOException {
         Log.verbose(TAG, "new client connected, id: " + session.getId());
@@ -86,20 +156,40 @@ public class Connection {
             return;
         }
 
-        // store the user connection
-        if (!connections.addConnection(user, session)) {
+        // sequenced packets are available in JSON format only
+        Map<String, List<String>> params = session.getRequestParameterMap();
+        Long resumeseq = getLongParameter(params, PARAM_RESUME);
+        boolean sequenced = !isBinaryProtocol(session) && ((resumeseq != null) || "1".equals(getParameter(params, PARAM_SEQ)));
+        if (sequenced) {
+            session.getUserProperties().put(ConnectedClients.KEY_SEQUENCED, Boolean.TRUE);
+        }
+        // batches are JSON arrays, so they are available in JSON format only
+        boolean batched = !isBinaryProtocol(session) && "1".equals(getParameter(params, PARAM_BATCH));
+        if (batched) {
+            session.getUserProperties().put(ConnectedClients.KEY_BATCHED, Boolean.TRUE);
+        }
+
+        // store the user connection, the response (and for a resuming client the missed
+        // packets) is queued before any other packet
+        Packet response = createResponse(session, "ok", "User " + user.getName() + " established a connection");
+        if (!connections.addConnection(user, session, response, sequenced ? resumeseq : null)) {
             Log.warning(TAG, "  could not store user's connection");
         }
+        heartbeatMonitor.register(session);
+        rateLimiter.register(user, session);
 
-        String response = createResponse("ok", "User " + user.getName() + " established a connection");
-        session.getBasicRemote().sendText(response);
+        // let the client know who is online, it gets only the changes later
+        presenceEngine.sendSnapshot(user, session);
     }
 
     @OnClose
     public void close(Session session) {
         Log.verbose(TAG, "client connection closed, id: " + session.getId());
+        heartbeatMonitor.unregister(session);
+        rateLimiter.unregister(user, session);
+        // an idle connection is already removed by the heartbeat monitor
         if (!connections.removeConnection(user, session)) {
-            Log.warning(TAG, "  could not remove user's connection");
+            Log.debug(TAG, "  user's connection was already removed");
         }
     }
 
@@ -110,30 +200,101 @@ public class Connection {
 
     @OnMessage
     public void handleMessage(String message, Session session) throws IOException {
+        heartbeatMonitor.touch(session);
+        String channel = Packet.peekChannel(message);
+        metrics.frameIn(channel, message.length());
+        if (!rateLimiter.acquire(session, channel)) {
+            return;
+        }
         Packet packet = Packet.fromJSON(message);
         if (packet == null) {
+            metrics.parseFailure();
             Log.debug(TAG, "invalid message format received from client, ignoring it");
             return;
         }
+        // the rate limit was charged to the peeked channel, it must be the dispatched one
+        if (!Objects.equals(channel, packet.getChannel())) {
+            metrics.parseFailure();
+            Log.debug(TAG, "channel of message does not match its peeked channel, ignoring it");
+            return;
+        }
         msgHandler.dispatchMessage(packet, session);
     }
 
+    @OnMessage
+    public void handleBinaryMessage(ByteBuffer message, Session session) throws IOException {
+        heartbeatMonitor.touch(session);
+        String channel = PacketBinaryCodec.peekChannel(message);
+        metrics.frameIn(channel, message.remaining());
+        if (!rateLimiter.acquire(session, channel)) {
+            return;
+        }
+        Packet packet = PacketBinaryCodec.decode(message);
+        if (packet == null) {
+            metrics.parseFailure();
+            Log.debug(TAG, "invalid binary message format received from client, ignoring it");
+            return;
+        }
+        // the rate limit was charged to the peeked channel, it must be the dispatched one
+        if (!Objects.equals(channel, packet.getChannel())) {
+            metrics.parseFailure();
+            Log.debug(TAG, "channel of binary message does not match its peeked channel, ignoring it");
+            return;
+        }
+        msgHandler.dispatchMessage(packet, session);
+    }
+
+    @OnMessage
+    public void handlePong(PongMessage pong, Session session) {
+        heartbeatMonitor.pongReceived(session);
+    }
+
+    private static String getParameter(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        return ((values != null) && !values.isEmpty()) ? values.get(0) : null;
+    }
+
+    private static Long getLongParameter(Map<String, List<String>> params, String name) {
+        String value = getParameter(params, name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        }
+        catch(NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Check if the given session negotiated the binary packet format.
+     * 
+     * @param session   WebSocket session
+     * @return          Return true if packets are exchanged in binary format.
+     */
+    public static boolean isBinaryProtocol(Session session) {
+        return SUBPROTOCOL_BINARY.equals(session.getNegotiatedSubprotocol());
+    }
+
     /**
      * Create a connection response packet.
      * 
+     * @param session       WebSocket session
      * @param status        Status ok or nok
      * @param description   Response description   
-     * @return              String in JSON format ready to send.
+     * @return              Response packet ready to send.
      */
-    private String createResponse(String status, String description) {
+    private Packet createResponse(Session session, String status, String description) {
         Packet packet = new Packet();
         packet.setChannel(Packet.CHANNEL_SYSTEM);
         packet.setSource("");
         packet.setTime( ( new Date() ).getTime() );
         packet.setData(Json.createObjectBuilder().add("protocolVersion", PROTOCOL_VERSION)
+                                                 .add("protocolFormat", isBinaryProtocol(session) ? "binary" : "json")
                                                  .add("status", status)
                                                  .add("description", description)
                                                  .build());
-        return packet.toJSON();
+        return packet;
     }
 }
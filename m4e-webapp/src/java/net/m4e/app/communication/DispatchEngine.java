@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Executors used for dispatching incoming packets of the communication channels.
+ * Every channel has its own set of lanes, a lane is a single thread with a bounded
+ * queue. The lane of a packet is selected by its sender, so the packets of one
+ * sender are always handled in arrival order, while packets of different senders
+ * and of different channels are handled in parallel. A flood on one channel can
+ * fill only the lanes of that channel.
+ *
+ * If a lane's queue is full then the packet is rejected. The capacity is checked
+ * before a packet is handed to a lane, so a rejection does not depend on how the
+ * caller of the lane's executor handles a RejectedExecutionException. The lane
+ * threads are taken from the container's thread factory as they are.
+ *
+ * @author boto
+ * Date of creation Dec 10, 2017
+ */
+public class DispatchEngine {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "DispatchEngine";
+
+    private final ThreadFactory threadFactory;
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Lanes of one communication channel
+     */
+    public static class Channel {
+
+        private final String name;
+
+        private final ThreadPoolExecutor[] lanes;
+
+        private final int queueSize;
+
+        private final LongAdder countDispatched = new LongAdder();
+
+        private final LongAdder countRejected = new LongAdder();
+
+        private Channel(String name, int laneCount, int queueSize, ThreadFactory threadFactory) {
+            this.name = name;
+            this.queueSize = queueSize;
+            this.lanes = new ThreadPoolExecutor[laneCount];
+            for (int i = 0; i < laneCount; i++) {
+                final String lanename = name + "-" + i;
+                //! NOTE the threads are owned by the container, they are used as they come from the factory
+                lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(queueSize),
+                    threadFactory,
+                    (task, executor) -> {
+                        countRejected.increment();
+                        throw new RejectedExecutionException("Dispatch lane " + lanename + " is full");
+                    });
+            }
+        }
+
+        /**
+         * Get the lane of given sender if it can take another packet. A full lane
+         * is counted as rejection.
+         */
+        private Executor getLane(Long senderId) {
+            int index = (senderId == null) ? 0 : (int)Math.floorMod(senderId, (long)lanes.length);
+            ThreadPoolExecutor lane = lanes[index];
+            if (lane.getQueue().remainingCapacity() == 0) {
+                countRejected.increment();
+                return null;
+            }
+            countDispatched.increment();
+            return lane;
+        }
+
+        private void shutdown() {
+            for (ThreadPoolExecutor lane: lanes) {
+                lane.shutdownNow();
+            }
+        }
+
+        /**
+         * Get the channel name.
+         *
+         * @return Channel name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the count of lanes.
+         *
+         * @return Count of lanes
+         */
+        public int getLaneCount() {
+            return lanes.length;
+        }
+
+        /**
+         * Get the maximal count of queued packets per lane.
+         *
+         * @return Lane queue size
+         */
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        /**
+         * Get the count of packets waiting in all lanes of the channel.
+         *
+         * @return Count of pending packets
+         */
+        public int getPending() {
+            int pending = 0;
+            for (ThreadPoolExecutor lane: lanes) {
+                pending += lane.getQueue().size();
+            }
+            return pending;
+        }
+
+        /**
+         * Get the total count of packets handed to the channel.
+         *
+         * @return Count of dispatched packets
+         */
+        public long getCountDispatched() {
+            return countDispatched.sum();
+        }
+
+        /**
+         * Get the total count of packets rejected because of a full lane.
+         *
+         * @return Count of rejected packets
+         */
+        public long getCountRejected() {
+            return countRejected.sum();
+        }
+    }
+
+    /**
+     * Create the dispatch engine.
+     *
+     * @param threadFactory Factory used for creating the lane threads
+     */
+    public DispatchEngine(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Add a channel with given count of lanes.
+     *
+     * @param channel   Channel name, see Packet.CHANNEL_XXX
+     * @param laneCount Count of lanes, i.e. threads handling the channel
+     * @param queueSize Maximal count of packets queued in every lane
+     */
+    public void addChannel(String channel, int laneCount, int queueSize) {
+        Channel ch = new Channel(channel, Math.max(1, laneCount), Math.max(1, queueSize), threadFactory);
+        Channel prev = channels.put(channel, ch);
+        if (prev != null) {
+            prev.shutdown();
+        }
+        Log.info(TAG, "channel '" + channel + "' uses " + ch.getLaneCount() + " lanes, queue size: " + ch.getQueueSize());
+    }
+
+    /**
+     * Get the executor for a packet of given sender. If the lane's queue is full
+     * then the packet is counted as rejected and null is returned. The executor
+     * may still throw a RejectedExecutionException if concurrent packets filled
+     * the lane in the meantime, such a rejection is counted, too.
+     *
+     * @param channel   Channel name
+     * @param senderId  Sender ID
+     * @return          Executor, or null if the channel is unknown or the lane is full
+     */
+    public Executor getExecutor(String channel, Long senderId) {
+        Channel ch = channels.get(channel);
+        return (ch != null) ? ch.getLane(senderId) : null;
+    }
+
+    /**
+     * Get the channel with given name.
+     *
+     * @param channel   Channel name
+     * @return          Channel, or null if it does not exist
+     */
+    public Channel getChannel(String channel) {
+        return channels.get(channel);
+    }
+
+    /**
+     * Stop all lanes, pending packets are discarded.
+     */
+    public void shutdown() {
+        channels.values().forEach(Channel::shutdown);
+        channels.clear();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+import net.m4e.app.user.UserEntity;
+import net.m4e.system.core.AppConfiguration;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Rate limiter for incoming WebSocket frames. Every frame has to pass a token
+ * bucket of its session and a token bucket of its user (shared by all sessions
+ * of the user), every channel has its own budget. The check is done before
+ * the frame is parsed, frames exceeding the limit are dropped.
+ *
+ * Dropped frames are counted by an abuse bucket per session. If a session keeps
+ * on exceeding the limits and its abuse bucket gets empty, then the session is
+ * closed with a policy violation.
+ *
+ * @author boto
+ * Date of creation Dec 18, 2017
+ */
+@ApplicationScoped
+public class FrameRateLimiter {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "FrameRateLimiter";
+
+    /**
+     * Communication config key formats for the budgets, e.g. ratelimit.session.chat.rate
+     */
+    public final static String CFG_RATELIMIT_RATE  = "ratelimit.%s.%s.rate";
+    public final static String CFG_RATELIMIT_BURST = "ratelimit.%s.%s.burst";
+
+    /**
+     * Communication config keys for the abuse detection
+     */
+    public final static String CFG_RATELIMIT_ABUSE_RATE  = "ratelimit.abuse.rate";
+    public final static String CFG_RATELIMIT_ABUSE_BURST = "ratelimit.abuse.burst";
+
+    /**
+     * Session user property key used for storing the session buckets
+     */
+    public final static String KEY_RATE_LIMITS = "rateLimits";
+
+    /**
+     * Channels having their own budget, all other channels share the last one
+     */
+    private final static String[] CHANNELS = {Packet.CHANNEL_SYSTEM, Packet.CHANNEL_CHAT, Packet.CHANNEL_EVENT, "other"};
+
+    private final static int CHANNEL_OTHER = CHANNELS.length - 1;
+
+    /**
+     * Default budgets per channel: rate per second and burst
+     */
+    private final static long[][] DEFAULT_SESSION_LIMITS = {{2, 10}, {5, 20}, {5, 20}, {1, 5}};
+    private final static long[][] DEFAULT_USER_LIMITS = {{5, 20}, {10, 40}, {10, 40}, {2, 10}};
+
+    /**
+     * Buckets of a session
+     */
+    private static class SessionBuckets {
+
+        private final UserBuckets userBuckets;
+
+        private final RateBucket[] buckets;
+
+        private final RateBucket abuse;
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private SessionBuckets(UserBuckets userBuckets, RateBucket[] buckets, RateBucket abuse) {
+            this.userBuckets = userBuckets;
+            this.buckets = buckets;
+            this.abuse = abuse;
+        }
+    }
+
+    /**
+     * Buckets of a user, shared by all its sessions
+     */
+    private static class UserBuckets {
+
+        private final RateBucket[] buckets;
+
+        private int sessionCount = 0;
+
+        private UserBuckets(RateBucket[] buckets) {
+            this.buckets = buckets;
+        }
+    }
+
+    private RateBucket.Limit[] sessionLimits;
+
+    private RateBucket.Limit[] userLimits;
+
+    private RateBucket.Limit abuseLimit;
+
+    private final ConcurrentMap<Long, UserBuckets> users = new ConcurrentHashMap<>();
+
+    private final LongAdder[] countAccepted = createCounters();
+
+    private final LongAdder[] countRejected = createCounters();
+
+    private final LongAdder countClosed = new LongAdder();
+
+    /**
+     * Setup the budgets.
+     */
+    @PostConstruct
+    public void frameRateLimiterInit() {
+        sessionLimits = createLimits("session", DEFAULT_SESSION_LIMITS);
+        userLimits = createLimits("user", DEFAULT_USER_LIMITS);
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        abuseLimit = new RateBucket.Limit(cfg.getCommunicationConfigValue(CFG_RATELIMIT_ABUSE_RATE, 1L),
+                                          (int)cfg.getCommunicationConfigValue(CFG_RATELIMIT_ABUSE_BURST, 50L));
+    }
+
+    /**
+     * Start limiting the frames of a session.
+     *
+     * @param user      User
+     * @param session   WebSocket session
+     */
+    public void register(UserEntity user, Session session) {
+        UserBuckets userbuckets = users.compute(user.getId(), (id, entry) -> {
+            if (entry == null) {
+                entry = new UserBuckets(createBuckets(userLimits));
+            }
+            entry.sessionCount++;
+            return entry;
+        });
+        session.getUserProperties().put(KEY_RATE_LIMITS,
+                                        new SessionBuckets(userbuckets, createBuckets(sessionLimits), new RateBucket(abuseLimit)));
+    }
+
+    /**
+     * Stop limiting the frames of a session.
+     *
+     * @param user      User
+     * @param session   WebSocket session
+     */
+    public void unregister(UserEntity user, Session session) {
+        if ((user == null) || (session.getUserProperties().remove(KEY_RATE_LIMITS) == null)) {
+            return;
+        }
+        users.computeIfPresent(user.getId(), (id, entry) -> {
+            entry.sessionCount--;
+            return (entry.sessionCount > 0) ? entry : null;
+        });
+    }
+
+    /**
+     * Check if a frame of given channel can be accepted. If the session exceeds
+     * its limits persistently then it is closed.
+     *
+     * @param session   WebSocket session
+     * @param channel   Channel of the frame, may be null if unknown
+     * @return          Return true if the frame can be handled, false if it must be dropped.
+     */
+    public boolean acquire(Session session, String channel) {
+        SessionBuckets sessionbuckets = (SessionBuckets)session.getUserProperties().get(KEY_RATE_LIMITS);
+        if (sessionbuckets == null) {
+            return true;
+        }
+        int index = getChannelIndex(channel);
+        RateBucket sessionbucket = sessionbuckets.buckets[index];
+        if (sessionbucket.tryAcquire()) {
+            if (sessionbuckets.userBuckets.buckets[index].tryAcquire()) {
+                countAccepted[index].increment();
+                return true;
+            }
+            // the frame is dropped, so it must not count against the session
+            sessionbucket.release();
+        }
+        countRejected[index].increment();
+        if (!sessionbuckets.abuse.tryAcquire() && sessionbuckets.closed.compareAndSet(false, true)) {
+            countClosed.increment();
+            Log.warning(TAG, "closing session " + session.getId() + ", too many messages");
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Too many messages."));
+            }
+            catch(IOException | IllegalStateException ex) {
+                Log.debug(TAG, "could not close session " + session.getId() + ", reason: " + ex.getLocalizedMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Export the limiter statistics.
+     *
+     * @return JSON object with accepted and rejected frames per channel
+     */
+    public JsonObjectBuilder exportStatsJSON() {
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        for (int i = 0; i < CHANNELS.length; i++) {
+            json.add(CHANNELS[i], Json.createObjectBuilder()
+                                    .add("accepted", countAccepted[i].sum())
+                                    .add("rejected", countRejected[i].sum()));
+        }
+        json.add("closedSessions", countClosed.sum());
+        return json;
+    }
+
+    /**
+     * Get the count of sessions closed because of exceeding the limits.
+     *
+     * @return Count of closed sessions
+     */
+    public long getCountClosed() {
+        return countClosed.sum();
+    }
+
+    private static int getChannelIndex(String channel) {
+        for (int i = 0; i < CHANNEL_OTHER; i++) {
+            if (CHANNELS[i].equals(channel)) {
+                return i;
+            }
+        }
+        return CHANNEL_OTHER;
+    }
+
+    private static RateBucket.Limit[] createLimits(String scope, long[][] defaults) {
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        RateBucket.Limit[] limits = new RateBucket.Limit[CHANNELS.length];
+        for (int i = 0; i < CHANNELS.length; i++) {
+            long rate = cfg.getCommunicationConfigValue(String.format(CFG_RATELIMIT_RATE, scope, CHANNELS[i]), defaults[i][0]);
+            long burst = cfg.getCommunicationConfigValue(String.format(CFG_RATELIMIT_BURST, scope, CHANNELS[i]), defaults[i][1]);
+            limits[i] = new RateBucket.Limit(rate, (int)burst);
+        }
+        return limits;
+    }
+
+    private static RateBucket[] createBuckets(RateBucket.Limit[] limits) {
+        RateBucket[] buckets = new RateBucket[limits.length];
+        for (int i = 0; i < limits.length; i++) {
+            buckets[i] = new RateBucket(limits[i]);
+        }
+        return buckets;
+    }
+
+    private static LongAdder[] createCounters() {
+        LongAdder[] counters = new LongAdder[CHANNELS.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+import net.m4e.app.user.UserEntity;
+import net.m4e.system.core.AppConfiguration;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Server side liveness check of WebSocket sessions. Every session is checked
+ * periodically: if nothing was received from the client for a while then a
+ * WebSocket ping is sent, the client answers with a pong. A session which has
+ * been idle longer than the idle timeout is considered as dead, it is removed
+ * from connected clients and closed.
+ *
+ * The checks are driven by a hashed timer wheel, so the cost of a tick does not
+ * depend on the count of connected sessions.
+ *
+ * @author boto
+ * Date of creation Dec 16, 2017
+ */
+@ApplicationScoped
+public class HeartbeatMonitor {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "HeartbeatMonitor";
+
+    /**
+     * Communication config key for the interval in seconds a session is checked and pinged if idle
+     */
+    public final static String CFG_HEARTBEAT_INTERVAL = "heartbeat.interval";
+
+    /**
+     * Communication config key for the time in seconds after an idle session is closed
+     */
+    public final static String CFG_HEARTBEAT_IDLE_TIMEOUT = "heartbeat.idleTimeout";
+
+    /**
+     * Communication config key for the tick duration of the timer wheel in milliseconds
+     */
+    public final static String CFG_HEARTBEAT_WHEEL_TICK = "heartbeat.wheelTick";
+
+    /**
+     * Communication config key for the count of timer wheel slots
+     */
+    public final static String CFG_HEARTBEAT_WHEEL_SIZE = "heartbeat.wheelSize";
+
+    /**
+     * Session user property key used for storing the liveness state of a session
+     */
+    public final static String KEY_LIVENESS = "liveness";
+
+    @Inject
+    ConnectedClients connections;
+
+    @Resource(lookup = "java:comp/DefaultManagedScheduledExecutorService")
+    ManagedScheduledExecutorService scheduler;
+
+    /**
+     * Used for closing dead sessions, closing may block
+     */
+    @Resource(lookup = "java:comp/DefaultManagedExecutorService")
+    ManagedExecutorService executor;
+
+    /**
+     * Liveness state of a session
+     */
+    private static class Liveness {
+
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private volatile TimerWheel.Timeout timeout;
+
+        private volatile boolean closed = false;
+    }
+
+    private TimerWheel wheel;
+
+    private ScheduledFuture<?> ticker;
+
+    private long interval = 30000L;
+
+    private long idleTimeout = 90000L;
+
+    private final LongAdder countPings = new LongAdder();
+
+    private final LongAdder countPingFailures = new LongAdder();
+
+    private final LongAdder countPongs = new LongAdder();
+
+    private final LongAdder countReaped = new LongAdder();
+
+    /**
+     * Setup the timer wheel and start ticking.
+     */
+    @PostConstruct
+    public void heartbeatMonitorInit() {
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        interval = Math.max(1L, cfg.getCommunicationConfigValue(CFG_HEARTBEAT_INTERVAL, 30L)) * 1000L;
+        idleTimeout = Math.max(interval, cfg.getCommunicationConfigValue(CFG_HEARTBEAT_IDLE_TIMEOUT, 90L) * 1000L);
+        long tick = Math.max(10L, cfg.getCommunicationConfigValue(CFG_HEARTBEAT_WHEEL_TICK, 1000L));
+        int size = (int)Math.max(1L, cfg.getCommunicationConfigValue(CFG_HEARTBEAT_WHEEL_SIZE, 512L));
+        wheel = new TimerWheel(size, tick);
+        ticker = scheduler.scheduleAtFixedRate(wheel::advance, tick, tick, TimeUnit.MILLISECONDS);
+        Log.info(TAG, "Heartbeat interval: " + interval + " ms, idle timeout: " + idleTimeout + " ms");
+    }
+
+    /**
+     * Stop ticking.
+     */
+    @PreDestroy
+    public void heartbeatMonitorShutdown() {
+        if (ticker != null) {
+            ticker.cancel(false);
+        }
+    }
+
+    /**
+     * Start monitoring a session.
+     *
+     * @param session   WebSocket session
+     */
+    public void register(Session session) {
+        Liveness liveness = new Liveness();
+        session.getUserProperties().put(KEY_LIVENESS, liveness);
+        schedule(session, liveness);
+    }
+
+    /**
+     * Stop monitoring a session.
+     *
+     * @param session   WebSocket session
+     */
+    public void unregister(Session session) {
+        Liveness liveness = getLiveness(session);
+        if (liveness != null) {
+            liveness.closed = true;
+            TimerWheel.Timeout timeout = liveness.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * Mark the session as active, call this for every message received from client.
+     *
+     * @param session   WebSocket session
+     */
+    public void touch(Session session) {
+        Liveness liveness = getLiveness(session);
+        if (liveness != null) {
+            liveness.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A pong was received from client.
+     *
+     * @param session   WebSocket session
+     */
+    public void pongReceived(Session session) {
+        countPongs.increment();
+        touch(session);
+    }
+
+    /**
+     * Get the count of sent pings.
+     *
+     * @return Count of pings
+     */
+    public long getCountPings() {
+        return countPings.sum();
+    }
+
+    /**
+     * Get the count of pings which could not be sent.
+     *
+     * @return Count of failed pings
+     */
+    public long getCountPingFailures() {
+        return countPingFailures.sum();
+    }
+
+    /**
+     * Get the count of received pongs.
+     *
+     * @return Count of pongs
+     */
+    public long getCountPongs() {
+        return countPongs.sum();
+    }
+
+    /**
+     * Get the count of sessions closed because of being idle.
+     *
+     * @return Count of reaped sessions
+     */
+    public long getCountReaped() {
+        return countReaped.sum();
+    }
+
+    private Liveness getLiveness(Session session) {
+        return (Liveness)session.getUserProperties().get(KEY_LIVENESS);
+    }
+
+    private void schedule(Session session, Liveness liveness) {
+        if (!liveness.closed) {
+            liveness.timeout = wheel.schedule(() -> check(session, liveness), interval);
+        }
+    }
+
+    /**
+     * Check a session, it runs on the timer wheel's thread.
+     */
+    private void check(Session session, Liveness liveness) {
+        if (liveness.closed) {
+            return;
+        }
+        long idle = System.currentTimeMillis() - liveness.lastActivity;
+        if ((idle >= idleTimeout) || !session.isOpen()) {
+            liveness.closed = true;
+            countReaped.increment();
+            executor.execute(() -> reap(session));
+            return;
+        }
+        if (idle >= interval) {
+            try {
+                session.getAsyncRemote().sendPing(ByteBuffer.allocate(0));
+                countPings.increment();
+            }
+            catch(IOException | IllegalStateException | IllegalArgumentException ex) {
+                countPingFailures.increment();
+                Log.debug(TAG, "could not ping session " + session.getId() + ", reason: " + ex.getLocalizedMessage());
+            }
+        }
+        schedule(session, liveness);
+    }
+
+    /**
+     * Remove a dead session from connected clients and close it.
+     */
+    private void reap(Session session) {
+        Log.debug(TAG, "closing idle session " + session.getId());
+        UserEntity user = connections.getUser(session);
+        connections.removeConnection(user, session);
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "Idle timeout."));
+        }
+        catch(IOException | IllegalStateException ex) {
+            Log.debug(TAG, "could not close idle session " + session.getId() + ", reason: " + ex.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Histogram of latencies with power of two bucket bounds in microseconds, from
+ * 1 us up to about 67 seconds. Recording a value is lock-free and costs one
+ * bucket increment, the buckets are striped counters.
+ *
+ * @author boto
+ * Date of creation Dec 26, 2017
+ */
+public class LatencyHistogram {
+
+    /**
+     * Count of buckets, the last bucket takes all larger values
+     */
+    private final static int BUCKET_COUNT = 27;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+    private final LongAdder sumMicros = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos Latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0L, nanos / 1000L);
+        // bucket i takes values up to 2^i microseconds
+        int index = (micros <= 1L) ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1L);
+        buckets[Math.min(index, BUCKET_COUNT - 1)].increment();
+        sumMicros.add(micros);
+    }
+
+    /**
+     * Get the total count of recorded values.
+     *
+     * @return Count of values
+     */
+    public long getCount() {
+        long count = 0L;
+        for (LongAdder bucket: buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Write the histogram in Prometheus text format.
+     *
+     * @param out       Output
+     * @param name      Metric name, the unit is seconds
+     * @param labels    Additional labels, e.g. channel="chat", or an empty string
+     */
+    public void exportPrometheus(StringBuilder out, String name, String labels) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0L;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            cumulative += buckets[i].sum();
+            out.append(name).append("_bucket{").append(prefix).append("le=\"").append((1L << i) / 1000000.0).append("\"} ")
+               .append(cumulative).append('\n');
+        }
+        cumulative += buckets[BUCKET_COUNT - 1].sum();
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(sumMicros.sum() / 1000000.0).append('\n');
+        out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+    }
+}
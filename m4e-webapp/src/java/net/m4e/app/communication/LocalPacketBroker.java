@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.List;
+
+
+/**
+ * Packet broker used when the application runs on a single node. It does nothing,
+ * there are no other nodes to talk to.
+ *
+ * @author boto
+ * Date of creation Dec 8, 2017
+ */
+public class LocalPacketBroker implements PacketBroker {
+
+    public LocalPacketBroker() {}
+
+    @Override
+    public void start(String nodeId, PacketBrokerListener listener) {}
+
+    @Override
+    public void stop() {}
+
+    @Override
+    public void publishPresence(Long userId, boolean online) {}
+
+    @Override
+    public boolean deliver(String nodeId, List<Long> userIds, String frame) {
+        return false;
+    }
+}
@@ -10,22 +10,37 @@ package net.m4e.app.communication;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.event.Event;
+import javax.enterprise.event.NotificationOptions;
 import javax.enterprise.event.ObservesAsync;
 import javax.inject.Inject;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import javax.websocket.Session;
+import net.m4e.app.event.Events;
 import net.m4e.app.user.UserEntity;
+import net.m4e.system.core.AppConfiguration;
 import net.m4e.system.core.Log;
 
 /**
  * All incoming messages are dispatched and distributed via proper events.
  * The actual handling of messages is up to event listener.
  * 
+ * The events are fired on the lanes of a dispatch engine, so the messages of
+ * one sender are handled in order and every channel has its own threads.
+ * The count of lanes per channel is configurable in communication configuration.
+ * 
  * @author boto
  * Date of creation Oct 7, 2017
  */
@@ -58,11 +73,114 @@ public class MessageDistribution {
     @Inject
     ConnectedClients connections;
 
+    /**
+     * Metrics of the WebSocket layer
+     */
+    @Inject
+    CommunicationMetrics metrics;
+
+    /**
+     * Entity manager needed for checking event memberships.
+     */
+    @PersistenceContext(unitName = net.m4e.system.core.AppConfiguration.PERSITENCE_UNIT_NAME)
+    private EntityManager entityManager;
+
+    /**
+     * Used for creating the dispatch threads
+     */
+    @Resource(lookup = "java:comp/DefaultManagedThreadFactory")
+    ManagedThreadFactory threadFactory;
+
+    /**
+     * Communication config key format for the count of lanes of a channel, e.g. dispatch.chat.lanes
+     */
+    public final static String CFG_DISPATCH_LANES = "dispatch.%s.lanes";
+
+    /**
+     * Communication config key format for the queue size of a channel's lanes, e.g. dispatch.chat.queueSize
+     */
+    public final static String CFG_DISPATCH_QUEUE_SIZE = "dispatch.%s.queueSize";
+
+    /**
+     * Default maximal count of queued packets per lane
+     */
+    private final static int DEFAULT_DISPATCH_QUEUE_SIZE = 1000;
+
+    private DispatchEngine dispatchEngine;
+
     /**
      * Construct the resource.
      */
     public MessageDistribution() {}
 
+    /**
+     * Setup the dispatch engine.
+     */
+    @PostConstruct
+    public void messageDistributionInit() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        dispatchEngine = new DispatchEngine(threadFactory);
+        setupChannel(Packet.CHANNEL_CHAT, cores);
+        setupChannel(Packet.CHANNEL_EVENT, cores);
+        setupChannel(Packet.CHANNEL_SYSTEM, 2);
+    }
+
+    /**
+     * Stop the dispatch engine.
+     */
+    @PreDestroy
+    public void messageDistributionShutdown() {
+        dispatchEngine.shutdown();
+    }
+
+    /**
+     * Get the dispatch engine, e.g. for statistics.
+     * 
+     * @return Dispatch engine
+     */
+    public DispatchEngine getDispatchEngine() {
+        return dispatchEngine;
+    }
+
+    private void setupChannel(String channel, int defaultLanes) {
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        int lanes = (int)cfg.getCommunicationConfigValue(String.format(CFG_DISPATCH_LANES, channel), defaultLanes);
+        int queuesize = (int)cfg.getCommunicationConfigValue(String.format(CFG_DISPATCH_QUEUE_SIZE, channel), DEFAULT_DISPATCH_QUEUE_SIZE);
+        dispatchEngine.addChannel(channel, lanes, queuesize);
+    }
+
+    /**
+     * Fire an event on the dispatch lane of given sender.
+     * 
+     * @param event     Event used for firing
+     * @param ev        Event object
+     * @param channel   Channel name
+     * @param senderId  Sender ID
+     */
+    private <T> void fireOnLane(Event<T> event, T ev, String channel, Long senderId) {
+        Executor lane = dispatchEngine.getExecutor(channel, senderId);
+        if (lane == null) {
+            // the rejection is counted by the dispatch engine, avoid flooding the log
+            Log.debug(TAG, "dropping " + channel + " packet of user " + senderId + ", the dispatch lane is full");
+            return;
+        }
+        // measure the time the packet waits in lane's queue
+        Executor timedlane = (task) -> {
+            long queued = System.nanoTime();
+            lane.execute(() -> {
+                metrics.dispatchWait(channel, System.nanoTime() - queued);
+                task.run();
+            });
+        };
+        try {
+            event.fireAsync(ev, NotificationOptions.ofExecutor(timedlane));
+        }
+        catch(RejectedExecutionException ex) {
+            // the lane was filled concurrently, the rejection is counted by the dispatch engine
+            Log.debug(TAG, "dropping " + channel + " packet of user " + senderId + ", reason: " + ex.getLocalizedMessage());
+        }
+    }
+
     /**
      * Handle incoming message.
      * 
@@ -92,7 +210,7 @@ public class MessageDistribution {
         ChannelChatEvent ev = new ChannelChatEvent();
         ev.setSenderId(user.getId());
         ev.setPacket(packet);
-        channelChatEvent.fireAsync(ev);
+        fireOnLane(channelChatEvent, ev, Packet.CHANNEL_CHAT, user.getId());
     }
 
     /**
@@ -106,7 +224,7 @@ public class MessageDistribution {
         ChannelEventEvent ev = new ChannelEventEvent();
         ev.setSenderId(user.getId());
         ev.setPacket(packet);
-        channelEventEvent.fireAsync(ev);
+        fireOnLane(channelEventEvent, ev, Packet.CHANNEL_EVENT, user.getId());
     }
 
     /**
@@ -121,7 +239,7 @@ public class MessageDistribution {
         ev.setSenderId(user.getId());
         ev.setPacket(packet);
         ev.setSessionId(session.getId());
-        channelEventSystem.fireAsync(ev);
+        fireOnLane(channelEventSystem, ev, Packet.CHANNEL_SYSTEM, user.getId());
     }
 
     /**
@@ -144,8 +262,6 @@ public class MessageDistribution {
             return;
         }
 
-        //! NOTE currently we support only the ping command.
-
         String cmd = data.getString("cmd", "");
         if ("ping".equals(cmd)) {
             JsonObjectBuilder json = Json.createObjectBuilder();
@@ -156,8 +272,51 @@ public class MessageDistribution {
             packet.setData(json.build());
             connections.sendPacket(packet, senderid, event.getSessionId());
         }
+        else if ("subscribe".equals(cmd) || "unsubscribe".equals(cmd)) {
+            handleSubscription(cmd, data, packet, senderid, event.getSessionId());
+        }
         else {
             Log.warning(TAG, "unsupported system command '" + cmd + "' received from user: " + senderid);
         }
     }
+
+    /**
+     * Subscribe or unsubscribe a session to/from an event topic. Only owner and
+     * members of an event can subscribe to it. The result is sent back to the session.
+     * 
+     * @param cmd       Command, subscribe or unsubscribe
+     * @param data      Command data containing the event ID
+     * @param packet    Incoming packet, it is used for the response
+     * @param senderId  User ID
+     * @param sessionId Session ID
+     */
+    private void handleSubscription(String cmd, JsonObject data, Packet packet, Long senderId, String sessionId) {
+        String eventid = data.getString("eventId", "");
+        boolean success = false;
+        try {
+            Long id = Long.parseLong(eventid);
+            String topic = ConnectedClients.getEventTopic(id);
+            if ("unsubscribe".equals(cmd)) {
+                success = connections.unsubscribeTopic(senderId, sessionId, topic);
+            }
+            else if (new Events(entityManager).getUserIsEventOwnerOrMember(senderId, id)) {
+                success = connections.subscribeTopic(senderId, sessionId, topic);
+            }
+            else {
+                Log.warning(TAG, "user " + senderId + " tries to subscribe to event " + id + " without being a member");
+            }
+        }
+        catch(NumberFormatException ex) {
+            Log.warning(TAG, "invalid event ID in " + cmd + " command received from user: " + senderId);
+        }
+
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        json.add("cmd", cmd);
+        json.add("eventId", eventid);
+        json.add("result", success ? "ok" : "nok");
+        packet.setSource("");
+        packet.setSourceId("");
+        packet.setData(json.build());
+        connections.sendPacket(packet, senderId, sessionId);
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.websocket.Session;
+
+
+/**
+ * Collects the notify packets of one session for a short while and puts them into
+ * the session's outbound queue as one frame, a JSON array of packets. A single
+ * pending packet is sent as it is.
+ *
+ * The batch is flushed by the owner on every tick, when it gets full, and before
+ * any other frame is queued for the session, so the order of frames is kept.
+ *
+ * @author boto
+ * Date of creation Dec 24, 2017
+ */
+public class NotifyBatch {
+
+    /**
+     * Session user property key used for storing the session's notify batch
+     */
+    public final static String KEY_NOTIFY_BATCH = "notifyBatch";
+
+    private final OutboundQueue queue;
+
+    private final int maxSize;
+
+    private final List<PacketFrame> frames = new ArrayList<>();
+
+    /**
+     * Create a notify batch for a session.
+     *
+     * @param queue     Outbound queue of the session
+     * @param maxSize   Maximal count of packets in a batch
+     */
+    public NotifyBatch(OutboundQueue queue, int maxSize) {
+        this.queue = queue;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * Given a WebSocket session return its notify batch.
+     *
+     * @param session   WebSocket session
+     * @return          The notify batch, or null if the session does not batch notify packets.
+     */
+    public static NotifyBatch getBatch(Session session) {
+        return (NotifyBatch)session.getUserProperties().get(KEY_NOTIFY_BATCH);
+    }
+
+    /**
+     * Check if a frame is a notify packet.
+     *
+     * @param frame     Frame
+     * @return          Return true if the frame belongs to the notify channel.
+     */
+    public static boolean isNotify(PacketFrame frame) {
+        Packet packet = frame.getPacket();
+        String channel = (packet != null) ? packet.getChannel() : Packet.peekChannel(frame.getText());
+        return Packet.CHANNEL_NOTIFY.equals(channel);
+    }
+
+    /**
+     * Add a notify frame to batch. If the batch gets full then it is flushed.
+     *
+     * @param frame     Notify frame
+     * @return          Return true if the batch was empty before, i.e. it needs a flush on next tick.
+     */
+    public synchronized boolean add(PacketFrame frame) {
+        frames.add(frame);
+        if (frames.size() >= maxSize) {
+            flush();
+            return false;
+        }
+        return frames.size() == 1;
+    }
+
+    /**
+     * Queue a frame which must not be batched. Pending notify packets are queued before.
+     *
+     * @param frame     Frame to send
+     * @return          Return false if the frame could not be queued.
+     */
+    public synchronized boolean enqueue(PacketFrame frame) {
+        flush();
+        return queue.enqueue(frame);
+    }
+
+    /**
+     * Put the pending notify packets into the outbound queue.
+     *
+     * @return Count of flushed packets
+     */
+    public synchronized int flush() {
+        int count = frames.size();
+        if (count == 0) {
+            return 0;
+        }
+        if (count == 1) {
+            queue.enqueue(frames.get(0));
+        }
+        else {
+            StringBuilder text = new StringBuilder("[");
+            for (PacketFrame frame: frames) {
+                if (text.length() > 1) {
+                    text.append(',');
+                }
+                text.append(frame.getText());
+            }
+            text.append(']');
+            queue.enqueue(new PacketFrame(text.toString()));
+        }
+        frames.clear();
+        return count;
+    }
+}
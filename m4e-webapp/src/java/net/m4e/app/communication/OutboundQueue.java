@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.websocket.CloseReason;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Bounded queue of outgoing frames for one WebSocket session. The frames are
+ * shared between all recipients of a broadcast (see PacketFrame) and they are
+ * sent asynchronously one after another, so a slow client never blocks the thread
+ * which is sending a packet to it. If the queue grows beyond its high-water mark
+ * then the slow consumer policy is applied.
+ *
+ * @author boto
+ * Date of creation Dec 4, 2017
+ */
+public class OutboundQueue {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "OutboundQueue";
+
+    /**
+     * Session user property key used for storing the session's outbound queue
+     */
+    public final static String KEY_OUTBOUND_QUEUE = "outboundQueue";
+
+    /**
+     * Policy applied when a session's queue exceeds its high-water mark
+     */
+    public enum SlowConsumerPolicy {
+
+        DropNewest("dropnewest"),
+
+        DropOldest("dropoldest"),
+
+        Disconnect("disconnect");
+
+        private final String value;
+        private SlowConsumerPolicy(String value) {
+            this.value = value;
+        }
+
+        /**
+         * Get the string value of enum.
+         *
+         * @return String value
+         */
+        public String value() {
+            return value;
+        }
+
+        /**
+         * Given a string value return the policy. If the value is unknown then
+         * the given default is returned.
+         *
+         * @param value         Policy string value
+         * @param defaultPolicy Default policy
+         * @return              Policy
+         */
+        public static SlowConsumerPolicy fromValue(String value, SlowConsumerPolicy defaultPolicy) {
+            for (SlowConsumerPolicy policy: values()) {
+                if (policy.value.equalsIgnoreCase(value)) {
+                    return policy;
+                }
+            }
+            return defaultPolicy;
+        }
+    }
+
+    private final Session session;
+
+    /**
+     * Send binary frames instead of JSON text frames
+     */
+    private final boolean binary;
+
+    private final int highWaterMark;
+
+    private final SlowConsumerPolicy policy;
+
+    private final OutboundStats stats;
+
+    private final CommunicationMetrics metrics;
+
+    /**
+     * Used for closing a slow session, closing may block on a slow peer
+     */
+    private final Executor closeExecutor;
+
+    /**
+     * The queue whose send is being issued on current thread. A send which completes
+     * inline (on the issuing thread) must not start the next send recursively.
+     */
+    private final static ThreadLocal<OutboundQueue> ISSUING = new ThreadLocal<>();
+
+    /**
+     * Start time of the send in flight, used for measuring the send latency
+     */
+    private volatile long sendStart;
+
+    private final Queue<PacketFrame> frames = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Count of queued frames, ConcurrentLinkedQueue's size() is not constant time.
+     */
+    private final AtomicInteger depth = new AtomicInteger();
+
+    /**
+     * Only one asynchronous send is allowed to be in flight for a session.
+     */
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+
+    private volatile boolean closed = false;
+
+    /**
+     * Create an outbound queue for given session.
+     *
+     * @param session       WebSocket session
+     * @param binary        Pass true if the session negotiated the binary protocol
+     * @param highWaterMark Maximal count of queued frames before the policy is applied
+     * @param policy        Slow consumer policy
+     * @param stats         Statistics shared by all queues
+     * @param metrics       Communication metrics
+     * @param closeExecutor Executor used for closing the session of a slow consumer
+     */
+    public OutboundQueue(Session session, boolean binary, int highWaterMark, SlowConsumerPolicy policy, OutboundStats stats, CommunicationMetrics metrics, Executor closeExecutor) {
+        this.session = session;
+        this.binary = binary;
+        this.highWaterMark = highWaterMark;
+        this.policy = policy;
+        this.stats = stats;
+        this.metrics = metrics;
+        this.closeExecutor = closeExecutor;
+    }
+
+    /**
+     * Given a WebSocket session return its outbound queue.
+     *
+     * @param session   WebSocket session
+     * @return          The outbound queue, or null if the session has no queue.
+     */
+    public static OutboundQueue getQueue(Session session) {
+        return (OutboundQueue)session.getUserProperties().get(KEY_OUTBOUND_QUEUE);
+    }
+
+    /**
+     * Queue a frame for sending. If the queue is above its high-water mark then
+     * the slow consumer policy is applied.
+     *
+     * @param frame     Frame to send
+     * @return          Return false if the frame was not queued.
+     */
+    public boolean enqueue(PacketFrame frame) {
+        // reserve a slot first, so concurrent senders cannot exceed the bound
+        while (true) {
+            if (closed) {
+                return false;
+            }
+            int current = depth.get();
+            if (current >= highWaterMark) {
+                if (!handleOverflow()) {
+                    return false;
+                }
+            }
+            else if (depth.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        frames.offer(frame);
+        if (closed) {
+            // the queue was closed after the slot was reserved, the frame may have been missed by close
+            discardPending();
+            return false;
+        }
+        stats.incrementQueued();
+        sendNext();
+        return true;
+    }
+
+    /**
+     * Close the queue, all pending frames are discarded.
+     */
+    public void close() {
+        closed = true;
+        discardPending();
+    }
+
+    /**
+     * Get the count of frames waiting for being sent.
+     *
+     * @return Queue depth
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Discard the queued frames. A slot is released along with its frame, so a slot
+     * which is reserved but not filled yet is released by its sender, see enqueue.
+     */
+    private void discardPending() {
+        int count = 0;
+        while (frames.poll() != null) {
+            depth.decrementAndGet();
+            count++;
+        }
+        stats.addDiscarded(count);
+    }
+
+    /**
+     * Apply the slow consumer policy.
+     *
+     * @return Return true if the new frame can be queued.
+     */
+    private boolean handleOverflow() {
+        switch(policy) {
+            case DropNewest:
+                stats.incrementDropped();
+                return false;
+
+            case DropOldest:
+                if (frames.poll() == null) {
+                    // the slots are reserved by concurrent senders, drop the new frame instead
+                    stats.incrementDropped();
+                    return false;
+                }
+                depth.decrementAndGet();
+                stats.incrementDropped();
+                return true;
+
+            default:
+                Log.warning(TAG, "closing slow WebSocket session " + session.getId() + ", outbound queue exceeded " + highWaterMark + " frames");
+                stats.incrementDropped();
+                stats.incrementDisconnects();
+                close();
+                try {
+                    closeExecutor.execute(this::closeSession);
+                }
+                catch(RejectedExecutionException ex) {
+                    Log.warning(TAG, "could not schedule closing slow session " + session.getId() + ", reason: " + ex.getLocalizedMessage());
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Close the session of a slow consumer.
+     */
+    private void closeSession() {
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Client is too slow."));
+        }
+        catch(IOException ex) {
+            Log.debug(TAG, "could not close slow session " + session.getId() + ", reason: " + ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Send the next pending frame unless a send is already in flight. A send which
+     * completes inline only releases the in-flight flag, this loop then sends the
+     * next frame, so the stack does not grow with the count of sent frames.
+     */
+    private void sendNext() {
+        while (!closed) {
+            if (!sending.compareAndSet(false, true)) {
+                return;
+            }
+            PacketFrame frame = frames.poll();
+            if (frame == null) {
+                sending.set(false);
+                // a frame may have been queued right before releasing the flag, check it again
+                if (frames.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            depth.decrementAndGet();
+            OutboundQueue outer = ISSUING.get();
+            ISSUING.set(this);
+            try {
+                sendStart = System.nanoTime();
+                if (binary && frame.hasBinary()) {
+                    ByteBuffer buffer = frame.getBinary();
+                    metrics.frameOut(PacketBinaryCodec.peekChannel(buffer), buffer.remaining());
+                    session.getAsyncRemote().sendBinary(buffer, this::onSendResult);
+                }
+                else {
+                    String text = frame.getText();
+                    Packet packet = frame.getPacket();
+                    metrics.frameOut((packet != null) ? packet.getChannel() : Packet.peekChannel(text), text.length());
+                    session.getAsyncRemote().sendText(text, this::onSendResult);
+                }
+            }
+            catch(IllegalStateException | IllegalArgumentException ex) {
+                Log.warning(TAG, "problem occurred while sending to session " + session.getId() + ", reason: " + ex.getLocalizedMessage());
+                stats.incrementFailed();
+                sending.set(false);
+            }
+            finally {
+                ISSUING.set(outer);
+            }
+        }
+    }
+
+    /**
+     * Called when an asynchronous send was completed.
+     *
+     * @param result    Send result
+     */
+    private void onSendResult(SendResult result) {
+        metrics.sendLatency(System.nanoTime() - sendStart);
+        if (result.isOK()) {
+            stats.incrementSent();
+        }
+        else {
+            stats.incrementFailed();
+            Log.warning(TAG, "problem occurred while sending to session " + session.getId() +
+                        ", reason: " + ((result.getException() != null) ? result.getException().getLocalizedMessage() : "unknown"));
+        }
+        sending.set(false);
+        // if the send completed inline, then the issuing loop continues with the next frame
+        if (ISSUING.get() != this) {
+            sendNext();
+        }
+    }
+}
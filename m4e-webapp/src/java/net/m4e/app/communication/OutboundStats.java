@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters of the outbound send pipeline, shared by all session queues.
+ *
+ * @author boto
+ * Date of creation Dec 4, 2017
+ */
+public class OutboundStats {
+
+    private final LongAdder countQueued = new LongAdder();
+
+    private final LongAdder countSent = new LongAdder();
+
+    private final LongAdder countFailed = new LongAdder();
+
+    private final LongAdder countDropped = new LongAdder();
+
+    private final LongAdder countDiscarded = new LongAdder();
+
+    private final LongAdder countDisconnects = new LongAdder();
+
+    public OutboundStats() {}
+
+    void incrementQueued() {
+        countQueued.increment();
+    }
+
+    void incrementSent() {
+        countSent.increment();
+    }
+
+    void incrementFailed() {
+        countFailed.increment();
+    }
+
+    void incrementDropped() {
+        countDropped.increment();
+    }
+
+    void addDiscarded(int count) {
+        countDiscarded.add(count);
+    }
+
+    void incrementDisconnects() {
+        countDisconnects.increment();
+    }
+
+    /**
+     * Get the total count of frames which were queued for sending.
+     *
+     * @return Count of queued frames
+     */
+    public long getCountQueued() {
+        return countQueued.sum();
+    }
+
+    /**
+     * Get the total count of frames which were successfully sent.
+     *
+     * @return Count of sent frames
+     */
+    public long getCountSent() {
+        return countSent.sum();
+    }
+
+    /**
+     * Get the total count of frames which could not be sent.
+     *
+     * @return Count of failed frames
+     */
+    public long getCountFailed() {
+        return countFailed.sum();
+    }
+
+    /**
+     * Get the total count of frames dropped because of slow consumers.
+     *
+     * @return Count of dropped frames
+     */
+    public long getCountDropped() {
+        return countDropped.sum();
+    }
+
+    /**
+     * Get the total count of pending frames discarded on closing sessions.
+     *
+     * @return Count of discarded frames
+     */
+    public long getCountDiscarded() {
+        return countDiscarded.sum();
+    }
+
+    /**
+     * Get the total count of sessions disconnected because of being too slow.
+     *
+     * @return Count of disconnected slow sessions
+     */
+    public long getCountDisconnects() {
+        return countDisconnects.sum();
+    }
+}
@@ -9,11 +9,12 @@ package net.m4e.app.communication;
 
 import java.io.StringReader;
 import java.util.Date;
-import javax.json.Json;
-import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.json.stream.JsonLocation;
+import javax.json.spi.JsonProvider;
+import javax.json.stream.JsonParser;
 import net.m4e.system.core.Log;
 
 /**
@@ -28,6 +29,12 @@ public class Packet {
      */
     private final static String TAG = "Packet";
 
+    /**
+     * JSON provider used for reading and writing packets. It is looked up once,
+     * the factory methods of class Json look it up on every call.
+     */
+    private final static JsonProvider JSON_PROVIDER = JsonProvider.provider();
+
     /**
      * Packet channel for system notifications
      */
@@ -54,6 +61,16 @@ public class Packet {
     private JsonObject data;
     private Long   time = 0L;
 
+    /**
+     * Packet data in JSON format which was not parsed yet, see getData.
+     */
+    private String rawData;
+
+    /**
+     * If true then rawData contains the entire packet instead of only the data object.
+     */
+    private boolean rawDataIsPacket = false;
+
     /**
      * Create an empty packet instance.
      */
@@ -80,13 +97,14 @@ public class Packet {
      * @return JSON string representing the packet
      */
     public String toJSON() {
-        JsonObjectBuilder json = Json.createObjectBuilder();
+        JsonObjectBuilder json = JSON_PROVIDER.createObjectBuilder();
         json.add("channel", ((channel != null) ? channel : ""))
             .add("sourceId", ((sourceId != null) ? sourceId : ""))
             .add("source", ((source != null) ? source : ""))
             .add("time", (time == 0L) ? (new Date()).getTime() : time);
-        if (data != null) {
-            json.add("data", data);
+        JsonObject jsondata = getData();
+        if (jsondata != null) {
+            json.add("data", jsondata);
         }
         return json.build().toString();
     }
@@ -104,25 +122,106 @@ public class Packet {
         return new Packet(channel, sourceId, source, data).toJSON();
     }
 
+    /**
+     * Get the channel of a packet in JSON format without parsing it. The first string
+     * value following the "channel" key is taken, this is good enough for choosing the
+     * rate limit of an incoming frame before it is parsed (see FrameRateLimiter). The
+     * key may also appear inside of the packet data, so a frame whose parsed channel
+     * differs from the peeked one must be dropped.
+     * 
+     * @param input     Packet in JSON format
+     * @return          Channel name, or null if it was not found.
+     */
+    public static String peekChannel(String input) {
+        int pos = input.indexOf("\"channel\"");
+        if (pos < 0) {
+            return null;
+        }
+        int begin = input.indexOf('"', pos + 9);
+        if (begin < 0) {
+            return null;
+        }
+        int end = input.indexOf('"', begin + 1);
+        return (end < 0) ? null : input.substring(begin + 1, end);
+    }
+
     /**
      * Create a packet out of given JSON string. If an invalid JSON format is given, then
      * null will be returned.
      * 
+     * The input is read by a streaming parser. Only the header fields are extracted,
+     * the packet data is checked for valid JSON but kept in its JSON format, it is
+     * parsed on first access (see getData), i.e. only by the channel handler which
+     * really needs it.
+     * 
      * @param input     Packet in JSON format
      * @return          A packet representing the JSON format, or null if an invalid JSON input was given.
      */
     public static Packet fromJSON(String input) {
         Packet packet = null;
-        try {
-            JsonReader jreader = Json.createReader(new StringReader(input));
-            JsonObject jobject = jreader.readObject();
-            String channel = jobject.getString("channel", "");
-            String sourceId = jobject.getString("soourceId", "");
-            String source = jobject.getString("soource", "");
-            JsonObject data = jobject.getJsonObject("data");
-            long time = jobject.getJsonNumber("time").longValue();
-            packet = new Packet(channel, sourceId, source, data);
+        try (JsonParser parser = JSON_PROVIDER.createParser(new StringReader(input))) {
+            if (parser.next() != JsonParser.Event.START_OBJECT) {
+                throw new IllegalArgumentException("packet is not a JSON object");
+            }
+            String channel = "";
+            String sourceId = "";
+            String source = "";
+            Long time = null;
+            String rawdata = null;
+            boolean rawdataispacket = false;
+
+            while (parser.next() != JsonParser.Event.END_OBJECT) {
+                String key = parser.getString();
+                JsonParser.Event value = parser.next();
+                switch(key) {
+                    case "channel":
+                        channel = getStringValue(parser, value, channel);
+                        break;
+                    // older clients send the misspelled keys, accept them too
+                    case "sourceId":
+                    case "soourceId":
+                        sourceId = getStringValue(parser, value, sourceId);
+                        break;
+                    case "source":
+                    case "soource":
+                        source = getStringValue(parser, value, source);
+                        break;
+                    case "time":
+                        if (value != JsonParser.Event.VALUE_NUMBER) {
+                            throw new IllegalArgumentException("invalid packet time");
+                        }
+                        time = parser.getLong();
+                        break;
+                    case "data":
+                        if (value == JsonParser.Event.START_OBJECT) {
+                            int begin = getObjectBegin(input, parser.getLocation());
+                            skipStructure(parser);
+                            int end = getObjectEnd(input, parser.getLocation());
+                            if ((begin >= 0) && (end > begin)) {
+                                rawdata = input.substring(begin, end);
+                                rawdataispacket = false;
+                            }
+                            else {
+                                // the parser provides no usable location, parse the entire packet on demand
+                                rawdata = input;
+                                rawdataispacket = true;
+                            }
+                        }
+                        else if (value != JsonParser.Event.VALUE_NULL) {
+                            throw new IllegalArgumentException("packet data is not a JSON object");
+                        }
+                        break;
+                    default:
+                        skipValue(parser, value);
+                }
+            }
+            if (time == null) {
+                throw new IllegalArgumentException("missing packet time");
+            }
+            packet = new Packet(channel, sourceId, source, null);
             packet.setTime(time);
+            packet.rawData = rawdata;
+            packet.rawDataIsPacket = rawdataispacket;
         }
         catch (Exception ex) {
             Log.debug(TAG, "Could not read JSON string, reason: " + ex.getLocalizedMessage());
@@ -130,6 +229,74 @@ public class Packet {
         return packet;
     }
 
+    /**
+     * Get the string value of current parser event. Numbers are accepted as strings too.
+     */
+    private static String getStringValue(JsonParser parser, JsonParser.Event value, String defaultValue) {
+        if ((value == JsonParser.Event.VALUE_STRING) || (value == JsonParser.Event.VALUE_NUMBER)) {
+            return parser.getString();
+        }
+        skipValue(parser, value);
+        return defaultValue;
+    }
+
+    /**
+     * Skip the value of current parser event.
+     */
+    private static void skipValue(JsonParser parser, JsonParser.Event value) {
+        if ((value == JsonParser.Event.START_OBJECT) || (value == JsonParser.Event.START_ARRAY)) {
+            skipStructure(parser);
+        }
+    }
+
+    /**
+     * Skip the object or array which was just started. Unlike skipObject and skipArray of
+     * the parser, every token is read, so the parser checks the JSON grammar of the skipped
+     * structure and throws an exception if it is invalid.
+     */
+    private static void skipStructure(JsonParser parser) {
+        int depth = 1;
+        while (depth > 0) {
+            switch(parser.next()) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    depth++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Given the parser location right after an object start return the index of '{' in input,
+     * or -1 if the location is not usable.
+     */
+    private static int getObjectBegin(String input, JsonLocation location) {
+        long offset = location.getStreamOffset();
+        if ((offset < 0) || (offset > input.length())) {
+            return -1;
+        }
+        // the location is either on '{' or right behind it, an object member never begins with '{'
+        return input.lastIndexOf('{', (int)Math.min(offset, input.length() - 1));
+    }
+
+    /**
+     * Given the parser location right after an object end return the index behind '}' in input,
+     * or -1 if the location is not usable.
+     */
+    private static int getObjectEnd(String input, JsonLocation location) {
+        long offset = location.getStreamOffset();
+        if ((offset < 1) || (offset > input.length()) || (input.charAt((int)offset - 1) != '}')) {
+            return -1;
+        }
+        return (int)offset;
+    }
+
     /**
      * Get the packet channel, one of CHANNEL_xxx string.
      *
@@ -185,11 +352,23 @@ public class Packet {
     }
 
     /**
-     * Packet data, this is expected to be a JSON document.
+     * Packet data, this is expected to be a JSON document. The data of a packet
+     * created by fromJSON is parsed on first call.
      *
-     * @return The packet data
+     * @return The packet data, or null if the packet has no valid data.
      */
     public JsonObject getData() {
+        if ((data == null) && (rawData != null)) {
+            String input = rawData;
+            rawData = null;
+            try (JsonReader jreader = JSON_PROVIDER.createReader(new StringReader(input))) {
+                JsonObject jobject = jreader.readObject();
+                data = rawDataIsPacket ? jobject.getJsonObject("data") : jobject;
+            }
+            catch (Exception ex) {
+                Log.debug(TAG, "Could not read packet data, reason: " + ex.getLocalizedMessage());
+            }
+        }
         return data;
     }
 
@@ -200,6 +379,7 @@ public class Packet {
      */
     public void setData(JsonObject data) {
         this.data = data;
+        this.rawData = null;
     }
 
     /**
@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Binary packet format used by clients which negotiated the binary WebSocket
+ * sub-protocol. A frame has following layout:
+ *
+ *   byte 0       Format version (currently 1)
+ *   byte 1       Channel ID, see CHANNEL_ID_xxx
+ *   byte 2..     MessagePack encoded values: source ID (integer or string),
+ *                source (string), time (integer) and data (map or nil)
+ *
+ * The packet data is a JSON document, it is encoded using the MessagePack
+ * map, array, string, integer, float, boolean and nil types.
+ *
+ * @author boto
+ * Date of creation Dec 6, 2017
+ */
+public class PacketBinaryCodec {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "PacketBinaryCodec";
+
+    /**
+     * Binary format version
+     */
+    public final static byte FORMAT_VERSION = 1;
+
+    /**
+     * Channel IDs used in binary frame header
+     */
+    public final static byte CHANNEL_ID_UNKNOWN = 0;
+    public final static byte CHANNEL_ID_SYSTEM  = 1;
+    public final static byte CHANNEL_ID_NOTIFY  = 2;
+    public final static byte CHANNEL_ID_CHAT    = 3;
+    public final static byte CHANNEL_ID_EVENT   = 4;
+
+    /**
+     * Nesting limit for decoding the packet data.
+     */
+    private final static int MAX_DEPTH = 32;
+
+    private PacketBinaryCodec() {}
+
+    /**
+     * Encode the given packet.
+     *
+     * @param packet    Packet to encode
+     * @return          Binary frame
+     */
+    public static byte[] encode(Packet packet) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(FORMAT_VERSION);
+        out.write(getChannelId(packet.getChannel()));
+
+        String sourceid = (packet.getSourceId() != null) ? packet.getSourceId() : "";
+        Long numericid = parseId(sourceid);
+        if (numericid != null) {
+            writeInteger(out, numericid);
+        }
+        else {
+            writeString(out, sourceid);
+        }
+        writeString(out, (packet.getSource() != null) ? packet.getSource() : "");
+        Long time = packet.getTime();
+        writeInteger(out, ((time == null) || (time == 0L)) ? System.currentTimeMillis() : time);
+        if (packet.getData() != null) {
+            writeValue(out, packet.getData());
+        }
+        else {
+            out.write(0xc0);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a binary frame. If the frame is invalid then null is returned.
+     *
+     * @param frame     Binary frame
+     * @return          Packet, or null if the frame is invalid.
+     */
+    public static Packet decode(ByteBuffer frame) {
+        try {
+            byte version = frame.get();
+            if (version != FORMAT_VERSION) {
+                Log.debug(TAG, "unsupported binary format version: " + version);
+                return null;
+            }
+            String channel = getChannel(frame.get());
+            JsonValue sourceid = readValue(frame, 0);
+            JsonValue source = readValue(frame, 0);
+            JsonValue time = readValue(frame, 0);
+            JsonValue data = readValue(frame, 0);
+
+            Packet packet = new Packet(channel, toText(sourceid), toText(source), (data instanceof JsonObject) ? (JsonObject)data : null);
+            packet.setTime((time instanceof JsonNumber) ? ((JsonNumber)time).longValue() : 0L);
+            return packet;
+        }
+        catch(BufferUnderflowException | IllegalArgumentException | ClassCastException ex) {
+            Log.debug(TAG, "could not decode binary frame, reason: " + ex.getLocalizedMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Given a channel name return its binary channel ID.
+     *
+     * @param channel   Channel name, one of Packet.CHANNEL_xxx
+     * @return          Channel ID
+     */
+    public static byte getChannelId(String channel) {
+        if (Packet.CHANNEL_SYSTEM.equals(channel)) {
+            return CHANNEL_ID_SYSTEM;
+        }
+        else if (Packet.CHANNEL_NOTIFY.equals(channel)) {
+            return CHANNEL_ID_NOTIFY;
+        }
+        else if (Packet.CHANNEL_CHAT.equals(channel)) {
+            return CHANNEL_ID_CHAT;
+        }
+        else if (Packet.CHANNEL_EVENT.equals(channel)) {
+            return CHANNEL_ID_EVENT;
+        }
+        return CHANNEL_ID_UNKNOWN;
+    }
+
+    /**
+     * Given a binary channel ID return the channel name.
+     *
+     * @param channelId Channel ID
+     * @return          Channel name, or an empty string if the ID is unknown.
+     */
+    public static String getChannel(byte channelId) {
+        switch(channelId) {
+            case CHANNEL_ID_SYSTEM:
+                return Packet.CHANNEL_SYSTEM;
+            case CHANNEL_ID_NOTIFY:
+                return Packet.CHANNEL_NOTIFY;
+            case CHANNEL_ID_CHAT:
+                return Packet.CHANNEL_CHAT;
+            case CHANNEL_ID_EVENT:
+                return Packet.CHANNEL_EVENT;
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Get the channel of a binary frame without decoding it.
+     *
+     * @param frame     Binary frame, its position is not changed
+     * @return          Channel name, or an empty string if the frame is too short or the channel is unknown.
+     */
+    public static String peekChannel(ByteBuffer frame) {
+        if (frame.remaining() < 2) {
+            return "";
+        }
+        return getChannel(frame.get(frame.position() + 1));
+    }
+
+    private static Long parseId(String id) {
+        if (id.isEmpty() || (id.length() > 18)) {
+            return null;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (!Character.isDigit(id.charAt(i))) {
+                return null;
+            }
+        }
+        // avoid leading zeros, they would get lost on decoding
+        if ((id.length() > 1) && (id.charAt(0) == '0')) {
+            return null;
+        }
+        return Long.parseLong(id);
+    }
+
+    private static String toText(JsonValue value) {
+        if (value instanceof JsonString) {
+            return ((JsonString)value).getString();
+        }
+        else if (value instanceof JsonNumber) {
+            return value.toString();
+        }
+        return "";
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, JsonValue value) {
+        switch(value.getValueType()) {
+            case OBJECT:
+                JsonObject obj = (JsonObject)value;
+                writeHeader(out, obj.size(), 0x80, 0x0f, 0xde, 0xdf);
+                for (Map.Entry<String, JsonValue> entry: obj.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeValue(out, entry.getValue());
+                }
+                break;
+            case ARRAY:
+                JsonArray arr = (JsonArray)value;
+                writeHeader(out, arr.size(), 0x90, 0x0f, 0xdc, 0xdd);
+                for (JsonValue v: arr) {
+                    writeValue(out, v);
+                }
+                break;
+            case STRING:
+                writeString(out, ((JsonString)value).getString());
+                break;
+            case NUMBER:
+                JsonNumber num = (JsonNumber)value;
+                if (num.isIntegral() && (num.bigDecimalValue().abs().compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) <= 0)) {
+                    writeInteger(out, num.longValue());
+                }
+                else {
+                    out.write(0xcb);
+                    writeLong(out, Double.doubleToLongBits(num.doubleValue()));
+                }
+                break;
+            case TRUE:
+                out.write(0xc3);
+                break;
+            case FALSE:
+                out.write(0xc2);
+                break;
+            default:
+                out.write(0xc0);
+        }
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, int size, int fixPrefix, int fixMax, int prefix16, int prefix32) {
+        if (size <= fixMax) {
+            out.write(fixPrefix | size);
+        }
+        else if (size <= 0xffff) {
+            out.write(prefix16);
+            out.write(size >>> 8);
+            out.write(size);
+        }
+        else {
+            out.write(prefix32);
+            writeInt(out, size);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int len = bytes.length;
+        if (len <= 31) {
+            out.write(0xa0 | len);
+        }
+        else if (len <= 0xff) {
+            out.write(0xd9);
+            out.write(len);
+        }
+        else if (len <= 0xffff) {
+            out.write(0xda);
+            out.write(len >>> 8);
+            out.write(len);
+        }
+        else {
+            out.write(0xdb);
+            writeInt(out, len);
+        }
+        out.write(bytes, 0, len);
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, long value) {
+        if ((value >= 0) && (value <= 0x7f)) {
+            out.write((int)value);
+        }
+        else if ((value < 0) && (value >= -32)) {
+            out.write((int)value);
+        }
+        else if ((value >= Integer.MIN_VALUE) && (value <= Integer.MAX_VALUE)) {
+            out.write(0xd2);
+            writeInt(out, (int)value);
+        }
+        else {
+            out.write(0xd3);
+            writeLong(out, value);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        writeInt(out, (int)(value >>> 32));
+        writeInt(out, (int)value);
+    }
+
+    private static JsonValue readValue(ByteBuffer in, int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("data nesting too deep");
+        }
+        int b = in.get() & 0xff;
+        if (b <= 0x7f) {
+            return Json.createValue(b);
+        }
+        else if (b >= 0xe0) {
+            return Json.createValue((int)(byte)b);
+        }
+        else if ((b & 0xf0) == 0x80) {
+            return readMap(in, b & 0x0f, depth);
+        }
+        else if ((b & 0xf0) == 0x90) {
+            return readArray(in, b & 0x0f, depth);
+        }
+        else if ((b & 0xe0) == 0xa0) {
+            return readString(in, b & 0x1f);
+        }
+        switch(b) {
+            case 0xc0:
+                return JsonValue.NULL;
+            case 0xc2:
+                return JsonValue.FALSE;
+            case 0xc3:
+                return JsonValue.TRUE;
+            case 0xca:
+                return Json.createValue((double)Float.intBitsToFloat(in.getInt()));
+            case 0xcb:
+                return Json.createValue(Double.longBitsToDouble(in.getLong()));
+            case 0xcc:
+                return Json.createValue(in.get() & 0xff);
+            case 0xcd:
+                return Json.createValue(in.getShort() & 0xffff);
+            case 0xce:
+                return Json.createValue(in.getInt() & 0xffffffffL);
+            case 0xcf:
+                long ulong = in.getLong();
+                if (ulong < 0) {
+                    throw new IllegalArgumentException("unsigned integer out of range");
+                }
+                return Json.createValue(ulong);
+            case 0xd0:
+                return Json.createValue((int)in.get());
+            case 0xd1:
+                return Json.createValue((int)in.getShort());
+            case 0xd2:
+                return Json.createValue(in.getInt());
+            case 0xd3:
+                return Json.createValue(in.getLong());
+            case 0xd9:
+                return readString(in, in.get() & 0xff);
+            case 0xda:
+                return readString(in, in.getShort() & 0xffff);
+            case 0xdb:
+                return readString(in, readLength(in));
+            case 0xdc:
+                return readArray(in, in.getShort() & 0xffff, depth);
+            case 0xdd:
+                return readArray(in, readLength(in), depth);
+            case 0xde:
+                return readMap(in, in.getShort() & 0xffff, depth);
+            case 0xdf:
+                return readMap(in, readLength(in), depth);
+            default:
+                throw new IllegalArgumentException("unsupported type: " + b);
+        }
+    }
+
+    private static int readLength(ByteBuffer in) {
+        int len = in.getInt();
+        if ((len < 0) || (len > in.remaining())) {
+            throw new IllegalArgumentException("invalid length: " + len);
+        }
+        return len;
+    }
+
+    private static JsonValue readString(ByteBuffer in, int len) {
+        if (len > in.remaining()) {
+            throw new IllegalArgumentException("invalid string length: " + len);
+        }
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+            in.position(in.position() + len);
+        }
+        else {
+            byte[] bytes = new byte[len];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return Json.createValue(value);
+    }
+
+    private static JsonValue readArray(ByteBuffer in, int size, int depth) {
+        JsonArrayBuilder arr = Json.createArrayBuilder();
+        for (int i = 0; i < size; i++) {
+            arr.add(readValue(in, depth + 1));
+        }
+        return arr.build();
+    }
+
+    private static JsonValue readMap(ByteBuffer in, int size, int depth) {
+        JsonObjectBuilder obj = Json.createObjectBuilder();
+        for (int i = 0; i < size; i++) {
+            JsonValue key = readValue(in, depth + 1);
+            if (!(key instanceof JsonString)) {
+                throw new IllegalArgumentException("map keys must be strings");
+            }
+            obj.add(((JsonString)key).getString(), readValue(in, depth + 1));
+        }
+        return obj.build();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.List;
+
+
+/**
+ * Service provider interface for exchanging packets between application nodes.
+ * A broker lets every node know which users are connected to the other nodes
+ * and delivers packets to users connected to a remote node.
+ *
+ * A broker implementation is selected in communication configuration, see
+ * ConnectedClients.
+ *
+ * @author boto
+ * Date of creation Dec 8, 2017
+ */
+public interface PacketBroker {
+
+    /**
+     * Start the broker.
+     *
+     * @param nodeId    ID of this node, it must be unique in the cluster
+     * @param listener  Listener receiving the messages of other nodes
+     */
+    void start(String nodeId, PacketBrokerListener listener);
+
+    /**
+     * Stop the broker, all connections to other nodes are closed.
+     */
+    void stop();
+
+    /**
+     * Let all other nodes know that a user went online or offline on this node.
+     *
+     * @param userId    User ID
+     * @param online    Pass true if the user went online, false if offline.
+     */
+    void publishPresence(Long userId, boolean online);
+
+    /**
+     * Deliver a packet to users connected to given node.
+     *
+     * @param nodeId    ID of the node the users are connected to
+     * @param userIds   Recipient user IDs
+     * @param frame     Packet in JSON format
+     * @return          Return true if the packet was queued for the node.
+     */
+    boolean deliver(String nodeId, List<Long> userIds, String frame);
+}
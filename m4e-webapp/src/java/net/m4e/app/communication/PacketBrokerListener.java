@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.Collection;
+import java.util.List;
+
+
+/**
+ * Listener for messages received by a packet broker from other nodes.
+ * The methods are called on broker threads.
+ *
+ * @author boto
+ * Date of creation Dec 8, 2017
+ */
+public interface PacketBrokerListener {
+
+    /**
+     * Get the IDs of all users connected to this node. The broker sends them to
+     * another node whenever a connection to it is established.
+     *
+     * @return User IDs
+     */
+    Collection<Long> getLocalUserIds();
+
+    /**
+     * A node sent the complete list of users connected to it.
+     *
+     * @param nodeId    ID of the other node
+     * @param userIds   IDs of users connected to the other node
+     */
+    void onNodeUp(String nodeId, Collection<Long> userIds);
+
+    /**
+     * A node is not reachable anymore, all its users are considered to be offline.
+     *
+     * @param nodeId    ID of the other node
+     */
+    void onNodeDown(String nodeId);
+
+    /**
+     * A user went online or offline on another node.
+     *
+     * @param nodeId    ID of the other node
+     * @param userId    User ID
+     * @param online    True if the user went online, false if offline.
+     */
+    void onPresence(String nodeId, Long userId, boolean online);
+
+    /**
+     * A packet was sent by another node to users connected to this node.
+     *
+     * @param nodeId    ID of the sending node
+     * @param userIds   Recipient user IDs
+     * @param frame     Packet in JSON format
+     * @param sendTime  Time stamp (milliseconds since epoch) when the packet was handed to the sending broker
+     */
+    void onDeliver(String nodeId, List<Long> userIds, String frame, long sendTime);
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A packet ready for sending. The packet is encoded on first use and the encoded
+ * frame is then shared by all recipient sessions, so a broadcast to many users
+ * serializes the packet only once per protocol format (JSON or binary).
+ *
+ * NOTE: The packet must not be modified after its frame was created.
+ *
+ * @author boto
+ * Date of creation Dec 5, 2017
+ */
+public class PacketFrame {
+
+    private final Packet packet;
+
+    private volatile String text;
+
+    private volatile byte[] binary;
+
+    /**
+     * Create a frame for given packet.
+     *
+     * @param packet    Packet to send
+     */
+    public PacketFrame(Packet packet) {
+        this.packet = packet;
+    }
+
+    /**
+     * Create a frame out of an already encoded packet.
+     *
+     * @param text      Packet in JSON format
+     */
+    public PacketFrame(String text) {
+        this.packet = null;
+        this.text = text;
+    }
+
+    /**
+     * Get the packet, it is null if the frame was created out of an encoded packet.
+     *
+     * @return The packet
+     */
+    public Packet getPacket() {
+        return packet;
+    }
+
+    /**
+     * Get the frame in JSON format. The packet is encoded only on first call.
+     *
+     * @return JSON string representing the packet
+     */
+    public String getText() {
+        String encoded = text;
+        if (encoded == null) {
+            // the frame may be drained by several session queues at the same time
+            synchronized(this) {
+                encoded = text;
+                if (encoded == null) {
+                    encoded = packet.toJSON();
+                    text = encoded;
+                }
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Check if the frame can be sent in binary format. Frames created out of an
+     * encoded JSON string are available only in JSON format.
+     *
+     * @return Return true if a binary frame is available.
+     */
+    public boolean hasBinary() {
+        return (packet != null) || (binary != null);
+    }
+
+    /**
+     * Get the frame in binary format, see PacketBinaryCodec. The packet is encoded
+     * only on first call, every call returns a new buffer sharing the encoded bytes.
+     * Call it only if hasBinary returns true.
+     *
+     * @return Binary frame
+     */
+    public ByteBuffer getBinary() {
+        byte[] encoded = binary;
+        if (encoded == null) {
+            synchronized(this) {
+                encoded = binary;
+                if (encoded == null) {
+                    encoded = PacketBinaryCodec.encode(packet);
+                    binary = encoded;
+                }
+            }
+        }
+        return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Directory of users connected to other application nodes. It is maintained
+ * by presence messages received through the packet broker.
+ *
+ * @author boto
+ * Date of creation Dec 8, 2017
+ */
+public class PresenceDirectory {
+
+    /**
+     * User ID -> IDs of remote nodes the user is connected to
+     */
+    private final ConcurrentMap<Long, Set<String>> userNodes = new ConcurrentHashMap<>();
+
+    public PresenceDirectory() {}
+
+    /**
+     * Update the presence of a user on a remote node.
+     *
+     * @param nodeId    Remote node ID
+     * @param userId    User ID
+     * @param online    True if the user is online on given node.
+     */
+    public void setPresence(String nodeId, Long userId, boolean online) {
+        if (online) {
+            // the set is changed within compute, so it cannot be removed from map concurrently
+            userNodes.compute(userId, (id, nodes) -> {
+                Set<String> usernodes = (nodes != null) ? nodes : ConcurrentHashMap.newKeySet();
+                usernodes.add(nodeId);
+                return usernodes;
+            });
+        }
+        else {
+            userNodes.computeIfPresent(userId, (id, nodes) -> {
+                nodes.remove(nodeId);
+                return nodes.isEmpty() ? null : nodes;
+            });
+        }
+    }
+
+    /**
+     * Remove all users of a node, e.g. if it is not reachable anymore.
+     *
+     * @param nodeId    Remote node ID
+     */
+    public void removeNode(String nodeId) {
+        userNodes.keySet().forEach((userid) -> setPresence(nodeId, userid, false));
+    }
+
+    /**
+     * Get the remote nodes a user is connected to.
+     *
+     * @param userId    User ID
+     * @return          Set of node IDs, it is empty if the user is not connected to any remote node.
+     */
+    public Set<String> getNodes(Long userId) {
+        Set<String> nodes = userNodes.get(userId);
+        return (nodes != null) ? nodes : Collections.emptySet();
+    }
+
+    /**
+     * Check if a user is connected to any remote node.
+     *
+     * @param userId    User ID
+     * @return          Return true if the user is connected to a remote node.
+     */
+    public boolean isOnline(Long userId) {
+        return userNodes.containsKey(userId);
+    }
+}
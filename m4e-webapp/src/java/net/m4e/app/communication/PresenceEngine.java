@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.websocket.Session;
+import net.m4e.app.notification.NotificationScheduler;
+import net.m4e.app.user.UserEntity;
+import net.m4e.app.user.Users;
+import net.m4e.system.core.AppConfiguration;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Presence engine announcing the online status of users to their relatives.
+ *
+ * Going offline is announced only after a grace period, if the user reconnects
+ * within that period then nothing is announced at all. All status changes are
+ * collected and sent out periodically (every tick), every recipient gets one
+ * packet per tick. If a recipient gets only one change then the packet is the
+ * well known "onlinestatus" notification, otherwise an "onlinestatusbatch"
+ * notification containing all changes is sent.
+ *
+ * Right after connecting a client gets an "onlinestatussnapshot" notification
+ * with the online status of all its relatives, later only the changes follow.
+ * A client which missed changes because they were shed under load gets a new
+ * snapshot, see NotificationScheduler.setResyncHandler.
+ *
+ * @author boto
+ * Date of creation Dec 14, 2017
+ */
+@ApplicationScoped
+public class PresenceEngine {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "PresenceEngine";
+
+    /**
+     * Communication config key for the grace period in seconds before going offline is announced
+     */
+    public final static String CFG_PRESENCE_OFFLINE_GRACE = "presence.offlineGrace";
+
+    /**
+     * Communication config key for the interval in milliseconds the status changes are sent out
+     */
+    public final static String CFG_PRESENCE_TICK = "presence.tick";
+
+    /**
+     * Notification type of a single status change
+     */
+    public final static String TYPE_ONLINE_STATUS = "onlinestatus";
+
+    /**
+     * Notification type of several status changes
+     */
+    public final static String TYPE_ONLINE_STATUS_BATCH = "onlinestatusbatch";
+
+    /**
+     * Notification type of the online status of all relatives
+     */
+    public final static String TYPE_ONLINE_STATUS_SNAPSHOT = "onlinestatussnapshot";
+
+    @Inject
+    ConnectedClients connections;
+
+    /**
+     * Status notifications are sent with low priority
+     */
+    @Inject
+    NotificationScheduler notificationScheduler;
+
+    /**
+     * Entity manager needed for finding user relatives.
+     */
+    @PersistenceContext(unitName = net.m4e.system.core.AppConfiguration.PERSITENCE_UNIT_NAME)
+    private EntityManager entityManager;
+
+    @Resource(lookup = "java:comp/DefaultManagedScheduledExecutorService")
+    ManagedScheduledExecutorService scheduler;
+
+    /**
+     * A status change waiting for being announced
+     */
+    private static class Transition {
+
+        private final UserEntity user;
+
+        private final boolean online;
+
+        private final long dueTime;
+
+        private Transition(UserEntity user, boolean online, long dueTime) {
+            this.user = user;
+            this.online = online;
+            this.dueTime = dueTime;
+        }
+    }
+
+    private final ConcurrentMap<Long, Transition> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Users announced as online, all other users are considered as offline
+     */
+    private final ConcurrentMap<Long, Boolean> announcedOnline = new ConcurrentHashMap<>();
+
+    private final LongAdder countTransitions = new LongAdder();
+
+    private final LongAdder countSuppressed = new LongAdder();
+
+    private final LongAdder countAnnounced = new LongAdder();
+
+    private final LongAdder countPackets = new LongAdder();
+
+    private final LongAdder countSnapshots = new LongAdder();
+
+    private long offlineGrace = 10000L;
+
+    private ScheduledFuture<?> ticker;
+
+    /**
+     * Setup the engine and start sending out status changes.
+     */
+    @PostConstruct
+    public void presenceEngineInit() {
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        offlineGrace = Math.max(0L, cfg.getCommunicationConfigValue(CFG_PRESENCE_OFFLINE_GRACE, 10L) * 1000L);
+        long tick = Math.max(10L, cfg.getCommunicationConfigValue(CFG_PRESENCE_TICK, 1000L));
+        ticker = scheduler.scheduleWithFixedDelay(this::tick, tick, tick, TimeUnit.MILLISECONDS);
+        // recipients missing status changes because of load get a fresh snapshot
+        notificationScheduler.setResyncHandler(TYPE_ONLINE_STATUS, this::resync);
+        notificationScheduler.setResyncHandler(TYPE_ONLINE_STATUS_BATCH, this::resync);
+        Log.info(TAG, "Presence offline grace period: " + offlineGrace + " ms, tick: " + tick + " ms");
+    }
+
+    /**
+     * Stop sending out status changes.
+     */
+    @PreDestroy
+    public void presenceEngineShutdown() {
+        if (ticker != null) {
+            ticker.cancel(false);
+        }
+    }
+
+    /**
+     * A user went online. It is announced on next tick, unless the user was still
+     * announced as online.
+     *
+     * @param user  The user
+     */
+    public void setOnline(UserEntity user) {
+        countTransitions.increment();
+        pending.compute(user.getId(), (id, prev) -> {
+            if ((prev != null) && !prev.online && announcedOnline.containsKey(id)) {
+                // the user reconnected within the grace period, nothing to announce
+                countSuppressed.increment();
+                return null;
+            }
+            return new Transition(user, true, System.currentTimeMillis());
+        });
+    }
+
+    /**
+     * A user went offline. It is announced after the grace period.
+     *
+     * @param user  The user
+     */
+    public void setOffline(UserEntity user) {
+        countTransitions.increment();
+        pending.put(user.getId(), new Transition(user, false, System.currentTimeMillis() + offlineGrace));
+    }
+
+    /**
+     * Send the online status of all relatives of a user to given session. The
+     * snapshot is a notification containing the IDs of online and offline relatives.
+     *
+     * @param user      The user
+     * @param session   WebSocket session of the user
+     */
+    public void sendSnapshot(UserEntity user, Session session) {
+        Packet packet = createSnapshot(user);
+        countSnapshots.increment();
+        connections.sendFrame(session, new PacketFrame(packet));
+    }
+
+    /**
+     * Send a snapshot to users which missed status changes, e.g. because the
+     * changes were shed under load.
+     *
+     * @param userIds   IDs of users to resync
+     */
+    private void resync(Set<Long> userIds) {
+        Users users = new Users(entityManager);
+        for (Long id: userIds) {
+            UserEntity user = connections.isUserOnline(id) ? users.findUser(id) : null;
+            if (user != null) {
+                countSnapshots.increment();
+                connections.sendPacket(createSnapshot(user), Collections.singletonList(id));
+            }
+        }
+    }
+
+    /**
+     * Create the snapshot notification of a user's relatives.
+     */
+    private Packet createSnapshot(UserEntity user) {
+        JsonArrayBuilder online = Json.createArrayBuilder();
+        JsonArrayBuilder offline = Json.createArrayBuilder();
+        Users users = new Users(entityManager);
+        for (Long id: users.getUserRelatives(user)) {
+            if (Objects.equals(id, user.getId())) {
+                continue;
+            }
+            if (announcedOnline.containsKey(id) || connections.isUserOnline(id)) {
+                online.add(id.toString());
+            }
+            else {
+                offline.add(id.toString());
+            }
+        }
+
+        Packet packet = new Packet();
+        packet.setChannel(Packet.CHANNEL_NOTIFY);
+        packet.setSourceId("");
+        packet.setSource("");
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        json.add("type", TYPE_ONLINE_STATUS_SNAPSHOT)
+            .add("subject", "Event Members")
+            .add("text", "Online status of event members.");
+        json.add("data", Json.createObjectBuilder()
+                            .add("online", online)
+                            .add("offline", offline));
+        packet.setData(json.build());
+        return packet;
+    }
+
+    /**
+     * Get the count of sent presence snapshots.
+     *
+     * @return Count of snapshots
+     */
+    public long getCountSnapshots() {
+        return countSnapshots.sum();
+    }
+
+    /**
+     * Get the total count of reported status changes.
+     *
+     * @return Count of status changes
+     */
+    public long getCountTransitions() {
+        return countTransitions.sum();
+    }
+
+    /**
+     * Get the count of status changes which were not announced, e.g. because of reconnecting
+     * within the grace period.
+     *
+     * @return Count of suppressed status changes
+     */
+    public long getCountSuppressed() {
+        return countSuppressed.sum();
+    }
+
+    /**
+     * Get the count of announced status changes.
+     *
+     * @return Count of announced status changes
+     */
+    public long getCountAnnounced() {
+        return countAnnounced.sum();
+    }
+
+    /**
+     * Get the count of sent presence packets, a packet may have many recipients.
+     *
+     * @return Count of presence packets
+     */
+    public long getCountPackets() {
+        return countPackets.sum();
+    }
+
+    /**
+     * Announce all due status changes.
+     */
+    private void tick() {
+        try {
+            List<Transition> changes = collectChanges();
+            if (!changes.isEmpty()) {
+                announce(changes);
+            }
+        }
+        catch(Exception ex) {
+            Log.warning(TAG, "problem occurred while announcing presence changes, reason: " + ex.getLocalizedMessage());
+        }
+    }
+
+    private List<Transition> collectChanges() {
+        long now = System.currentTimeMillis();
+        List<Transition> changes = new ArrayList<>();
+        pending.forEach((id, transition) -> {
+            if ((transition.dueTime > now) || !pending.remove(id, transition)) {
+                return;
+            }
+            boolean wasonline = announcedOnline.containsKey(id);
+            // the user may be online on another node
+            boolean online = transition.online || connections.isUserOnline(id);
+            if (online == wasonline) {
+                countSuppressed.increment();
+                return;
+            }
+            if (online) {
+                announcedOnline.put(id, Boolean.TRUE);
+            }
+            else {
+                announcedOnline.remove(id);
+            }
+            changes.add(new Transition(transition.user, online, now));
+        });
+        return changes;
+    }
+
+    private void announce(List<Transition> changes) {
+        countAnnounced.add(changes.size());
+
+        // collect the changes for every recipient
+        Users users = new Users(entityManager);
+        Map<Long, List<Transition>> recipientchanges = new HashMap<>();
+        for (Transition change: changes) {
+            for (Long recipient: users.getUserRelatives(change.user)) {
+                recipientchanges.computeIfAbsent(recipient, (r) -> new ArrayList<>()).add(change);
+            }
+        }
+
+        // recipients getting the same changes share one packet
+        Map<List<Transition>, List<Long>> packets = new LinkedHashMap<>();
+        recipientchanges.forEach((recipient, list) -> {
+            packets.computeIfAbsent(list, (l) -> new ArrayList<>()).add(recipient);
+        });
+        packets.forEach((list, recipients) -> {
+            Packet packet = (list.size() == 1) ? createStatusPacket(list.get(0)) : createBatchPacket(list);
+            countPackets.increment();
+            notificationScheduler.submit(packet, recipients);
+        });
+    }
+
+    private Packet createStatusPacket(Transition change) {
+        Packet packet = new Packet();
+        packet.setChannel(Packet.CHANNEL_NOTIFY);
+        packet.setSourceId(change.user.getId().toString());
+        packet.setSource(change.user.getName());
+
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        json.add("type", TYPE_ONLINE_STATUS)
+            .add("subject", "Event Member")
+            .add("text", "User went " + (change.online ? "online" : "offline") + ".");
+        JsonObjectBuilder data = Json.createObjectBuilder();
+        data.add("onlineStatus", (change.online ? "online" : "offline"));
+        json.add("data", data);
+        packet.setData(json.build());
+        return packet;
+    }
+
+    private Packet createBatchPacket(List<Transition> changes) {
+        Packet packet = new Packet();
+        packet.setChannel(Packet.CHANNEL_NOTIFY);
+        packet.setSourceId("");
+        packet.setSource("");
+
+        JsonArrayBuilder users = Json.createArrayBuilder();
+        changes.forEach((change) -> {
+            users.add(Json.createObjectBuilder()
+                .add("userId", change.user.getId().toString())
+                .add("userName", (change.user.getName() != null) ? change.user.getName() : "")
+                .add("onlineStatus", (change.online ? "online" : "offline")));
+        });
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        json.add("type", TYPE_ONLINE_STATUS_BATCH)
+            .add("subject", "Event Members")
+            .add("text", changes.size() + " users changed their online status.");
+        json.add("data", Json.createObjectBuilder().add("users", users));
+        packet.setData(json.build());
+        return packet;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Lock-free token bucket implemented as generic cell rate algorithm (GCRA).
+ * The whole bucket state is one time stamp, the theoretical arrival time of the
+ * next conforming frame, which is updated by compare-and-set.
+ *
+ * A bucket allows 'burst' frames at once and refills with 'rate' frames per second.
+ *
+ * @author boto
+ * Date of creation Dec 18, 2017
+ */
+public class RateBucket {
+
+    /**
+     * Parameters of a bucket, they can be shared by many buckets
+     */
+    public static class Limit {
+
+        private final long emissionInterval;
+
+        private final long burstTolerance;
+
+        private final double rate;
+
+        private final int burst;
+
+        /**
+         * Create bucket parameters.
+         *
+         * @param rate      Refill rate in frames per second, 0 or less means unlimited
+         * @param burst     Count of frames allowed at once
+         */
+        public Limit(double rate, int burst) {
+            this.rate = rate;
+            this.burst = Math.max(1, burst);
+            this.emissionInterval = (rate > 0.0) ? (long)(1000000000.0 / rate) : 0L;
+            this.burstTolerance = emissionInterval * (this.burst - 1);
+        }
+
+        /**
+         * Is the limit switched off?
+         *
+         * @return Return true if any rate is allowed.
+         */
+        public boolean isUnlimited() {
+            return emissionInterval == 0L;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+    }
+
+    private final Limit limit;
+
+    /**
+     * Theoretical arrival time in nanoseconds
+     */
+    private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Create a bucket which is full.
+     *
+     * @param limit     Bucket parameters
+     */
+    public RateBucket(Limit limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Try to take one token out of the bucket.
+     *
+     * @return Return true if the frame conforms to the limit, false if it exceeds the limit.
+     */
+    public boolean tryAcquire() {
+        if (limit.isUnlimited()) {
+            return true;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long current = tat.get();
+            long base = ((current == Long.MIN_VALUE) || (current - now < 0L)) ? now : current;
+            if (base - now > limit.burstTolerance) {
+                return false;
+            }
+            if (tat.compareAndSet(current, base + limit.emissionInterval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a token which was taken by tryAcquire, e.g. when the frame was
+     * rejected by another bucket.
+     */
+    public void release() {
+        if (limit.isUnlimited()) {
+            return;
+        }
+        while (true) {
+            long current = tat.get();
+            if ((current == Long.MIN_VALUE) || tat.compareAndSet(current, current - limit.emissionInterval)) {
+                return;
+            }
+        }
+    }
+}
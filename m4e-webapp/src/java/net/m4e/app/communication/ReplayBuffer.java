@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Bounded buffer of the last packets sent to a user. Every packet gets the next
+ * sequence number of the user, a client reconnecting with its last seen sequence
+ * number gets the missed packets out of this buffer. The buffer is kept for a
+ * while after the user's last session was closed, see ConnectedClients.
+ *
+ * @author boto
+ * Date of creation Dec 20, 2017
+ */
+public class ReplayBuffer {
+
+    private final PacketFrame[] frames;
+
+    private final long[] sequences;
+
+    /**
+     * Sequence number of the last appended frame
+     */
+    private long lastSeq = 0L;
+
+    /**
+     * Count of frames in buffer
+     */
+    private int count = 0;
+
+    /**
+     * Time the last session of the user was closed, 0 as long as the user is connected.
+     * It is not guarded by the buffer's monitor, the monitor is held by senders while
+     * they send a frame to the user's sessions (see ConnectedClients).
+     */
+    private volatile long releaseTime = 0L;
+
+    /**
+     * Create a replay buffer.
+     *
+     * @param capacity  Maximal count of buffered frames
+     */
+    public ReplayBuffer(int capacity) {
+        frames = new PacketFrame[Math.max(1, capacity)];
+        sequences = new long[frames.length];
+    }
+
+    /**
+     * Append a frame to buffer, the oldest frame is dropped if the buffer is full.
+     *
+     * @param frame     Frame sent to the user
+     * @return          Sequence number of the frame
+     */
+    public synchronized long append(PacketFrame frame) {
+        lastSeq++;
+        int index = (int)(lastSeq % frames.length);
+        frames[index] = frame;
+        sequences[index] = lastSeq;
+        count = Math.min(count + 1, frames.length);
+        return lastSeq;
+    }
+
+    /**
+     * Get the sequence number of the last sent frame.
+     *
+     * @return Last sequence number, 0 if nothing was sent yet
+     */
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Get all frames following the given sequence number.
+     *
+     * @param seq   Last sequence number seen by the client
+     * @return      Frames with their sequence numbers, or null if some of the missed frames are not in buffer anymore.
+     */
+    public synchronized List<PacketFrame> getSince(long seq) {
+        if ((seq < 0L) || (seq > lastSeq) || (lastSeq - seq > count)) {
+            return null;
+        }
+        List<PacketFrame> missed = new ArrayList<>((int)(lastSeq - seq));
+        for (long s = seq + 1; s <= lastSeq; s++) {
+            int index = (int)(s % frames.length);
+            missed.add(new SequencedFrame(frames[index], sequences[index]));
+        }
+        return missed;
+    }
+
+    /**
+     * The user got a new session.
+     */
+    void acquire() {
+        releaseTime = 0L;
+    }
+
+    /**
+     * The last session of the user was closed.
+     *
+     * @param now   Current time
+     */
+    void release(long now) {
+        releaseTime = now;
+    }
+
+    /**
+     * Check if the buffer is not needed anymore.
+     *
+     * @param now           Current time
+     * @param retention     Time a buffer is kept after its user's last session was closed
+     * @return              Return true if the buffer can be dropped.
+     */
+    boolean isExpired(long now, long retention) {
+        return (releaseTime != 0L) && ((now - releaseTime) > retention);
+    }
+}
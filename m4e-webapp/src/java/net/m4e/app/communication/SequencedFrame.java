@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+
+/**
+ * A frame carrying the sequence number of its recipient user. The encoded JSON
+ * text of the shared frame is reused, the field "seq" is spliced into it, so the
+ * packet is not encoded again for every recipient.
+ *
+ * Sequenced frames are available in JSON format only.
+ *
+ * @author boto
+ * Date of creation Dec 20, 2017
+ */
+public class SequencedFrame extends PacketFrame {
+
+    private final PacketFrame frame;
+
+    private final long seq;
+
+    private volatile String text;
+
+    /**
+     * Create a sequenced frame.
+     *
+     * @param frame     Shared frame
+     * @param seq       Sequence number
+     */
+    public SequencedFrame(PacketFrame frame, long seq) {
+        super(frame.getPacket());
+        this.frame = frame;
+        this.seq = seq;
+    }
+
+    /**
+     * Get the sequence number.
+     *
+     * @return Sequence number
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    @Override
+    public String getText() {
+        String encoded = text;
+        if (encoded == null) {
+            // a packet is always a JSON object, so it starts with '{'
+            String shared = frame.getText();
+            encoded = "{\"seq\":" + seq + (shared.length() > 2 ? "," : "") + shared.substring(1);
+            text = encoded;
+        }
+        return encoded;
+    }
+
+    @Override
+    public boolean hasBinary() {
+        return false;
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Packet broker connecting the nodes of a cluster by plain TCP connections.
+ * Every node listens on a port and connects to all configured peers, so the
+ * nodes build a full mesh. A connection is used in one direction only: a node
+ * sends its messages on its outgoing connections and reads the messages of
+ * other nodes from its incoming connections.
+ *
+ * All nodes can run on the same machine using loopback addresses and different
+ * ports, this is handy for testing the multi-node delivery and its latency.
+ *
+ * NOTE: The connections are neither encrypted nor authenticated beyond a shared
+ *       secret, bind the broker to a private network interface. The broker does
+ *       not start without a secret.
+ *
+ * @author boto
+ * Date of creation Dec 8, 2017
+ */
+public class TcpPacketBroker implements PacketBroker {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "TcpPacketBroker";
+
+    /**
+     * Message types
+     */
+    private final static byte MSG_HELLO     = 1;
+    private final static byte MSG_HELLO_ACK = 2;
+    private final static byte MSG_SNAPSHOT  = 3;
+    private final static byte MSG_PRESENCE  = 4;
+    private final static byte MSG_DELIVER   = 5;
+
+    /**
+     * Sanity limits for incoming messages
+     */
+    private final static int MAX_USER_COUNT = 1000000;
+    private final static int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Delay between reconnection attempts to a peer
+     */
+    private final static long RECONNECT_DELAY_MS = 2000L;
+
+    /**
+     * Maximal time for reading the handshake of a connection
+     */
+    private final static int HANDSHAKE_TIMEOUT_MS = 5000;
+
+    private final InetSocketAddress listenAddress;
+
+    private final List<InetSocketAddress> peers;
+
+    private final byte[] secret;
+
+    private final int queueSize;
+
+    private final ThreadFactory threadFactory;
+
+    private final List<PeerLink> links = new CopyOnWriteArrayList<>();
+
+    private final List<Socket> incomingSockets = new CopyOnWriteArrayList<>();
+
+    private String nodeId;
+
+    private PacketBrokerListener listener;
+
+    private ServerSocket serverSocket;
+
+    private volatile boolean running = false;
+
+    /**
+     * Create the broker.
+     *
+     * @param listenAddress Address to listen for connections of other nodes
+     * @param peers         Addresses of all other nodes
+     * @param secret        Secret shared by all nodes, it must not be empty
+     * @param queueSize     Maximal count of messages waiting for being sent to a node
+     * @param threadFactory Factory used for creating the broker threads
+     * @throws IllegalArgumentException Throws an exception if the secret is empty.
+     */
+    public TcpPacketBroker(InetSocketAddress listenAddress, List<InetSocketAddress> peers, String secret, int queueSize, ThreadFactory threadFactory) {
+        if ((secret == null) || secret.isEmpty()) {
+            throw new IllegalArgumentException("Missing cluster secret");
+        }
+        this.listenAddress = listenAddress;
+        this.peers = peers;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.queueSize = queueSize;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Given a comma separated list of host:port entries, create the list of addresses.
+     *
+     * @param addresses List of addresses
+     * @return          Socket addresses
+     */
+    public static List<InetSocketAddress> parseAddresses(String addresses) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (String address: addresses.split(",")) {
+            address = address.trim();
+            int sep = address.lastIndexOf(':');
+            if (sep < 1) {
+                if (!address.isEmpty()) {
+                    Log.warning(TAG, "invalid peer address: " + address);
+                }
+                continue;
+            }
+            try {
+                result.add(new InetSocketAddress(address.substring(0, sep), Integer.parseInt(address.substring(sep + 1))));
+            }
+            catch(IllegalArgumentException ex) {
+                Log.warning(TAG, "invalid peer address: " + address);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void start(String nodeId, PacketBrokerListener listener) {
+        this.nodeId = nodeId;
+        this.listener = listener;
+        running = true;
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(listenAddress);
+        }
+        catch(IOException ex) {
+            Log.error(TAG, "could not listen on " + listenAddress + ", reason: " + ex.getLocalizedMessage());
+            return;
+        }
+        startThread(this::acceptConnections);
+        for (InetSocketAddress peer: peers) {
+            PeerLink link = new PeerLink(peer);
+            links.add(link);
+            startThread(link::run);
+        }
+        Log.info(TAG, "node " + nodeId + " listening on " + listenAddress + ", peers: " + peers.size());
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        }
+        catch(IOException ex) {}
+        links.forEach(PeerLink::close);
+        incomingSockets.forEach((socket) -> {
+            try {
+                socket.close();
+            }
+            catch(IOException ex) {}
+        });
+    }
+
+    @Override
+    public void publishPresence(Long userId, boolean online) {
+        for (PeerLink link: links) {
+            link.send((out) -> {
+                out.writeByte(MSG_PRESENCE);
+                out.writeLong(userId);
+                out.writeBoolean(online);
+            });
+        }
+    }
+
+    @Override
+    public boolean deliver(String nodeId, List<Long> userIds, String frame) {
+        long sendtime = System.currentTimeMillis();
+        byte[] framebytes = frame.getBytes(StandardCharsets.UTF_8);
+        for (PeerLink link: links) {
+            if (nodeId.equals(link.remoteNodeId)) {
+                return link.send((out) -> {
+                    out.writeByte(MSG_DELIVER);
+                    out.writeLong(sendtime);
+                    writeUserIds(out, userIds);
+                    out.writeInt(framebytes.length);
+                    out.write(framebytes);
+                });
+            }
+        }
+        Log.debug(TAG, "no connection to node " + nodeId + ", cannot deliver packet");
+        return false;
+    }
+
+    /**
+     * Start a thread of the container's thread factory, the thread is used as it comes
+     * from the factory. The threads end when the broker is stopped and closes the sockets.
+     */
+    private void startThread(Runnable task) {
+        threadFactory.newThread(task).start();
+    }
+
+    private static void writeUserIds(DataOutputStream out, Collection<Long> userIds) throws IOException {
+        out.writeInt(userIds.size());
+        for (Long id: userIds) {
+            out.writeLong(id);
+        }
+    }
+
+    private static List<Long> readUserIds(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if ((count < 0) || (count > MAX_USER_COUNT)) {
+            throw new IOException("invalid user count: " + count);
+        }
+        List<Long> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(in.readLong());
+        }
+        return ids;
+    }
+
+    /**
+     * Accept incoming connections of other nodes.
+     */
+    private void acceptConnections() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                incomingSockets.add(socket);
+                startThread(() -> readConnection(socket));
+            }
+            catch(IOException ex) {
+                if (running) {
+                    Log.warning(TAG, "problem occurred while accepting node connection, reason: " + ex.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the messages of an incoming node connection.
+     *
+     * @param socket    Connection socket
+     */
+    private void readConnection(Socket socket) {
+        String remotenode = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            // a connection which does not complete its handshake must not keep this thread
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            if (in.readByte() != MSG_HELLO) {
+                throw new IOException("unexpected handshake");
+            }
+            String remoteid = in.readUTF();
+            byte[] remotesecret = new byte[in.readUnsignedShort()];
+            in.readFully(remotesecret);
+            if (!MessageDigest.isEqual(secret, remotesecret)) {
+                throw new IOException("invalid secret from node " + remoteid);
+            }
+            socket.setSoTimeout(0);
+            out.writeByte(MSG_HELLO_ACK);
+            out.writeUTF(nodeId);
+            out.flush();
+            remotenode = remoteid;
+            Log.info(TAG, "node " + remotenode + " connected");
+
+            while (running) {
+                byte type = in.readByte();
+                switch(type) {
+                    case MSG_SNAPSHOT:
+                        listener.onNodeUp(remotenode, readUserIds(in));
+                        break;
+                    case MSG_PRESENCE:
+                        long userid = in.readLong();
+                        listener.onPresence(remotenode, userid, in.readBoolean());
+                        break;
+                    case MSG_DELIVER:
+                        long sendtime = in.readLong();
+                        List<Long> userids = readUserIds(in);
+                        int len = in.readInt();
+                        if ((len < 0) || (len > MAX_FRAME_SIZE)) {
+                            throw new IOException("invalid frame size: " + len);
+                        }
+                        byte[] frame = new byte[len];
+                        in.readFully(frame);
+                        listener.onDeliver(remotenode, userids, new String(frame, StandardCharsets.UTF_8), sendtime);
+                        break;
+                    default:
+                        throw new IOException("unknown message type: " + type);
+                }
+            }
+        }
+        catch(IOException ex) {
+            if (running) {
+                Log.warning(TAG, "connection of node " + ((remotenode != null) ? remotenode : socket.getRemoteSocketAddress()) +
+                            " closed, reason: " + ex.getLocalizedMessage());
+            }
+        }
+        finally {
+            incomingSockets.remove(socket);
+            try {
+                socket.close();
+            }
+            catch(IOException ex) {}
+            if (remotenode != null) {
+                listener.onNodeDown(remotenode);
+            }
+        }
+    }
+
+    /**
+     * Writer of a single message
+     */
+    @FunctionalInterface
+    private interface MessageWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Outgoing connection to a peer node. The messages are queued and written
+     * by the link's own thread, a slow peer never blocks the caller.
+     */
+    private class PeerLink {
+
+        private final InetSocketAddress address;
+
+        private final BlockingQueue<MessageWriter> queue = new ArrayBlockingQueue<>(queueSize);
+
+        private volatile String remoteNodeId;
+
+        private volatile Socket socket;
+
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean send(MessageWriter message) {
+            // nothing is queued as long as the peer is not connected, it gets a snapshot on connecting
+            if (remoteNodeId == null) {
+                return false;
+            }
+            if (!queue.offer(message)) {
+                Log.warning(TAG, "message queue to node " + remoteNodeId + " is full, dropping message");
+                return false;
+            }
+            return true;
+        }
+
+        void close() {
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                }
+                catch(IOException ex) {}
+            }
+        }
+
+        void run() {
+            while (running) {
+                try (Socket s = new Socket()) {
+                    socket = s;
+                    s.connect(address, (int)RECONNECT_DELAY_MS);
+                    s.setTcpNoDelay(true);
+                    s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                    out.writeByte(MSG_HELLO);
+                    out.writeUTF(nodeId);
+                    out.writeShort(secret.length);
+                    out.write(secret);
+                    out.flush();
+                    if (in.readByte() != MSG_HELLO_ACK) {
+                        throw new IOException("unexpected handshake response");
+                    }
+                    String remoteid = in.readUTF();
+                    s.setSoTimeout(0);
+                    queue.clear();
+                    remoteNodeId = remoteid;
+                    Log.info(TAG, "connected to node " + remoteid + " at " + address);
+
+                    out.writeByte(MSG_SNAPSHOT);
+                    writeUserIds(out, listener.getLocalUserIds());
+                    out.flush();
+
+                    while (running) {
+                        MessageWriter message = queue.poll(RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+                        if (message == null) {
+                            continue;
+                        }
+                        // write all pending messages before flushing
+                        do {
+                            message.write(out);
+                            message = queue.poll();
+                        } while (message != null);
+                        out.flush();
+                    }
+                }
+                catch(IOException ex) {
+                    if (running && (remoteNodeId != null)) {
+                        Log.warning(TAG, "connection to node " + remoteNodeId + " lost, reason: " + ex.getLocalizedMessage());
+                    }
+                }
+                catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                finally {
+                    remoteNodeId = null;
+                    socket = null;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                }
+                catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
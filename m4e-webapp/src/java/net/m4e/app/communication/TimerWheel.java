@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Hashed timer wheel for a large count of coarse timeouts, such as per-session
+ * heartbeats. Scheduling and cancelling a timeout costs O(1), advancing the wheel
+ * costs O(timeouts in current slot). The wheel does not own a thread, the owner
+ * has to call advance once per tick.
+ *
+ * Timeouts can be scheduled from any thread, the tasks are run by the thread
+ * calling advance, so they must be short.
+ *
+ * @author boto
+ * Date of creation Dec 16, 2017
+ */
+public class TimerWheel {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "TimerWheel";
+
+    /**
+     * A scheduled task
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+
+        private long rounds;
+
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancel the timeout, its task will not run.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Check if the timeout was cancelled.
+         *
+         * @return Return true if the timeout was cancelled.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * A timeout waiting for being put into its slot
+     */
+    private static class Registration {
+
+        private final Timeout timeout;
+
+        private final long ticks;
+
+        private Registration(Timeout timeout, long ticks) {
+            this.timeout = timeout;
+            this.ticks = ticks;
+        }
+    }
+
+    private final long tickDuration;
+
+    private final List<Queue<Timeout>> slots;
+
+    private final Queue<Registration> registrations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Current slot, it is accessed only by the thread calling advance.
+     */
+    private int current = 0;
+
+    /**
+     * Create a timer wheel.
+     *
+     * @param slotCount     Count of slots, a timeout longer than slotCount * tickDuration takes several rounds
+     * @param tickDuration  Duration of one tick in milliseconds
+     */
+    public TimerWheel(int slotCount, long tickDuration) {
+        this.tickDuration = Math.max(1L, tickDuration);
+        int count = Math.max(1, slotCount);
+        this.slots = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            slots.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Get the duration of one tick.
+     *
+     * @return Tick duration in milliseconds
+     */
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * Schedule a task. The delay is rounded up to whole ticks.
+     *
+     * @param task      Task to run
+     * @param delay     Delay in milliseconds
+     * @return          Timeout which can be used for cancelling the task
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task);
+        long ticks = Math.max(1L, (delay + tickDuration - 1L) / tickDuration);
+        registrations.offer(new Registration(timeout, ticks));
+        return timeout;
+    }
+
+    /**
+     * Advance the wheel by one tick and run all expired tasks. This method
+     * must be called by one thread only.
+     */
+    public void advance() {
+        // put the new timeouts into their slots, the current slot is processed next
+        Registration reg;
+        while ((reg = registrations.poll()) != null) {
+            long ticks = reg.ticks - 1L;
+            reg.timeout.rounds = ticks / slots.size();
+            slots.get((int)((current + ticks) % slots.size())).offer(reg.timeout);
+        }
+
+        Iterator<Timeout> it = slots.get(current).iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            }
+            else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            }
+            else {
+                it.remove();
+                try {
+                    timeout.task.run();
+                }
+                catch(Exception ex) {
+                    Log.warning(TAG, "problem occurred while running a timeout task, reason: " + ex.getLocalizedMessage());
+                }
+            }
+        }
+        current = (current + 1) % slots.size();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ * 
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+
+/**
+ * Event fired when a user, who was not connected before, establishes its first
+ * WebSocket connection.
+ * 
+ * @author boto
+ * Date of creation Dec 22, 2017
+ */
+public class UserConnectedEvent {
+
+    /**
+     * ID of connected user
+     */
+    private final Long userId;
+
+    /**
+     * The WebSocket session ID.
+     */
+    private final String sessionId;
+
+    /**
+     * ID of the other node the user connected to, null if the user connected to this node.
+     */
+    private final String nodeId;
+
+    /**
+     * Create the event for a user connected to this node.
+     * 
+     * @param userId    User ID
+     * @param sessionId WebSocket session ID
+     */
+    public UserConnectedEvent(Long userId, String sessionId) {
+        this(userId, sessionId, null);
+    }
+
+    /**
+     * Create the event.
+     * 
+     * @param userId    User ID
+     * @param sessionId WebSocket session ID, null if the user connected to another node
+     * @param nodeId    ID of the other node the user connected to, null for this node
+     */
+    public UserConnectedEvent(Long userId, String sessionId, String nodeId) {
+        this.userId = userId;
+        this.sessionId = sessionId;
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Get the ID of connected user.
+     * 
+     * @return User ID
+     */
+    public Long getUserId() {
+        return userId;
+    }
+
+    /**
+     * Get the WebSocket session ID.
+     * 
+     * @return Session ID
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Get the ID of the other node the user connected to.
+     * 
+     * @return Node ID, or null if the user connected to this node.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+}
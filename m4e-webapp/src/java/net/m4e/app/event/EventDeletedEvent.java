@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.event;
+
+
+/**
+ * Event fired when an event was deleted permanently in a transaction. It is
+ * observed after a successful commit, e.g. for removing the chat history of
+ * the event, see ChatSystem.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class EventDeletedEvent {
+
+    /**
+     * ID of the deleted event
+     */
+    private final Long eventId;
+
+    /**
+     * Create the event.
+     *
+     * @param eventId   ID of the deleted event
+     */
+    public EventDeletedEvent(Long eventId) {
+        this.eventId = eventId;
+    }
+
+    /**
+     * Get the ID of the deleted event.
+     *
+     * @return Event ID
+     */
+    public Long getEventId() {
+        return eventId;
+    }
+}
@@ -11,10 +11,13 @@ package net.m4e.app.event;
 import java.io.Serializable;
 import java.util.Collection;
 import javax.persistence.CascadeType;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import net.m4e.app.resources.DocumentEntity;
@@ -29,6 +32,26 @@ import net.m4e.common.EntityWithPhoto;
  * Date of creation Aug 18, 2017
  */
 @Entity
+@NamedQueries({
+    /**
+     * Increment the change version of an event.
+     * Query parameter:
+     *   id  Event ID
+     */
+    @NamedQuery(
+      name = "EventEntity.incrementChangeVersion",
+      query = "UPDATE EventEntity e SET e.changeVersion = COALESCE(e.changeVersion, 0) + 1 WHERE e.id = :id"
+    ),
+    /**
+     * Get the change version of an event.
+     * Query parameter:
+     *   id  Event ID
+     */
+    @NamedQuery(
+      name = "EventEntity.findChangeVersion",
+      query = "SELECT e.changeVersion FROM EventEntity e WHERE e.id = :id"
+    )
+})
 public class EventEntity implements Serializable, EntityWithPhoto {
 
     /**
@@ -103,6 +126,14 @@ public class EventEntity implements Serializable, EntityWithPhoto {
      */
     private Long votingTimeBegin = 0L;
 
+    /**
+     * Change version, it is incremented on every change of event fields, members
+     * or locations which is notified to the event members. Databases created before
+     * version 0.9.0 get the column by the deployment updater Update_0_9_0.
+     */
+    @Column(nullable = false)
+    private Long changeVersion = 0L;
+
     /**
      * Create an event entity.
      */
@@ -297,6 +328,24 @@ public class EventEntity implements Serializable, EntityWithPhoto {
         this.votingTimeBegin = votingTimeBegin;
     }
 
+    /**
+     * Get the change version. Clients use it for detecting missed change notifications.
+     * 
+     * @return Change version
+     */
+    public Long getChangeVersion() {
+        return changeVersion;
+    }
+
+    /**
+     * Set the change version.
+     * 
+     * @param changeVersion Change version
+     */
+    public void setChangeVersion(Long changeVersion) {
+        this.changeVersion = changeVersion;
+    }
+
     /**
      * Get event members.
      * 
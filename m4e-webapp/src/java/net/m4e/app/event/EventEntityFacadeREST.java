@@ -35,6 +35,7 @@ import javax.ws.rs.core.MediaType;
 import net.m4e.app.auth.AuthRole;
 import net.m4e.app.auth.AuthorityConfig;
 import net.m4e.app.communication.ConnectedClients;
+import net.m4e.app.notification.NotificationOutboxEvent;
 import net.m4e.app.notification.NotifyUserRelativesEvent;
 import net.m4e.app.notification.NotifyUsersEvent;
 import net.m4e.common.ResponseResults;
@@ -78,6 +79,30 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
     @Inject
     Event<NotifyUserRelativesEvent> notifyUserRelativesEvent;
 
+    /**
+     * Event used for waking up the notification outbox relay
+     */
+    @Inject
+    Event<NotificationOutboxEvent> notificationOutboxEvent;
+
+    /**
+     * Event used for updating the membership index
+     */
+    @Inject
+    Event<EventMembershipChangedEvent> membershipChangedEvent;
+
+    /**
+     * Event used for removing the chat history of a deleted event
+     */
+    @Inject
+    Event<EventDeletedEvent> eventDeletedEvent;
+
+    /**
+     * Folds bursts of location notifications
+     */
+    @Inject
+    EventNotificationCoalescer coalescer;
+
     /**
      * Central place to hold all client connections
      */
@@ -136,7 +161,7 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
         }
 
         // notify all event members about its creation, usually only the event owner is the only member at this point
-        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent);
+        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent, entityManager, notificationOutboxEvent);
         notifications.sendNotifyEventChanged(EventNotifications.ChangeType.Add, AuthorityConfig.getInstance().getSessionUser(request), newevent);
 
         //! NOTE on successful entity creation the new event ID is sent back by results.data field.
@@ -177,6 +202,9 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
             return ResponseResults.toJSON(ResponseResults.STATUS_NOT_OK, "Failed to update event, insufficient privilege.", ResponseResults.CODE_FORBIDDEN, jsonresponse.build().toString());
         }
 
+        // keep the previous fields for the change notification
+        JsonObject previousfields = getEvents().exportEventFieldsJSON(event).build();
+
         // take over non-empty fields
         if ((reqentity.getName() != null) && !reqentity.getName().isEmpty()) {
             event.setName(reqentity.getName());
@@ -208,8 +236,8 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
         }
 
         // notify all event members about its change
-        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent);
-        notifications.sendNotifyEventChanged(EventNotifications.ChangeType.Modify, AuthorityConfig.getInstance().getSessionUser(request), event);
+        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent, entityManager, notificationOutboxEvent);
+        notifications.sendNotifyEventChanged(EventNotifications.ChangeType.Modify, AuthorityConfig.getInstance().getSessionUser(request), event, previousfields);
 
         return ResponseResults.toJSON(ResponseResults.STATUS_OK, "Event successfully updated", ResponseResults.CODE_OK, jsonresponse.build().toString());
     }
@@ -243,10 +271,10 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
         }
 
         // notify all event members about its removal, this must happen before we mark the event as deleted!
-        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent);
+        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent, entityManager, notificationOutboxEvent);
         notifications.sendNotifyEventChanged(EventNotifications.ChangeType.Remove, AuthorityConfig.getInstance().getSessionUser(request), event);
 
-        Events utils = new Events(entityManager);
+        Events utils = new Events(entityManager, membershipChangedEvent, eventDeletedEvent);
         try {
             utils.markEventAsDeleted(event);
         }
@@ -389,7 +417,7 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
         }
 
         // notify all event members about a new member
-        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent);
+        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent, entityManager, notificationOutboxEvent);
         notifications.sendNotifyMemberChanged(EventNotifications.ChangeType.Add, AuthorityConfig.getInstance().getSessionUser(request), event, memberId);
 
         getEvents().createEventJoiningMail(event, user2add);
@@ -442,7 +470,7 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
             return ResponseResults.toJSON(ResponseResults.STATUS_NOT_OK, "Failed to remove member from event, insufficient privilege.", ResponseResults.CODE_FORBIDDEN, jsonresponse.build().toString());
         }
 
-        Events utils = new Events(entityManager);
+        Events utils = new Events(entityManager, membershipChangedEvent, eventDeletedEvent);
         try {
             utils.removeMember(event, user2remove);
         }
@@ -452,7 +480,7 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
         }
 
         // notify all event members about removing a member
-        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent);
+        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent, entityManager, notificationOutboxEvent);
         notifications.sendNotifyMemberChanged(EventNotifications.ChangeType.Remove, AuthorityConfig.getInstance().getSessionUser(request), event, memberId);
 
         getEvents().createEventLeavingMail(event, user2remove);
@@ -491,7 +519,7 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
         JsonReader jreader = Json.createReader(new StringReader(notificationJson));
         JsonObject jobject = jreader.readObject();
 
-        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent);
+        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent, entityManager, notificationOutboxEvent);
         notifications.notifyEventMembers(AuthorityConfig.getInstance().getSessionUser(request), event, jobject);
 
         return ResponseResults.toJSON(ResponseResults.STATUS_OK, "Event members were notified.", ResponseResults.CODE_OK, jsonresponse.build().toString());
@@ -606,8 +634,8 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
             return ResponseResults.toJSON(ResponseResults.STATUS_NOT_OK, "Failed to add/update location. " + ex.getLocalizedMessage(), ResponseResults.CODE_INTERNAL_SRV_ERROR, jsonresponse.build().toString());
         }
 
-        // notify all event members about the location change
-        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent);
+        // notify all event members about the location change, changes coming in bursts are folded
+        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent, entityManager, notificationOutboxEvent, coalescer);
         notifications.sendNotifyLocationChanged(changetype, AuthorityConfig.getInstance().getSessionUser(request), event, location.getId());
 
         //! NOTE on successful entity location creation the new ID is sent back by results.data field.
@@ -670,7 +698,7 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
         }
 
         // notify all event members about removing a location
-        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent);
+        EventNotifications notifications = new EventNotifications(notifyUsersEvent, notifyUserRelativesEvent, entityManager, notificationOutboxEvent, coalescer);
         notifications.sendNotifyLocationChanged(EventNotifications.ChangeType.Remove, AuthorityConfig.getInstance().getSessionUser(request), event, locationId);
 
         return ResponseResults.toJSON(ResponseResults.STATUS_OK, "Location was succssfully removed from event.", ResponseResults.CODE_OK, jsonresponse.build().toString());
@@ -693,7 +721,7 @@ public class EventEntityFacadeREST extends net.m4e.common.AbstractFacade<EventEn
      */
     private Events getEvents() {
         if (eventUtils == null) {
-            eventUtils = new Events(entityManager);
+            eventUtils = new Events(entityManager, membershipChangedEvent, eventDeletedEvent);
         }
         return eventUtils;
     }
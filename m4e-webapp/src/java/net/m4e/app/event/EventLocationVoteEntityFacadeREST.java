@@ -26,6 +26,7 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import net.m4e.app.auth.AuthRole;
 import net.m4e.app.auth.AuthorityConfig;
+import net.m4e.app.notification.NotificationOutboxEvent;
 import net.m4e.app.notification.NotifyUsersEvent;
 import net.m4e.app.user.UserEntity;
 import net.m4e.common.AbstractFacade;
@@ -60,6 +61,18 @@ public class EventLocationVoteEntityFacadeREST extends AbstractFacade<EventLocat
     @Inject
     Event<NotifyUsersEvent> notifyUsersEvent;
 
+    /**
+     * Event used for waking up the notification outbox relay
+     */
+    @Inject
+    Event<NotificationOutboxEvent> notificationOutboxEvent;
+
+    /**
+     * Folds bursts of vote notifications
+     */
+    @Inject
+    EventNotificationCoalescer coalescer;
+
     /**
      * Create the REST facade.
      */
@@ -112,8 +125,8 @@ public class EventLocationVoteEntityFacadeREST extends AbstractFacade<EventLocat
             return ResponseResults.toJSON(ResponseResults.STATUS_NOT_OK, "Failed to set location vote, invalid voting time window.", ResponseResults.CODE_BAD_REQUEST, null);
         }
 
-        // notify all event members about removing a location
-        EventNotifications notifications = new EventNotifications(notifyUsersEvent, null);
+        // notify all event members about the vote, votes coming in bursts are folded
+        EventNotifications notifications = new EventNotifications(notifyUsersEvent, null, entityManager, notificationOutboxEvent, coalescer);
         notifications.sendNotifyLocationVote(EventNotifications.ChangeType.Modify, sessionuser, event, locationId, (vote > 0));
 
         jsonresponse.add("votesId", voteentity.getId().toString());
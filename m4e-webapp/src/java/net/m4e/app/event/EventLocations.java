@@ -170,20 +170,15 @@ public class EventLocations {
     }
 
     /**
-     * Update a vote entry for a given event location. If the entry does not exist, then one is created. Voting is
-     * accepted only during a particular time (voting window). If this method is called outside of voting window time
-     * then a false is returned and nothing happens.
+     * Get the voting time window of given event if voting is currently possible.
      * 
      * The voting window ends at event start time or repeated day time (for repeated events) and begins the amount of
      * 'voting time begin' before the end.
      * 
-     * @param voter     Voting user
-     * @param event     The event the location belongs to
-     * @param location  Event location the vote goes for
-     * @param vote      true for voting, false for unvoting the location.
-     * @return          Return the vote entity, or null if it is currently outside the voting time window.
+     * @param event     The event
+     * @return          Begin and end of the voting time window (in seconds), or null if it is currently outside the window.
      */
-    public EventLocationVoteEntity createOrUpdateVote(UserEntity voter, EventEntity event, EventLocationEntity location, boolean vote) {
+    public long[] getVotingWindow(EventEntity event) {
         long voteend;
         long votebegin;
         long now = Calendar.getInstance(TimeZone.getDefault()).getTimeInMillis() / 1000;
@@ -212,6 +207,30 @@ public class EventLocations {
         if ((now < votebegin) || (now > voteend)) {
             return null;
         }
+        return new long[]{votebegin, voteend};
+    }
+
+    /**
+     * Update a vote entry for a given event location. If the entry does not exist, then one is created. Voting is
+     * accepted only during a particular time (voting window). If this method is called outside of voting window time
+     * then a false is returned and nothing happens.
+     * 
+     * The voting window ends at event start time or repeated day time (for repeated events) and begins the amount of
+     * 'voting time begin' before the end.
+     * 
+     * @param voter     Voting user
+     * @param event     The event the location belongs to
+     * @param location  Event location the vote goes for
+     * @param vote      true for voting, false for unvoting the location.
+     * @return          Return the vote entity, or null if it is currently outside the voting time window.
+     */
+    public EventLocationVoteEntity createOrUpdateVote(UserEntity voter, EventEntity event, EventLocationEntity location, boolean vote) {
+        long[] window = getVotingWindow(event);
+        if (window == null) {
+            return null;
+        }
+        long votebegin = window[0];
+        long voteend = window[1];
 
         TypedQuery<EventLocationVoteEntity> query = entityManager.createNamedQuery("EventLocationVoteEntity.findLocationVotes", EventLocationVoteEntity.class);
         query.setParameter("timeBegin", votebegin);
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.event;
+
+
+/**
+ * Event fired when the owner, the members or the status of an event were changed
+ * in a transaction. It is observed after a successful commit, the membership index
+ * is then reloaded from database, see EventMemberships.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class EventMembershipChangedEvent {
+
+    /**
+     * ID of the changed event
+     */
+    private final Long eventId;
+
+    /**
+     * Create the event.
+     *
+     * @param eventId   ID of the changed event
+     */
+    public EventMembershipChangedEvent(Long eventId) {
+        this.eventId = eventId;
+    }
+
+    /**
+     * Get the ID of the changed event.
+     *
+     * @return Event ID
+     */
+    public Long getEventId() {
+        return eventId;
+    }
+}
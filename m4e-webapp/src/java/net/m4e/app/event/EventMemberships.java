@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import net.m4e.app.user.UserEntity;
+import net.m4e.system.core.Log;
+
+
+/**
+ * In-memory index of event memberships used for routing real-time messages
+ * without touching the database. For every known event it holds the owner and
+ * a sorted array of member IDs. An entry is immutable, it is replaced whenever
+ * the event changes, see Events.
+ *
+ * The index is filled on application start and kept up to date by Events. Events
+ * missing in the index are reloaded from database by Events and then added; within
+ * a running transaction they are looked up but not added.
+ * Changes are never taken over from an entity of a running transaction: after
+ * the transaction was committed the changed event is reloaded from database
+ * (see EventMembershipChangedEvent and reload), so a rollback leaves the index
+ * untouched. Reloads of the same event are serialized, so the latest committed
+ * state always wins.
+ * If several application nodes share one database then the entries can be given
+ * a time-to-live, so changes made on other nodes become visible after a while.
+ *
+ * Along with the memberships a co-membership graph is maintained: for every user
+ * it counts the events shared with other users. So the relatives of a user (see
+ * Users.getUserRelatives) are found in O(relatives) instead of scanning all events.
+ * The graph is available after the index was built by rebuild.
+ *
+ * @author boto
+ * Date of creation Dec 12, 2017
+ */
+public class EventMemberships {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "EventMemberships";
+
+    /**
+     * Communication config key for the time-to-live of index entries in seconds, 0 means no expiration
+     */
+    public final static String CFG_MEMBERSHIP_TTL = "event.membership.ttl";
+
+    /**
+     * Membership of one event
+     */
+    public static class Membership {
+
+        private final Long eventId;
+
+        private final boolean active;
+
+        private final long ownerId;
+
+        private final long[] members;
+
+        private final long timeStamp;
+
+        private Membership(Long eventId, boolean active, long ownerId, long[] members) {
+            this.eventId = eventId;
+            this.active = active;
+            this.ownerId = ownerId;
+            this.members = members;
+            this.timeStamp = System.currentTimeMillis();
+        }
+
+        /**
+         * Get the event ID.
+         *
+         * @return Event ID
+         */
+        public Long getEventId() {
+            return eventId;
+        }
+
+        /**
+         * Is the event active? Inactive events have neither owner nor members.
+         *
+         * @return Return true if the event is active.
+         */
+        public boolean getIsActive() {
+            return active;
+        }
+
+        /**
+         * Get the event owner ID.
+         *
+         * @return Owner ID
+         */
+        public long getOwnerId() {
+            return ownerId;
+        }
+
+        /**
+         * Get the sorted member IDs, the owner is not included. Do not modify the array!
+         *
+         * @return Member IDs
+         */
+        public long[] getMembers() {
+            return members;
+        }
+
+        /**
+         * Check if the given user is owner or member of the event.
+         *
+         * @param userId    User ID
+         * @return          Return true if the user is owner or member.
+         */
+        public boolean isOwnerOrMember(long userId) {
+            return active && ((ownerId == userId) || (Arrays.binarySearch(members, userId) >= 0));
+        }
+
+        /**
+         * Get the IDs of owner and all members.
+         *
+         * @return Set of owner and member IDs, it is empty for inactive events.
+         */
+        private Set<Long> getParticipants() {
+            Set<Long> ids = new HashSet<>();
+            addMemberIds(ids);
+            return ids;
+        }
+
+        /**
+         * Add the IDs of owner and all members to given set.
+         *
+         * @param ids   Set receiving the IDs
+         */
+        public void addMemberIds(Set<Long> ids) {
+            if (!active) {
+                return;
+            }
+            if (ownerId != 0L) {
+                ids.add(ownerId);
+            }
+            for (long id: members) {
+                ids.add(id);
+            }
+        }
+    }
+
+    private final ConcurrentMap<Long, Membership> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * Co-membership graph: user ID -> (related user ID -> count of shared events).
+     * It is modified only while holding the instance lock.
+     */
+    private final ConcurrentMap<Long, ConcurrentMap<Long, Integer>> relatives = new ConcurrentHashMap<>();
+
+    private volatile boolean relativesComplete = false;
+
+    private volatile long timeToLive = 0L;
+
+    /**
+     * Striped locks serializing the reloads of an event
+     */
+    private final Object[] reloadLocks = createLocks(64);
+
+    /**
+     * Use getInstance in order to get the single instance.
+     */
+    private EventMemberships() {}
+
+    /**
+     * Get the single instance of the index.
+     *
+     * @return Single instance of this class.
+     */
+    public static EventMemberships getInstance() {
+        return EventMembershipsHolder.INSTANCE;
+    }
+
+    /**
+     * Set the time-to-live of index entries. Expired entries are reloaded from database.
+     *
+     * @param timeToLive    Time-to-live in milliseconds, 0 means no expiration
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = Math.max(0L, timeToLive);
+    }
+
+    /**
+     * Get the membership of an event.
+     *
+     * @param eventId   Event ID
+     * @return          Return the membership, or null if the event is not in index or its entry is expired.
+     */
+    public Membership getMembership(Long eventId) {
+        Membership membership = memberships.get(eventId);
+        if ((membership != null) && (timeToLive > 0L) && ((System.currentTimeMillis() - membership.timeStamp) > timeToLive)) {
+            return null;
+        }
+        return membership;
+    }
+
+    /**
+     * Update the index entry of given event.
+     *
+     * @param event     Event entity
+     * @return          The new membership
+     */
+    public Membership update(EventEntity event) {
+        Membership membership = createMembership(event);
+        synchronized(this) {
+            Membership prev = memberships.put(event.getId(), membership);
+            updateRelatives(prev, membership);
+        }
+        return membership;
+    }
+
+    /**
+     * Reload the index entry of an event out of database. Call this only after the
+     * transaction changing the event was committed. If the event does not exist
+     * anymore then it is removed from index.
+     *
+     * @param eventId   Event ID
+     * @param loader    Loads the committed event from database, returns null if it does not exist
+     * @return          The new membership, or null if the event does not exist
+     */
+    public Membership reload(Long eventId, Function<Long, EventEntity> loader) {
+        synchronized(reloadLocks[(int)Math.floorMod(eventId, (long)reloadLocks.length)]) {
+            EventEntity event = loader.apply(eventId);
+            if (event != null) {
+                return update(event);
+            }
+            remove(eventId);
+            return null;
+        }
+    }
+
+    /**
+     * Create the membership of given event without adding it to index. Use this
+     * for an event entity which may contain uncommitted changes.
+     *
+     * @param event     Event entity
+     * @return          The membership
+     */
+    public Membership createDetached(EventEntity event) {
+        return createMembership(event);
+    }
+
+    /**
+     * Remove an event from index, e.g. after it was deleted.
+     *
+     * @param eventId   Event ID
+     */
+    public void remove(Long eventId) {
+        synchronized(this) {
+            Membership prev = memberships.remove(eventId);
+            updateRelatives(prev, null);
+        }
+    }
+
+    /**
+     * Rebuild the index out of given events.
+     *
+     * @param events    All events
+     */
+    public void rebuild(Collection<EventEntity> events) {
+        synchronized(this) {
+            memberships.clear();
+            relatives.clear();
+            events.forEach((event) -> {
+                update(event);
+            });
+            relativesComplete = true;
+        }
+        Log.info(TAG, "event membership index contains " + memberships.size() + " events, " + relatives.size() + " users");
+    }
+
+    /**
+     * Get the IDs of all users sharing at least one active event with given user.
+     * The user itself is included if it is owner or member of any active event.
+     *
+     * @param userId    User ID
+     * @return          List of related user IDs, or null if the index was not built yet.
+     */
+    public List<Long> getRelatives(Long userId) {
+        if (!relativesComplete) {
+            return null;
+        }
+        ConcurrentMap<Long, Integer> related = relatives.get(userId);
+        return (related != null) ? new ArrayList<>(related.keySet()) : new ArrayList<>();
+    }
+
+    /**
+     * Get the count of events in index.
+     *
+     * @return Count of events
+     */
+    public int getEventCount() {
+        return memberships.size();
+    }
+
+    /**
+     * Update the co-membership graph for an event changing from one membership to another.
+     * Only the participants which were added or removed are considered.
+     *
+     * @param prev      Previous membership, may be null
+     * @param next      New membership, may be null
+     */
+    private void updateRelatives(Membership prev, Membership next) {
+        Set<Long> current = (prev != null) ? prev.getParticipants() : new HashSet<>();
+        Set<Long> nextparticipants = (next != null) ? next.getParticipants() : new HashSet<>();
+
+        List<Long> removed = new ArrayList<>();
+        current.stream().filter((id) -> !nextparticipants.contains(id)).forEach(removed::add);
+        for (Long id: removed) {
+            current.remove(id);
+            changeRelation(id, id, -1);
+            for (Long other: current) {
+                changeRelation(id, other, -1);
+                changeRelation(other, id, -1);
+            }
+        }
+        for (Long id: nextparticipants) {
+            if (current.contains(id)) {
+                continue;
+            }
+            for (Long other: current) {
+                changeRelation(id, other, 1);
+                changeRelation(other, id, 1);
+            }
+            changeRelation(id, id, 1);
+            current.add(id);
+        }
+    }
+
+    private void changeRelation(Long userId, Long relatedId, int delta) {
+        relatives.compute(userId, (id, related) -> {
+            if (related == null) {
+                related = new ConcurrentHashMap<>();
+            }
+            related.compute(relatedId, (rid, count) -> {
+                int newcount = ((count != null) ? count : 0) + delta;
+                return (newcount > 0) ? newcount : null;
+            });
+            return related.isEmpty() ? null : related;
+        });
+    }
+
+    private static Membership createMembership(EventEntity event) {
+        if ((event.getStatus() == null) || !event.getStatus().getIsActive()) {
+            return new Membership(event.getId(), false, 0L, new long[0]);
+        }
+        Collection<UserEntity> members = event.getMembers();
+        long[] ids = (members == null) ? new long[0] : members.stream()
+            .filter((m) -> (m.getId() != null))
+            .mapToLong(UserEntity::getId)
+            .sorted()
+            .distinct()
+            .toArray();
+        Long ownerid = event.getStatus().getIdOwner();
+        return new Membership(event.getId(), true, (ownerid != null) ? ownerid : 0L, ids);
+    }
+
+    private static Object[] createLocks(int count) {
+        Object[] locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    /**
+     * Holder for the single instance
+     */
+    private static class EventMembershipsHolder {
+
+        private static final EventMemberships INSTANCE = new EventMemberships();
+    }
+}
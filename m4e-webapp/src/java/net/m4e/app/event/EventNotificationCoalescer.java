@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+package net.m4e.app.event;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import net.m4e.app.communication.CommunicationMetrics;
+import net.m4e.app.notification.NotificationOutboxEvent;
+import net.m4e.app.notification.NotifyUsersEvent;
+import net.m4e.app.user.UserEntity;
+import net.m4e.app.user.Users;
+import net.m4e.common.Entities;
+import net.m4e.system.core.AppConfiguration;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Coalescing stage for event member notifications which come in bursts, such as
+ * location votes during a voting window. Notifications of the same event and type
+ * arriving within the coalesce window are folded into one notification, which is
+ * sent at the end of the window.
+ *
+ * A folded notification is the latest one of the burst extended by
+ *
+ *   coalesced (number)     Count of folded notifications
+ *   locationIds (array)    IDs of all affected locations
+ *   votes (array)          Only for votes: current votes of the voting window,
+ *                          in the format of the location voting REST service
+ *
+ * A folded notification carries no delta, the clients reload the changed locations.
+ * A single notification in the window is sent unchanged. The notifications are
+ * put into the notification outbox when the window ends, a change version is then
+ * assigned once per sent notification (see EventNotifications).
+ *
+ * A notification is taken over only after the transaction which produced it was
+ * committed. When a location is removed then pending notifications about it are
+ * dropped, so they cannot arrive after the removal. Locations which are not active
+ * anymore when the window ends are dropped as well.
+ *
+ * @author boto
+ * Date of creation Dec 28, 2017
+ */
+@Singleton
+@Lock(LockType.READ)
+public class EventNotificationCoalescer {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "EventNotificationCoalescer";
+
+    /**
+     * Communication config key for the coalesce window in milliseconds, 0 disables coalescing
+     */
+    public final static String CFG_COALESCE_WINDOW = "notify.event.coalesceWindow";
+
+    /**
+     * Communication config key for the notification types which are coalesced, as comma separated list
+     */
+    public final static String CFG_COALESCE_TYPES = "notify.event.coalesceTypes";
+
+    private final static String DEFAULT_COALESCE_TYPES = "modifyvote,modifylocation";
+
+    private final static String TYPE_VOTE = "modifyvote";
+
+    private final static String TYPE_REMOVE_LOCATION = "removelocation";
+
+    /**
+     * Entity manager needed for entity retrieval and modifications.
+     */
+    @PersistenceContext(unitName = net.m4e.system.core.AppConfiguration.PERSITENCE_UNIT_NAME)
+    private EntityManager entityManager;
+
+    /**
+     * Event used for notifying other users
+     */
+    @Inject
+    Event<NotifyUsersEvent> notifyUsersEvent;
+
+    /**
+     * Event used for waking up the notification outbox relay
+     */
+    @Inject
+    Event<NotificationOutboxEvent> notificationOutboxEvent;
+
+    /**
+     * Event used for taking over the notifications after commit
+     */
+    @Inject
+    Event<Notification> notificationEvent;
+
+    /**
+     * Used for publishing the coalescing metrics
+     */
+    @Inject
+    CommunicationMetrics metrics;
+
+    @Resource
+    TimerService timerService;
+
+    /**
+     * A notification taken by the stage, it is delivered to the coalescing after commit.
+     */
+    public static class Notification {
+
+        private final Long eventId;
+
+        private final Long senderId;
+
+        private final JsonObject jsonObject;
+
+        private final boolean coalesced;
+
+        private Notification(Long eventId, Long senderId, JsonObject jsonObject, boolean coalesced) {
+            this.eventId = eventId;
+            this.senderId = senderId;
+            this.jsonObject = jsonObject;
+            this.coalesced = coalesced;
+        }
+    }
+
+    /**
+     * Notifications collected for one event and type. The latest notification is kept
+     * per location, notifications without location use an empty location ID.
+     */
+    private static class Pending {
+
+        private final Long eventId;
+
+        private Long senderId;
+
+        private final Map<String, JsonObject> latest = new LinkedHashMap<>();
+
+        private int count = 0;
+
+        private Pending(Long eventId) {
+            this.eventId = eventId;
+        }
+    }
+
+    /**
+     * The pending notifications, an entry is only modified inside of the map's compute methods
+     */
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private long window = 1000L;
+
+    private final Set<String> types = new HashSet<>();
+
+    private final LongAdder countReceived = new LongAdder();
+
+    private final LongAdder countSent = new LongAdder();
+
+    private final LongAdder countDropped = new LongAdder();
+
+    /**
+     * Setup the coalescer.
+     */
+    @PostConstruct
+    public void eventNotificationCoalescerInit() {
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        window = Math.max(0L, cfg.getCommunicationConfigValue(CFG_COALESCE_WINDOW, 1000L));
+        for (String type: cfg.getCommunicationConfigValue(CFG_COALESCE_TYPES, DEFAULT_COALESCE_TYPES).split(",")) {
+            if (!type.trim().isEmpty()) {
+                types.add(type.trim());
+            }
+        }
+        metrics.registerCounter("notify_event_coalesce_received_total", "Event notifications taken by the coalescing stage", countReceived::sum);
+        metrics.registerCounter("notify_event_coalesce_sent_total", "Notifications sent by the coalescing stage", countSent::sum);
+        metrics.registerCounter("notify_event_coalesce_dropped_total", "Coalesced notifications dropped because of removed events or locations", countDropped::sum);
+    }
+
+    /**
+     * Is the given notification type coalesced?
+     *
+     * @param type      Notification type
+     * @return          Return true if notifications of this type are coalesced.
+     */
+    public boolean isCoalesced(String type) {
+        return (window != 0L) && types.contains(type);
+    }
+
+    /**
+     * Take a notification to event members for coalescing. It is taken over when the
+     * caller's transaction was committed, the first one of its event and type starts
+     * the coalesce window then.
+     *
+     * A notification about removing a location is not coalesced, but after commit
+     * it drops the pending notifications about the removed location.
+     *
+     * @param sender        Sender of the notification, may be null
+     * @param event         The event
+     * @param jsonObject    Notification, see EventNotifications.notifyEventMembers
+     * @return              Return false if the notification is not coalesced and must be sent right away.
+     */
+    public boolean add(UserEntity sender, EventEntity event, JsonObject jsonObject) {
+        String type = jsonObject.getString("type", "");
+        boolean coalesced = isCoalesced(type);
+        if (coalesced || ((window != 0L) && TYPE_REMOVE_LOCATION.equals(type))) {
+            Long senderid = (sender == null) ? 0L : sender.getId();
+            notificationEvent.fire(new Notification(event.getId(), senderid, jsonObject, coalesced));
+        }
+        return coalesced;
+    }
+
+    /**
+     * Take over a notification after the transaction producing it was committed.
+     *
+     * @param notification  Notification
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void onNotification(@Observes(during = TransactionPhase.AFTER_SUCCESS) Notification notification) {
+        String locationid = getLocationId(notification.jsonObject);
+        if (!notification.coalesced) {
+            dropLocation(notification.eventId, locationid);
+            return;
+        }
+        countReceived.increment();
+
+        String key = notification.eventId + "|" + notification.jsonObject.getString("type", "");
+        boolean[] created = {false};
+        pending.compute(key, (k, entry) -> {
+            if (entry == null) {
+                entry = new Pending(notification.eventId);
+                created[0] = true;
+            }
+            entry.count++;
+            entry.senderId = notification.senderId;
+            // keep the latest notification of a location at the end
+            entry.latest.remove(locationid);
+            entry.latest.put(locationid, notification.jsonObject);
+            return entry;
+        });
+        if (created[0]) {
+            timerService.createSingleActionTimer(window, new TimerConfig(key, false));
+        }
+    }
+
+    /**
+     * Send the folded notification at the end of the coalesce window. The database
+     * work happens after the entry was taken out, new notifications start a new window.
+     *
+     * @param timer     Window timer, its info is the coalesce key
+     */
+    @Timeout
+    public void flush(Timer timer) {
+        Pending entry = pending.remove((String)timer.getInfo());
+        if ((entry == null) || entry.latest.isEmpty()) {
+            return;
+        }
+        EventEntity event = new Entities(entityManager).findEntity(EventEntity.class, entry.eventId);
+        if ((event == null) || !event.getStatus().getIsActive()) {
+            Log.debug(TAG, "dropping coalesced notifications of removed event " + entry.eventId);
+            countDropped.add(entry.count);
+            return;
+        }
+        dropInactiveLocations(event, entry);
+        if (entry.latest.isEmpty()) {
+            return;
+        }
+        UserEntity sender = (entry.senderId != 0L) ? new Users(entityManager).findUser(entry.senderId) : null;
+        JsonObject notification = (entry.count > 1) ? createFolded(event, entry) : entry.latest.values().iterator().next();
+
+        EventNotifications notifications = new EventNotifications(notifyUsersEvent, null, entityManager, notificationOutboxEvent);
+        notifications.notifyEventMembers(sender, event, notifications.assignVersion(event, notification));
+        countSent.increment();
+    }
+
+    /**
+     * Drop the pending notifications about a removed location.
+     */
+    private void dropLocation(Long eventId, String locationId) {
+        if (locationId.isEmpty()) {
+            return;
+        }
+        String prefix = eventId + "|";
+        pending.keySet().stream().filter((key) -> key.startsWith(prefix)).forEach((key) -> {
+            pending.computeIfPresent(key, (k, entry) -> {
+                if (entry.latest.remove(locationId) != null) {
+                    countDropped.increment();
+                }
+                return entry;
+            });
+        });
+    }
+
+    /**
+     * Drop the notifications about locations which are not active anymore.
+     */
+    private void dropInactiveLocations(EventEntity event, Pending entry) {
+        Set<String> active = new HashSet<>();
+        if (event.getLocations() != null) {
+            event.getLocations().stream()
+                .filter((loc) -> loc.getStatus().getIsActive())
+                .forEach((loc) -> active.add(loc.getId().toString()));
+        }
+        entry.latest.keySet().removeIf((locationid) -> {
+            if (locationid.isEmpty() || active.contains(locationid)) {
+                return false;
+            }
+            countDropped.increment();
+            return true;
+        });
+    }
+
+    private static String getLocationId(JsonObject jsonObject) {
+        JsonObject data = jsonObject.getJsonObject("data");
+        return (data != null) ? data.getString("locationId", "") : "";
+    }
+
+    /**
+     * Create the notification for a burst.
+     */
+    private JsonObject createFolded(EventEntity event, Pending entry) {
+        JsonObject latest = null;
+        for (JsonObject notification: entry.latest.values()) {
+            latest = notification;
+        }
+        String type = latest.getString("type", "");
+        JsonObjectBuilder data = Json.createObjectBuilder();
+        JsonObject latestdata = latest.getJsonObject("data");
+        if (latestdata != null) {
+            latestdata.forEach((name, value) -> {
+                if (!"delta".equals(name)) {
+                    data.add(name, value);
+                }
+            });
+        }
+        data.add("coalesced", entry.count);
+        JsonArrayBuilder locationids = Json.createArrayBuilder();
+        entry.latest.keySet().stream().filter((locationid) -> !locationid.isEmpty()).forEach(locationids::add);
+        data.add("locationIds", locationids);
+
+        if (TYPE_VOTE.equals(type)) {
+            EventLocations eventlocs = new EventLocations(entityManager);
+            long[] votingwindow = eventlocs.getVotingWindow(event);
+            if (votingwindow != null) {
+                List<EventLocationVoteEntity> votes = eventlocs.getVotes(event, votingwindow[0], votingwindow[1]);
+                data.add("votes", eventlocs.exportLocationVotesJSON(votes));
+            }
+        }
+
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        json.add("subject", latest.getString("subject", ""))
+            .add("type", type)
+            .add("text", latest.getString("text", ""))
+            .add("data", data);
+        return json.build();
+    }
+}
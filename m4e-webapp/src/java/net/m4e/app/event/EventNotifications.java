@@ -15,20 +15,41 @@ import javax.enterprise.event.Event;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.persistence.EntityManager;
+import net.m4e.app.notification.NotificationOutbox;
+import net.m4e.app.notification.NotificationOutboxEvent;
 import net.m4e.app.notification.NotifyUserRelativesEvent;
 import net.m4e.app.notification.NotifyUsersEvent;
 import net.m4e.app.user.UserEntity;
+import net.m4e.system.core.AppConfiguration;
 
 
 /**
  * Event related notifications are are implemented in this class.
  * Use it to send notifications to related users if any event changes happened.
+ * 
+ * If an entity manager is given, then the notifications to event members are put
+ * into the notification outbox of current transaction instead of being sent right
+ * away. They are sent only if the transaction is committed, see NotificationOutbox.
+ * Bursts of notifications such as location votes can be folded by passing a
+ * coalescing stage, see EventNotificationCoalescer.
+ * 
+ * Notifications about changes of event fields, members or locations carry the
+ * new change version of the event ("version"). Unless disabled by configuration,
+ * they also carry the change itself ("delta"), so the members need not fetch the
+ * whole event. A client fetches the event only if it detects a version gap.
  *
  * @author boto
  * Date of creation Oct 17, 2017
  */
 public class EventNotifications {
 
+    /**
+     * Communication config key for enabling the delta payload in change notifications (1 or 0)
+     */
+    public final static String CFG_NOTIFY_DELTA = "notify.event.delta";
+
     /**
      * Event for sending user notification
      */
@@ -39,6 +60,21 @@ public class EventNotifications {
      */
     Event<NotifyUserRelativesEvent> notifyUserRelativesEvent;
 
+    /**
+     * Entity manager used for the notification outbox, null for sending right away
+     */
+    EntityManager outboxEntityManager;
+
+    /**
+     * Event used for waking up the notification outbox relay
+     */
+    Event<NotificationOutboxEvent> notificationOutboxEvent;
+
+    /**
+     * Coalescing stage for notifications to event members, null for no coalescing
+     */
+    EventNotificationCoalescer coalescer;
+
     /**
      * Used to characterize the change type in a notification
      */
@@ -100,6 +136,37 @@ public class EventNotifications {
         this.notifyUserRelativesEvent = notifyUserRelativesEvent;
     }
 
+    /**
+     * Create an instance which puts the notifications to event members into the
+     * notification outbox of current transaction.
+     * 
+     * @param notifyUsersEvent          Event used for user related notifications
+     * @param notifyUserRelativesEvent  Event used for user relatives notifications
+     * @param outboxEntityManager       Entity manager of current transaction
+     * @param notificationOutboxEvent   Event used for waking up the notification outbox relay
+     */
+    public EventNotifications(Event<NotifyUsersEvent> notifyUsersEvent, Event<NotifyUserRelativesEvent> notifyUserRelativesEvent, EntityManager outboxEntityManager, Event<NotificationOutboxEvent> notificationOutboxEvent) {
+        this(notifyUsersEvent, notifyUserRelativesEvent);
+        this.outboxEntityManager = outboxEntityManager;
+        this.notificationOutboxEvent = notificationOutboxEvent;
+    }
+
+    /**
+     * Create an instance which passes the notifications to event members through
+     * the coalescing stage, see EventNotificationCoalescer. Notifications which are
+     * not coalesced are put into the notification outbox of current transaction.
+     * 
+     * @param notifyUsersEvent          Event used for user related notifications
+     * @param notifyUserRelativesEvent  Event used for user relatives notifications
+     * @param outboxEntityManager       Entity manager of current transaction
+     * @param notificationOutboxEvent   Event used for waking up the notification outbox relay
+     * @param coalescer                 Coalescing stage
+     */
+    public EventNotifications(Event<NotifyUsersEvent> notifyUsersEvent, Event<NotifyUserRelativesEvent> notifyUserRelativesEvent, EntityManager outboxEntityManager, Event<NotificationOutboxEvent> notificationOutboxEvent, EventNotificationCoalescer coalescer) {
+        this(notifyUsersEvent, notifyUserRelativesEvent, outboxEntityManager, notificationOutboxEvent);
+        this.coalescer = coalescer;
+    }
+
     /**
      * Notify about adding/removing an event.
      * 
@@ -108,12 +175,40 @@ public class EventNotifications {
      * @param user          User sending the notification
      */
     public void sendNotifyEventChanged(ChangeType changeType, UserEntity user, EventEntity event) {
+        sendNotifyEventChanged(changeType, user, event, null);
+    }
+
+    /**
+     * Notify about modifying an event. The delta contains the fields which differ
+     * from given previous fields.
+     * 
+     * @param changeType        Change type
+     * @param event             The event which was modified
+     * @param user              User sending the notification
+     * @param previousFields    Event fields before the modification, see Events.exportEventFieldsJSON.
+     *                          Pass null for no delta.
+     */
+    public void sendNotifyEventChanged(ChangeType changeType, UserEntity user, EventEntity event, JsonObject previousFields) {
         JsonObjectBuilder json = Json.createObjectBuilder();
         json.add("subject", "Event")
             .add("type", changeType.value() + "event")
             .add("text", "Event was " + changeType.pastForm() + ".");
         JsonObjectBuilder data = Json.createObjectBuilder();
         data.add("eventId", event.getId().toString());
+        if (changeType == ChangeType.Modify) {
+            JsonObjectBuilder delta = null;
+            if ((previousFields != null) && getDeltaEnabled()) {
+                JsonObject fields = new Events(outboxEntityManager).exportEventFieldsJSON(event).build();
+                JsonObjectBuilder changed = Json.createObjectBuilder();
+                fields.forEach((name, value) -> {
+                    if (!value.equals(previousFields.get(name))) {
+                        changed.add(name, value);
+                    }
+                });
+                delta = Json.createObjectBuilder().add("fields", changed);
+            }
+            addVersion(event, changeType.value() + "event", data, delta);
+        }
         json.add("data", data);
 
         notifyEventMembers(user, event, json.build());
@@ -135,6 +230,17 @@ public class EventNotifications {
         JsonObjectBuilder data = Json.createObjectBuilder();
         data.add("eventId", event.getId().toString())
             .add("locationId", locationId.toString());
+        JsonObjectBuilder delta = null;
+        if ((changeType != ChangeType.Remove) && getDeltaEnabled() && (event.getLocations() != null)) {
+            EventLocationEntity location = event.getLocations().stream()
+                .filter((loc) -> locationId.equals(loc.getId()))
+                .findFirst()
+                .orElse(null);
+            if (location != null) {
+                delta = Json.createObjectBuilder().add("location", new EventLocations(outboxEntityManager).exportEventLocationJSON(location));
+            }
+        }
+        addVersion(event, changeType.value() + "location", data, delta);
         json.add("data", data);
 
         notifyEventMembers(user, event, json.build());
@@ -179,6 +285,17 @@ public class EventNotifications {
         JsonObjectBuilder data = Json.createObjectBuilder();
         data.add("eventId", event.getId().toString())
             .add("memberId", memberId.toString());
+        JsonObjectBuilder delta = null;
+        if ((changeType == ChangeType.Add) && getDeltaEnabled() && (event.getMembers() != null)) {
+            UserEntity member = event.getMembers().stream()
+                .filter((mem) -> memberId.equals(mem.getId()))
+                .findFirst()
+                .orElse(null);
+            if (member != null) {
+                delta = Json.createObjectBuilder().add("member", new Events(outboxEntityManager).exportEventMemberJSON(member, null));
+            }
+        }
+        addVersion(event, changeType.value() + "member", data, delta);
         json.add("data", data);
 
         notifyEventMembers(user, event, json.build());
@@ -223,6 +340,10 @@ public class EventNotifications {
             return;
         }
 
+        if ((coalescer != null) && coalescer.add(sender, event, jsonObject)) {
+            return;
+        }
+
         // the owner and all event members get the notification
         List<Long> userids = new ArrayList();
         userids.add(event.getStatus().getIdOwner());
@@ -245,7 +366,12 @@ public class EventNotifications {
         if (data != null) {
             notify.setData(data);
         }
-        notifyUsersEvent.fireAsync(notify);
+        if (outboxEntityManager != null) {
+            new NotificationOutbox(outboxEntityManager, notificationOutboxEvent).add(notify);
+        }
+        else {
+            notifyUsersEvent.fireAsync(notify);
+        }
     }
 
     /**
@@ -276,4 +402,54 @@ public class EventNotifications {
         }
         notifyUserRelativesEvent.fireAsync(notify);
     }
+
+    /**
+     * Increment the change version of the event and add it to the notification data
+     * along with the delta, if any. The version is maintained only if an entity
+     * manager is available. A notification which is coalesced gets its version when
+     * it is sent, see assignVersion.
+     */
+    private void addVersion(EventEntity event, String type, JsonObjectBuilder data, JsonObjectBuilder delta) {
+        if (outboxEntityManager == null) {
+            return;
+        }
+        if ((coalescer != null) && coalescer.isCoalesced(type)) {
+            data.add("version", JsonValue.NULL);
+        }
+        else {
+            data.add("version", new Events(outboxEntityManager).incrementChangeVersion(event));
+        }
+        if (delta != null) {
+            data.add("delta", delta);
+        }
+    }
+
+    /**
+     * Assign the change version to a notification which was coalesced, see
+     * EventNotificationCoalescer. The version is incremented once per sent notification.
+     * 
+     * @param event         The event
+     * @param jsonObject    Notification, its version is assigned if it is pending
+     * @return              Notification with assigned version
+     */
+    JsonObject assignVersion(EventEntity event, JsonObject jsonObject) {
+        JsonObject data = jsonObject.getJsonObject("data");
+        if ((outboxEntityManager == null) || (data == null) || !data.containsKey("version") || !data.isNull("version")) {
+            return jsonObject;
+        }
+        JsonObjectBuilder newdata = Json.createObjectBuilder();
+        data.forEach(newdata::add);
+        newdata.add("version", new Events(outboxEntityManager).incrementChangeVersion(event));
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        jsonObject.forEach(json::add);
+        json.add("data", newdata);
+        return json.build();
+    }
+
+    /**
+     * Is the delta payload enabled?
+     */
+    private boolean getDeltaEnabled() {
+        return (outboxEntityManager != null) && (AppConfiguration.getInstance().getCommunicationConfigValue(CFG_NOTIFY_DELTA, 1L) != 0L);
+    }
 }
@@ -7,13 +7,18 @@
  */
 package net.m4e.app.event;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Set;
 import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
 import javax.ejb.Singleton;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
 import javax.enterprise.event.ObservesAsync;
+import javax.enterprise.event.TransactionPhase;
 import javax.inject.Inject;
 import javax.json.JsonObject;
 import javax.persistence.EntityManager;
@@ -29,10 +34,14 @@ import net.m4e.system.core.Log;
  * Central place for handling event related real-time actions such as
  * distributing messages or coordinating event member votes for locations.
  * 
+ * The messages are dispatched concurrently, the instance holds no mutable state.
+ * The messages of one sender arrive in order, see MessageDistribution.
+ * 
  * @author boto
  * Date of creation Oct 29, 2017
  */
 @Singleton
+@Lock(LockType.READ)
 @ApplicationScoped
 public class EventSystem {
 
@@ -53,6 +62,12 @@ public class EventSystem {
     @PersistenceContext(unitName = net.m4e.system.core.AppConfiguration.PERSITENCE_UNIT_NAME)
     private EntityManager entityManager;
 
+    /**
+     * Used for reloading the membership index after a commit
+     */
+    @Resource(lookup = "java:comp/DefaultManagedExecutorService")
+    ManagedExecutorService executor;
+
     /**
      * Called on post-construction of the instance.
      */
@@ -61,6 +76,16 @@ public class EventSystem {
         Log.info(TAG, "Starting the event system");
     }
 
+    /**
+     * Update the membership index when the transaction changing an event was committed.
+     * The event is reloaded from database off the committing thread, see EventMemberships.
+     * 
+     * @param change    Membership change
+     */
+    public void onMembershipChanged(@Observes(during = TransactionPhase.AFTER_SUCCESS) EventMembershipChangedEvent change) {
+        executor.execute(() -> new Events(entityManager).reloadMembership(change.getEventId()));
+    }
+
     /**
      * Event messages are dispatched asynchronously.
      * 
@@ -79,7 +104,11 @@ public class EventSystem {
 
         Packet packet = event.getPacket();
         JsonObject eventpkg = packet.getData();
-        JsonObject eventdata = eventpkg.getJsonObject("data");
+        JsonObject eventdata = (eventpkg != null) ? eventpkg.getJsonObject("data") : null;
+        if (eventdata == null) {
+            Log.warning(TAG, "got invalid event message from user " + senderid);
+            return;
+        }
         String receiveevent = eventdata.getString("eventId", "");
         try {
             if (!receiveevent.isEmpty()) {
@@ -96,7 +125,8 @@ public class EventSystem {
     }
 
     /**
-     * Send a message to all event members.
+     * Send a message to all event members. Sessions subscribed to event topics get
+     * the message only if they subscribed to the event.
      * 
      * @param sender        Message sender
      * @param eventId       Event ID receiving the message
@@ -109,6 +139,6 @@ public class EventSystem {
         packet.setSourceId(sender.getId().toString());
         packet.setSource(sender.getName());
         packet.setTime((new Date()).getTime());
-        connections.sendPacket(packet, new ArrayList(receiverids));
+        connections.sendPacketToTopic(packet, ConnectedClients.getEventTopic(eventId), receiverids);
     }
 }
@@ -13,15 +13,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import javax.enterprise.event.Event;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.persistence.CacheRetrieveMode;
 import javax.persistence.EntityManager;
 import net.m4e.app.auth.AuthRole;
 import net.m4e.app.communication.ConnectedClients;
@@ -52,13 +56,32 @@ public class Events {
 
     private final EntityManager entityManager;
 
+    private final Event<EventMembershipChangedEvent> membershipChangedEvent;
+
+    private final Event<EventDeletedEvent> eventDeletedEvent;
+
     /**
-     * Create an instance of event utilities.
+     * Create an instance of event utilities. Use this constructor only for
+     * reading events, changes of memberships and deleted events are not announced.
      * 
      * @param entityManager    Entity manager
      */
     public Events(EntityManager entityManager) {
+        this(entityManager, null, null);
+    }
+
+    /**
+     * Create an instance of event utilities which announces changed memberships
+     * and deleted events.
+     * 
+     * @param entityManager             Entity manager
+     * @param membershipChangedEvent    Event fired when the members of an event changed
+     * @param eventDeletedEvent         Event fired when an event was deleted
+     */
+    public Events(EntityManager entityManager, Event<EventMembershipChangedEvent> membershipChangedEvent, Event<EventDeletedEvent> eventDeletedEvent) {
         this.entityManager = entityManager;
+        this.membershipChangedEvent = membershipChangedEvent;
+        this.eventDeletedEvent = eventDeletedEvent;
     }
 
     /**
@@ -118,16 +141,22 @@ public class Events {
         event.setMembers(members);
 
         eutils.updateEntity(event);
+        notifyMembershipChanged(event.getId());
     }
 
     /**
-     * Delete the given event entity permanently from database.
+     * Delete the given event entity permanently from database. The chat history
+     * of the event is removed when the transaction was committed.
      * 
      * @param event         Event entity
      */
     public void deleteEvent(EventEntity event) {
         Entities eutils = new Entities(entityManager);
         eutils.deleteEntity(event);
+        notifyMembershipChanged(event.getId());
+        if (eventDeletedEvent != null) {
+            eventDeletedEvent.fire(new EventDeletedEvent(event.getId()));
+        }
     }
 
     /**
@@ -138,6 +167,7 @@ public class Events {
     public void updateEvent(EventEntity event) {
         Entities eutils = new Entities(entityManager);
         eutils.updateEntity(event);
+        notifyMembershipChanged(event.getId());
     }
 
     /**
@@ -210,29 +240,89 @@ public class Events {
         return owner;
     }
 
+    /**
+     * Check if the given user is owner or member of an event. The check uses the
+     * membership index, see EventMemberships.
+     * 
+     * @param userId    User ID
+     * @param eventId   Event ID
+     * @return          Return true if the user is owner or member of an active event, otherwise return false.
+     */
+    public boolean getUserIsEventOwnerOrMember(Long userId, Long eventId) {
+        EventMemberships.Membership membership = getMembership(eventId);
+        return (membership != null) && membership.isOwnerOrMember(userId);
+    }
+
     /**
      * Given an event ID return the IDs of all of its members (including the owner). If the event was not
-     * found then an empty set is returned.
+     * found then an empty set is returned. The IDs are taken from the membership index, see EventMemberships.
      * 
      * @param eventId   Event ID
      * @return          A set with member IDs
      */
     public Set<Long> getMembers(Long eventId) {
+        // avoid duplicate IDs by using a set (the sender can be also the owner or part of the members)
         Set<Long> memberids = new HashSet();
-        EventEntity event = findEvent(eventId);
-        if ((event == null) || !event.getStatus().getIsActive()) {
-            return memberids;
+        EventMemberships.Membership membership = getMembership(eventId);
+        if (membership != null) {
+            membership.addMemberIds(memberids);
         }
+        return memberids;
+    }
 
-        Collection<UserEntity> members = event.getMembers();
-        // avoid duplicate IDs by using a set (the sender can be also the owner or part of the members)
-        memberids.add(event.getStatus().getIdOwner());
-        if (members != null) {
-            members.forEach((m) -> {
-                memberids.add(m.getId());
-            });
+    /**
+     * Get the membership of an event out of the membership index. If the event is
+     * not indexed yet then it is loaded from database and added to index. Within a
+     * running transaction the event may contain uncommitted changes, then the
+     * membership is built from the entity but not added to index.
+     * 
+     * @param eventId   Event ID
+     * @return          Event membership, or null if the event does not exist.
+     */
+    public EventMemberships.Membership getMembership(Long eventId) {
+        EventMemberships memberships = EventMemberships.getInstance();
+        EventMemberships.Membership membership = memberships.getMembership(eventId);
+        if (membership != null) {
+            return membership;
         }
-        return memberids;
+        if (entityManager.isJoinedToTransaction()) {
+            EventEntity event = findEvent(eventId);
+            return (event != null) ? memberships.createDetached(event) : null;
+        }
+        return reloadMembership(eventId);
+    }
+
+    /**
+     * Reload the membership of an event out of database into the membership index.
+     * Call this only after the transaction changing the event was committed.
+     * 
+     * @param eventId   Event ID
+     * @return          The reloaded membership, or null if the event does not exist.
+     */
+    public EventMemberships.Membership reloadMembership(Long eventId) {
+        Map<String, Object> hints = new HashMap<>();
+        hints.put("javax.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS);
+        return EventMemberships.getInstance().reload(eventId, (id) -> entityManager.find(EventEntity.class, id, hints));
+    }
+
+    /**
+     * Tell about a changed membership of an event. The membership index is updated
+     * by an observer when the current transaction was committed, see EventSystem.
+     * 
+     * @param eventId   Event ID
+     */
+    private void notifyMembershipChanged(Long eventId) {
+        if (membershipChangedEvent != null) {
+            membershipChangedEvent.fire(new EventMembershipChangedEvent(eventId));
+        }
+    }
+
+    /**
+     * Load all events into the membership index, see EventMemberships.
+     */
+    public void setupMembershipIndex() {
+        Entities eutils = new Entities(entityManager);
+        EventMemberships.getInstance().rebuild(eutils.findAllEntities(EventEntity.class));
     }
 
     /**
@@ -309,6 +399,7 @@ public class Events {
         }
         status.setDateDeletion((new Date().getTime()));
         eutils.updateEntity(event);
+        notifyMembershipChanged(event.getId());
 
         // update the app stats
         AppInfos autils = new AppInfos(entityManager);
@@ -428,34 +519,15 @@ public class Events {
      * @return              A JSON object containing builder the proper entity fields
      */
     public JsonObjectBuilder exportEventJSON(EventEntity entity, ConnectedClients connections) {
-        JsonObjectBuilder json = Json.createObjectBuilder();
-        json.add("id", (entity.getId() != null) ? entity.getId().toString() : "")
-            .add("name", (entity.getName() != null) ? entity.getName() : "")
-            .add("description", (entity.getDescription() != null) ? entity.getDescription(): "")
-            .add("public", entity.getIsPublic())
-            .add("photoId", (entity.getPhoto() != null) ? entity.getPhoto().getId().toString(): "")
-            .add("photoETag", (entity.getPhoto() != null) ? entity.getPhoto().getETag(): "")
-            .add("eventStart", (entity.getEventStart() != null) ? entity.getEventStart(): 0)
-            .add("repeatWeekDays", (entity.getRepeatWeekDays() != null) ? entity.getRepeatWeekDays(): 0)
-            .add("repeatDayTime", (entity.getRepeatDayTime() != null) ? entity.getRepeatDayTime(): 0)
-            .add("votingTimeBegin", (entity.getVotingTimeBegin() != null) ? entity.getVotingTimeBegin(): 0);
+        JsonObjectBuilder json = exportEventFieldsJSON(entity);
+        json.add("version", (entity.getChangeVersion() != null) ? entity.getChangeVersion() : 0);
 
         JsonArrayBuilder members = Json.createArrayBuilder();
         if (entity.getMembers() != null) {
             entity.getMembers()
                 .stream()
                 .filter((mem) -> (mem.getStatus().getIsActive()))
-                .map((mem) -> {
-                    JsonObjectBuilder member = Json.createObjectBuilder();
-                    member.add("id", mem.getId().toString())
-                          .add("name", (mem.getName() != null) ? mem.getName() : "")
-                          .add("photoId", (mem.getPhoto() != null) ? mem.getPhoto().getId().toString(): "")
-                          .add("photoETag", (mem.getPhoto() != null) ? mem.getPhoto().getETag() : "");
-                    // set the online status
-                    boolean online = (connections.getConnectedUser(mem.getId()) != null);
-                    member.add("status", online ? "online" : "offline");
-                    return member;
-                })
+                .map((mem) -> exportEventMemberJSON(mem, connections))
                 .forEach((memobj) -> {
                     members.add(memobj);
                 });
@@ -499,7 +571,7 @@ public class Events {
             ownername = owner.getName();
             ownerphotoid = (owner.getPhoto() != null) ? owner.getPhoto().getId() : 0L;
             ownerphotoetag = (owner.getPhoto() != null) ? owner.getPhoto().getETag(): "";
-            owneronline = (connections.getConnectedUser(owner.getId()) != null);
+            owneronline = connections.isUserOnline(owner.getId());
         }
         json.add("ownerId", (ownerid > 0)? ownerid.toString() : "")
             .add("ownerName", ownername)
@@ -509,6 +581,63 @@ public class Events {
         return json;
     }
 
+    /**
+     * Export the plain fields of an event, i.e. without members, locations and owner.
+     * 
+     * @param entity    Event entity
+     * @return          JSON object builder containing the event fields
+     */
+    public JsonObjectBuilder exportEventFieldsJSON(EventEntity entity) {
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        json.add("id", (entity.getId() != null) ? entity.getId().toString() : "")
+            .add("name", (entity.getName() != null) ? entity.getName() : "")
+            .add("description", (entity.getDescription() != null) ? entity.getDescription(): "")
+            .add("public", entity.getIsPublic())
+            .add("photoId", (entity.getPhoto() != null) ? entity.getPhoto().getId().toString(): "")
+            .add("photoETag", (entity.getPhoto() != null) ? entity.getPhoto().getETag(): "")
+            .add("eventStart", (entity.getEventStart() != null) ? entity.getEventStart(): 0)
+            .add("repeatWeekDays", (entity.getRepeatWeekDays() != null) ? entity.getRepeatWeekDays(): 0)
+            .add("repeatDayTime", (entity.getRepeatDayTime() != null) ? entity.getRepeatDayTime(): 0)
+            .add("votingTimeBegin", (entity.getVotingTimeBegin() != null) ? entity.getVotingTimeBegin(): 0);
+        return json;
+    }
+
+    /**
+     * Export an event member.
+     * 
+     * @param member        Event member
+     * @param connections   Real-time user connections used for the online status, if null then no status is exported
+     * @return              JSON object builder containing the member
+     */
+    public JsonObjectBuilder exportEventMemberJSON(UserEntity member, ConnectedClients connections) {
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        json.add("id", member.getId().toString())
+            .add("name", (member.getName() != null) ? member.getName() : "")
+            .add("photoId", (member.getPhoto() != null) ? member.getPhoto().getId().toString(): "")
+            .add("photoETag", (member.getPhoto() != null) ? member.getPhoto().getETag() : "");
+        if (connections != null) {
+            // set the online status
+            boolean online = connections.isUserOnline(member.getId());
+            json.add("status", online ? "online" : "offline");
+        }
+        return json;
+    }
+
+    /**
+     * Increment the change version of an event. The version row stays locked until
+     * the end of the transaction, so concurrent changes get distinct versions.
+     * 
+     * @param event     Event entity
+     * @return          The new change version
+     */
+    public long incrementChangeVersion(EventEntity event) {
+        entityManager.createNamedQuery("EventEntity.incrementChangeVersion").setParameter("id", event.getId()).executeUpdate();
+        Long version = entityManager.createNamedQuery("EventEntity.findChangeVersion", Long.class).setParameter("id", event.getId()).getSingleResult();
+        long value = (version != null) ? version : 0L;
+        event.setChangeVersion(value);
+        return value;
+    }
+
     /**
      * Given a JSON string, import the necessary fields and create an event entity.
      * 
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+package net.m4e.app.notification;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.mail.Address;
+import javax.mail.Authenticator;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import javax.servlet.ServletContext;
+import net.m4e.system.core.AppConfiguration;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Mail delivery engine. The messages are queued and sent by a pool of workers,
+ * every worker keeps its own connected and authenticated SMTP transport. A worker
+ * takes the queued messages in batches and sends them back to back over its
+ * connection, so a burst of mails (e.g. registrations) does not open a new
+ * connection per mail. A transport which was idle for a while is closed, a
+ * transport closed by the server is replaced when sending over it fails.
+ * On shutdown the queued messages are still sent for a while.
+ *
+ * The pool is configured in the mailer configuration file:
+ *
+ *   mail.pool.size         Count of workers, i.e. of concurrent SMTP connections
+ *   mail.pool.batchSize    Maximal count of messages a worker takes at once
+ *   mail.pool.queueSize    Maximal count of queued messages
+ *   mail.pool.idleTime     Seconds after an idle connection is closed
+ *
+ * @author boto
+ * Date of creation Dec 29, 2017
+ */
+@ApplicationScoped
+public class MailDelivery {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "MailDelivery";
+
+    /**
+     * Mailer config keys of the pool
+     */
+    public final static String CFG_POOL_SIZE = "mail.pool.size";
+    public final static String CFG_POOL_BATCH_SIZE = "mail.pool.batchSize";
+    public final static String CFG_POOL_QUEUE_SIZE = "mail.pool.queueSize";
+    public final static String CFG_POOL_IDLE_TIME = "mail.pool.idleTime";
+
+    @Inject
+    ServletContext context;
+
+    @Resource(lookup = "java:comp/DefaultManagedThreadFactory")
+    ManagedThreadFactory threadFactory;
+
+    /**
+     * JavaMail configuration which is read from a config file
+     */
+    private Properties mailServerConfig;
+
+    /**
+     * Mail session shared by all workers
+     */
+    private Session session;
+
+    private BlockingQueue<MimeMessage> queue;
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    /**
+     * Maximal time in milliseconds for sending the queued messages on shutdown
+     */
+    private final static long SHUTDOWN_TIMEOUT = 10000L;
+
+    /**
+     * Maximal time in milliseconds to wait for space in a full queue
+     */
+    private final static long QUEUE_TIMEOUT = 5000L;
+
+    private int batchSize = 20;
+
+    private long idleTime = 30L;
+
+    private volatile boolean running = false;
+
+    /**
+     * Read the configuration and start the workers.
+     */
+    @PostConstruct
+    public void mailDeliveryInit() {
+        Properties cfg = getMailerConfig();
+        if (cfg == null) {
+            Log.warning(TAG, "Mail delivery is not available, invalid configuration");
+            return;
+        }
+        int poolsize = Math.max(1, getIntValue(cfg, CFG_POOL_SIZE, 2));
+        batchSize = Math.max(1, getIntValue(cfg, CFG_POOL_BATCH_SIZE, 20));
+        idleTime = Math.max(1, getIntValue(cfg, CFG_POOL_IDLE_TIME, 30));
+        queue = new LinkedBlockingQueue<>(Math.max(1, getIntValue(cfg, CFG_POOL_QUEUE_SIZE, 1000)));
+
+        Authenticator auth = new Authenticator() {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication() {
+                String user = cfg.getProperty("mail.smtp.user", "");
+                String pw = cfg.getProperty("mail.smtp.password", "");
+                return new PasswordAuthentication(user, pw);
+            }
+        };
+        session = Session.getInstance(cfg, auth);
+
+        running = true;
+        for (int i = 0; i < poolsize; i++) {
+            Thread worker = threadFactory.newThread(this::deliver);
+            workers.add(worker);
+            worker.start();
+        }
+        Log.info(TAG, "Mail delivery started with " + poolsize + " connections");
+    }
+
+    /**
+     * Stop the workers. The queued messages are still sent within the shutdown
+     * timeout, the recipients of messages which could not be sent are logged.
+     */
+    @PreDestroy
+    public void mailDeliveryShutdown() {
+        running = false;
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        try {
+            for (Thread worker: workers) {
+                worker.join(Math.max(1L, deadline - System.currentTimeMillis()));
+            }
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        workers.forEach(Thread::interrupt);
+        workers.clear();
+        if (queue != null) {
+            List<MimeMessage> dropped = new ArrayList<>();
+            queue.drainTo(dropped);
+            dropped.forEach((message) -> Log.warning(TAG, "*** dropping e-mail on shutdown, recipients: " + getRecipients(message)));
+        }
+    }
+
+    /**
+     * Get the mail session for creating messages.
+     *
+     * @return Mail session, or null if the mailer configuration is invalid
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Queue a message for sending. If the queue is full then the caller waits for a
+     * while, the recipients of a message which could not be queued are logged.
+     *
+     * @param message   Message created with the session of this instance
+     * @return          Return false if the message could not be queued.
+     */
+    public boolean send(MimeMessage message) {
+        if (!running) {
+            Log.warning(TAG, "*** mail delivery is stopped, dropping e-mail, recipients: " + getRecipients(message));
+            return false;
+        }
+        try {
+            if (queue.offer(message, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            Log.warning(TAG, "*** the mail queue is full, dropping e-mail, recipients: " + getRecipients(message));
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Log.warning(TAG, "*** interrupted while queuing, dropping e-mail, recipients: " + getRecipients(message));
+        }
+        return false;
+    }
+
+    /**
+     * Worker loop, it runs on its own thread and owns one transport.
+     */
+    private void deliver() {
+        Transport transport = null;
+        List<MimeMessage> batch = new ArrayList<>(batchSize);
+        long idlesince = System.currentTimeMillis();
+        try {
+            // on shutdown the queue is drained before leaving
+            while (running || !queue.isEmpty()) {
+                // wait in short steps, so a shutdown is noticed early
+                MimeMessage first = queue.poll(running ? 1L : 0L, TimeUnit.SECONDS);
+                if (first == null) {
+                    if ((transport != null) && ((System.currentTimeMillis() - idlesince) >= (idleTime * 1000L))) {
+                        // idle, release the connection
+                        transport = close(transport);
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                for (MimeMessage message: batch) {
+                    transport = sendMessage(transport, message);
+                }
+                batch.clear();
+                idlesince = System.currentTimeMillis();
+            }
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            close(transport);
+        }
+    }
+
+    /**
+     * Send a message over the given transport. The connection is not probed before
+     * sending, if sending fails then a new connection is established and the sending
+     * is tried once more. A message refused for some of its recipients is not sent
+     * again, it may have reached the other recipients already.
+     *
+     * @return The transport to use for further messages, may be null
+     */
+    private Transport sendMessage(Transport transport, MimeMessage message) {
+        try {
+            message.saveChanges();
+        }
+        catch(MessagingException ex) {
+            Log.warning(TAG, "*** could not prepare e-mail, reason: " + ex.getLocalizedMessage());
+            return transport;
+        }
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                if (transport == null) {
+                    transport = session.getTransport();
+                    transport.connect();
+                }
+                transport.sendMessage(message, message.getAllRecipients());
+                return transport;
+            }
+            catch(SendFailedException ex) {
+                Log.warning(TAG, "*** could not send out e-mail to " + getRecipients(message) +
+                                 ", unsent addresses: " + Arrays.toString(ex.getValidUnsentAddresses()) +
+                                 ", invalid addresses: " + Arrays.toString(ex.getInvalidAddresses()) +
+                                 ", reason: " + ex.getLocalizedMessage());
+                return transport;
+            }
+            catch(MessagingException ex) {
+                // the connection may have been closed by the server, start over with a new one
+                transport = close(transport);
+                if (attempt > 0) {
+                    Log.warning(TAG, "*** could not send out e-mail to " + getRecipients(message) + ", reason: " + ex.getLocalizedMessage());
+                }
+                else {
+                    Log.debug(TAG, "could not send e-mail, reconnecting, reason: " + ex.getLocalizedMessage());
+                }
+            }
+        }
+        return transport;
+    }
+
+    private static Transport close(Transport transport) {
+        if (transport != null) {
+            try {
+                transport.close();
+            }
+            catch(MessagingException ex) {
+                Log.debug(TAG, "problem occurred while closing mail connection, reason: " + ex.getLocalizedMessage());
+            }
+        }
+        return null;
+    }
+
+    private static String getRecipients(MimeMessage message) {
+        try {
+            Address[] recipients = message.getAllRecipients();
+            return (recipients != null) ? Arrays.toString(recipients) : "[]";
+        }
+        catch(MessagingException ex) {
+            return "?";
+        }
+    }
+
+    private static int getIntValue(Properties cfg, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(cfg.getProperty(key, String.valueOf(defaultValue)).trim());
+        }
+        catch(NumberFormatException ex) {
+            Log.warning(TAG, "invalid mailer config value for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get the mailer configuration. It is stored in a file specified in application configuration.
+     *
+     * @return Mailer configuration
+     */
+    private Properties getMailerConfig() {
+        if (mailServerConfig != null) {
+            return mailServerConfig;
+        }
+
+        try {
+            String cfgfile = AppConfiguration.getInstance().getConfigValue(AppConfiguration.TOKEN_MAILER_CONFIG_FILE);
+            if (cfgfile == null) {
+                Log.error(TAG, "*** Missing mailer configuration file entry in application configuration!");
+                return null;
+            }
+            InputStream configcontent = context.getResourceAsStream("/WEB-INF/" + cfgfile);
+            if (configcontent == null) {
+                Log.error(TAG, "*** Missing mail config file in application!");
+                return null;
+            }
+            Properties cfg = new Properties();
+            cfg.load(configcontent);
+            mailServerConfig = cfg;
+        }
+        catch (IOException ex) {
+            Log.warning(TAG, "*** Could not read e-mail sender configuration, reason: " + ex.getLocalizedMessage());
+        }
+
+        return mailServerConfig;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.notification;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.enterprise.event.Event;
+import javax.json.Json;
+import javax.json.JsonReader;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.TypedQuery;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Persistent outbox for user notifications. A notification is stored in the
+ * current transaction, so it is relayed to its recipients only if the transaction
+ * is committed. The notifications are relayed by NotificationOutboxRelay.
+ *
+ * @author boto
+ * Date of creation Dec 27, 2017
+ */
+public class NotificationOutbox {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "NotificationOutbox";
+
+    private final EntityManager entityManager;
+
+    private final Event<NotificationOutboxEvent> outboxEvent;
+
+    /**
+     * Create an instance for reading and updating the outbox entries.
+     *
+     * @param entityManager    Entity manager of the current transaction
+     */
+    public NotificationOutbox(EntityManager entityManager) {
+        this(entityManager, null);
+    }
+
+    /**
+     * Create an instance which lets the relay know about added notifications.
+     *
+     * @param entityManager    Entity manager of the current transaction
+     * @param outboxEvent      Event used for waking up the relay, see NotificationOutboxRelay
+     */
+    public NotificationOutbox(EntityManager entityManager, Event<NotificationOutboxEvent> outboxEvent) {
+        this.entityManager = entityManager;
+        this.outboxEvent = outboxEvent;
+    }
+
+    /**
+     * Put a notification into the outbox. This must be called inside of a transaction.
+     *
+     * @param event     Notification
+     * @return          Outbox entry
+     */
+    public NotificationOutboxEntity add(NotifyUsersEvent event) {
+        long now = System.currentTimeMillis();
+        NotificationOutboxEntity entry = new NotificationOutboxEntity();
+        entry.setSenderId(event.getSenderId());
+        entry.setRecipientIds(event.getRecipientIds().stream().map(String::valueOf).collect(Collectors.joining(",")));
+        entry.setType(event.getType());
+        entry.setSubject(event.getSubject());
+        entry.setText(event.getText());
+        entry.setData((event.getData() != null) ? event.getData().toString() : null);
+        entry.setCreatedAt(now);
+        entry.setNextAttempt(now);
+        entityManager.persist(entry);
+        // let the relay know, it starts relaying when the transaction was committed
+        if (outboxEvent != null) {
+            outboxEvent.fire(new NotificationOutboxEvent());
+        }
+        return entry;
+    }
+
+    /**
+     * Get notifications which are due for delivery. The entries are locked until
+     * the end of transaction, so they are not relayed by two nodes at the same time.
+     *
+     * @param now           Current time stamp
+     * @param maxResults    Maximal count of notifications
+     * @return              Due notifications, the oldest first
+     */
+    public List<NotificationOutboxEntity> getDue(long now, int maxResults) {
+        TypedQuery<NotificationOutboxEntity> query = entityManager.createNamedQuery("NotificationOutboxEntity.findDue", NotificationOutboxEntity.class);
+        query.setParameter("now", now);
+        query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        return query.setMaxResults(maxResults).getResultList();
+    }
+
+    /**
+     * Get the count of notifications waiting for delivery.
+     *
+     * @return Count of pending notifications
+     */
+    public long getCountPending() {
+        return entityManager.createNamedQuery("NotificationOutboxEntity.countPending", Long.class).getSingleResult();
+    }
+
+    /**
+     * Mark notifications as delivered.
+     *
+     * @param ids       Notification IDs
+     * @return          Count of updated notifications
+     */
+    public int markDelivered(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return entityManager.createNamedQuery("NotificationOutboxEntity.markDelivered").setParameter("ids", ids).executeUpdate();
+    }
+
+    /**
+     * Delete delivered and failed notifications which were created before given time.
+     *
+     * @param before    Time stamp
+     * @return          Count of deleted notifications
+     */
+    public int purgeFinished(long before) {
+        return entityManager.createNamedQuery("NotificationOutboxEntity.purgeFinished").setParameter("before", before).executeUpdate();
+    }
+
+    /**
+     * Create the notification event out of an outbox entry.
+     *
+     * @param entry     Outbox entry
+     * @return          Notification, its notification ID is the entry ID
+     */
+    public static NotifyUsersEvent toEvent(NotificationOutboxEntity entry) {
+        NotifyUsersEvent event = new NotifyUsersEvent();
+        event.setNotificationId(entry.getId());
+        event.setSenderId(entry.getSenderId());
+        event.setType(entry.getType());
+        event.setSubject(entry.getSubject());
+        event.setText(entry.getText());
+        if (entry.getData() != null) {
+            try (JsonReader reader = Json.createReader(new StringReader(entry.getData()))) {
+                event.setData(reader.readObject());
+            }
+            catch(RuntimeException ex) {
+                Log.warning(TAG, "invalid data in outbox notification " + entry.getId() + ", reason: " + ex.getLocalizedMessage());
+            }
+        }
+        List<Long> recipients = new ArrayList<>();
+        for (String id: entry.getRecipientIds().split(",")) {
+            if (!id.isEmpty()) {
+                recipients.add(Long.parseLong(id));
+            }
+        }
+        event.setRecipientIds(recipients);
+        return event;
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.notification;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+
+/**
+ * A user notification waiting in the outbox for being delivered. It is written
+ * in the transaction which causes the notification, so it exists only if the
+ * transaction was committed. See NotificationOutbox.
+ *
+ * @author boto
+ * Date of creation Dec 27, 2017
+ */
+@Entity
+@NamedQueries({
+    /**
+     * Find notifications which are due for delivery.
+     * Query parameter:
+     *   now  Current time stamp
+     */
+    @NamedQuery(
+      name = "NotificationOutboxEntity.findDue",
+      query = "SELECT n FROM NotificationOutboxEntity n WHERE n.delivered = false AND n.failed = false AND n.nextAttempt <= :now ORDER BY n.id"
+    ),
+    /**
+     * Count notifications waiting for delivery.
+     */
+    @NamedQuery(
+      name = "NotificationOutboxEntity.countPending",
+      query = "SELECT COUNT(n) FROM NotificationOutboxEntity n WHERE n.delivered = false AND n.failed = false"
+    ),
+    /**
+     * Mark notifications as delivered.
+     * Query parameter:
+     *   ids  Notification IDs
+     */
+    @NamedQuery(
+      name = "NotificationOutboxEntity.markDelivered",
+      query = "UPDATE NotificationOutboxEntity n SET n.delivered = true WHERE n.id IN :ids"
+    ),
+    /**
+     * Delete finished notifications which are older than given time stamp.
+     * Query parameter:
+     *   before  Time stamp
+     */
+    @NamedQuery(
+      name = "NotificationOutboxEntity.purgeFinished",
+      query = "DELETE FROM NotificationOutboxEntity n WHERE (n.delivered = true OR n.failed = true) AND n.createdAt < :before"
+    )
+})
+public class NotificationOutboxEntity implements Serializable {
+
+    /**
+     * Serialization version
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Unique entity ID, it is also the notification ID seen by clients
+     */
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private Long id;
+
+    /**
+     * Sender ID, 0 for system
+     */
+    private Long senderId = 0L;
+
+    /**
+     * Recipient IDs separated by comma
+     */
+    @Lob
+    @Column(nullable=false)
+    private String recipientIds = "";
+
+    /**
+     * Notification type
+     */
+    private String type = "";
+
+    /**
+     * Notification subject
+     */
+    private String subject = "";
+
+    /**
+     * Notification text
+     */
+    private String text = "";
+
+    /**
+     * Notification data in JSON format, may be null
+     */
+    @Lob
+    private String data;
+
+    /**
+     * Creation time stamp in milliseconds
+     */
+    private Long createdAt = 0L;
+
+    /**
+     * Time stamp in milliseconds of next delivery attempt
+     */
+    private Long nextAttempt = 0L;
+
+    /**
+     * Count of failed delivery attempts
+     */
+    private Integer attempts = 0;
+
+    /**
+     * Was the notification delivered?
+     */
+    private Boolean delivered = false;
+
+    /**
+     * Did the delivery fail permanently?
+     */
+    private Boolean failed = false;
+
+    /**
+     * Get ID.
+     * @return ID
+     */
+    public Long getId() {
+        return id;
+    }
+
+    /**
+     * Set ID.
+     * @param id
+     */
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    /**
+     * Get the sender ID.
+     *
+     * @return Sender ID, 0 for system
+     */
+    public Long getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * Set the sender ID.
+     *
+     * @param senderId Sender ID
+     */
+    public void setSenderId(Long senderId) {
+        this.senderId = senderId;
+    }
+
+    /**
+     * Get the recipient IDs.
+     *
+     * @return Recipient IDs separated by comma
+     */
+    public String getRecipientIds() {
+        return recipientIds;
+    }
+
+    /**
+     * Set the recipient IDs.
+     *
+     * @param recipientIds Recipient IDs separated by comma
+     */
+    public void setRecipientIds(String recipientIds) {
+        this.recipientIds = recipientIds;
+    }
+
+    /**
+     * Get the notification type.
+     *
+     * @return Type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Set the notification type.
+     *
+     * @param type Type
+     */
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    /**
+     * Get the notification subject.
+     *
+     * @return Subject
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * Set the notification subject.
+     *
+     * @param subject Subject
+     */
+    public void setSubject(String subject) {
+        this.subject = subject;
+    }
+
+    /**
+     * Get the notification text.
+     *
+     * @return Text
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Set the notification text.
+     *
+     * @param text Text
+     */
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Get the notification data.
+     *
+     * @return Data in JSON format, may be null
+     */
+    public String getData() {
+        return data;
+    }
+
+    /**
+     * Set the notification data.
+     *
+     * @param data Data in JSON format
+     */
+    public void setData(String data) {
+        this.data = data;
+    }
+
+    /**
+     * Get the creation time stamp.
+     *
+     * @return Time stamp in milliseconds
+     */
+    public Long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Set the creation time stamp.
+     *
+     * @param createdAt Time stamp in milliseconds
+     */
+    public void setCreatedAt(Long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    /**
+     * Get the time stamp of next delivery attempt.
+     *
+     * @return Time stamp in milliseconds
+     */
+    public Long getNextAttempt() {
+        return nextAttempt;
+    }
+
+    /**
+     * Set the time stamp of next delivery attempt.
+     *
+     * @param nextAttempt Time stamp in milliseconds
+     */
+    public void setNextAttempt(Long nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
+
+    /**
+     * Get the count of failed delivery attempts.
+     *
+     * @return Count of attempts
+     */
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Set the count of failed delivery attempts.
+     *
+     * @param attempts Count of attempts
+     */
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * Was the notification delivered?
+     *
+     * @return Return true if the notification was delivered.
+     */
+    public Boolean getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Set the delivery flag.
+     *
+     * @param delivered Pass true if the notification was delivered
+     */
+    public void setDelivered(Boolean delivered) {
+        this.delivered = delivered;
+    }
+
+    /**
+     * Did the delivery fail permanently?
+     *
+     * @return Return true if the notification will not be delivered.
+     */
+    public Boolean getFailed() {
+        return failed;
+    }
+
+    /**
+     * Set the failure flag.
+     *
+     * @param failed Pass true if the delivery failed permanently
+     */
+    public void setFailed(Boolean failed) {
+        this.failed = failed;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        hash += (id != null ? id.hashCode() : 0);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof NotificationOutboxEntity)) {
+            return false;
+        }
+        NotificationOutboxEntity other = (NotificationOutboxEntity) object;
+        if ((this.id == null && other.id != null) || (this.id != null && !this.id.equals(other.id))) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "net.m4e.app.notification.NotificationOutboxEntity[ id=" + id + " ]";
+    }
+}
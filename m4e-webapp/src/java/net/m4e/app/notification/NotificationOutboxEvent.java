@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ * 
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+package net.m4e.app.notification;
+
+/**
+ * Event fired when a notification was put into the outbox. It is observed by
+ * NotificationOutboxRelay after the transaction was committed.
+ * 
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class NotificationOutboxEvent {
+
+    public NotificationOutboxEvent() {}
+}
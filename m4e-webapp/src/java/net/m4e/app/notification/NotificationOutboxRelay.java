@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.notification;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import net.m4e.app.communication.CommunicationMetrics;
+import net.m4e.app.user.UserEntity;
+import net.m4e.app.user.Users;
+import net.m4e.system.core.AppConfiguration;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Background dispatcher relaying the notifications of the outbox (see NotificationOutbox)
+ * to their recipients. A relay run starts right after a transaction which put
+ * notifications into the outbox was committed, a poll every second picks up retries
+ * and notifications missed by the trigger (e.g. written on another node).
+ *
+ * The due notifications are taken in batches and handed to the notification
+ * scheduler. A notification is marked as delivered only after the scheduler
+ * confirmed sending it, until then it is leased for the ack timeout and relayed
+ * again if no confirmation arrives. A notification which was shed or could not be
+ * sent is retried with an increasing delay until the maximal count of attempts is
+ * reached.
+ *
+ * Every notification carries its outbox ID, so clients can drop a notification
+ * which was delivered more than once, e.g. when a confirmation got lost.
+ *
+ * @author boto
+ * Date of creation Dec 27, 2017
+ */
+@Singleton
+@Lock(LockType.READ)
+public class NotificationOutboxRelay {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "NotificationOutboxRelay";
+
+    /**
+     * Communication config key for the maximal count of notifications relayed in one run
+     */
+    public final static String CFG_OUTBOX_BATCH_SIZE = "notify.outbox.batchSize";
+
+    /**
+     * Communication config key for the maximal count of delivery attempts
+     */
+    public final static String CFG_OUTBOX_MAX_ATTEMPTS = "notify.outbox.maxAttempts";
+
+    /**
+     * Communication config key for the time in milliseconds a relayed notification waits for its sending confirmation
+     */
+    public final static String CFG_OUTBOX_ACK_TIMEOUT = "notify.outbox.ackTimeout";
+
+    /**
+     * Communication config key for the hours delivered notifications are kept
+     */
+    public final static String CFG_OUTBOX_RETENTION = "notify.outbox.retention";
+
+    /**
+     * Maximal delay between two delivery attempts in milliseconds
+     */
+    private final static long MAX_RETRY_DELAY = 60000L;
+
+    /**
+     * Finished notifications are purged every this count of runs
+     */
+    private final static int PURGE_PERIOD = 60;
+
+    /**
+     * Entity manager needed for entity retrieval and modifications.
+     */
+    @PersistenceContext(unitName = net.m4e.system.core.AppConfiguration.PERSITENCE_UNIT_NAME)
+    private EntityManager entityManager;
+
+    /**
+     * Schedules the relayed notifications by their priority
+     */
+    @Inject
+    NotificationScheduler scheduler;
+
+    /**
+     * Used for publishing the relay metrics
+     */
+    @Inject
+    CommunicationMetrics metrics;
+
+    @Resource
+    TimerService timerService;
+
+    private int batchSize = 100;
+
+    private int maxAttempts = 5;
+
+    private long ackTimeout = 30000L;
+
+    private long retention = 24L * 3600L * 1000L;
+
+    private int runs = 0;
+
+    /**
+     * Only one relay run at a time, a trigger during a run causes another run
+     */
+    private final ReentrantLock relayLock = new ReentrantLock();
+
+    private final AtomicBoolean triggered = new AtomicBoolean();
+
+    /**
+     * Notifications whose sending was confirmed or failed, they are updated by the next run
+     */
+    private final Queue<Long> sentIds = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Long> failedIds = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder countDelivered = new LongAdder();
+
+    private final LongAdder countRetries = new LongAdder();
+
+    private final LongAdder countFailed = new LongAdder();
+
+    private final AtomicLong lastLag = new AtomicLong();
+
+    private final AtomicLong maxLag = new AtomicLong();
+
+    private final AtomicLong countPending = new AtomicLong();
+
+    /**
+     * Setup the relay.
+     */
+    @PostConstruct
+    public void notificationOutboxRelayInit() {
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        batchSize = (int)Math.max(1L, cfg.getCommunicationConfigValue(CFG_OUTBOX_BATCH_SIZE, 100L));
+        maxAttempts = (int)Math.max(1L, cfg.getCommunicationConfigValue(CFG_OUTBOX_MAX_ATTEMPTS, 5L));
+        ackTimeout = Math.max(1000L, cfg.getCommunicationConfigValue(CFG_OUTBOX_ACK_TIMEOUT, 30000L));
+        retention = Math.max(1L, cfg.getCommunicationConfigValue(CFG_OUTBOX_RETENTION, 24L)) * 3600L * 1000L;
+
+        metrics.registerCounter("notify_outbox_delivered_total", "Notifications relayed from the outbox", countDelivered::sum);
+        metrics.registerCounter("notify_outbox_retries_total", "Failed outbox delivery attempts which are retried", countRetries::sum);
+        metrics.registerCounter("notify_outbox_failed_total", "Outbox notifications given up after the maximal count of attempts", countFailed::sum);
+        metrics.registerGauge("notify_outbox_pending", "Notifications waiting in the outbox", countPending::get);
+        metrics.registerGauge("notify_outbox_lag_last_ms", "Time from writing the last relayed notification until sending it", lastLag::get);
+        metrics.registerGauge("notify_outbox_lag_max_ms", "Maximal time from writing a notification until sending it", maxLag::get);
+    }
+
+    /**
+     * Start a relay run when a transaction which put notifications into the outbox
+     * was committed. The runs of several commits are folded.
+     *
+     * @param event     Outbox event
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void onNotificationAdded(@Observes(during = TransactionPhase.AFTER_SUCCESS) NotificationOutboxEvent event) {
+        trigger();
+    }
+
+    /**
+     * Relay run started by a trigger.
+     *
+     * @param timer     Trigger timer
+     */
+    @Timeout
+    public void relayTriggered(Timer timer) {
+        triggered.set(false);
+        relay();
+    }
+
+    /**
+     * Relay the due notifications, this runs every second and after commits.
+     */
+    @Schedule(second="*", minute="*", hour="*", persistent=false)
+    public void relay() {
+        if (!relayLock.tryLock()) {
+            // a run is in progress, it may have missed the new notifications
+            trigger();
+            return;
+        }
+        try {
+            relayDue();
+        }
+        finally {
+            relayLock.unlock();
+        }
+    }
+
+    private void trigger() {
+        if (triggered.compareAndSet(false, true)) {
+            timerService.createSingleActionTimer(0L, new TimerConfig(null, false));
+        }
+    }
+
+    private void relayDue() {
+        NotificationOutbox outbox = new NotificationOutbox(entityManager);
+        long now = System.currentTimeMillis();
+        applySendResults(outbox, now);
+
+        List<NotificationOutboxEntity> due = outbox.getDue(now, batchSize);
+        Users users = new Users(entityManager);
+        for (NotificationOutboxEntity entry: due) {
+            try {
+                NotifyUsersEvent event = NotificationOutbox.toEvent(entry);
+                UserEntity sender = (event.getSenderId() != 0L) ? users.findUser(event.getSenderId()) : null;
+                Long id = entry.getId();
+                long createdat = entry.getCreatedAt();
+                // lease the notification until its sending is confirmed
+                entry.setNextAttempt(now + ackTimeout);
+                boolean queued = scheduler.submit(NotifyUsersListener.createPacket(event, sender), event.getRecipientIds(), (sent) -> {
+                    if (sent) {
+                        sentIds.add(id);
+                        long lag = System.currentTimeMillis() - createdat;
+                        lastLag.set(lag);
+                        maxLag.accumulateAndGet(lag, Math::max);
+                    }
+                    else {
+                        failedIds.add(id);
+                    }
+                });
+                if (!queued) {
+                    retryLater(entry, now, "shed because of load");
+                }
+            }
+            catch(RuntimeException ex) {
+                retryLater(entry, now, ex.getLocalizedMessage());
+            }
+        }
+
+        if (++runs >= PURGE_PERIOD) {
+            runs = 0;
+            int count = outbox.purgeFinished(now - retention);
+            if (count > 0) {
+                Log.verbose(TAG, "purged " + count + " finished outbox notifications");
+            }
+        }
+        countPending.set(outbox.getCountPending());
+    }
+
+    /**
+     * Take over the confirmations of the scheduler which arrived since the last run.
+     */
+    private void applySendResults(NotificationOutbox outbox, long now) {
+        List<Long> sent = new ArrayList<>();
+        for (Long id = sentIds.poll(); id != null; id = sentIds.poll()) {
+            sent.add(id);
+        }
+        if (!sent.isEmpty()) {
+            outbox.markDelivered(sent);
+            countDelivered.add(sent.size());
+        }
+        for (Long id = failedIds.poll(); id != null; id = failedIds.poll()) {
+            NotificationOutboxEntity entry = entityManager.find(NotificationOutboxEntity.class, id);
+            if ((entry != null) && !entry.getDelivered() && !entry.getFailed()) {
+                retryLater(entry, now, "sending failed");
+            }
+        }
+    }
+
+    /**
+     * Count a failed delivery attempt, the notification is retried later or given up.
+     */
+    private void retryLater(NotificationOutboxEntity entry, long now, String reason) {
+        int attempts = entry.getAttempts() + 1;
+        entry.setAttempts(attempts);
+        if (attempts >= maxAttempts) {
+            entry.setFailed(true);
+            countFailed.increment();
+            Log.warning(TAG, "giving up notification " + entry.getId() + " after " + attempts + " attempts, reason: " + reason);
+        }
+        else {
+            entry.setNextAttempt(now + Math.min(MAX_RETRY_DELAY, 1000L << attempts));
+            countRetries.increment();
+            Log.debug(TAG, "could not relay notification " + entry.getId() + ", retrying later, reason: " + reason);
+        }
+    }
+}
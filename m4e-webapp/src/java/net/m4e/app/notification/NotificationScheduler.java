@@ -0,0 +1,649 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.notification;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import net.m4e.app.communication.CommunicationMetrics;
+import net.m4e.app.communication.ConnectedClients;
+import net.m4e.app.communication.Packet;
+import net.m4e.app.communication.PacketFrame;
+import net.m4e.system.core.AppConfiguration;
+import net.m4e.system.core.Log;
+
+
+/**
+ * Scheduler for outgoing notify packets. Every notification type belongs to a
+ * priority class (critical, normal, low), every class has its own bounded queue.
+ * The recipients are spread over several dispatch shards by their user ID, every
+ * shard has its own queues and dispatcher thread. So a slow notification delays
+ * only the recipients of one shard, and the notifications of a recipient are
+ * sent in order of their submission within a class. A dispatcher always takes
+ * the oldest notification of the highest non-empty class, so chatty low-value
+ * notifications such as online status or votes cannot delay critical ones such as
+ * removing an event.
+ *
+ * Under load:
+ *  - low notifications of the same kind are coalesced when the low queue exceeds
+ *    its coalesce threshold, only the latest one is sent to the union of recipients
+ *  - low and normal notifications are shed when their queue is full
+ *  - critical notifications are never shed, if their queue is full they are queued
+ *    anyway and counted as overflow, so they keep their order
+ *  - the recipients of a shed notification whose type has a resync handler (see
+ *    setResyncHandler) are handed to that handler when the queues of their shard
+ *    are drained, at the latest after the resync interval, so they can get a
+ *    snapshot of the lost state; a shard keeps a bounded count of recipients
+ *    waiting for a resync, further ones are counted as dropped resyncs
+ *
+ * Notifications waiting longer than the late threshold of their class are counted
+ * as late. All counters are published through CommunicationMetrics.
+ *
+ * @author boto
+ * Date of creation Dec 28, 2017
+ */
+@ApplicationScoped
+public class NotificationScheduler {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "NotificationScheduler";
+
+    /**
+     * Communication config keys for the notification types of critical and low classes,
+     * as comma separated lists. All other types are normal.
+     */
+    public final static String CFG_PRIORITY_CRITICAL = "notify.priority.critical";
+    public final static String CFG_PRIORITY_LOW = "notify.priority.low";
+
+    /**
+     * Communication config key for the types of low class which can be coalesced
+     */
+    public final static String CFG_COALESCE_TYPES = "notify.coalesce.types";
+
+    /**
+     * Communication config key for the low queue depth above which low notifications are coalesced
+     */
+    public final static String CFG_COALESCE_THRESHOLD = "notify.coalesce.threshold";
+
+    /**
+     * Communication config key formats for the queue size and late threshold (ms) per class,
+     * e.g. notify.queue.low.size. The size is shared by all shards.
+     */
+    public final static String CFG_QUEUE_SIZE = "notify.queue.%s.size";
+    public final static String CFG_QUEUE_LATE = "notify.queue.%s.late";
+
+    /**
+     * Communication config key for the count of dispatch shards, i.e. dispatcher threads
+     */
+    public final static String CFG_SHARDS = "notify.shards";
+
+    /**
+     * Communication config keys for the maximal time (ms) recipients wait for a resync
+     * while the queues are busy, and the maximal count of recipients waiting for a resync.
+     * The count is shared by all shards.
+     */
+    public final static String CFG_RESYNC_INTERVAL = "notify.resync.interval";
+    public final static String CFG_RESYNC_SIZE = "notify.resync.size";
+
+    private final static String DEFAULT_CRITICAL_TYPES = "addevent,removeevent,addmember,removemember";
+
+    private final static String DEFAULT_LOW_TYPES = "onlinestatus,onlinestatusbatch,modifyvote";
+
+    private final static String DEFAULT_COALESCE_TYPES = "onlinestatus,modifyvote";
+
+    /**
+     * Priority classes, in order of priority
+     */
+    private final static String[] CLASSES = {"critical", "normal", "low"};
+
+    private final static int CRITICAL = 0;
+
+    private final static int NORMAL = 1;
+
+    private final static int LOW = 2;
+
+    private final static long[] DEFAULT_QUEUE_SIZES = {10000L, 5000L, 2000L};
+
+    private final static long[] DEFAULT_LATE_THRESHOLDS = {100L, 500L, 2000L};
+
+    @Inject
+    ConnectedClients connections;
+
+    @Inject
+    CommunicationMetrics metrics;
+
+    @Resource(lookup = "java:comp/DefaultManagedThreadFactory")
+    ManagedThreadFactory threadFactory;
+
+    /**
+     * Sending result of a notification which was split over several shards. The
+     * callback is called when all parts were sent, unless the submission was shed.
+     */
+    private static class Completion {
+
+        private final AtomicInteger remaining;
+
+        private final Consumer<Boolean> callback;
+
+        private volatile boolean success = true;
+
+        private volatile boolean cancelled = false;
+
+        private Completion(int parts, Consumer<Boolean> callback) {
+            this.remaining = new AtomicInteger(parts);
+            this.callback = callback;
+        }
+
+        private void done(boolean sent) {
+            if (!sent) {
+                success = false;
+            }
+            if ((remaining.decrementAndGet() == 0) && !cancelled) {
+                callback.accept(success);
+            }
+        }
+    }
+
+    /**
+     * A queued notification for the recipients of one shard
+     */
+    private static class Entry {
+
+        private PacketFrame frame;
+
+        private final Set<Long> recipients;
+
+        private final String coalesceKey;
+
+        private final long queued = System.nanoTime();
+
+        private final List<Completion> completions = new ArrayList<>(1);
+
+        private Entry(PacketFrame frame, Collection<Long> recipients, String coalesceKey, Completion completion) {
+            this.frame = frame;
+            this.recipients = new LinkedHashSet<>(recipients);
+            this.coalesceKey = coalesceKey;
+            if (completion != null) {
+                completions.add(completion);
+            }
+        }
+    }
+
+    /**
+     * Queues and dispatcher of a part of the recipients
+     */
+    private class Shard {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition available = lock.newCondition();
+
+        private final List<ArrayDeque<Entry>> queues = new ArrayList<>(CLASSES.length);
+
+        /**
+         * Pending low notifications which can be coalesced
+         */
+        private final Map<String, Entry> coalescable = new HashMap<>();
+
+        /**
+         * Recipients which missed notifications of a type with resync handler
+         */
+        private final Map<String, Set<Long>> resync = new HashMap<>();
+
+        private int resyncCount = 0;
+
+        /**
+         * Time when the first of the recipients waiting for a resync was added
+         */
+        private long resyncSince;
+
+        private Thread dispatcher;
+
+        private Shard() {
+            for (int i = 0; i < CLASSES.length; i++) {
+                queues.add(new ArrayDeque<>());
+            }
+        }
+
+        /**
+         * Queue a notification part.
+         *
+         * @return Return false if the part was shed.
+         */
+        private boolean offer(int cls, String type, PacketFrame frame, Packet packet, List<Long> recipientIds, Completion completion) {
+            lock.lock();
+            try {
+                ArrayDeque<Entry> queue = queues.get(cls);
+                String key = null;
+                if ((cls == LOW) && coalesceTypes.contains(type)) {
+                    key = getCoalesceKey(type, packet);
+                    Entry pending = coalescable.get(key);
+                    if ((pending != null) && (queue.size() > coalesceThreshold)) {
+                        // the latest notification of the same kind replaces the pending one
+                        pending.frame = frame;
+                        pending.recipients.addAll(recipientIds);
+                        if (completion != null) {
+                            pending.completions.add(completion);
+                        }
+                        countCoalesced.increment();
+                        return true;
+                    }
+                }
+                if (queue.size() >= queueSizes[cls]) {
+                    if (cls != CRITICAL) {
+                        countShed[cls].increment();
+                        if (resyncHandlers.containsKey(type)) {
+                            addResync(type, recipientIds);
+                        }
+                        return false;
+                    }
+                    countOverflow.increment();
+                }
+                Entry entry = new Entry(frame, recipientIds, key, completion);
+                queue.addLast(entry);
+                if (key != null) {
+                    coalescable.put(key, entry);
+                }
+                available.signal();
+                return true;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Remember recipients which missed a notification, the caller holds the lock.
+         */
+        private void addResync(String type, List<Long> recipientIds) {
+            if (resync.isEmpty()) {
+                resyncSince = System.nanoTime();
+            }
+            Set<Long> recipients = resync.computeIfAbsent(type, (t) -> new HashSet<>());
+            for (Long id: recipientIds) {
+                if (recipients.contains(id)) {
+                    continue;
+                }
+                if (resyncCount >= resyncSize) {
+                    countResyncDropped.increment();
+                }
+                else {
+                    recipients.add(id);
+                    resyncCount++;
+                }
+            }
+            if (recipients.isEmpty()) {
+                resync.remove(type);
+            }
+        }
+
+        /**
+         * Check if the recipients waiting for a resync are handed to the handlers,
+         * the caller holds the lock.
+         */
+        private boolean isResyncDue(int cls) {
+            if (resync.isEmpty()) {
+                return false;
+            }
+            return (cls < 0) || (resyncCount >= resyncSize) ||
+                   (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - resyncSince) >= resyncInterval);
+        }
+
+        private int size(int cls) {
+            lock.lock();
+            try {
+                return queues.get(cls).size();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Dispatcher loop, it runs on its own thread.
+         */
+        private void dispatch() {
+            while (running) {
+                Entry entry = null;
+                int cls;
+                Map<String, Set<Long>> missed = null;
+                lock.lock();
+                try {
+                    cls = nextClass();
+                    while ((cls < 0) && resync.isEmpty()) {
+                        available.await(1L, TimeUnit.SECONDS);
+                        if (!running) {
+                            return;
+                        }
+                        cls = nextClass();
+                    }
+                    if (isResyncDue(cls)) {
+                        // the queues are drained or the recipients waited long enough, resync them
+                        missed = new HashMap<>(resync);
+                        resync.clear();
+                        resyncCount = 0;
+                    }
+                    else {
+                        entry = queues.get(cls).pollFirst();
+                        if (entry.coalesceKey != null) {
+                            coalescable.remove(entry.coalesceKey, entry);
+                        }
+                    }
+                }
+                catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                finally {
+                    lock.unlock();
+                }
+
+                if (missed != null) {
+                    resync(missed);
+                    continue;
+                }
+                long wait = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.queued);
+                if (wait > lateThresholds[cls]) {
+                    countLate[cls].increment();
+                }
+                boolean sent = send(entry.frame, new ArrayList<>(entry.recipients));
+                entry.completions.forEach((completion) -> completion.done(sent));
+            }
+        }
+
+        private int nextClass() {
+            for (int i = 0; i < CLASSES.length; i++) {
+                if (!queues.get(i).isEmpty()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final List<Shard> shards = new ArrayList<>();
+
+    /**
+     * Handlers called with the recipients which missed notifications of a type
+     */
+    private final Map<String, Consumer<Set<Long>>> resyncHandlers = new ConcurrentHashMap<>();
+
+    private final int[] queueSizes = new int[CLASSES.length];
+
+    private final long[] lateThresholds = new long[CLASSES.length];
+
+    private Set<String> criticalTypes;
+
+    private Set<String> lowTypes;
+
+    private Set<String> coalesceTypes;
+
+    private int coalesceThreshold = 500;
+
+    private long resyncInterval = 1000L;
+
+    private int resyncSize = 10000;
+
+    private final LongAdder[] countSubmitted = createCounters();
+
+    private final LongAdder[] countShed = createCounters();
+
+    private final LongAdder[] countLate = createCounters();
+
+    private final LongAdder countCoalesced = new LongAdder();
+
+    private final LongAdder countOverflow = new LongAdder();
+
+    private final LongAdder countResynced = new LongAdder();
+
+    private final LongAdder countResyncDropped = new LongAdder();
+
+    private volatile boolean running = false;
+
+    /**
+     * Setup the shards and start their dispatchers.
+     */
+    @PostConstruct
+    public void notificationSchedulerInit() {
+        AppConfiguration cfg = AppConfiguration.getInstance();
+        criticalTypes = parseTypes(cfg.getCommunicationConfigValue(CFG_PRIORITY_CRITICAL, DEFAULT_CRITICAL_TYPES));
+        lowTypes = parseTypes(cfg.getCommunicationConfigValue(CFG_PRIORITY_LOW, DEFAULT_LOW_TYPES));
+        coalesceTypes = parseTypes(cfg.getCommunicationConfigValue(CFG_COALESCE_TYPES, DEFAULT_COALESCE_TYPES));
+        coalesceThreshold = (int)Math.max(0L, cfg.getCommunicationConfigValue(CFG_COALESCE_THRESHOLD, 500L));
+        int shardcount = (int)Math.max(1L, cfg.getCommunicationConfigValue(CFG_SHARDS, (long)Runtime.getRuntime().availableProcessors()));
+        for (int i = 0; i < CLASSES.length; i++) {
+            long size = Math.max(1L, cfg.getCommunicationConfigValue(String.format(CFG_QUEUE_SIZE, CLASSES[i]), DEFAULT_QUEUE_SIZES[i]));
+            queueSizes[i] = (int)Math.max(1L, size / shardcount);
+            lateThresholds[i] = Math.max(0L, cfg.getCommunicationConfigValue(String.format(CFG_QUEUE_LATE, CLASSES[i]), DEFAULT_LATE_THRESHOLDS[i]));
+        }
+        coalesceThreshold = Math.max(0, coalesceThreshold / shardcount);
+        resyncInterval = Math.max(0L, cfg.getCommunicationConfigValue(CFG_RESYNC_INTERVAL, 1000L));
+        resyncSize = (int)Math.max(1L, cfg.getCommunicationConfigValue(CFG_RESYNC_SIZE, 10000L) / shardcount);
+        for (int i = 0; i < shardcount; i++) {
+            shards.add(new Shard());
+        }
+        registerMetrics();
+
+        running = true;
+        for (int i = 0; i < shardcount; i++) {
+            Shard shard = shards.get(i);
+            shard.dispatcher = threadFactory.newThread(shard::dispatch);
+            shard.dispatcher.start();
+        }
+        Log.info(TAG, "Notification scheduler started with " + shardcount + " dispatchers");
+    }
+
+    /**
+     * Stop the dispatchers, pending notifications are discarded.
+     */
+    @PreDestroy
+    public void notificationSchedulerShutdown() {
+        running = false;
+        shards.stream()
+            .filter((shard) -> shard.dispatcher != null)
+            .forEach((shard) -> shard.dispatcher.interrupt());
+    }
+
+    /**
+     * Set the handler for recipients which missed notifications of given type
+     * because they were shed. The handler is called on a dispatcher thread, it
+     * should send the recipients the current state, e.g. a snapshot.
+     *
+     * @param type      Notification type
+     * @param handler   Handler getting the recipient IDs, pass null for removing the handler
+     */
+    public void setResyncHandler(String type, Consumer<Set<Long>> handler) {
+        if (handler != null) {
+            resyncHandlers.put(type, handler);
+        }
+        else {
+            resyncHandlers.remove(type);
+        }
+    }
+
+    /**
+     * Schedule a notify packet for sending. The notification type is taken from
+     * the packet data field "type".
+     *
+     * @param packet        Notify packet
+     * @param recipientIds  Recipient (user) IDs
+     * @return              Return false if the notification was shed.
+     */
+    public boolean submit(Packet packet, List<Long> recipientIds) {
+        return submit(packet, recipientIds, null);
+    }
+
+    /**
+     * Schedule a notify packet for sending. The given callback is called with true
+     * when the packet was handed to all recipients' connections, or with false if
+     * sending failed. It is not called if the notification was shed, also if it was
+     * shed for only a part of the recipients.
+     *
+     * @param packet        Notify packet
+     * @param recipientIds  Recipient (user) IDs
+     * @param onSent        Callback called after sending, may be null
+     * @return              Return false if the notification was shed.
+     */
+    public boolean submit(Packet packet, List<Long> recipientIds, Consumer<Boolean> onSent) {
+        JsonObject data = packet.getData();
+        String type = (data != null) ? data.getString("type", "") : "";
+        int cls = criticalTypes.contains(type) ? CRITICAL : (lowTypes.contains(type) ? LOW : NORMAL);
+        countSubmitted[cls].increment();
+
+        // the frame is shared by all shards, so the packet is encoded only once
+        PacketFrame frame = new PacketFrame(packet);
+        Map<Shard, List<Long>> parts = new LinkedHashMap<>();
+        for (Long id: recipientIds) {
+            parts.computeIfAbsent(getShard(id), (shard) -> new ArrayList<>()).add(id);
+        }
+        Completion completion = (onSent != null) ? new Completion(parts.size(), onSent) : null;
+        int countshed = 0;
+        for (Map.Entry<Shard, List<Long>> part: parts.entrySet()) {
+            if (!part.getKey().offer(cls, type, frame, packet, part.getValue(), completion)) {
+                countshed++;
+            }
+        }
+        if ((completion != null) && (countshed > 0)) {
+            completion.cancelled = true;
+            for (int i = 0; i < countshed; i++) {
+                completion.done(false);
+            }
+        }
+        else if ((completion != null) && parts.isEmpty()) {
+            onSent.accept(true);
+        }
+        return countshed == 0;
+    }
+
+    /**
+     * Get the count of queued notifications.
+     *
+     * @return Count of queued notification parts of all classes and shards
+     */
+    public long getQueueDepth() {
+        long depth = 0L;
+        for (int i = 0; i < CLASSES.length; i++) {
+            depth += getQueueDepth(i);
+        }
+        return depth;
+    }
+
+    private long getQueueDepth(int cls) {
+        long depth = 0L;
+        for (Shard shard: shards) {
+            depth += shard.size(cls);
+        }
+        return depth;
+    }
+
+    private Shard getShard(Long userId) {
+        return shards.get(Math.floorMod(Long.hashCode(userId), shards.size()));
+    }
+
+    private boolean send(PacketFrame frame, List<Long> recipients) {
+        try {
+            connections.sendPacket(frame, recipients);
+            return true;
+        }
+        catch(RuntimeException ex) {
+            Log.warning(TAG, "problem occurred while sending notification, reason: " + ex.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    private void resync(Map<String, Set<Long>> missed) {
+        missed.forEach((type, recipients) -> {
+            Consumer<Set<Long>> handler = resyncHandlers.get(type);
+            if (handler == null) {
+                return;
+            }
+            try {
+                handler.accept(recipients);
+                countResynced.add(recipients.size());
+            }
+            catch(RuntimeException ex) {
+                Log.warning(TAG, "problem occurred while resyncing " + type + " notifications, reason: " + ex.getLocalizedMessage());
+            }
+        });
+    }
+
+    /**
+     * Notifications of the same type, sender and subject (all data fields ending with "Id") can be coalesced.
+     */
+    private static String getCoalesceKey(String type, Packet packet) {
+        StringBuilder key = new StringBuilder(type).append('|').append(packet.getSourceId());
+        JsonObject data = packet.getData();
+        JsonValue fields = (data != null) ? data.get("data") : null;
+        if ((fields != null) && (fields.getValueType() == JsonValue.ValueType.OBJECT)) {
+            ((JsonObject)fields).forEach((name, value) -> {
+                if (name.endsWith("Id") && (value.getValueType() == JsonValue.ValueType.STRING)) {
+                    key.append('|').append(name).append('=').append(((JsonString)value).getString());
+                }
+            });
+        }
+        return key.toString();
+    }
+
+    private void registerMetrics() {
+        for (int i = 0; i < CLASSES.length; i++) {
+            final int cls = i;
+            metrics.registerCounter("notify_" + CLASSES[i] + "_submitted_total", "Submitted " + CLASSES[i] + " notifications", countSubmitted[cls]::sum);
+            metrics.registerCounter("notify_" + CLASSES[i] + "_shed_total", "Shed " + CLASSES[i] + " notification parts", countShed[cls]::sum);
+            metrics.registerCounter("notify_" + CLASSES[i] + "_late_total", CLASSES[i] + " notification parts sent later than their threshold", countLate[cls]::sum);
+            metrics.registerGauge("notify_" + CLASSES[i] + "_queue_depth", "Queued " + CLASSES[i] + " notification parts", () -> getQueueDepth(cls));
+        }
+        metrics.registerCounter("notify_coalesced_total", "Low notifications replaced by a later one", countCoalesced::sum);
+        metrics.registerCounter("notify_critical_overflow_total", "Critical notifications queued beyond the queue size", countOverflow::sum);
+        metrics.registerCounter("notify_resynced_total", "Recipients handed to a resync handler after missing shed notifications", countResynced::sum);
+        metrics.registerCounter("notify_resync_dropped_total", "Recipients not resynced because too many were waiting for a resync", countResyncDropped::sum);
+    }
+
+    private static Set<String> parseTypes(String types) {
+        Set<String> set = new HashSet<>();
+        for (String type: types.split(",")) {
+            if (!type.trim().isEmpty()) {
+                set.add(type.trim());
+            }
+        }
+        return set;
+    }
+
+    private static LongAdder[] createCounters() {
+        LongAdder[] counters = new LongAdder[CLASSES.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+}
@@ -43,6 +43,13 @@ public abstract class NotifyEvent {
      */
     private JsonObject data;
 
+    /**
+     * Unique notification ID, 0 if the notification has no ID. Notifications
+     * relayed from the outbox have an ID, clients can use it for dropping
+     * notifications which were delivered more than once.
+     */
+    private long notificationId = 0L;
+
 
     public NotifyEvent() {}
 
@@ -136,4 +143,22 @@ public abstract class NotifyEvent {
     public void setData(JsonObject data) {
         this.data = data;
     }
+
+    /**
+     * Get the notification ID.
+     * 
+     * @return Notification ID, 0 if the notification has no ID
+     */
+    public long getNotificationId() {
+        return notificationId;
+    }
+
+    /**
+     * Set the notification ID.
+     * 
+     * @param notificationId Notification ID
+     */
+    public void setNotificationId(long notificationId) {
+        this.notificationId = notificationId;
+    }
 }
@@ -41,6 +41,12 @@ public class NotifyUsersListener {
     @Inject
     ConnectedClients connections;
 
+    /**
+     * Schedules the notifications by their priority
+     */
+    @Inject
+    NotificationScheduler scheduler;
+
     /**
      * Entity manager needed for entity retrieval and modifications.
      */
@@ -67,7 +73,17 @@ public class NotifyUsersListener {
             sender = connections.getConnectedUser(senderid);
         }
 
-        // assemble a packet and send it out
+        scheduler.submit(createPacket(event, sender), event.getRecipientIds());
+    }
+
+    /**
+     * Create a notify packet for given notification.
+     * 
+     * @param event     Notification
+     * @param sender    Sender of notification, null if the system sends it
+     * @return          Notify packet
+     */
+    public static Packet createPacket(NotifyEvent event, UserEntity sender) {
         Packet packet = new Packet();
         packet.setChannel(Packet.CHANNEL_NOTIFY);
         packet.setSourceId((sender != null) && (sender.getId() != null) ? sender.getId().toString() : "");
@@ -80,9 +96,11 @@ public class NotifyUsersListener {
         if (event.getData() != null) {
             json.add("data", event.getData());
         }
+        if (event.getNotificationId() != 0L) {
+            json.add("notificationId", String.valueOf(event.getNotificationId()));
+        }
         packet.setData(json.build());
-
-        connections.sendPacket(packet, event.getRecipientIds());
+        return packet;
     }
 
     /**
@@ -129,6 +147,6 @@ public class NotifyUsersListener {
         packet.setData(json.build());
 
         List<Long> recipients = users.getUserRelatives(sender);
-        connections.sendPacket(packet, recipients);
+        scheduler.submit(packet, recipients);
     }
 }
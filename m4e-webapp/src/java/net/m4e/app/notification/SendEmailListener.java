@@ -7,28 +7,21 @@
  */
 package net.m4e.app.notification;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Properties;
 import javax.ejb.Stateless;
 import javax.enterprise.event.ObservesAsync;
 import javax.inject.Inject;
-import javax.mail.Authenticator;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
-import javax.servlet.ServletContext;
-import net.m4e.system.core.AppConfiguration;
 import net.m4e.system.core.Log;
 
 
 /**
- * Event listener for sending e-mails.
+ * Event listener for sending e-mails. The mails are sent by MailDelivery.
  * 
  * @author boto
  * Date of creation Oct 2, 2017
@@ -41,14 +34,11 @@ public class SendEmailListener {
      */
     private final static String TAG = "SendEmailListener";
 
-    @Inject
-    ServletContext context;
-
     /**
-     * JavaMail configuration which is read from a config file
+     * Delivers the mails over pooled SMTP connections
      */
-    private static Properties mailServerConfig;
-  
+    @Inject
+    MailDelivery mailDelivery;
 
     public SendEmailListener() {}
     
@@ -68,22 +58,13 @@ public class SendEmailListener {
      * @param event Event contains the mail content
      */
     private void assembleMail(SendEmailEvent event) {
-        Properties cfg = getMailerConfig();
-        if (cfg == null) {
+        Session session = mailDelivery.getSession();
+        if (session == null) {
             Log.warning(TAG, "Cannot send e-mail, invalid configuration");
             return;
         }
+        Properties cfg = session.getProperties();
 
-        Authenticator auth = new Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-                String user = cfg.getProperty("mail.smtp.user", "");
-                String pw = cfg.getProperty("mail.smtp.password", "");
-                return new PasswordAuthentication(user, pw);
-            }
-        };
-
-        Session session = Session.getInstance(cfg, auth);
         MimeMessage message = new MimeMessage(session);
         try {
             message.setFrom(new InternetAddress(cfg.getProperty("mail.from", ""), cfg.getProperty("mail.from.name", "")));
@@ -107,42 +88,11 @@ public class SendEmailListener {
             else {
               message.setText(event.getBody());
             }
-            Transport.send(message);
+            // a message which could not be queued is logged by the mail delivery
+            mailDelivery.send(message);
         }
         catch (MessagingException | UnsupportedEncodingException ex){
             Log.warning(TAG, "*** could not send out e-mail, reason: " + ex.getLocalizedMessage());
         }
     }
-
-    /**
-     * Get the mailer configuration. It is stored in a file specified in application configuration.
-     * 
-     * @return Mailer configuration
-     */
-    private Properties getMailerConfig() {
-        if (mailServerConfig != null) {
-            return mailServerConfig;
-        }
-
-        try {
-            String cfgfile = AppConfiguration.getInstance().getConfigValue(AppConfiguration.TOKEN_MAILER_CONFIG_FILE);
-            if (cfgfile == null) {
-                Log.error(TAG, "*** Missing mailer configuration file entry in application configuration!");
-                return null;
-            }
-            InputStream configcontent = context.getResourceAsStream("/WEB-INF/" + cfgfile);
-            if (configcontent == null) {
-                Log.error(TAG, "*** Missing mail config file in application!");
-                return null;
-            }
-            Properties cfg = new Properties();
-            cfg.load(configcontent);
-            mailServerConfig = cfg;
-        }
-        catch (IOException ex) {
-            Log.warning(TAG, "*** Could not read e-mail sender configuration, reason: " + ex.getLocalizedMessage());
-        }
-
-        return mailServerConfig;
-    }
 }
@@ -29,6 +29,7 @@ import net.m4e.app.auth.AuthRole;
 import net.m4e.app.auth.RoleEntity;
 import net.m4e.app.communication.ConnectedClients;
 import net.m4e.app.event.EventEntity;
+import net.m4e.app.event.EventMemberships;
 import net.m4e.app.resources.DocumentEntity;
 import net.m4e.common.Entities;
 import net.m4e.app.resources.StatusEntity;
@@ -332,14 +333,19 @@ public class Users {
      * we use the term 'relative'.
      * 
      * NOTE: the current data architecture has no back association from users to the events
-     * they are involved in (by being a member). So we do a forward search by iterating
-     * all events and evaluating their members. This solution does not scale well, we may
-     * consider an optimization in data structure or a kind of an in-memory lookup cache in future.
+     * they are involved in (by being a member). The relatives are therefore taken from the
+     * co-membership graph of the in-memory event membership index. Only if the index is not
+     * built yet we do a forward search by iterating all events and evaluating their members.
      * 
      * @param user  User we search for relatives for
      * @return      List of IDs of all other users which are relatives of 'user'.
      */
     public List<Long> getUserRelatives(UserEntity user) {
+        List<Long> indexed = EventMemberships.getInstance().getRelatives(user.getId());
+        if (indexed != null) {
+            return indexed;
+        }
+
         Set<Long> relatives = new HashSet();
         Entities eutils = new Entities(entityManager);
         List<EventEntity> events = eutils.findAllEntities(EventEntity.class);
@@ -429,7 +435,7 @@ public class Users {
             // the ETag can be used on a client for caching purpose
             .add("photoETag", (entity.getPhoto() != null) ? entity.getPhoto().getETag(): "");
         // set the online status
-        boolean online = (connections.getConnectedUser(entity.getId()) != null);
+        boolean online = connections.isUserOnline(entity.getId());
         json.add("status", online ? "online" : "offline");
         return json;
     }
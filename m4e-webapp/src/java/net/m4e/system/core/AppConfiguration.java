@@ -62,11 +62,28 @@ public class AppConfiguration {
      */
     public final static String TOKEN_ACC_REGISTRATION_CONFIG_FILE = "AccountRegistrationConfigFile";
 
+    /**
+     * Configuration token name for communication config file.
+     * This file is used for tuning the real-time communication (WebSocket) layer.
+     */
+    public final static String TOKEN_COMMUNICATION_CONFIG_FILE = "CommunicationConfigFile";
+
+    /**
+     * Configuration token name for the data directory.
+     * The application keeps its files (e.g. the chat stores) in this directory.
+     */
+    public final static String TOKEN_DATA_DIRECTORY = "DataDirectory";
+
     /**
      * All settings found in account registration file, if one exists.
      */
     private Properties accountRegistrationConfig;
 
+    /**
+     * All settings found in communication config file. It is empty if no config file exists.
+     */
+    private Properties communicationConfig = new Properties();
+
     /**
      * App configuration map holding environment parameters.
      */
@@ -116,6 +133,54 @@ public class AppConfiguration {
         return accountRegistrationConfig;
     }
 
+    /**
+     * Get the communication configuration. If no config file exists then the configuration
+     * is empty and the defaults are used.
+     * 
+     * @return Communication configuration
+     */
+    public Properties getCommunicationConfig() {
+        return communicationConfig;
+    }
+
+    /**
+     * Get a communication configuration value as number. If the value is missing or invalid then
+     * the given default is returned.
+     * 
+     * @param key           Configuration key
+     * @param defaultValue  Default value
+     * @return              Configuration value
+     */
+    public long getCommunicationConfigValue(String key, long defaultValue) {
+        String value = communicationConfig.getProperty(key);
+        if ((value == null) || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex) {
+            Log.warning(TAG, "Invalid communication config value for '" + key + "', using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get a communication configuration value as string. If the value is missing then
+     * the given default is returned.
+     * 
+     * @param key           Configuration key
+     * @param defaultValue  Default value
+     * @return              Configuration value
+     */
+    public String getCommunicationConfigValue(String key, String defaultValue) {
+        String value = communicationConfig.getProperty(key);
+        if ((value == null) || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
     /**
      * Private constructor of singleton.
      */
@@ -154,6 +219,26 @@ public class AppConfiguration {
         }
     }
 
+    /**
+     * Setup the communication configuration. The config is read from given
+     * stream. This method is used during application start.
+     * 
+     * @param configContent Configuration file's content
+     */
+    protected void setupCommunicationConfig(InputStream configContent) {
+        Properties props = new Properties();
+        if (configContent != null) {
+            try {
+                props.load(configContent);
+                Log.info(TAG, "Successfully loaded communication configuration");
+            }
+            catch (IOException ex) {
+                Log.warning(TAG, "Could not load communication configuration, reason: " + ex.getLocalizedMessage());
+            }
+        }
+        communicationConfig = props;
+    }
+
     /**
      * Singleton holder class
      */
@@ -34,6 +34,7 @@ public class AppStart extends Application {
      * If required, comment out calling this method in getClasses().
      */
     private void addRestResourceClasses(Set<Class<?>> resources) {
+        resources.add(net.m4e.app.chat.ChatHistoryFacadeREST.class);
         resources.add(net.m4e.app.event.EventEntityFacadeREST.class);
         resources.add(net.m4e.app.event.EventLocationVoteEntityFacadeREST.class);
         resources.add(net.m4e.app.mailbox.MailEntityFacadeREST.class);
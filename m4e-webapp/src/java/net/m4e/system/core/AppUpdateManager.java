@@ -18,8 +18,9 @@ import net.m4e.common.Entities;
  * is deployed this class deals with necessary steps to update data structures
  * etc. The update manager is used during application startup.
  * 
- * NOTE: Every deployed application version must have an own registered updater
- *       in order to handle incremental updates properly. See UpdateResistry class.
+ * NOTE: Every application version needing a migration must have an own registered
+ *       updater, see UpdateResistry class. An update performs all updaters newer
+ *       than the version found in database, also if that version had no updater.
  * 
  * @author boto
  * Date of creation Aug 22, 2017
@@ -149,40 +150,31 @@ public class AppUpdateManager {
     }
 
     /**
-     * Perform an update from current version to a new version.
+     * Perform an update from current version to a new version. All updaters with a
+     * version newer than the current one and not newer than the new one are performed
+     * in order of their incremental numbers.
      * 
      * @param currentVersion    Current application version read from database
      * @param newVersion        New application version read from deployment descriptor
      * @return                  Return true if the update was successful, otherwise false.
      */
-    private boolean performUpdate(String currentVersion, String newVersion) {
+    boolean performUpdate(String currentVersion, String newVersion) {
         Log.info(TAG, "Start updating deployment...");
-        int indexcurrent = updateRegistry.indexOf(findUpdater(currentVersion));
-        int indexnew = updateRegistry.indexOf(findUpdater(newVersion));
-        // check if there is an updater for this version
-        if (indexnew < 0) {
+        List<AppUdateBaseHandler> updaters = getPendingUpdaters(currentVersion, newVersion);
+        if (updaters == null) {
+            return false;
+        }
+        if (updaters.isEmpty()) {
             Log.debug(TAG, "There is no need for update migration for this version: " + currentVersion);
             Log.info(TAG, "Deployment updating successfully completed");
             return true;
         }
-
-        if (indexcurrent < 0) {
-            Log.warning(TAG, "   Current version had no updater, update to new version skipping potention versions in between!");
-            indexcurrent = indexnew;
-        }
-
-        // do some deployment consistency checks
-        indexcurrent++;
-        if (indexcurrent > indexnew) {
-            Log.error(TAG, "*** New updater is older than the current updater (" + indexcurrent + " > " + indexnew + "). Check the deployed package, it may contain errors.");
-            return false;
-        }
         // go through every incremental update up to the current version
-        for (int i = indexcurrent; i <= indexnew; i++) {
-            Log.info(TAG, "  Start updating to version " + updateRegistry.get(i).getAppVersion());
+        for (AppUdateBaseHandler updater: updaters) {
+            Log.info(TAG, "  Start updating to version " + updater.getAppVersion());
             try {
-                updateRegistry.get(i).performUpdate(entityManager);
-                Log.info(TAG, "  Successfully updated to version " + updateRegistry.get(i).getAppVersion());
+                updater.performUpdate(entityManager);
+                Log.info(TAG, "  Successfully updated to version " + updater.getAppVersion());
             }
             catch (Exception ex) {
                 Log.error(TAG, "***  Failed to perform the deployment update, reason: " + ex.getLocalizedMessage());
@@ -193,6 +185,75 @@ public class AppUpdateManager {
         return true;
     }
 
+    /**
+     * Get the updaters needed for updating from current version to a new version.
+     * A version without an own updater (e.g. a version deployed before updaters were
+     * added for it) is updated by all updaters newer than it.
+     * 
+     * @param currentVersion    Current application version read from database
+     * @param newVersion        New application version read from deployment descriptor
+     * @return                  The updaters in order, or null if the registered updaters are inconsistent.
+     */
+    List<AppUdateBaseHandler> getPendingUpdaters(String currentVersion, String newVersion) {
+        if (compareVersions(newVersion, currentVersion) < 0) {
+            Log.error(TAG, "*** New version " + newVersion + " is older than the current version " + currentVersion + ". Check the deployed package, it may contain errors.");
+            return null;
+        }
+        List<AppUdateBaseHandler> updaters = new ArrayList<>();
+        AppUdateBaseHandler previous = null;
+        for (AppUdateBaseHandler updater: updateRegistry) {
+            // the initial updater is used only for new installations
+            if (updater.getAppVersion().equals("0.0.0")) {
+                continue;
+            }
+            // do some deployment consistency checks
+            if ((previous != null) && (compareVersions(previous.getAppVersion(), updater.getAppVersion()) >= 0)) {
+                Log.error(TAG, "*** Updater " + updater.getAppVersion() + " has a higher incremental number than updater " +
+                               previous.getAppVersion() + ". Check the deployed package, it may contain errors.");
+                return null;
+            }
+            previous = updater;
+            if ((compareVersions(updater.getAppVersion(), currentVersion) > 0) && (compareVersions(updater.getAppVersion(), newVersion) <= 0)) {
+                updaters.add(updater);
+            }
+        }
+        if (findUpdater(currentVersion) == null) {
+            Log.warning(TAG, "   Current version " + currentVersion + " had no updater, performing all updaters newer than it");
+        }
+        return updaters;
+    }
+
+    /**
+     * Compare two versions in format "major.minor.patch". Missing or non-numeric parts are taken as 0.
+     * 
+     * @param left      Version
+     * @param right     Version
+     * @return          Return a negative number if left is older than right, 0 if both are equal, otherwise a positive number.
+     */
+    static int compareVersions(String left, String right) {
+        String[] leftparts = left.trim().split("\\.");
+        String[] rightparts = right.trim().split("\\.");
+        for (int i = 0; i < Math.max(leftparts.length, rightparts.length); i++) {
+            int diff = Integer.compare(getVersionPart(leftparts, i), getVersionPart(rightparts, i));
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    private static int getVersionPart(String[] parts, int index) {
+        if (index >= parts.length) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(parts[index].trim());
+        }
+        catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
     /**
      * Perform the initial update during the very first deployment (installation).
      * Here the special updater 'UpdateInit' will be used.
@@ -10,6 +10,7 @@ package net.m4e.system.core;
 
 import net.m4e.system.deployment.UpdateInit;
 import net.m4e.system.deployment.Update_0_1_0;
+import net.m4e.system.deployment.Update_0_9_0;
 
 /**
  * Central place for registering all available update classes. This is used
@@ -33,5 +34,6 @@ public class AppUpdateRegistry {
     public void registerAllUpdaters(AppUpdateManager um) {
         um.registerUpdater(new UpdateInit());
         um.registerUpdater(new Update_0_1_0());
+        um.registerUpdater(new Update_0_9_0());
     }
 }
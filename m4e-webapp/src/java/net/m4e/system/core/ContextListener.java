@@ -7,6 +7,7 @@
  */
 package net.m4e.system.core;
 
+import java.io.File;
 import java.io.InputStream;
 import javax.annotation.Resource;
 import javax.persistence.EntityManager;
@@ -20,6 +21,8 @@ import javax.transaction.NotSupportedException;
 import javax.transaction.RollbackException;
 import javax.transaction.SystemException;
 import javax.transaction.UserTransaction;
+import net.m4e.app.event.EventMemberships;
+import net.m4e.app.event.Events;
 
 
 /**
@@ -71,6 +74,9 @@ public class ContextListener implements ServletContextListener {
                 Log.error( TAG, "problem occurred while rolling back transaction, reason: " + ex.getLocalizedMessage());                
             }
         }
+
+        // setup the in-memory event membership index
+        setupEventMemberships();
     }
 
     @Override
@@ -78,6 +84,21 @@ public class ContextListener implements ServletContextListener {
         Log.info(TAG, "Destroying the servlet container");
     }
 
+    /**
+     * Load all event memberships into the membership index used for message routing.
+     */
+    private void setupEventMemberships() {
+        long ttl = AppConfiguration.getInstance().getCommunicationConfigValue(EventMemberships.CFG_MEMBERSHIP_TTL, 0L);
+        EventMemberships.getInstance().setTimeToLive(ttl * 1000L);
+        try {
+            Events events = new Events(entityManager);
+            events.setupMembershipIndex();
+        }
+        catch(Exception ex) {
+            Log.error(TAG, "problem occurred while loading the event memberships, reason: " + ex.getLocalizedMessage());
+        }
+    }
+
     /**
      * Setup the app configuration.
      * 
@@ -89,6 +110,13 @@ public class ContextListener implements ServletContextListener {
         AppConfiguration.getInstance().setConfigValue(AppConfiguration.TOKEN_APP_VERSION, appversion);
         String mailercfg = ctx.getInitParameter(AppConfiguration.TOKEN_MAILER_CONFIG_FILE);
         AppConfiguration.getInstance().setConfigValue(AppConfiguration.TOKEN_MAILER_CONFIG_FILE, mailercfg);
+        String datadir = ctx.getInitParameter(AppConfiguration.TOKEN_DATA_DIRECTORY);
+        if ((datadir == null) || datadir.trim().isEmpty()) {
+            File tempdir = (File)ctx.getAttribute(ServletContext.TEMPDIR);
+            datadir = (tempdir != null) ? tempdir.getAbsolutePath() : System.getProperty("java.io.tmpdir");
+            Log.warning(TAG, "No data directory was configured, using " + datadir + ", its content may get lost on redeployment!");
+        }
+        AppConfiguration.getInstance().setConfigValue(AppConfiguration.TOKEN_DATA_DIRECTORY, datadir.trim());
 
         // setup the user registration configuration
         String accountregcfg = ctx.getInitParameter(AppConfiguration.TOKEN_ACC_REGISTRATION_CONFIG_FILE);
@@ -97,5 +125,13 @@ public class ContextListener implements ServletContextListener {
         if (configcontent == null) {
             Log.warning(TAG, "No account registration config file was found, using defaults!");
         }        
+
+        // setup the communication configuration
+        String communicationcfg = ctx.getInitParameter(AppConfiguration.TOKEN_COMMUNICATION_CONFIG_FILE);
+        InputStream commcontent = (communicationcfg != null) ? ctx.getResourceAsStream("/WEB-INF/" + communicationcfg) : null;
+        AppConfiguration.getInstance().setupCommunicationConfig(commcontent);
+        if (commcontent == null) {
+            Log.info(TAG, "No communication config file was found, using defaults.");
+        }
     }
 }
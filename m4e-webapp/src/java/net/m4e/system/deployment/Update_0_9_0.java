@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ * 
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.system.deployment;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import javax.persistence.EntityManager;
+import net.m4e.system.core.AppUdateBaseHandler;
+import net.m4e.system.core.Log;
+
+/**
+ * Deployment updater for version "0.9.0"
+ * 
+ * The event entity got a change version, see EventEntity. The schema generation
+ * does not alter existing tables, so the column is added here and initialized
+ * with 0 for all existing events.
+ * 
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class Update_0_9_0 extends AppUdateBaseHandler {
+
+    /**
+     * Used for logging
+     */
+    private final static String TAG = "Update_0_9_0";
+
+    /**
+     * Make sure to increment this number for every new update class.
+     */
+    private static final int    INC_NUMBER = 2;
+
+    /**
+     * App version this update belongs to
+     */
+    private static final String APP_VERSION = "0.9.0";
+
+    /**
+     * Table and column of the event change version
+     */
+    private static final String TABLE_EVENT = "EVENTENTITY";
+    private static final String COLUMN_CHANGE_VERSION = "CHANGEVERSION";
+
+    /**
+     * Construct the update instance.
+     */
+    public Update_0_9_0() {
+        incUpdateNumber = INC_NUMBER;
+        appVersion = APP_VERSION;
+    }
+
+    /**
+     * Perform the update.
+     * 
+     * @param entityManager   For the case that any entity structure manipulation is needed
+     * @throws Exception This exception is thrown if something went wrong.
+     */
+    @Override
+    public void performUpdate(EntityManager entityManager) throws Exception {
+        Log.debug(TAG, "Updating to version: " + appVersion + " (" + incUpdateNumber + ")");
+
+        if (!hasColumn(entityManager, TABLE_EVENT, COLUMN_CHANGE_VERSION)) {
+            Log.debug(TAG, " Adding column " + COLUMN_CHANGE_VERSION + " to table " + TABLE_EVENT);
+            entityManager.createNativeQuery("ALTER TABLE " + TABLE_EVENT + " ADD COLUMN " + COLUMN_CHANGE_VERSION + " BIGINT DEFAULT 0").executeUpdate();
+        }
+        entityManager.createNativeQuery("UPDATE " + TABLE_EVENT + " SET " + COLUMN_CHANGE_VERSION + " = 0 WHERE " + COLUMN_CHANGE_VERSION + " IS NULL").executeUpdate();
+
+        Log.debug(TAG, " Updating to version: " + appVersion + " (" + incUpdateNumber + ") completed");
+    }
+
+    /**
+     * Check if a table has the given column. The names are looked up as given and in
+     * lower case, as databases differ in storing unquoted identifiers.
+     */
+    private boolean hasColumn(EntityManager entityManager, String table, String column) throws SQLException {
+        Connection connection = entityManager.unwrap(Connection.class);
+        DatabaseMetaData metadata = connection.getMetaData();
+        try (ResultSet res = metadata.getColumns(null, null, table, column)) {
+            if (res.next()) {
+                return true;
+            }
+        }
+        try (ResultSet res = metadata.getColumns(null, null, table.toLowerCase(), column.toLowerCase())) {
+            return res.next();
+        }
+    }
+}
@@ -13,11 +13,14 @@ import java.util.Date;
 import java.util.List;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import javax.enterprise.event.Event;
 import javax.json.Json;
 import javax.json.JsonObjectBuilder;
 import javax.persistence.EntityManager;
+import net.m4e.app.event.EventDeletedEvent;
 import net.m4e.app.event.EventEntity;
 import net.m4e.app.event.EventLocationEntity;
+import net.m4e.app.event.EventMembershipChangedEvent;
 import net.m4e.app.event.Events;
 import net.m4e.app.resources.DocumentPool;
 import net.m4e.app.user.UserEntity;
@@ -44,13 +47,31 @@ public class Maintenance {
 
     private final EntityManager entityManager;
 
+    private final Event<EventMembershipChangedEvent> membershipChangedEvent;
+
+    private final Event<EventDeletedEvent> eventDeletedEvent;
+
     /**
      * Create the instance for given entity manager.
      * 
      * @param entityManager   Entity manager
      */
     public Maintenance(EntityManager entityManager) {
+        this(entityManager, null, null);
+    }
+
+    /**
+     * Create the instance for given entity manager. The events are passed to
+     * the event utilities when purging deleted resources.
+     * 
+     * @param entityManager             Entity manager
+     * @param membershipChangedEvent    Event fired when the members of an event changed
+     * @param eventDeletedEvent         Event fired when an event was deleted
+     */
+    public Maintenance(EntityManager entityManager, Event<EventMembershipChangedEvent> membershipChangedEvent, Event<EventDeletedEvent> eventDeletedEvent) {
         this.entityManager = entityManager;
+        this.membershipChangedEvent = membershipChangedEvent;
+        this.eventDeletedEvent = eventDeletedEvent;
     }
 
     /**
@@ -107,7 +128,7 @@ public class Maintenance {
      */
     private int purgeDeletedResources() {
         Users        userutils   = new Users(entityManager);
-        Events       eventutils  = new Events(entityManager);
+        Events       eventutils  = new Events(entityManager, membershipChangedEvent, eventDeletedEvent);
         Entities     entityutils = new Entities(entityManager);
         DocumentPool imagepool   = new DocumentPool(entityManager);
 
@@ -9,8 +9,12 @@ package net.m4e.system.maintenance;
 
 import javax.ejb.Schedule;
 import javax.ejb.Stateless;
+import javax.enterprise.event.Event;
+import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import net.m4e.app.event.EventDeletedEvent;
+import net.m4e.app.event.EventMembershipChangedEvent;
 import net.m4e.system.core.Log;
 
 
@@ -34,6 +38,18 @@ public class MaintenanceCronJobs {
     @PersistenceContext(unitName = net.m4e.system.core.AppConfiguration.PERSITENCE_UNIT_NAME)
     private EntityManager entityManager;
 
+    /**
+     * Event used for updating the membership index
+     */
+    @Inject
+    Event<EventMembershipChangedEvent> membershipChangedEvent;
+
+    /**
+     * Event used for removing the chat history of a deleted event
+     */
+    @Inject
+    Event<EventDeletedEvent> eventDeletedEvent;
+
     /**
      * Create the bean.
      */
@@ -47,7 +63,7 @@ public class MaintenanceCronJobs {
     public void nightlyJobs(){
         Log.info(TAG, "starting midnight maintenance tasks");
 
-        Maintenance maintenance = new Maintenance(entityManager);
+        Maintenance maintenance = new Maintenance(entityManager, membershipChangedEvent, eventDeletedEvent);
         int countpurges = maintenance.purgeExpiredResources();
 
         Log.info(TAG, " count of purged expired resource: " + countpurges);
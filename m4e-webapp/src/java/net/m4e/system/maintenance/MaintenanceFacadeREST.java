@@ -8,6 +8,8 @@
 package net.m4e.system.maintenance;
 
 import javax.ejb.Stateless;
+import javax.enterprise.event.Event;
+import javax.inject.Inject;
 import javax.json.Json;
 import javax.json.JsonObjectBuilder;
 import javax.persistence.EntityManager;
@@ -17,6 +19,10 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.MediaType;
 import net.m4e.app.auth.AuthRole;
+import net.m4e.app.communication.CommunicationMetrics;
+import net.m4e.app.communication.FrameRateLimiter;
+import net.m4e.app.event.EventDeletedEvent;
+import net.m4e.app.event.EventMembershipChangedEvent;
 import net.m4e.common.ResponseResults;
 import net.m4e.system.core.AppInfoEntity;
 import net.m4e.system.core.AppInfos;
@@ -43,6 +49,30 @@ public class MaintenanceFacadeREST {
     @PersistenceContext(unitName = net.m4e.system.core.AppConfiguration.PERSITENCE_UNIT_NAME)
     private EntityManager entityManager;
 
+    /**
+     * Rate limiter of incoming WebSocket frames
+     */
+    @Inject
+    FrameRateLimiter rateLimiter;
+
+    /**
+     * Metrics of the WebSocket layer
+     */
+    @Inject
+    CommunicationMetrics communicationMetrics;
+
+    /**
+     * Event used for updating the membership index
+     */
+    @Inject
+    Event<EventMembershipChangedEvent> membershipChangedEvent;
+
+    /**
+     * Event used for removing the chat history of a deleted event
+     */
+    @Inject
+    Event<EventDeletedEvent> eventDeletedEvent;
+
     /**
      * Creates a new instance of MaintenanceResource
      */
@@ -65,10 +95,25 @@ public class MaintenanceFacadeREST {
             return ResponseResults.toJSON(ResponseResults.STATUS_NOT_OK, "Internal error: no application information exists.", ResponseResults.CODE_INTERNAL_SRV_ERROR, null);
         }
         Maintenance mutils = new Maintenance(entityManager);
-        String appstats = mutils.exportInfoJSON(info).build().toString();
+        JsonObjectBuilder json = mutils.exportInfoJSON(info);
+        json.add("rateLimit", rateLimiter.exportStatsJSON());
+        String appstats = json.build().toString();
         return ResponseResults.toJSON(ResponseResults.STATUS_OK, "System stats", ResponseResults.CODE_OK, appstats);
     }
 
+    /**
+     * Get the metrics of the WebSocket layer in Prometheus text format.
+     * 
+     * @return Metrics text
+     */
+    @GET
+    @Path("metrics")
+    @Produces("text/plain; version=0.0.4")
+    @net.m4e.app.auth.AuthRole(grantRoles={AuthRole.USER_ROLE_ADMIN})
+    public String metrics() {
+        return communicationMetrics.exportPrometheus();
+    }
+
     /**
      * Perform purging resources.
      * 
@@ -80,7 +125,7 @@ public class MaintenanceFacadeREST {
     @net.m4e.app.auth.AuthRole(grantRoles={AuthRole.USER_ROLE_ADMIN})
     public String purgeResources() {
         JsonObjectBuilder jsonresponse = Json.createObjectBuilder();
-        Maintenance mutils = new Maintenance(entityManager);
+        Maintenance mutils = new Maintenance(entityManager, membershipChangedEvent, eventDeletedEvent);
         int countpurges = mutils.purgeAllResources();
         Log.info(TAG, "total count of " + countpurges + " resources were purged");
         jsonresponse.add("countPurges", countpurges);
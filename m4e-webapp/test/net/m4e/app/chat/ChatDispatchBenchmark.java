@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.chat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.json.Json;
+import net.m4e.app.communication.ChannelChatEvent;
+import net.m4e.app.communication.ConnectedClients;
+import net.m4e.app.communication.Packet;
+import net.m4e.app.communication.TestResources;
+import net.m4e.app.communication.TestSession;
+import net.m4e.app.user.UserEntity;
+import net.m4e.system.core.AppConfiguration;
+
+
+/**
+ * Load test of the chat dispatching. Direct chat messages are dispatched by
+ * 1 up to all available cores, like the container does with concurrent async
+ * observers. Every user has one connected session, every 20th message goes to
+ * an offline user and is put into the offline store. The throughput is printed
+ * per count of threads, it should grow with the count of threads.
+ *
+ * Event chat messages are not covered, they need the database for checking
+ * the event membership.
+ *
+ * Run it with the main method, it is not part of the unit tests.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class ChatDispatchBenchmark {
+
+    private final static int USERS = 2000;
+
+    private final static int OFFLINE_USERS = 100;
+
+    private final static int MESSAGES = 200000;
+
+    private final static int ROUNDS = 3;
+
+    private final List<TestSession> sessions = new ArrayList<>();
+
+    private ManagedScheduledExecutorService scheduler;
+
+    private ConnectedClients clients;
+
+    private ChatSystem chat;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("m4e-chat-benchmark");
+        ChatDispatchBenchmark benchmark = new ChatDispatchBenchmark();
+        try {
+            benchmark.setUp(dir);
+            int cores = Runtime.getRuntime().availableProcessors();
+            // warm up
+            benchmark.run(cores);
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                benchmark.report(threads);
+            }
+            if (Integer.bitCount(cores) != 1) {
+                benchmark.report(cores);
+            }
+        }
+        finally {
+            benchmark.tearDown();
+            deleteFiles(dir);
+        }
+    }
+
+    private void setUp(Path dir) {
+        Properties cfg = AppConfiguration.getInstance().getCommunicationConfig();
+        cfg.setProperty(ChatSystem.CFG_OFFLINE_DIR, dir.resolve("offline").toString());
+        cfg.setProperty(ChatSystem.CFG_HISTORY_DIR, dir.resolve("history").toString());
+
+        scheduler = TestResources.createScheduler(2);
+        clients = TestResources.createConnectedClients(scheduler);
+        for (long id = 1; id <= USERS; id++) {
+            UserEntity user = new UserEntity();
+            user.setId(id);
+            user.setName("user" + id);
+            TestSession session = new TestSession(String.valueOf(id));
+            session.setRecording(false);
+            TestResources.connect(clients, user, session.getSession());
+            sessions.add(session);
+        }
+
+        chat = new ChatSystem();
+        chat.connections = clients;
+        chat.scheduler = scheduler;
+        chat.threadFactory = TestResources.createThreadFactory();
+        chat.chatSystemInit();
+    }
+
+    private void tearDown() {
+        if (chat != null) {
+            chat.chatSystemShutdown();
+        }
+        if (clients != null) {
+            clients.connectedClientsShutdown();
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void report(int threads) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            best = Math.min(best, run(threads));
+        }
+        System.out.println(String.format("threads: %2d, messages/s: %,10d", threads, MESSAGES * 1000000000L / best));
+    }
+
+    /**
+     * Dispatch the messages on given count of threads.
+     *
+     * @return Duration in nanoseconds
+     */
+    private long run(int threads) throws Exception {
+        // the events are created up front, only the dispatching is measured
+        List<List<ChannelChatEvent>> events = new ArrayList<>();
+        Random random = new Random(42);
+        for (int t = 0; t < threads; t++) {
+            List<ChannelChatEvent> threadevents = new ArrayList<>();
+            for (int i = 0; i < MESSAGES / threads; i++) {
+                threadevents.add(createEvent(random, i));
+            }
+            events.add(threadevents);
+        }
+        long sentbefore = getSentCount();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<ChannelChatEvent> threadevents: events) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    threadevents.forEach(chat::dispatchMessage);
+                    return null;
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<?> future: futures) {
+                future.get();
+            }
+            long duration = System.nanoTime() - begin;
+            if (getSentCount() == sentbefore) {
+                throw new IllegalStateException("no messages were delivered");
+            }
+            return duration;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ChannelChatEvent createEvent(Random random, int index) {
+        long sender = 1 + random.nextInt(USERS);
+        long receiver = ((index % 20) == 0) ? (USERS + 1 + random.nextInt(OFFLINE_USERS)) : (1 + random.nextInt(USERS));
+        Packet packet = new Packet(Packet.CHANNEL_CHAT, "", "", Json.createObjectBuilder()
+                            .add("receiverUser", String.valueOf(receiver))
+                            .add("text", "Let us meet at the italian place around the corner, 12:30?")
+                            .build());
+        ChannelChatEvent event = new ChannelChatEvent();
+        event.setSenderId(sender);
+        event.setPacket(packet);
+        return event;
+    }
+
+    private long getSentCount() {
+        return sessions.stream().mapToLong(TestSession::getSentCount).sum();
+    }
+
+    private static void deleteFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach((file) -> file.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.chat;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the memory-mapped chat history of events.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class EventChatLogTest {
+
+    private final static int SEGMENT_SIZE = 64 * 1024;
+
+    private final static Long EVENT_ID = 7L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    private EventChatLog history;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.getRoot().toPath().resolve("history");
+        history = open(3);
+    }
+
+    @After
+    public void tearDown() {
+        history.close();
+    }
+
+    @Test
+    public void appendAndPage() throws IOException {
+        assertTrue(history.getHistory(EVENT_ID, 0L, 10).isEmpty());
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(i, history.append(EVENT_ID, "message " + i));
+        }
+
+        // the latest page comes out of the hot tail, older ones out of the segments
+        assertEquals(seqs(16, 20), getSeqs(history.getHistory(EVENT_ID, 0L, 5)));
+        assertEquals(seqs(11, 15), getSeqs(history.getHistory(EVENT_ID, 16L, 5)));
+        assertEquals(seqs(1, 2), getSeqs(history.getHistory(EVENT_ID, 3L, 5)));
+        assertTrue(history.getHistory(EVENT_ID, 1L, 5).isEmpty());
+        assertTrue(history.getHistory(EVENT_ID, 0L, 0).isEmpty());
+
+        EventChatLog.Record record = history.getHistory(EVENT_ID, 12L, 1).get(0);
+        assertEquals(11L, record.getSeq());
+        assertEquals("message 11", record.getMessage());
+        assertTrue(record.getTime() > 0L);
+
+        // events have their own sequence numbers
+        assertEquals(1L, history.append(EVENT_ID + 1, "other event"));
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        for (int i = 1; i <= 20; i++) {
+            history.append(EVENT_ID, "message " + i);
+        }
+        history.close();
+
+        history = open(3);
+        List<EventChatLog.Record> records = history.getHistory(EVENT_ID, 0L, 100);
+        assertEquals(seqs(1, 20), getSeqs(records));
+        assertEquals("message 20", records.get(19).getMessage());
+        assertEquals(21L, history.append(EVENT_ID, "message 21"));
+    }
+
+    @Test
+    public void closeIdle() throws IOException {
+        history.append(EVENT_ID, "one");
+        history.append(EVENT_ID + 1, "two");
+        assertEquals(2, history.getOpenCount());
+        assertEquals(0, history.closeIdle(60000L));
+        assertEquals(2, history.closeIdle(-1L));
+        assertEquals(0, history.getOpenCount());
+
+        // a closed log is opened again on next access
+        assertEquals("one", history.getHistory(EVENT_ID, 0L, 10).get(0).getMessage());
+        assertEquals(2L, history.append(EVENT_ID, "three"));
+    }
+
+    @Test
+    public void eviction() throws IOException {
+        String message = createMessage(10000);
+        for (int i = 0; i < 40; i++) {
+            history.append(EVENT_ID, message);
+        }
+        assertEquals(3, getSegments().size());
+
+        // the oldest messages are gone, the remaining ones are contiguous
+        List<Long> remaining = getSeqs(history.getHistory(EVENT_ID, 0L, 100));
+        assertTrue(remaining.get(0) > 1L);
+        assertEquals(seqs(remaining.get(0), 40), remaining);
+
+        // a lower maximal count of segments is applied on loading
+        history.close();
+        history = open(1);
+        remaining = getSeqs(history.getHistory(EVENT_ID, 0L, 100));
+        assertEquals(1, getSegments().size());
+        assertEquals(seqs(remaining.get(0), 40), remaining);
+        assertEquals(41L, history.append(EVENT_ID, message));
+    }
+
+    @Test
+    public void delete() throws IOException {
+        history.append(EVENT_ID, "one");
+        history.append(EVENT_ID + 1, "other");
+        history.delete(EVENT_ID);
+        assertFalse(Files.exists(directory.resolve(EVENT_ID.toString())));
+        assertTrue(history.getHistory(EVENT_ID, 0L, 10).isEmpty());
+        assertEquals(1, history.getHistory(EVENT_ID + 1, 0L, 10).size());
+
+        // deleting a log which was not opened
+        history.close();
+        history = open(3);
+        history.delete(EVENT_ID + 1);
+        assertFalse(Files.exists(directory.resolve(String.valueOf(EVENT_ID + 1))));
+        history.delete(99L);
+
+        assertEquals(1L, history.append(EVENT_ID, "new"));
+    }
+
+    @Test(expected = IOException.class)
+    public void messageTooLarge() throws IOException {
+        history.append(EVENT_ID, createMessage(SEGMENT_SIZE));
+    }
+
+    private EventChatLog open(int maxSegments) throws IOException {
+        EventChatLog log = new EventChatLog(directory, SEGMENT_SIZE, maxSegments, 5);
+        log.open();
+        return log;
+    }
+
+    private List<Path> getSegments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.resolve(EVENT_ID.toString()), "*.seg")) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+
+    private static String createMessage(int length) {
+        char[] text = new char[length];
+        Arrays.fill(text, 'x');
+        return new String(text);
+    }
+
+    private static List<Long> getSeqs(List<EventChatLog.Record> records) {
+        List<Long> seqs = new ArrayList<>();
+        records.forEach((record) -> seqs.add(record.getSeq()));
+        return seqs;
+    }
+
+    private static List<Long> seqs(long from, long to) {
+        List<Long> seqs = new ArrayList<>();
+        for (long s = from; s <= to; s++) {
+            seqs.add(s);
+        }
+        return seqs;
+    }
+}
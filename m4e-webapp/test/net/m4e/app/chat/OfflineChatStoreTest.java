@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.chat;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the store for chat messages sent to offline users.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class OfflineChatStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    private OfflineChatStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.getRoot().toPath().resolve("offline");
+        store = open(0L);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void appendReadAcknowledge() throws IOException {
+        assertFalse(store.hasPending(1L));
+        assertTrue(store.read(1L).getMessages().isEmpty());
+        assertEquals(0L, store.read(1L).getLastId());
+
+        store.append(1L, "one");
+        store.append(2L, "other");
+        store.append(1L, "two \u00e4");
+        assertTrue(store.hasPending(1L));
+        assertEquals(3, store.getPendingCount());
+
+        OfflineChatStore.Pending pending = store.read(1L);
+        assertEquals(Arrays.asList("one", "two \u00e4"), pending.getMessages());
+        // reading does not remove the messages
+        assertEquals(pending.getMessages(), store.read(1L).getMessages());
+
+        store.acknowledge(1L, pending.getLastId());
+        assertFalse(store.hasPending(1L));
+        assertTrue(store.hasPending(2L));
+        assertEquals(1, store.getPendingCount());
+    }
+
+    @Test
+    public void messagesAfterReadStayPending() throws IOException {
+        store.append(1L, "one");
+        OfflineChatStore.Pending pending = store.read(1L);
+        store.append(1L, "two");
+        store.acknowledge(1L, pending.getLastId());
+        assertEquals(Collections.singletonList("two"), store.read(1L).getMessages());
+
+        // an older acknowledge is ignored
+        store.acknowledge(1L, pending.getLastId());
+        store.acknowledge(1L, 0L);
+        assertEquals(Collections.singletonList("two"), store.read(1L).getMessages());
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        store.append(1L, "one");
+        store.append(2L, "two");
+        store.acknowledge(1L, store.read(1L).getLastId());
+        store.close();
+
+        store = open(0L);
+        assertFalse(store.hasPending(1L));
+        assertEquals(Collections.singletonList("two"), store.read(2L).getMessages());
+
+        // the message IDs continue, so new messages are not taken as acknowledged
+        store.append(1L, "three");
+        store.close();
+        store = open(0L);
+        assertEquals(Collections.singletonList("three"), store.read(1L).getMessages());
+    }
+
+    @Test
+    public void damagedSegment() throws IOException {
+        store.append(1L, "one");
+        store.close();
+        // a partially written record at the end of the segment
+        Path segment = getSegments().get(0);
+        Files.write(segment, new byte[] {1, 0, 0, 0}, StandardOpenOption.APPEND);
+
+        store = open(0L);
+        assertEquals(Collections.singletonList("one"), store.read(1L).getMessages());
+        store.append(1L, "two");
+        store.close();
+
+        store = open(0L);
+        assertEquals(Arrays.asList("one", "two"), store.read(1L).getMessages());
+    }
+
+    @Test
+    public void retention() throws Exception {
+        store.close();
+        store = open(50L);
+        store.append(1L, "old");
+        Thread.sleep(100L);
+        store.append(1L, "new");
+
+        OfflineChatStore.Pending pending = store.read(1L);
+        assertEquals(Collections.singletonList("new"), pending.getMessages());
+        store.acknowledge(1L, pending.getLastId());
+        assertFalse(store.hasPending(1L));
+
+        store.append(2L, "expiring");
+        Thread.sleep(100L);
+        store.compact();
+        assertFalse(store.hasPending(2L));
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        char[] text = new char[200];
+        Arrays.fill(text, 'x');
+        String message = new String(text);
+        // fill several segments, recipient 1 gets acknowledged, recipient 2 stays pending
+        for (int i = 0; i < 20; i++) {
+            store.append(1L, message);
+            store.append(2L, message + i);
+        }
+        store.acknowledge(1L, store.read(1L).getLastId());
+        int segmentcount = getSegments().size();
+        assertTrue(segmentcount > 4);
+
+        assertTrue(store.compact() > 0);
+        assertTrue(getSegments().size() < segmentcount);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            expected.add(message + i);
+        }
+        assertEquals(expected, store.read(2L).getMessages());
+
+        // after reopening the acknowledged messages must not come back
+        store.close();
+        store = open(0L);
+        assertFalse(store.hasPending(1L));
+        assertEquals(expected, store.read(2L).getMessages());
+
+        // deliver everything, then all old segments can go
+        store.acknowledge(2L, store.read(2L).getLastId());
+        store.compact();
+        assertEquals(1, getSegments().size());
+        assertEquals(0, store.getPendingCount());
+    }
+
+    private OfflineChatStore open(long retention) throws IOException {
+        OfflineChatStore chatstore = new OfflineChatStore(directory, 1024L, retention, 0.5);
+        chatstore.open();
+        return chatstore;
+    }
+
+    private List<Path> getSegments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.seg")) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        return files;
+    }
+}
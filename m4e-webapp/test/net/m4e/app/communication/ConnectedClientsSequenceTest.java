@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.json.Json;
+import javax.json.JsonObject;
+import net.m4e.app.user.UserEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the sequenced packet delivery of the connected clients registry: the
+ * handshake response comes first, a resuming session gets the missed packets
+ * followed by the live ones without gaps or duplicates.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class ConnectedClientsSequenceTest {
+
+    private final static Long USER_ID = 1L;
+
+    private ManagedScheduledExecutorService scheduler;
+
+    private ConnectedClients clients;
+
+    private UserEntity user;
+
+    @Before
+    public void setUp() {
+        scheduler = TestResources.createScheduler(1);
+        clients = TestResources.createConnectedClients(scheduler);
+
+        user = new UserEntity();
+        user.setId(USER_ID);
+        user.setName("user");
+    }
+
+    @After
+    public void tearDown() {
+        clients.connectedClientsShutdown();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void resume() {
+        TestSession first = connect("a", null);
+        assertEquals(0L, getResponse(first).getJsonNumber("seq").longValue());
+        send(1, 3);
+        assertEquals(seqs(1, 3), getSeqs(first));
+
+        assertTrue(clients.removeConnection(user, first.getSession()));
+        // the user is offline for a while, the packets are kept for resuming
+        send(4, 5);
+
+        TestSession second = connect("b", 3L);
+        JsonObject response = getResponse(second);
+        assertEquals("ok", response.getString("resume"));
+        assertEquals(5L, response.getJsonNumber("seq").longValue());
+        send(6, 6);
+        assertEquals(seqs(4, 6), getSeqs(second));
+        assertEquals(6, getNumbers(second).get(2).intValue());
+    }
+
+    @Test
+    public void resumeTooOld() {
+        TestSession first = connect("a", null);
+        send(1, 200);
+        assertTrue(clients.removeConnection(user, first.getSession()));
+
+        TestSession second = connect("b", 1L);
+        JsonObject response = getResponse(second);
+        assertEquals("nok", response.getString("resume"));
+        assertEquals(200L, response.getJsonNumber("seq").longValue());
+        assertTrue(getSeqs(second).isEmpty());
+    }
+
+    @Test
+    public void topicWithoutSequencedSubscriber() {
+        TestSession session = connect("a", null);
+        assertTrue(clients.subscribeTopic(USER_ID, "a", ConnectedClients.getEventTopic(2L)));
+
+        // the packet reaches no session, so no sequence number must be taken
+        clients.sendPacketToTopic(createPacket(1), ConnectedClients.getEventTopic(1L), Collections.singleton(USER_ID));
+        send(2, 2);
+        assertEquals(seqs(1, 1), getSeqs(session));
+        assertEquals(2, getNumbers(session).get(0).intValue());
+
+        clients.sendPacketToTopic(createPacket(3), ConnectedClients.getEventTopic(2L), Collections.singleton(USER_ID));
+        assertEquals(seqs(1, 2), getSeqs(session));
+    }
+
+    @Test
+    public void connectWhileSending() throws Exception {
+        final int count = 3000;
+        TestSession first = connect("a", null);
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> sending = sender.submit(() -> send(1, count));
+            List<TestSession> joined = new ArrayList<>();
+            List<TestSession> resumed = new ArrayList<>();
+            List<Long> resumeseqs = new ArrayList<>();
+            for (int i = 0; !sending.isDone() && (i < 50); i++) {
+                joined.add(connect("j" + i, null));
+                // resume where the first session is, the sender may be too far ahead meanwhile
+                List<Long> seen = getSeqs(first);
+                long resumeseq = seen.isEmpty() ? 0L : seen.get(seen.size() - 1);
+                resumed.add(connect("r" + i, resumeseq));
+                resumeseqs.add(resumeseq);
+            }
+            sending.get(30L, TimeUnit.SECONDS);
+
+            assertEquals(seqs(1, count), getSeqs(first));
+            for (TestSession session: joined) {
+                long start = getResponse(session).getJsonNumber("seq").longValue();
+                assertEquals(seqs(start + 1, count), getSeqs(session));
+            }
+            for (int i = 0; i < resumed.size(); i++) {
+                JsonObject response = getResponse(resumed.get(i));
+                long start = "ok".equals(response.getString("resume")) ? resumeseqs.get(i) : response.getJsonNumber("seq").longValue();
+                assertEquals(seqs(start + 1, count), getSeqs(resumed.get(i)));
+            }
+        }
+        finally {
+            sender.shutdownNow();
+        }
+    }
+
+    private TestSession connect(String sessionId, Long resumeSeq) {
+        TestSession session = new TestSession(sessionId);
+        session.getSession().getUserProperties().put(ConnectedClients.KEY_SEQUENCED, Boolean.TRUE);
+        Packet response = new Packet(Packet.CHANNEL_SYSTEM, "", "", Json.createObjectBuilder().add("status", "ok").build());
+        assertTrue(clients.addConnection(user, session.getSession(), response, resumeSeq));
+        return session;
+    }
+
+    private void send(int from, int to) {
+        for (int n = from; n <= to; n++) {
+            clients.sendPacket(createPacket(n), Collections.singletonList(USER_ID));
+        }
+    }
+
+    private static Packet createPacket(int n) {
+        return new Packet(Packet.CHANNEL_NOTIFY, "", "", Json.createObjectBuilder().add("n", n).build());
+    }
+
+    private static JsonObject getResponse(TestSession session) {
+        JsonObject response = parse(session.getTexts().get(0));
+        assertEquals(Packet.CHANNEL_SYSTEM, response.getString("channel"));
+        return response.getJsonObject("data");
+    }
+
+    /**
+     * Get the sequence numbers of all frames following the handshake response.
+     */
+    private static List<Long> getSeqs(TestSession session) {
+        List<Long> seqs = new ArrayList<>();
+        List<String> texts = session.getTexts();
+        for (String text: texts.subList(1, texts.size())) {
+            seqs.add(parse(text).getJsonNumber("seq").longValue());
+        }
+        return seqs;
+    }
+
+    private static List<Integer> getNumbers(TestSession session) {
+        List<Integer> numbers = new ArrayList<>();
+        List<String> texts = session.getTexts();
+        for (String text: texts.subList(1, texts.size())) {
+            numbers.add(parse(text).getJsonObject("data").getInt("n"));
+        }
+        return numbers;
+    }
+
+    private static List<Long> seqs(long from, long to) {
+        List<Long> seqs = new ArrayList<>();
+        for (long s = from; s <= to; s++) {
+            seqs.add(s);
+        }
+        return seqs;
+    }
+
+    private static JsonObject parse(String text) {
+        return Json.createReader(new StringReader(text)).readObject();
+    }
+}
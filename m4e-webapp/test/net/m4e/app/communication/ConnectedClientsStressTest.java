@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.json.Json;
+import net.m4e.app.user.UserEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Stress test of the connected clients registry. Tens of thousands of simulated
+ * sessions connect and disconnect concurrently while packets are sent to their
+ * users. The presence of every user must change exactly once per first login
+ * and once per last logout.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class ConnectedClientsStressTest {
+
+    private final static int USERS = 10000;
+
+    private final static int SESSIONS_PER_USER = 3;
+
+    private final static int THREADS = 8;
+
+    private final static int ROUNDS = 3;
+
+    /**
+     * Presence engine counting the online and offline transitions per user
+     */
+    private static class CountingPresenceEngine extends PresenceEngine {
+
+        private final ConcurrentMap<Long, AtomicInteger> online = new ConcurrentHashMap<>();
+
+        private final ConcurrentMap<Long, AtomicInteger> offline = new ConcurrentHashMap<>();
+
+        @Override
+        public void setOnline(UserEntity user) {
+            online.computeIfAbsent(user.getId(), (id) -> new AtomicInteger()).incrementAndGet();
+        }
+
+        @Override
+        public void setOffline(UserEntity user) {
+            offline.computeIfAbsent(user.getId(), (id) -> new AtomicInteger()).incrementAndGet();
+        }
+
+        private int getOnline(Long userId) {
+            AtomicInteger count = online.get(userId);
+            return (count != null) ? count.get() : 0;
+        }
+
+        private int getOffline(Long userId) {
+            AtomicInteger count = offline.get(userId);
+            return (count != null) ? count.get() : 0;
+        }
+    }
+
+    private static class Connect {
+
+        private final UserEntity user;
+
+        private final TestSession session;
+
+        private Connect(UserEntity user, TestSession session) {
+            this.user = user;
+            this.session = session;
+        }
+    }
+
+    private ManagedScheduledExecutorService scheduler;
+
+    private ExecutorService workers;
+
+    private CountingPresenceEngine presence;
+
+    private ConnectedClients clients;
+
+    @Before
+    public void setUp() {
+        scheduler = TestResources.createScheduler(2);
+        workers = Executors.newFixedThreadPool(THREADS + 1);
+        presence = new CountingPresenceEngine();
+        clients = TestResources.createConnectedClients(scheduler, presence);
+    }
+
+    @After
+    public void tearDown() {
+        clients.connectedClientsShutdown();
+        workers.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void connectDisconnectStorm() throws Exception {
+        List<UserEntity> users = new ArrayList<>();
+        for (long id = 1; id <= USERS; id++) {
+            UserEntity user = new UserEntity();
+            user.setId(id);
+            user.setName("user" + id);
+            users.add(user);
+        }
+        Random random = new Random(42);
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            List<Connect> connects = new ArrayList<>();
+            for (UserEntity user: users) {
+                for (int s = 0; s < SESSIONS_PER_USER; s++) {
+                    connects.add(new Connect(user, new TestSession(user.getId() + "-" + s)));
+                }
+            }
+
+            Collections.shuffle(connects, random);
+            runConcurrently(connects, (c) -> assertTrue(clients.addConnection(c.user, c.session.getSession(), createResponse(), null)));
+
+            assertEquals(USERS * SESSIONS_PER_USER, clients.getSessionCount());
+            for (UserEntity user: users) {
+                assertNotNull(clients.getConnectedUser(user.getId()));
+                assertEquals("online transitions of user " + user.getId(), round, presence.getOnline(user.getId()));
+                assertEquals("offline transitions of user " + user.getId(), round - 1, presence.getOffline(user.getId()));
+            }
+            // every session got its handshake response first
+            for (Connect c: connects) {
+                assertTrue(c.session.getTexts().get(0).contains("\"channel\":\"system\""));
+            }
+
+            Collections.shuffle(connects, random);
+            runConcurrently(connects, (c) -> assertTrue(clients.removeConnection(c.user, c.session.getSession())));
+
+            assertEquals(0L, clients.getSessionCount());
+            for (UserEntity user: users) {
+                assertNull(clients.getConnectedUser(user.getId()));
+                assertEquals("online transitions of user " + user.getId(), round, presence.getOnline(user.getId()));
+                assertEquals("offline transitions of user " + user.getId(), round, presence.getOffline(user.getId()));
+            }
+        }
+    }
+
+    /**
+     * Run an action for all connects on several threads, while another thread
+     * keeps sending packets to random users.
+     */
+    private void runConcurrently(List<Connect> connects, Consumer<Connect> action) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Future<?> sender = workers.submit(() -> {
+            Random random = new Random();
+            List<Long> recipients = new ArrayList<>();
+            while (running.get()) {
+                recipients.clear();
+                for (int i = 0; i < 10; i++) {
+                    recipients.add((long)(1 + random.nextInt(USERS)));
+                }
+                clients.sendPacket(new Packet(Packet.CHANNEL_CHAT, "0", "stress", Json.createObjectBuilder().add("text", "hello").build()), recipients);
+            }
+        });
+
+        List<Future<?>> futures = new ArrayList<>();
+        int chunk = (connects.size() + THREADS - 1) / THREADS;
+        for (int t = 0; t < THREADS; t++) {
+            List<Connect> part = connects.subList(Math.min(t * chunk, connects.size()), Math.min((t + 1) * chunk, connects.size()));
+            futures.add(workers.submit(() -> {
+                start.await();
+                part.forEach(action);
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future: futures) {
+            future.get(60L, TimeUnit.SECONDS);
+        }
+        running.set(false);
+        sender.get(10L, TimeUnit.SECONDS);
+    }
+
+    private static Packet createResponse() {
+        return new Packet(Packet.CHANNEL_SYSTEM, "", "", Json.createObjectBuilder().add("status", "ok").build());
+    }
+}
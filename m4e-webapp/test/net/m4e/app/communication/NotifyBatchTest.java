@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.io.StringReader;
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of batching the notify packets of a session.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class NotifyBatchTest {
+
+    private TestSession session;
+
+    private NotifyBatch batch;
+
+    @Before
+    public void setUp() {
+        session = new TestSession("1");
+        OutboundQueue queue = new OutboundQueue(session.getSession(), false, 100, OutboundQueue.SlowConsumerPolicy.Disconnect,
+                                                new OutboundStats(), new CommunicationMetrics(), Runnable::run);
+        batch = new NotifyBatch(queue, 3);
+        session.getSession().getUserProperties().put(NotifyBatch.KEY_NOTIFY_BATCH, batch);
+    }
+
+    @Test
+    public void getBatch() {
+        assertSame(batch, NotifyBatch.getBatch(session.getSession()));
+        assertNull(NotifyBatch.getBatch(new TestSession("2").getSession()));
+    }
+
+    @Test
+    public void isNotify() {
+        assertTrue(NotifyBatch.isNotify(createFrame(Packet.CHANNEL_NOTIFY, 1)));
+        assertFalse(NotifyBatch.isNotify(createFrame(Packet.CHANNEL_CHAT, 1)));
+        assertTrue(NotifyBatch.isNotify(new PacketFrame(createFrame(Packet.CHANNEL_NOTIFY, 1).getText())));
+    }
+
+    @Test
+    public void singleFrameAsItIs() {
+        PacketFrame frame = createFrame(Packet.CHANNEL_NOTIFY, 1);
+        assertTrue(batch.add(frame));
+        assertTrue(session.getTexts().isEmpty());
+        assertEquals(1, batch.flush());
+        assertEquals(1, session.getTexts().size());
+        assertEquals(frame.getText(), session.getTexts().get(0));
+        assertEquals(0, batch.flush());
+        assertEquals(1, session.getTexts().size());
+    }
+
+    @Test
+    public void severalFramesAsArray() {
+        assertTrue(batch.add(createFrame(Packet.CHANNEL_NOTIFY, 1)));
+        assertFalse(batch.add(createFrame(Packet.CHANNEL_NOTIFY, 2)));
+        assertEquals(2, batch.flush());
+
+        List<String> texts = session.getTexts();
+        assertEquals(1, texts.size());
+        JsonArray packets = Json.createReader(new StringReader(texts.get(0))).readArray();
+        assertEquals(2, packets.size());
+        assertEquals(1, packets.getJsonObject(0).getJsonObject("data").getInt("n"));
+        assertEquals(2, packets.getJsonObject(1).getJsonObject("data").getInt("n"));
+    }
+
+    @Test
+    public void flushWhenFull() {
+        for (int n = 1; n <= 4; n++) {
+            batch.add(createFrame(Packet.CHANNEL_NOTIFY, n));
+        }
+        // the first three are flushed, the fourth one starts a new batch
+        assertEquals(1, session.getTexts().size());
+        assertEquals(3, Json.createReader(new StringReader(session.getTexts().get(0))).readArray().size());
+        assertEquals(1, batch.flush());
+        assertEquals(2, session.getTexts().size());
+    }
+
+    @Test
+    public void enqueueFlushesFirst() {
+        batch.add(createFrame(Packet.CHANNEL_NOTIFY, 1));
+        batch.add(createFrame(Packet.CHANNEL_NOTIFY, 2));
+        assertTrue(batch.enqueue(createFrame(Packet.CHANNEL_CHAT, 3)));
+
+        List<String> texts = session.getTexts();
+        assertEquals(2, texts.size());
+        assertTrue(texts.get(0).startsWith("["));
+        JsonObject chat = Json.createReader(new StringReader(texts.get(1))).readObject();
+        assertEquals(Packet.CHANNEL_CHAT, chat.getString("channel"));
+        assertEquals(0, batch.flush());
+    }
+
+    private static PacketFrame createFrame(String channel, int n) {
+        return new PacketFrame(new Packet(channel, "", "", Json.createObjectBuilder().add("n", n).build()));
+    }
+}
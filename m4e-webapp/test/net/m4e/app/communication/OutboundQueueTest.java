@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the outbound queue of a session: the bound of the queue, the slow
+ * consumer policies and closing while frames are queued.
+ *
+ * @author boto
+ * Date of creation Jan 2, 2018
+ */
+public class OutboundQueueTest {
+
+    private final OutboundStats stats = new OutboundStats();
+
+    private OutboundQueue createQueue(TestSession session, int highWaterMark, OutboundQueue.SlowConsumerPolicy policy) {
+        // the session of a slow consumer is closed right away
+        return new OutboundQueue(session.getSession(), false, highWaterMark, policy, stats, new CommunicationMetrics(), Runnable::run);
+    }
+
+    private static PacketFrame frame(int number) {
+        return new PacketFrame("f" + number);
+    }
+
+    @Test
+    public void sendInOrder() {
+        TestSession session = new TestSession("a");
+        OutboundQueue queue = createQueue(session, 10, OutboundQueue.SlowConsumerPolicy.DropNewest);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.enqueue(frame(i)));
+        }
+        assertEquals(Arrays.asList("f0", "f1", "f2", "f3", "f4"), session.getTexts());
+        assertEquals(0, queue.getDepth());
+        assertEquals(5L, stats.getCountSent());
+    }
+
+    @Test
+    public void onlyOneSendInFlight() {
+        TestSession session = new TestSession("a");
+        session.setHolding(true);
+        OutboundQueue queue = createQueue(session, 10, OutboundQueue.SlowConsumerPolicy.DropNewest);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.enqueue(frame(i)));
+        }
+        assertEquals(1, session.getHeldCount());
+        assertEquals(3, queue.getDepth());
+
+        session.completeHeld();
+        assertEquals(Arrays.asList("f0", "f1", "f2", "f3"), session.getTexts());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    public void dropNewest() {
+        TestSession session = new TestSession("a");
+        session.setHolding(true);
+        OutboundQueue queue = createQueue(session, 3, OutboundQueue.SlowConsumerPolicy.DropNewest);
+        // the first frame is in flight, the next three fill the queue
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.enqueue(frame(i)));
+        }
+        assertFalse(queue.enqueue(frame(4)));
+        assertEquals(3, queue.getDepth());
+        assertEquals(1L, stats.getCountDropped());
+
+        session.completeHeld();
+        assertEquals(Arrays.asList("f0", "f1", "f2", "f3"), session.getTexts());
+        assertFalse(session.isClosed());
+    }
+
+    @Test
+    public void dropOldest() {
+        TestSession session = new TestSession("a");
+        session.setHolding(true);
+        OutboundQueue queue = createQueue(session, 2, OutboundQueue.SlowConsumerPolicy.DropOldest);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.enqueue(frame(i)));
+        }
+        assertTrue(queue.enqueue(frame(3)));
+        assertEquals(2, queue.getDepth());
+        assertEquals(1L, stats.getCountDropped());
+
+        session.completeHeld();
+        assertEquals(Arrays.asList("f0", "f2", "f3"), session.getTexts());
+        assertFalse(session.isClosed());
+    }
+
+    @Test
+    public void disconnect() {
+        TestSession session = new TestSession("a");
+        session.setHolding(true);
+        OutboundQueue queue = createQueue(session, 2, OutboundQueue.SlowConsumerPolicy.Disconnect);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.enqueue(frame(i)));
+        }
+        assertFalse(queue.enqueue(frame(3)));
+        assertTrue(session.isClosed());
+        assertEquals(0, queue.getDepth());
+        assertEquals(1L, stats.getCountDisconnects());
+        assertEquals(2L, stats.getCountDiscarded());
+
+        // the queue stays closed, the frame in flight is the last one
+        assertFalse(queue.enqueue(frame(4)));
+        session.completeHeld();
+        assertEquals(Arrays.asList("f0"), session.getTexts());
+    }
+
+    @Test
+    public void highWaterMarkWithConcurrentSenders() throws Exception {
+        final int threads = 8;
+        final int frames = 2000;
+        TestSession session = new TestSession("a");
+        session.setHolding(true);
+        OutboundQueue queue = createQueue(session, 100, OutboundQueue.SlowConsumerPolicy.DropNewest);
+        runConcurrently(threads, (t) -> {
+            for (int i = 0; i < frames; i++) {
+                queue.enqueue(frame(i));
+                assertTrue(queue.getDepth() <= 100);
+            }
+        });
+        assertEquals(100, queue.getDepth());
+        // one frame is in flight
+        assertEquals(101L, stats.getCountQueued());
+        assertEquals(threads * frames - 101L, stats.getCountDropped());
+
+        session.completeHeld();
+        assertEquals(101L, session.getSentCount());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    public void inlineCompletionDoesNotRecurse() {
+        final int count = 100000;
+        TestSession session = new TestSession("a");
+        session.setRecording(false);
+        session.setHolding(true);
+        OutboundQueue queue = createQueue(session, count, OutboundQueue.SlowConsumerPolicy.DropNewest);
+        for (int i = 0; i < count; i++) {
+            assertTrue(queue.enqueue(frame(i)));
+        }
+        // the first completion sends the next frame, all further sends complete inline
+        session.completeHeld();
+        assertEquals(count, session.getSentCount());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    public void closeDuringEnqueue() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            TestSession session = new TestSession("a");
+            session.setHolding(true);
+            OutboundQueue queue = createQueue(session, 1000, OutboundQueue.SlowConsumerPolicy.DropNewest);
+            runConcurrently(4, (t) -> {
+                if (t == 0) {
+                    queue.close();
+                    return;
+                }
+                for (int i = 0; i < 100; i++) {
+                    queue.enqueue(frame(i));
+                }
+            });
+            // no slot or frame is left behind by an enqueue racing the close
+            assertEquals(0, queue.getDepth());
+            assertFalse(queue.enqueue(frame(0)));
+            session.completeHeld();
+            assertTrue(session.getSentCount() <= 1L);
+        }
+    }
+
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runConcurrently(int threads, Task task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    task.run(thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result: results) {
+                result.get(30L, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
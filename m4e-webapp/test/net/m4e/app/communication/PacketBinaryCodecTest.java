@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the binary packet codec.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class PacketBinaryCodecTest {
+
+    @Test
+    public void roundTrip() {
+        JsonObject data = Json.createObjectBuilder()
+            .add("text", "hello \u00e4\u00f6\u00fc")
+            .add("small", 5)
+            .add("negative", -3)
+            .add("big", 1234567890123L)
+            .add("fraction", 1.5)
+            .add("yes", true)
+            .add("no", false)
+            .addNull("nothing")
+            .add("list", Json.createArrayBuilder().add(1).add("two").add(Json.createObjectBuilder().add("three", 3)))
+            .add("long", String.join("", Collections.nCopies(300, "x")))
+            .build();
+        Packet packet = new Packet(Packet.CHANNEL_CHAT, "42", "bob", data);
+        packet.setTime(1514631600000L);
+
+        Packet decoded = PacketBinaryCodec.decode(ByteBuffer.wrap(PacketBinaryCodec.encode(packet)));
+
+        assertNotNull(decoded);
+        assertEquals(Packet.CHANNEL_CHAT, decoded.getChannel());
+        assertEquals("42", decoded.getSourceId());
+        assertEquals("bob", decoded.getSource());
+        assertEquals(Long.valueOf(1514631600000L), decoded.getTime());
+        assertEquals(data, decoded.getData());
+    }
+
+    @Test
+    public void sourceIdKeptAsText() {
+        for (String sourceid: Arrays.asList("007", "abc", "", "0", "12345678901234567890")) {
+            Packet packet = new Packet(Packet.CHANNEL_EVENT, sourceid, "", null);
+            Packet decoded = PacketBinaryCodec.decode(ByteBuffer.wrap(PacketBinaryCodec.encode(packet)));
+            assertNotNull(decoded);
+            assertEquals(sourceid, decoded.getSourceId());
+            assertNull(decoded.getData());
+        }
+    }
+
+    @Test
+    public void missingTimeIsSet() {
+        long before = System.currentTimeMillis();
+        Packet decoded = PacketBinaryCodec.decode(ByteBuffer.wrap(PacketBinaryCodec.encode(new Packet(Packet.CHANNEL_SYSTEM, "1", "", null))));
+        assertNotNull(decoded);
+        assertTrue(decoded.getTime() >= before);
+    }
+
+    @Test
+    public void channelIds() {
+        for (String channel: Arrays.asList(Packet.CHANNEL_SYSTEM, Packet.CHANNEL_NOTIFY, Packet.CHANNEL_CHAT, Packet.CHANNEL_EVENT)) {
+            byte id = PacketBinaryCodec.getChannelId(channel);
+            assertNotEquals(PacketBinaryCodec.CHANNEL_ID_UNKNOWN, id);
+            assertEquals(channel, PacketBinaryCodec.getChannel(id));
+        }
+        assertEquals(PacketBinaryCodec.CHANNEL_ID_UNKNOWN, PacketBinaryCodec.getChannelId("unknown"));
+        assertEquals("", PacketBinaryCodec.getChannel((byte)99));
+    }
+
+    @Test
+    public void peekChannel() {
+        ByteBuffer frame = ByteBuffer.wrap(PacketBinaryCodec.encode(new Packet(Packet.CHANNEL_NOTIFY, "1", "", null)));
+        assertEquals(Packet.CHANNEL_NOTIFY, PacketBinaryCodec.peekChannel(frame));
+        assertEquals(0, frame.position());
+        assertEquals("", PacketBinaryCodec.peekChannel(ByteBuffer.wrap(new byte[] {PacketBinaryCodec.FORMAT_VERSION})));
+    }
+
+    @Test
+    public void invalidFrames() {
+        byte[] valid = PacketBinaryCodec.encode(new Packet(Packet.CHANNEL_CHAT, "1", "bob", Json.createObjectBuilder().add("text", "hi").build()));
+
+        byte[] version = valid.clone();
+        version[0] = 2;
+        assertNull(PacketBinaryCodec.decode(ByteBuffer.wrap(version)));
+
+        assertNull(PacketBinaryCodec.decode(ByteBuffer.wrap(Arrays.copyOf(valid, valid.length - 1))));
+        assertNull(PacketBinaryCodec.decode(ByteBuffer.wrap(new byte[0])));
+
+        // string length beyond the frame end
+        byte[] length = {PacketBinaryCodec.FORMAT_VERSION, PacketBinaryCodec.CHANNEL_ID_CHAT, (byte)0xdb, 0x7f, 0, 0, 0};
+        assertNull(PacketBinaryCodec.decode(ByteBuffer.wrap(length)));
+
+        // map key which is not a string
+        byte[] key = {PacketBinaryCodec.FORMAT_VERSION, PacketBinaryCodec.CHANNEL_ID_CHAT, 1, (byte)0xa0, 1, (byte)0x81, 1, 1};
+        assertNull(PacketBinaryCodec.decode(ByteBuffer.wrap(key)));
+    }
+
+    @Test
+    public void nestingLimit() {
+        JsonObjectBuilder nested = Json.createObjectBuilder().add("leaf", 1);
+        for (int i = 0; i < 40; i++) {
+            nested = Json.createObjectBuilder().add("n", nested);
+        }
+        Packet packet = new Packet(Packet.CHANNEL_CHAT, "1", "", nested.build());
+        assertNull(PacketBinaryCodec.decode(ByteBuffer.wrap(PacketBinaryCodec.encode(packet))));
+    }
+}
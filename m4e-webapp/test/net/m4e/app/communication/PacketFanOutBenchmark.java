@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.concurrent.TimeUnit;
+import javax.json.Json;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Benchmark of the fan-out of one packet to the sessions of its recipients:
+ * encoding the packet for every session vs. one shared frame encoded once.
+ * The GC profiler reports the allocation per fan-out (gc.alloc.rate.norm).
+ *
+ * Run it with the main method, it is not part of the unit tests.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketFanOutBenchmark {
+
+    /**
+     * Count of recipient sessions, e.g. the members of an event
+     */
+    @Param({"10", "50", "500"})
+    int sessions;
+
+    private Packet packet;
+
+    @Setup
+    public void setUp() {
+        packet = new Packet(Packet.CHANNEL_CHAT, "42", "bob", Json.createObjectBuilder()
+                    .add("receiverEvent", "17")
+                    .add("text", "Let us meet at the italian place around the corner, 12:30?")
+                    .build());
+        packet.setTime(1514631600000L);
+    }
+
+    @Benchmark
+    public void encodePerSession(Blackhole blackhole) {
+        for (int i = 0; i < sessions; i++) {
+            blackhole.consume(packet.toJSON());
+        }
+    }
+
+    @Benchmark
+    public void sharedFrame(Blackhole blackhole) {
+        PacketFrame frame = new PacketFrame(packet);
+        for (int i = 0; i < sessions; i++) {
+            blackhole.consume(frame.getText());
+        }
+    }
+
+    @Benchmark
+    public void encodeBinaryPerSession(Blackhole blackhole) {
+        for (int i = 0; i < sessions; i++) {
+            blackhole.consume(PacketBinaryCodec.encode(packet));
+        }
+    }
+
+    @Benchmark
+    public void sharedBinaryFrame(Blackhole blackhole) {
+        PacketFrame frame = new PacketFrame(packet);
+        for (int i = 0; i < sessions; i++) {
+            blackhole.consume(frame.getBinary());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PacketFanOutBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
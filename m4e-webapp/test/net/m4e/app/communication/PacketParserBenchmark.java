@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.spi.JsonProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Benchmark of reading incoming packets: the streaming reader of Packet.fromJSON
+ * vs. reading the entire JSON tree as it was done before. The streaming reader
+ * is measured for routing only (header) and with accessing the packet data.
+ *
+ * Run it with the main method, it is not part of the unit tests.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketParserBenchmark {
+
+    /**
+     * Count of items in packet data, 0 for a plain chat message
+     */
+    @Param({"0", "100"})
+    int items;
+
+    /**
+     * Both readers use a provider which is looked up once, like Packet does
+     */
+    private final static JsonProvider JSON_PROVIDER = JsonProvider.provider();
+
+    private String input;
+
+    @Setup
+    public void setUp() {
+        Packet packet;
+        if (items == 0) {
+            packet = new Packet(Packet.CHANNEL_CHAT, "42", "bob", Json.createObjectBuilder()
+                        .add("receiverEvent", "17")
+                        .add("text", "Let us meet at the italian place around the corner, 12:30?")
+                        .build());
+        }
+        else {
+            JsonArrayBuilder locations = Json.createArrayBuilder();
+            for (int i = 0; i < items; i++) {
+                locations.add(Json.createObjectBuilder().add("id", i).add("name", "location " + i).add("votes", i % 7));
+            }
+            packet = new Packet(Packet.CHANNEL_EVENT, "42", "bob", Json.createObjectBuilder()
+                        .add("eventId", "17")
+                        .add("locations", locations)
+                        .build());
+        }
+        packet.setTime(1514631600000L);
+        input = packet.toJSON();
+    }
+
+    @Benchmark
+    public String streamingHeader() {
+        return Packet.fromJSON(input).getChannel();
+    }
+
+    @Benchmark
+    public JsonObject streamingData() {
+        return Packet.fromJSON(input).getData();
+    }
+
+    @Benchmark
+    public JsonObject tree() {
+        return readTree(input).getData();
+    }
+
+    /**
+     * The former reader, it builds the JSON tree of the entire packet.
+     */
+    private static Packet readTree(String input) {
+        try (JsonReader reader = JSON_PROVIDER.createReader(new StringReader(input))) {
+            JsonObject object = reader.readObject();
+            Packet packet = new Packet(object.getString("channel", ""), object.getString("sourceId", ""),
+                                       object.getString("source", ""), object.getJsonObject("data"));
+            packet.setTime(object.getJsonNumber("time").longValue());
+            return packet;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PacketParserBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of reading packets out of JSON, the data is taken out of the input
+ * without parsing it and it is parsed on first access.
+ *
+ * @author boto
+ * Date of creation Jan 2, 2018
+ */
+public class PacketTest {
+
+    @Test
+    public void headerFields() {
+        Packet packet = Packet.fromJSON("{\"channel\":\"chat\",\"sourceId\":\"42\",\"source\":\"bob\",\"time\":1514631600000,\"data\":{\"text\":\"hi\"}}");
+        assertNotNull(packet);
+        assertEquals(Packet.CHANNEL_CHAT, packet.getChannel());
+        assertEquals("42", packet.getSourceId());
+        assertEquals("bob", packet.getSource());
+        assertEquals(Long.valueOf(1514631600000L), packet.getTime());
+        assertEquals("hi", packet.getData().getString("text"));
+    }
+
+    @Test
+    public void bracesInStrings() {
+        String input = "{\"channel\":\"chat\",\"source\":\"{{ x\",\"time\":1," +
+                       "\"data\":{\"text\":\"a { b } c\",\"open\":\"{\",\"close\":\"}\",\"quoted\":\"\\\"}\\\\\"," +
+                       "\"nested\":{\"x\":\"}\",\"y\":[{\"z\":\"{\"}]}}," +
+                       "\"sourceId\":\"7\"}";
+        Packet packet = Packet.fromJSON(input);
+        assertNotNull(packet);
+        assertEquals("{{ x", packet.getSource());
+        assertEquals("7", packet.getSourceId());
+        assertEquals(readData(input), packet.getData());
+        assertEquals("a { b } c", packet.getData().getString("text"));
+        assertEquals("\"}\\", packet.getData().getString("quoted"));
+    }
+
+    @Test
+    public void whitespaceAroundData() {
+        String input = "{ \"channel\" : \"event\" ,\n\t\"time\" : 1 ,\n" +
+                       "\t\"data\"  :  \r\n  {  \"a\" : 1 ,  \"b\" : { } }  \n , \"source\" : \"s\" \n}";
+        Packet packet = Packet.fromJSON(input);
+        assertNotNull(packet);
+        assertEquals("s", packet.getSource());
+        assertEquals(readData(input), packet.getData());
+    }
+
+    @Test
+    public void emptyData() {
+        String input = "{\"channel\":\"event\",\"time\":1,\"data\":{}}";
+        Packet packet = Packet.fromJSON(input);
+        assertNotNull(packet);
+        assertEquals(Json.createObjectBuilder().build(), packet.getData());
+    }
+
+    @Test
+    public void dataNamedData() {
+        String input = "{\"data\":{\"data\":{\"data\":1}},\"channel\":\"notify\",\"time\":1}";
+        Packet packet = Packet.fromJSON(input);
+        assertNotNull(packet);
+        assertEquals(Packet.CHANNEL_NOTIFY, packet.getChannel());
+        assertEquals(readData(input), packet.getData());
+        assertEquals(1, packet.getData().getJsonObject("data").getInt("data"));
+    }
+
+    @Test
+    public void nullOrMissingData() {
+        Packet packet = Packet.fromJSON("{\"channel\":\"system\",\"time\":1,\"data\":null}");
+        assertNotNull(packet);
+        assertNull(packet.getData());
+
+        packet = Packet.fromJSON("{\"channel\":\"system\",\"time\":1}");
+        assertNotNull(packet);
+        assertNull(packet.getData());
+    }
+
+    @Test
+    public void dataNotAnObject() {
+        for (String data: Arrays.asList("[]", "[{\"a\":1}]", "\"text\"", "5", "true")) {
+            assertNull(data, Packet.fromJSON("{\"channel\":\"chat\",\"time\":1,\"data\":" + data + "}"));
+        }
+    }
+
+    @Test
+    public void misspelledKeys() {
+        Packet packet = Packet.fromJSON("{\"channel\":\"chat\",\"soourceId\":\"42\",\"soource\":\"bob\",\"time\":1}");
+        assertNotNull(packet);
+        assertEquals("42", packet.getSourceId());
+        assertEquals("bob", packet.getSource());
+    }
+
+    @Test
+    public void missingTime() {
+        assertNull(Packet.fromJSON("{\"channel\":\"chat\",\"data\":{\"a\":1}}"));
+        assertNull(Packet.fromJSON("{\"channel\":\"chat\",\"time\":\"1\"}"));
+    }
+
+    @Test
+    public void invalidInput() {
+        for (String input: Arrays.asList("", "[]", "{\"channel\":\"chat\",\"time\":1", "{\"channel\":\"chat\",\"time\":1,\"data\":{\"a\":}}")) {
+            assertNull(input, Packet.fromJSON(input));
+        }
+    }
+
+    @Test
+    public void unknownFieldsSkipped() {
+        String input = "{\"extra\":{\"data\":{\"x\":1}},\"list\":[{\"y\":\"}\"}],\"channel\":\"chat\",\"time\":1,\"data\":{\"a\":2}}";
+        Packet packet = Packet.fromJSON(input);
+        assertNotNull(packet);
+        assertEquals(Packet.CHANNEL_CHAT, packet.getChannel());
+        assertEquals(readData(input), packet.getData());
+    }
+
+    @Test
+    public void roundTrip() {
+        JsonObject data = Json.createObjectBuilder()
+            .add("text", "{ \"quoted\" }")
+            .add("number", 12)
+            .add("nested", Json.createObjectBuilder().add("list", Json.createArrayBuilder().add(1).add("}")))
+            .build();
+        Packet packet = new Packet(Packet.CHANNEL_EVENT, "1", "alice", data);
+        packet.setTime(1514631600000L);
+
+        Packet read = Packet.fromJSON(packet.toJSON());
+        assertNotNull(read);
+        assertEquals(Packet.CHANNEL_EVENT, read.getChannel());
+        assertEquals(Long.valueOf(1514631600000L), read.getTime());
+        assertEquals(data, read.getData());
+        assertEquals(packet.toJSON(), read.toJSON());
+    }
+
+    /**
+     * Read the data of a packet with the object model reader.
+     */
+    private static JsonObject readData(String input) {
+        try (JsonReader reader = Json.createReader(new StringReader(input))) {
+            return reader.readObject().getJsonObject("data");
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the token bucket used for limiting the inbound frame rate.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class RateBucketTest {
+
+    @Test
+    public void burstThenReject() {
+        RateBucket bucket = new RateBucket(new RateBucket.Limit(0.1, 5));
+        for (int i = 0; i < 5; i++) {
+            assertTrue("frame " + i, bucket.tryAcquire());
+        }
+        assertFalse(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void unlimited() {
+        RateBucket.Limit limit = new RateBucket.Limit(0.0, 1);
+        assertTrue(limit.isUnlimited());
+        RateBucket bucket = new RateBucket(limit);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(bucket.tryAcquire());
+        }
+    }
+
+    @Test
+    public void burstAtLeastOne() {
+        RateBucket.Limit limit = new RateBucket.Limit(1.0, 0);
+        assertEquals(1, limit.getBurst());
+        RateBucket bucket = new RateBucket(limit);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void refill() throws Exception {
+        RateBucket bucket = new RateBucket(new RateBucket.Limit(20.0, 1));
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        Thread.sleep(100L);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void release() {
+        RateBucket bucket = new RateBucket(new RateBucket.Limit(0.1, 2));
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        bucket.release();
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void releaseUnused() {
+        RateBucket bucket = new RateBucket(new RateBucket.Limit(0.1, 1));
+        bucket.release();
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void sharedLimit() {
+        RateBucket.Limit limit = new RateBucket.Limit(0.1, 2);
+        RateBucket first = new RateBucket(limit);
+        RateBucket second = new RateBucket(limit);
+        assertTrue(first.tryAcquire());
+        assertTrue(first.tryAcquire());
+        assertFalse(first.tryAcquire());
+        assertTrue(second.tryAcquire());
+    }
+
+    @Test
+    public void concurrentAcquire() throws Exception {
+        final int burst = 1000;
+        final int threads = 8;
+        RateBucket bucket = new RateBucket(new RateBucket.Limit(0.001, burst));
+        AtomicInteger accepted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < burst; i++) {
+                        if (bucket.tryAcquire()) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future: futures) {
+                future.get(10L, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        assertEquals(burst, accepted.get());
+    }
+}
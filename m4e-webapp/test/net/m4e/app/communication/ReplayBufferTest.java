@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.io.StringReader;
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the per-user replay buffer and the sequenced frames it hands out.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class ReplayBufferTest {
+
+    @Test
+    public void appendAndGetSince() {
+        ReplayBuffer buffer = new ReplayBuffer(4);
+        assertEquals(0L, buffer.getLastSeq());
+        assertTrue(buffer.getSince(0L).isEmpty());
+
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, buffer.append(createFrame(i)));
+        }
+        assertEquals(3L, buffer.getLastSeq());
+
+        List<PacketFrame> missed = buffer.getSince(1L);
+        assertEquals(2, missed.size());
+        assertEquals(2L, ((SequencedFrame)missed.get(0)).getSeq());
+        assertEquals(3L, ((SequencedFrame)missed.get(1)).getSeq());
+        assertEquals(2, missed.get(0).getPacket().getData().getInt("n"));
+        assertTrue(buffer.getSince(3L).isEmpty());
+    }
+
+    @Test
+    public void overflow() {
+        ReplayBuffer buffer = new ReplayBuffer(4);
+        for (int i = 1; i <= 10; i++) {
+            buffer.append(createFrame(i));
+        }
+        // the last 4 frames are kept
+        List<PacketFrame> missed = buffer.getSince(6L);
+        assertEquals(4, missed.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(7L + i, ((SequencedFrame)missed.get(i)).getSeq());
+            assertEquals(7 + i, missed.get(i).getPacket().getData().getInt("n"));
+        }
+        assertNull(buffer.getSince(5L));
+        assertNull(buffer.getSince(0L));
+    }
+
+    @Test
+    public void invalidSeq() {
+        ReplayBuffer buffer = new ReplayBuffer(4);
+        buffer.append(createFrame(1));
+        assertNull(buffer.getSince(-1L));
+        assertNull(buffer.getSince(2L));
+    }
+
+    @Test
+    public void sequencedText() {
+        PacketFrame shared = createFrame(1);
+        SequencedFrame frame = new SequencedFrame(shared, 17L);
+        assertFalse(frame.hasBinary());
+
+        JsonObject json = Json.createReader(new StringReader(frame.getText())).readObject();
+        assertEquals(17L, json.getJsonNumber("seq").longValue());
+        assertEquals(Packet.CHANNEL_NOTIFY, json.getString("channel"));
+        assertEquals(1, json.getJsonObject("data").getInt("n"));
+        // the shared frame is not changed
+        assertFalse(Json.createReader(new StringReader(shared.getText())).readObject().containsKey("seq"));
+    }
+
+    @Test
+    public void expiry() {
+        ReplayBuffer buffer = new ReplayBuffer(4);
+        assertFalse(buffer.isExpired(Long.MAX_VALUE, 0L));
+        buffer.release(1000L);
+        assertFalse(buffer.isExpired(1500L, 1000L));
+        assertTrue(buffer.isExpired(2001L, 1000L));
+        buffer.acquire();
+        assertFalse(buffer.isExpired(5000L, 1000L));
+    }
+
+    private static PacketFrame createFrame(int n) {
+        Packet packet = new Packet(Packet.CHANNEL_NOTIFY, "", "", Json.createObjectBuilder().add("n", n).build());
+        packet.setTime(1L);
+        return new PacketFrame(packet);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.event.Event;
+import javax.json.Json;
+import javax.websocket.Session;
+import net.m4e.app.user.UserEntity;
+
+
+/**
+ * Stand-ins for the container resources used by the WebSocket layer, so its
+ * classes can be tested without an application server.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class TestResources {
+
+    private TestResources() {}
+
+    /**
+     * Create a managed scheduled executor running on plain daemon threads.
+     * Shut it down with shutdownNow when the test is done.
+     *
+     * @param threads   Count of threads
+     * @return          Executor
+     */
+    public static ManagedScheduledExecutorService createScheduler(int threads) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, (runnable) -> {
+            Thread thread = new Thread(runnable, "m4e-test-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return delegate(ManagedScheduledExecutorService.class, ScheduledExecutorService.class, executor);
+    }
+
+    /**
+     * Create a managed thread factory creating plain threads.
+     *
+     * @return Thread factory
+     */
+    public static ManagedThreadFactory createThreadFactory() {
+        return delegate(ManagedThreadFactory.class, ThreadFactory.class, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Create a CDI event which has no observers.
+     *
+     * @param <T>   Event type
+     * @return      Event
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Event<T> createEvent() {
+        return (Event<T>)Proxy.newProxyInstance(TestResources.class.getClassLoader(), new Class<?>[] {Event.class}, (proxy, method, args) -> null);
+    }
+
+    /**
+     * Create a connected clients registry for a single node. Presence changes of
+     * users are not published.
+     *
+     * @param scheduler Scheduler, see createScheduler
+     * @return          Connected clients
+     */
+    public static ConnectedClients createConnectedClients(ManagedScheduledExecutorService scheduler) {
+        return createConnectedClients(scheduler, new PresenceEngine() {
+            @Override
+            public void setOnline(UserEntity user) {}
+
+            @Override
+            public void setOffline(UserEntity user) {}
+        });
+    }
+
+    /**
+     * Create a connected clients registry for a single node. Presence changes of
+     * users are handed to given presence engine.
+     *
+     * @param scheduler         Scheduler, see createScheduler
+     * @param presenceEngine    Presence engine
+     * @return                  Connected clients
+     */
+    public static ConnectedClients createConnectedClients(ManagedScheduledExecutorService scheduler, PresenceEngine presenceEngine) {
+        ConnectedClients clients = new ConnectedClients();
+        clients.metrics = new CommunicationMetrics();
+        clients.presenceEngine = presenceEngine;
+        clients.scheduler = scheduler;
+        clients.threadFactory = createThreadFactory();
+        clients.userConnectedEvent = createEvent();
+        clients.connectedClientsInit();
+        return clients;
+    }
+
+    /**
+     * Add a session of a user to connected clients, like a WebSocket connection
+     * does after its handshake.
+     *
+     * @param clients   Connected clients
+     * @param user      User
+     * @param session   WebSocket session
+     * @return          Return false if the session was added before.
+     */
+    public static boolean connect(ConnectedClients clients, UserEntity user, Session session) {
+        Packet response = new Packet(Packet.CHANNEL_SYSTEM, "", "", Json.createObjectBuilder().add("status", "ok").build());
+        return clients.addConnection(user, session, response, null);
+    }
+
+    /**
+     * Create a proxy for a managed resource interface which forwards the methods of
+     * its plain Java SE super interface to given delegate.
+     */
+    private static <T> T delegate(Class<T> managed, Class<?> plain, Object target) {
+        return managed.cast(Proxy.newProxyInstance(TestResources.class.getClassLoader(), new Class<?>[] {managed}, (proxy, method, args) -> {
+            if (!method.getDeclaringClass().isAssignableFrom(plain) && !method.getDeclaringClass().equals(Object.class)) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            try {
+                return method.invoke(target, args);
+            }
+            catch(InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }));
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+
+/**
+ * WebSocket session stand-in for tests. Frames sent to the session are recorded,
+ * every send completes inline unless the completions are held, see setHolding.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class TestSession {
+
+    private final String id;
+
+    private final String subprotocol;
+
+    private final Map<String, Object> userProperties = new ConcurrentHashMap<>();
+
+    private final Map<String, List<String>> requestParameters = new HashMap<>();
+
+    private final List<String> texts = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<ByteBuffer> binaries = Collections.synchronizedList(new ArrayList<>());
+
+    private final AtomicLong sentCount = new AtomicLong();
+
+    private volatile boolean recording = true;
+
+    private volatile boolean holding = false;
+
+    private final Queue<SendHandler> held = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean open = true;
+
+    private final Session session;
+
+    /**
+     * Create a session using the JSON protocol.
+     *
+     * @param id    Session ID
+     */
+    public TestSession(String id) {
+        this(id, "");
+    }
+
+    /**
+     * Create a session.
+     *
+     * @param id            Session ID
+     * @param subprotocol   Negotiated sub-protocol, e.g. Connection.SUBPROTOCOL_BINARY
+     */
+    public TestSession(String id, String subprotocol) {
+        this.id = id;
+        this.subprotocol = subprotocol;
+        this.session = (Session)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Session.class}, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getId":
+                    return id;
+                case "getUserProperties":
+                    return userProperties;
+                case "getRequestParameterMap":
+                    return requestParameters;
+                case "getNegotiatedSubprotocol":
+                    return subprotocol;
+                case "getAsyncRemote":
+                    return createRemote();
+                case "isOpen":
+                    return open;
+                case "close":
+                    open = false;
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "TestSession " + id;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Get the WebSocket session.
+     *
+     * @return Session
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Set a request parameter, e.g. Connection.PARAM_SEQ.
+     *
+     * @param name      Parameter name
+     * @param value     Parameter value
+     */
+    public void setRequestParameter(String name, String value) {
+        requestParameters.put(name, Collections.singletonList(value));
+    }
+
+    /**
+     * Get the text frames sent to the session.
+     *
+     * @return Copy of the sent text frames
+     */
+    public List<String> getTexts() {
+        synchronized(texts) {
+            return new ArrayList<>(texts);
+        }
+    }
+
+    /**
+     * Get the binary frames sent to the session.
+     *
+     * @return Copy of the sent binary frames
+     */
+    public List<ByteBuffer> getBinaries() {
+        synchronized(binaries) {
+            return new ArrayList<>(binaries);
+        }
+    }
+
+    /**
+     * Get the count of frames sent to the session.
+     *
+     * @return Count of text and binary frames
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Switch the recording of sent frames on or off. Without recording the frames
+     * are only counted, e.g. for load tests.
+     *
+     * @param recording Pass false for counting the frames only
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Hold the completions of sends, like a slow peer. The held sends are completed
+     * by completeHeld.
+     *
+     * @param holding   Pass true for holding the completions
+     */
+    public void setHolding(boolean holding) {
+        this.holding = holding;
+    }
+
+    /**
+     * Stop holding the completions and complete the held sends on the calling thread.
+     * Sends issued meanwhile complete inline.
+     */
+    public void completeHeld() {
+        holding = false;
+        SendHandler handler;
+        while ((handler = held.poll()) != null) {
+            handler.onResult(new SendResult());
+        }
+    }
+
+    /**
+     * Get the count of sends whose completion is held.
+     *
+     * @return Count of held sends
+     */
+    public int getHeldCount() {
+        return held.size();
+    }
+
+    /**
+     * Check if the session was closed.
+     *
+     * @return Return true if the session was closed.
+     */
+    public boolean isClosed() {
+        return !open;
+    }
+
+    private RemoteEndpoint.Async createRemote() {
+        return (RemoteEndpoint.Async)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {RemoteEndpoint.Async.class}, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "sendText":
+                    sentCount.incrementAndGet();
+                    if (recording) {
+                        texts.add((String)args[0]);
+                    }
+                    complete((SendHandler)args[1]);
+                    return null;
+                case "sendBinary":
+                    sentCount.incrementAndGet();
+                    if (recording) {
+                        binaries.add((ByteBuffer)args[0]);
+                    }
+                    complete((SendHandler)args[1]);
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private void complete(SendHandler handler) {
+        if (holding) {
+            held.add(handler);
+        }
+        else {
+            handler.onResult(new SendResult());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.communication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the hashed timer wheel.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void firesAfterTicks() {
+        TimerWheel wheel = new TimerWheel(8, 10L);
+        AtomicInteger fired = new AtomicInteger();
+        wheel.schedule(fired::incrementAndGet, 30L);
+        advance(wheel, 2);
+        assertEquals(0, fired.get());
+        wheel.advance();
+        assertEquals(1, fired.get());
+        advance(wheel, 20);
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void delayRoundedUp() {
+        TimerWheel wheel = new TimerWheel(8, 10L);
+        AtomicInteger zero = new AtomicInteger();
+        AtomicInteger partial = new AtomicInteger();
+        wheel.schedule(zero::incrementAndGet, 0L);
+        wheel.schedule(partial::incrementAndGet, 11L);
+        wheel.advance();
+        assertEquals(1, zero.get());
+        assertEquals(0, partial.get());
+        wheel.advance();
+        assertEquals(1, partial.get());
+    }
+
+    @Test
+    public void severalRounds() {
+        TimerWheel wheel = new TimerWheel(8, 10L);
+        // let the current slot move away from 0 first
+        advance(wheel, 5);
+        List<Integer> firedAt = new ArrayList<>();
+        int[] tick = {0};
+        for (int ticks: new int[] {1, 7, 8, 9, 16, 25}) {
+            wheel.schedule(() -> firedAt.add(tick[0]), ticks * 10L);
+        }
+        for (tick[0] = 1; tick[0] <= 30; tick[0]++) {
+            wheel.advance();
+        }
+        assertEquals(Arrays.asList(1, 7, 8, 9, 16, 25), firedAt);
+    }
+
+    @Test
+    public void cancel() {
+        TimerWheel wheel = new TimerWheel(4, 10L);
+        AtomicInteger fired = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, 20L);
+        wheel.schedule(fired::incrementAndGet, 20L);
+        wheel.advance();
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+        advance(wheel, 10);
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void failingTask() {
+        TimerWheel wheel = new TimerWheel(4, 10L);
+        AtomicInteger fired = new AtomicInteger();
+        wheel.schedule(() -> { throw new IllegalStateException("failing task"); }, 10L);
+        wheel.schedule(fired::incrementAndGet, 10L);
+        wheel.advance();
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void rescheduleFromTask() {
+        TimerWheel wheel = new TimerWheel(4, 10L);
+        AtomicInteger fired = new AtomicInteger();
+        Runnable[] task = new Runnable[1];
+        task[0] = () -> {
+            fired.incrementAndGet();
+            wheel.schedule(task[0], 20L);
+        };
+        wheel.schedule(task[0], 20L);
+        advance(wheel, 10);
+        assertEquals(5, fired.get());
+    }
+
+    private static void advance(TimerWheel wheel, int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            wheel.advance();
+        }
+    }
+}
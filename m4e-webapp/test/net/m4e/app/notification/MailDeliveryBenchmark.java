@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.app.notification;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.Authenticator;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.servlet.ServletContext;
+import net.m4e.app.communication.TestResources;
+import net.m4e.system.core.AppConfiguration;
+
+
+/**
+ * Throughput benchmark of sending a burst of mails, e.g. registrations, to a
+ * local SMTP stand-in: a new connection per mail with Transport.send, as it was
+ * done before, vs. the pooled connections of MailDelivery. The stand-in delays
+ * its greeting and the authentication, like a remote server with TLS would do.
+ *
+ * Run it with the main method, it is not part of the unit tests.
+ *
+ * @author boto
+ * Date of creation Dec 30, 2017
+ */
+public class MailDeliveryBenchmark {
+
+    private final static int MAILS = 200;
+
+    /**
+     * Delay in milliseconds of the server greeting and of the authentication
+     */
+    private final static long SERVER_DELAY = 20L;
+
+    private final static int POOL_SIZE = 4;
+
+    public static void main(String[] args) throws Exception {
+        SmtpStandIn server = new SmtpStandIn();
+        try {
+            Properties cfg = createConfig(server.getPort());
+
+            long transportsend = sendWithTransport(cfg, server);
+            System.out.println(String.format("Transport.send: %5d ms, %4d connections, %6.1f mails/s",
+                                             transportsend, server.getConnectionCount(), MAILS * 1000.0 / transportsend));
+
+            server.reset();
+            long pooled = sendWithMailDelivery(cfg, server);
+            System.out.println(String.format("MailDelivery:   %5d ms, %4d connections, %6.1f mails/s",
+                                             pooled, server.getConnectionCount(), MAILS * 1000.0 / pooled));
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Send every mail over its own connection.
+     *
+     * @return Duration in milliseconds
+     */
+    private static long sendWithTransport(Properties cfg, SmtpStandIn server) throws Exception {
+        long begin = System.nanoTime();
+        for (int i = 0; i < MAILS; i++) {
+            Session session = Session.getInstance(cfg, createAuthenticator(cfg));
+            Transport.send(createMessage(session, cfg, i));
+        }
+        server.awaitMails(MAILS);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+    }
+
+    /**
+     * Queue all mails at once to the mail delivery.
+     *
+     * @return Duration in milliseconds
+     */
+    private static long sendWithMailDelivery(Properties cfg, SmtpStandIn server) throws Exception {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        cfg.store(content, null);
+        AppConfiguration.getInstance().setConfigValue(AppConfiguration.TOKEN_MAILER_CONFIG_FILE, "mailer.cfg");
+
+        MailDelivery delivery = new MailDelivery();
+        delivery.context = (ServletContext)Proxy.newProxyInstance(MailDeliveryBenchmark.class.getClassLoader(), new Class<?>[] {ServletContext.class},
+            (proxy, method, args) -> {
+                if ("getResourceAsStream".equals(method.getName()) && "/WEB-INF/mailer.cfg".equals(args[0])) {
+                    return new ByteArrayInputStream(content.toByteArray());
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+        delivery.threadFactory = TestResources.createThreadFactory();
+        delivery.mailDeliveryInit();
+        try {
+            long begin = System.nanoTime();
+            for (int i = 0; i < MAILS; i++) {
+                if (!delivery.send(createMessage(delivery.getSession(), cfg, i))) {
+                    throw new IllegalStateException("could not queue mail " + i);
+                }
+            }
+            server.awaitMails(MAILS);
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        }
+        finally {
+            delivery.mailDeliveryShutdown();
+        }
+    }
+
+    private static Properties createConfig(int port) {
+        Properties cfg = new Properties();
+        cfg.setProperty("mail.from", "noreply@localhost");
+        cfg.setProperty("mail.from.name", "Meet4Eat");
+        cfg.setProperty("mail.smtp.user", "m4e");
+        cfg.setProperty("mail.smtp.password", "secret");
+        cfg.setProperty("mail.smtp.host", "127.0.0.1");
+        cfg.setProperty("mail.smtp.port", String.valueOf(port));
+        cfg.setProperty("mail.smtp.auth", "true");
+        cfg.setProperty("mail.transport.protocol", "smtp");
+        cfg.setProperty(MailDelivery.CFG_POOL_SIZE, String.valueOf(POOL_SIZE));
+        return cfg;
+    }
+
+    private static Authenticator createAuthenticator(Properties cfg) {
+        return new Authenticator() {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(cfg.getProperty("mail.smtp.user"), cfg.getProperty("mail.smtp.password"));
+            }
+        };
+    }
+
+    private static MimeMessage createMessage(Session session, Properties cfg, int index) throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(cfg.getProperty("mail.from"), cfg.getProperty("mail.from.name")));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("user" + index + "@localhost"));
+        message.setSubject("Meet4Eat - Account Registration");
+        message.setContent("<html><body>Please activate your account: <a href='http://localhost/activate?token=" + index + "'>activate</a></body></html>",
+                           "text/html; charset=utf-8");
+        return message;
+    }
+
+    /**
+     * Minimal SMTP server accepting all mails with authentication PLAIN.
+     */
+    private static class SmtpStandIn {
+
+        private final ServerSocket socket;
+
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private final AtomicInteger mails = new AtomicInteger();
+
+        private SmtpStandIn() throws IOException {
+            socket = new ServerSocket(0);
+            executor.submit(this::accept);
+        }
+
+        private int getPort() {
+            return socket.getLocalPort();
+        }
+
+        private int getConnectionCount() {
+            return connections.get();
+        }
+
+        private void reset() {
+            connections.set(0);
+            mails.set(0);
+        }
+
+        private void awaitMails(int count) throws InterruptedException, MessagingException {
+            long deadline = System.currentTimeMillis() + 60000L;
+            while (mails.get() < count) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new MessagingException("only " + mails.get() + " of " + count + " mails arrived");
+                }
+                Thread.sleep(1L);
+            }
+        }
+
+        private void close() throws IOException {
+            socket.close();
+            executor.shutdownNow();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket client = socket.accept();
+                    connections.incrementAndGet();
+                    executor.submit(() -> serve(client));
+                }
+            }
+            catch(IOException ex) {
+                // the server socket was closed
+            }
+        }
+
+        private void serve(Socket client) {
+            try (Socket s = client;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                 OutputStream out = s.getOutputStream()) {
+                PrintStream reply = new PrintStream(out, true, "US-ASCII");
+                Thread.sleep(SERVER_DELAY);
+                reply.print("220 localhost SMTP stand-in\r\n");
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String command = line.toUpperCase();
+                    if (command.startsWith("EHLO")) {
+                        reply.print("250-localhost\r\n250-AUTH PLAIN\r\n250 8BITMIME\r\n");
+                    }
+                    else if (command.startsWith("HELO")) {
+                        reply.print("250 localhost\r\n");
+                    }
+                    else if (command.startsWith("AUTH")) {
+                        Thread.sleep(SERVER_DELAY);
+                        reply.print("235 authenticated\r\n");
+                    }
+                    else if (command.startsWith("DATA")) {
+                        reply.print("354 end with .\r\n");
+                        while (((line = in.readLine()) != null) && !".".equals(line)) {
+                            // skip the message
+                        }
+                        mails.incrementAndGet();
+                        reply.print("250 queued\r\n");
+                    }
+                    else if (command.startsWith("QUIT")) {
+                        reply.print("221 bye\r\n");
+                        break;
+                    }
+                    else {
+                        // MAIL, RCPT, RSET, NOOP
+                        reply.print("250 ok\r\n");
+                    }
+                }
+            }
+            catch(IOException | InterruptedException ex) {
+                // the client went away
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017 by Botorabi. All rights reserved.
+ * https://github.com/botorabi/Meet4Eat
+ *
+ * License: MIT License (MIT), read the LICENSE text in
+ *          main directory for more details.
+ */
+
+package net.m4e.system.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import net.m4e.system.deployment.Update_0_9_0;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of choosing and performing the updaters of a deployment update.
+ *
+ * @author boto
+ * Date of creation Jan 3, 2018
+ */
+public class AppUpdateManagerTest {
+
+    private final List<String> performed = new ArrayList<>();
+
+    private AppUdateBaseHandler createUpdater(int incNumber, String version, boolean fail) {
+        return new AppUdateBaseHandler() {
+            {
+                incUpdateNumber = incNumber;
+                appVersion = version;
+            }
+
+            @Override
+            public void performUpdate(EntityManager entityManager) throws Exception {
+                if (fail) {
+                    throw new Exception("update failed");
+                }
+                performed.add(appVersion);
+            }
+        };
+    }
+
+    private AppUpdateManager createManager(AppUdateBaseHandler... updaters) {
+        AppUpdateManager manager = new AppUpdateManager(null);
+        Arrays.asList(updaters).forEach(manager::registerUpdater);
+        return manager;
+    }
+
+    @Test
+    public void upgradeRegisteredUpdatersFrom089() {
+        AppUpdateManager manager = new AppUpdateManager(null);
+        new AppUpdateRegistry().registerAllUpdaters(manager);
+
+        List<AppUdateBaseHandler> updaters = manager.getPendingUpdaters("0.8.9", "0.9.0");
+        assertNotNull(updaters);
+        assertEquals(1, updaters.size());
+        assertTrue(updaters.get(0) instanceof Update_0_9_0);
+    }
+
+    @Test
+    public void upgradeFromVersionWithoutUpdater() {
+        AppUpdateManager manager = createManager(createUpdater(0, "0.0.0", false), createUpdater(1, "0.1.0", false), createUpdater(2, "0.9.0", false));
+        assertTrue(manager.performUpdate("0.8.9", "0.9.0"));
+        assertEquals(Arrays.asList("0.9.0"), performed);
+    }
+
+    @Test
+    public void upgradeToVersionWithoutUpdater() {
+        AppUpdateManager manager = createManager(createUpdater(0, "0.0.0", false), createUpdater(1, "0.1.0", false), createUpdater(2, "0.9.0", false));
+        assertTrue(manager.performUpdate("0.8.9", "0.9.1"));
+        assertEquals(Arrays.asList("0.9.0"), performed);
+    }
+
+    @Test
+    public void upgradeOverSeveralUpdaters() {
+        AppUpdateManager manager = createManager(createUpdater(0, "0.0.0", false), createUpdater(1, "0.1.0", false),
+                                                 createUpdater(2, "0.9.0", false), createUpdater(3, "0.10.0", false));
+        assertTrue(manager.performUpdate("0.1.0", "0.10.0"));
+        assertEquals(Arrays.asList("0.9.0", "0.10.0"), performed);
+    }
+
+    @Test
+    public void noUpdaterNeeded() {
+        AppUpdateManager manager = createManager(createUpdater(0, "0.0.0", false), createUpdater(1, "0.1.0", false));
+        assertTrue(manager.performUpdate("0.8.9", "0.9.0"));
+        assertTrue(performed.isEmpty());
+    }
+
+    @Test
+    public void downgradeRefused() {
+        AppUpdateManager manager = createManager(createUpdater(0, "0.0.0", false), createUpdater(1, "0.9.0", false));
+        assertFalse(manager.performUpdate("0.9.0", "0.8.9"));
+        assertTrue(performed.isEmpty());
+    }
+
+    @Test
+    public void inconsistentUpdatersRefused() {
+        AppUpdateManager manager = createManager(createUpdater(0, "0.0.0", false), createUpdater(1, "0.9.0", false), createUpdater(2, "0.5.0", false));
+        assertFalse(manager.performUpdate("0.1.0", "0.9.0"));
+        assertTrue(performed.isEmpty());
+    }
+
+    @Test
+    public void failedUpdaterStopsUpdate() {
+        AppUpdateManager manager = createManager(createUpdater(0, "0.0.0", false), createUpdater(1, "0.9.0", true), createUpdater(2, "0.9.5", false));
+        assertFalse(manager.performUpdate("0.8.9", "0.9.5"));
+        assertTrue(performed.isEmpty());
+    }
+
+    @Test
+    public void compareVersions() {
+        assertTrue(AppUpdateManager.compareVersions("0.8.9", "0.9.0") < 0);
+        assertTrue(AppUpdateManager.compareVersions("0.10.0", "0.9.0") > 0);
+        assertEquals(0, AppUpdateManager.compareVersions("0.9", "0.9.0"));
+        List<String> sorted = Arrays.asList("1.0.0", "0.9.0", "0.10.1", "0.0.0").stream()
+            .sorted(AppUpdateManager::compareVersions)
+            .collect(Collectors.toList());
+        assertEquals(Arrays.asList("0.0.0", "0.9.0", "0.10.1", "1.0.0"), sorted);
+    }
+}